@@ -0,0 +1,282 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of requests in flight towards a server and adapts the limit to the responses of the server with
+ * additive increase and multiplicative decrease (AIMD).
+ * <p>
+ * A request is in flight from the time it is sent until its response body is consumed. Requests above the limit wait
+ * in a queue. The limit is increased by one per limit responses while their latency stays below twice the lowest
+ * observed latency. It is halved if the server responds with {@code 429} or {@code 503}, and reduced by a tenth if the
+ * latency rises above that. If such a response has a {@code Retry-After} header, no queued requests are started until
+ * the given time has passed.
+ * <p>
+ * The lowest latency is kept apart for each {@link RequestKind kind of request}, because the cheap
+ * {@code _summary=count} and {@code _count=1} probes would otherwise set a baseline that every ordinary page exceeds.
+ * <p>
+ * The current limit, the number of requests in flight and queued and the number of rejections by the server are
+ * exposed through {@link ConcurrencyLimiterMXBean}. This class is thread-safe.
+ */
+public class AdaptiveConcurrencyLimiter implements ExchangeFilterFunction, ConcurrencyLimiterMXBean {
+
+    private static final Set<Integer> OVERLOAD_STATUS_CODES = Set.of(429, 503);
+    private static final double OVERLOAD_DECREASE = 0.5;
+    private static final double LATENCY_DECREASE = 0.9;
+    private static final double LATENCY_TOLERANCE = 2;
+    private static final double BASELINE_DRIFT = 0.01;
+    private static final int PROBE_MAX_COUNT = 1;
+    private static final Scheduler RESUME_SCHEDULER = Schedulers.parallel();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final LongSupplier nanoTime;
+    private final ArrayDeque<MonoSink<Void>> queue = new ArrayDeque<>();
+
+    private double limit;
+    private int inFlight;
+    private long rejections;
+    private final Map<RequestKind, Double> baselineLatencyNanos = new EnumMap<>(RequestKind.class);
+    private Instant pausedUntil = Instant.MIN;
+
+    private final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    /**
+     * Creates a limiter that starts at {@code maxLimit}.
+     *
+     * @param minLimit the lowest limit, which is kept even if the server is overloaded
+     * @param maxLimit the highest limit, usually the number of connections to the server
+     */
+    public AdaptiveConcurrencyLimiter(int minLimit, int maxLimit) {
+        this(minLimit, maxLimit, System::nanoTime);
+    }
+
+    AdaptiveConcurrencyLimiter(int minLimit, int maxLimit, LongSupplier nanoTime) {
+        if (minLimit < 1) {
+            throw new IllegalArgumentException("Minimum concurrency limit must be at least 1");
+        }
+        if (maxLimit < minLimit) {
+            throw new IllegalArgumentException("Maximum concurrency limit must not be less than the minimum limit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.nanoTime = nanoTime;
+        this.limit = maxLimit;
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+        return Mono.defer(() -> {
+            var released = new AtomicBoolean();
+            Runnable release = () -> {
+                if (released.compareAndSet(false, true)) {
+                    release();
+                }
+            };
+            return acquire()
+                    .then(Mono.defer(() -> {
+                        var start = nanoTime.getAsLong();
+                        return next.exchange(request).doOnNext(response -> onResponse(RequestKind.of(request.url()),
+                                response, nanoTime.getAsLong() - start));
+                    }))
+                    .map(response -> response.mutate().body(body -> body.doFinally(signal -> release.run())).build())
+                    .doOnError(e -> release.run())
+                    .doOnCancel(release);
+        });
+    }
+
+    private Mono<Void> acquire() {
+        return Mono.create(sink -> {
+            boolean acquired;
+            synchronized (this) {
+                acquired = canStart() && queue.isEmpty();
+                if (acquired) {
+                    inFlight++;
+                } else {
+                    queue.add(sink);
+                }
+            }
+            if (acquired) {
+                sink.success();
+            } else {
+                sink.onCancel(() -> {
+                    synchronized (this) {
+                        queue.remove(sink);
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean canStart() {
+        return inFlight < (int) limit && !Instant.now().isBefore(pausedUntil);
+    }
+
+    private void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        startQueued();
+    }
+
+    /**
+     * Starts queued requests as long as the limit allows.
+     */
+    private void startQueued() {
+        var started = new ArrayList<MonoSink<Void>>();
+        synchronized (this) {
+            while (!queue.isEmpty() && canStart()) {
+                inFlight++;
+                started.add(queue.poll());
+            }
+        }
+        started.forEach(MonoSink::success);
+    }
+
+    private void onResponse(RequestKind kind, ClientResponse response, long latencyNanos) {
+        var status = response.statusCode().value();
+        Optional<Duration> retryAfter = Optional.empty();
+        synchronized (this) {
+            var baseline = baselineLatencyNanos.get(kind);
+            if (OVERLOAD_STATUS_CODES.contains(status)) {
+                rejections++;
+                decrease(OVERLOAD_DECREASE, "the server responded with status " + status);
+                retryAfter = retryAfter(response.headers().header("Retry-After"));
+                retryAfter.ifPresent(delay -> pausedUntil = Instant.now().plus(delay));
+            } else if (baseline == null || latencyNanos < baseline) {
+                baselineLatencyNanos.put(kind, (double) latencyNanos);
+                increase();
+            } else if (latencyNanos > baseline * LATENCY_TOLERANCE) {
+                // let the baseline follow lasting changes of the latency slowly
+                baseline += (latencyNanos - baseline) * BASELINE_DRIFT;
+                baselineLatencyNanos.put(kind, baseline);
+                decrease(LATENCY_DECREASE, "the latency of %d ms is more than %.0f times the usual %d ms".formatted(
+                        TimeUnit.NANOSECONDS.toMillis(latencyNanos), LATENCY_TOLERANCE,
+                        TimeUnit.NANOSECONDS.toMillis(baseline.longValue())));
+            } else {
+                baselineLatencyNanos.put(kind, baseline + (latencyNanos - baseline) * BASELINE_DRIFT);
+                increase();
+            }
+        }
+        retryAfter.ifPresent(delay -> {
+            logger.warn("Pausing requests for {} as requested by the server", delay);
+            RESUME_SCHEDULER.schedule(this::startQueued, delay.toMillis(), TimeUnit.MILLISECONDS);
+        });
+        startQueued();
+    }
+
+    private void increase() {
+        var previous = (int) limit;
+        limit = Math.min(maxLimit, limit + 1 / limit);
+        if ((int) limit > previous) {
+            logger.debug("Increased the concurrency limit to {}", (int) limit);
+        }
+    }
+
+    private void decrease(double factor, String reason) {
+        var previous = (int) limit;
+        limit = Math.max(minLimit, limit * factor);
+        if ((int) limit < previous) {
+            logger.info("Decreased the concurrency limit to {}, because {}", (int) limit, reason);
+        }
+    }
+
+    /**
+     * Parses the value of a {@code Retry-After} header, which is either a number of seconds or an HTTP date.
+     */
+    static Optional<Duration> retryAfter(List<String> values) {
+        return values.stream().findFirst().map(String::trim).flatMap(value -> {
+            try {
+                return Optional.of(Duration.ofSeconds(Long.parseLong(value)));
+            } catch (NumberFormatException e) {
+                try {
+                    var date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                    return Optional.of(Duration.between(Instant.now(), date)).filter(d -> !d.isNegative());
+                } catch (DateTimeParseException e2) {
+                    return Optional.empty();
+                }
+            }
+        });
+    }
+
+    /**
+     * The kinds of requests whose latencies are compared with separate baselines.
+     */
+    enum RequestKind {
+
+        /**
+         * Requests with {@code _summary}, like the counts of the partitioning and the size estimates.
+         */
+        SUMMARY,
+
+        /**
+         * Requests of at most one resource, like the probes for the oldest and newest resource of the partitioning.
+         */
+        PROBE,
+
+        /**
+         * All other requests, mostly the pages of the queries.
+         */
+        PAGE;
+
+        static RequestKind of(URI url) {
+            var params = UriComponentsBuilder.fromUri(url).build().getQueryParams();
+            if (params.containsKey("_summary")) {
+                return SUMMARY;
+            }
+            var count = params.getFirst("_count");
+            try {
+                return count != null && Integer.parseInt(count) <= PROBE_MAX_COUNT ? PROBE : PAGE;
+            } catch (NumberFormatException e) {
+                return PAGE;
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public synchronized long getRejections() {
+        return rejections;
+    }
+}
@@ -0,0 +1,23 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+/**
+ * Holds the bounds within which the page count of a query is adapted to the observed pages.
+ *
+ * @param minPageCount    the smallest number of resources requested per page
+ * @param maxPageCount    the largest number of resources requested per page
+ * @param targetPageBytes the size of a page in bytes that the page count is limited to
+ */
+public record AdaptivePageCountSettings(int minPageCount, int maxPageCount, long targetPageBytes) {
+
+    public AdaptivePageCountSettings {
+        if (minPageCount < 1) {
+            throw new IllegalArgumentException("Minimum page count must be at least 1");
+        }
+        if (maxPageCount < minPageCount) {
+            throw new IllegalArgumentException("Maximum page count must not be less than the minimum page count");
+        }
+        if (targetPageBytes < 1) {
+            throw new IllegalArgumentException("Target page size must be at least 1 byte");
+        }
+    }
+}
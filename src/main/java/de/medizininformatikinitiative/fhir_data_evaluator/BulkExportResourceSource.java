@@ -0,0 +1,467 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.parser.DataFormatException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.PrematureCloseException;
+import reactor.util.retry.Retry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads the resources of a query from a FHIR Bulk Data {@code $export} of the source server instead of paging through
+ * search results.
+ * <p>
+ * The first query of a resource type starts an export of all resources of that type, polls its status until it is
+ * complete and then downloads the NDJSON output files in parallel. Later queries of the same type reuse the output
+ * files of that export. The lines of the files are parsed in batches in parallel while they are downloaded, and the
+ * search parameters of the query are applied locally like in the {@link NdjsonResourceSource}.
+ * <p>
+ * Queries are delegated to the {@code fallback} source if the server doesn't support {@code $export}, if the manifest
+ * of the export reports errors, which means that the output files may miss resources, or if the query contains search
+ * parameters that can't be applied locally, including {@code _include}.
+ * <p>
+ * Transient failures of the requests to the server are retried. An export that fails or doesn't complete within the
+ * timeout is deleted on the server right away and started again by the next query of its type. The jobs of completed
+ * exports are deleted when this source is {@link #close() closed}, because later queries reuse their output files. The
+ * output files are downloaded with the credentials of the source server only if the manifest requires an access token
+ * and the files are on the source server itself.
+ */
+public class BulkExportResourceSource implements ResourceSource, AutoCloseable {
+
+    private static final MediaType FHIR_JSON = MediaType.valueOf("application/fhir+json");
+    private static final MediaType FHIR_NDJSON = MediaType.valueOf("application/fhir+ndjson");
+    private static final Set<Integer> UNSUPPORTED_STATUS_CODES = Set.of(400, 404, 405, 501);
+    private static final int PARSE_BATCH_SIZE = 256;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final Duration DELETE_TIMEOUT = Duration.ofSeconds(30);
+
+    private final WebClient webClient;
+    private final WebClient downloadClient;
+    private final URI sourceServer;
+    private final ResourceSource fallback;
+    private final FhirContext context;
+    private final IFhirPath applicationFhirPathEngine;
+    private final BulkExportSettings settings;
+    private final WorkerPool workerPool;
+    private final Map<String, Mono<Optional<Export>>> exports = new ConcurrentHashMap<>();
+    private final Set<URI> completedJobs = ConcurrentHashMap.newKeySet();
+
+    private final Logger logger = LoggerFactory.getLogger(BulkExportResourceSource.class);
+
+    /**
+     * @param webClient      the client of the source server
+     * @param downloadClient the client without credentials used to download output files that don't require the
+     *                       credentials of the source server
+     * @param sourceServer   the base url of the source server
+     * @param fallback       the source of queries that can't be answered by an export
+     * @param context        the {@link FhirContext} used to parse the resources
+     * @param fhirPathEngine the fhir path engine that is used to evaluate the resources
+     * @param settings       the settings of the exports and downloads
+     * @param workerPool     the pool that parses the downloaded resources
+     */
+    public BulkExportResourceSource(WebClient webClient, WebClient downloadClient, URI sourceServer,
+                                    ResourceSource fallback, FhirContext context, IFhirPath fhirPathEngine,
+                                    BulkExportSettings settings, WorkerPool workerPool) {
+        this.webClient = requireNonNull(webClient);
+        this.downloadClient = requireNonNull(downloadClient);
+        this.sourceServer = requireNonNull(sourceServer);
+        this.fallback = requireNonNull(fallback);
+        this.context = requireNonNull(context);
+        this.applicationFhirPathEngine = requireNonNull(fhirPathEngine);
+        this.settings = requireNonNull(settings);
+        this.workerPool = requireNonNull(workerPool);
+    }
+
+    @Override
+    public Flux<ResourceWithIncludes> getResources(String query) {
+        NdjsonResourceSource.Search search;
+        try {
+            search = NdjsonResourceSource.Search.parse(query);
+        } catch (IllegalArgumentException e) {
+            logger.debug("Search query {} instead of exporting it: {}", query, e.getMessage());
+            return fallback.getResources(query);
+        }
+        if (!search.includes().isEmpty()) {
+            logger.debug("Search query {} instead of exporting it, because it includes other resources", query);
+            return fallback.getResources(query);
+        }
+
+        return exports.computeIfAbsent(search.type(), this::cachedExport)
+                .flatMapMany(export -> export
+                        .map(e -> readResources(e, search.type(), search.filter()))
+                        .orElseGet(() -> fallback.getResources(query)));
+    }
+
+    /**
+     * Caches the export of {@code type} for later queries unless it fails, so that the next query starts a new export.
+     */
+    private Mono<Optional<Export>> cachedExport(String type) {
+        return export(type)
+                .doOnError(e -> {
+                    logger.warn("Export of {} failed: {}", type, e.getMessage());
+                    exports.remove(type);
+                })
+                .cache();
+    }
+
+    /**
+     * Estimates the size of {@code query} with the fallback source, which searches the same server.
+     */
+    @Override
+    public Mono<Long> estimateSize(String query) {
+        return fallback.estimateSize(query);
+    }
+
+    /**
+     * Exports all resources of {@code type}.
+     *
+     * @return the completed export or an empty {@code Optional} if the server doesn't support {@code $export} or
+     * reported errors with the export, because its output files may then miss resources
+     */
+    private Mono<Optional<Export>> export(String type) {
+        return webClient.get().uri("/$export?_type=" + type)
+                .accept(FHIR_JSON)
+                .header("Prefer", "respond-async")
+                .exchangeToMono(response -> {
+                    if (response.statusCode().value() == 202) {
+                        var statusUrl = response.headers().header("Content-Location").stream().findFirst();
+                        if (statusUrl.isEmpty()) {
+                            return response.releaseBody().then(Mono.error(new IOException(
+                                    "Export of %s was accepted without a Content-Location".formatted(type))));
+                        }
+                        logger.debug("Started export of {} with status url {}", type, statusUrl.get());
+                        return response.releaseBody().then(Mono.just(URI.create(statusUrl.get())));
+                    }
+                    if (UNSUPPORTED_STATUS_CODES.contains(response.statusCode().value())) {
+                        logger.warn("Export of {} is not supported by the source server (status {}), searching instead",
+                                type, response.statusCode().value());
+                        return response.releaseBody().then(Mono.empty());
+                    }
+                    return response.createError();
+                })
+                .retryWhen(retry("Kick-off of the export of " + type))
+                .flatMap(statusUrl -> pollStatus(statusUrl)
+                        .timeout(settings.timeout(), Mono.error(() -> new TimeoutException(
+                                "Export of %s didn't complete within %s".formatted(type, settings.timeout()))))
+                        .onErrorResume(e -> deleteJob(statusUrl).then(Mono.error(e)))
+                        .flatMap(manifest -> {
+                            if (!manifest.path("error").isEmpty()) {
+                                logger.warn("Export of {} reported {} error files, searching instead", type,
+                                        manifest.path("error").size());
+                                return deleteJob(statusUrl).then(Mono.empty());
+                            }
+                            completedJobs.add(statusUrl);
+                            return Mono.just(readExport(statusUrl, manifest, type));
+                        }))
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty());
+    }
+
+    /**
+     * Polls {@code statusUrl} until the export is complete.
+     *
+     * @return the manifest of the completed export
+     */
+    private Mono<JsonNode> pollStatus(URI statusUrl) {
+        return webClient.get().uri(statusUrl)
+                .accept(FHIR_JSON)
+                .exchangeToMono(response -> {
+                    if (response.statusCode().value() == 202) {
+                        var delay = retryAfter(response).orElse(settings.pollInterval());
+                        return response.releaseBody().then(Mono.just(new Poll(Optional.empty(), delay)));
+                    }
+                    if (response.statusCode().is2xxSuccessful()) {
+                        return response.bodyToMono(String.class)
+                                .map(body -> new Poll(Optional.of(readManifest(body)), Duration.ZERO));
+                    }
+                    return response.createError();
+                })
+                .retryWhen(retry("Poll of the export status " + statusUrl))
+                .flatMap(poll -> poll.manifest().map(Mono::just).orElseGet(() -> {
+                    logger.trace("Export {} is in progress, polling again in {}", statusUrl, poll.delay());
+                    return Mono.delay(poll.delay()).then(Mono.defer(() -> pollStatus(statusUrl)));
+                }));
+    }
+
+    /**
+     * The result of one poll of the export status.
+     *
+     * @param manifest the manifest if the export is complete
+     * @param delay    the time to wait before the next poll if the export is in progress
+     */
+    private record Poll(Optional<JsonNode> manifest, Duration delay) {
+    }
+
+    /**
+     * Deletes the export job {@code statusUrl} on the server, so that it stops the export and removes its output files.
+     * <p>
+     * Failures are only logged, because the job is no longer needed anyway.
+     */
+    private Mono<Void> deleteJob(URI statusUrl) {
+        return webClient.delete().uri(statusUrl)
+                .retrieve()
+                .toBodilessEntity()
+                .doOnNext(response -> logger.debug("Deleted export job {}", statusUrl))
+                .onErrorResume(e -> {
+                    logger.warn("Failed deleting export job {}: {}", statusUrl, e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Deletes the jobs of all completed exports on the server.
+     */
+    @Override
+    public void close() {
+        var jobs = List.copyOf(completedJobs);
+        completedJobs.removeAll(jobs);
+        Flux.fromIterable(jobs).flatMap(this::deleteJob).then().block(DELETE_TIMEOUT);
+    }
+
+    /**
+     * Creates the retry of a single request of the export or the download of an output file.
+     * <p>
+     * Error responses with status {@code 5xx} or {@code 429} and failed or prematurely closed connections are
+     * retried, because the Bulk Data specification treats them as transient.
+     *
+     * @param request the description of the request, used for logging
+     * @return the retry specification
+     */
+    private Retry retry(String request) {
+        var retry = settings.retry();
+        return Retry.backoff(retry.maxAttempts(), retry.minBackoff())
+                .maxBackoff(retry.maxBackoff())
+                .jitter(retry.jitter())
+                .filter(BulkExportResourceSource::isTransient)
+                .doBeforeRetry(signal -> logger.warn("Retrying {} ({}/{}) after: {}", request,
+                        signal.totalRetries() + 1, retry.maxAttempts(), signal.failure().getMessage()))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    private static boolean isTransient(Throwable e) {
+        // a connection closed while the body is read is wrapped into a response exception with the original status
+        if (e.getCause() instanceof PrematureCloseException) {
+            return true;
+        }
+        if (e instanceof WebClientResponseException response) {
+            return response.getStatusCode().is5xxServerError() || response.getStatusCode().value() == 429;
+        }
+        return e instanceof WebClientRequestException || e instanceof PrematureCloseException;
+    }
+
+    private static Optional<Duration> retryAfter(ClientResponse response) {
+        return response.headers().header("Retry-After").stream().findFirst().flatMap(value -> {
+            try {
+                return Optional.of(Duration.ofSeconds(Long.parseLong(value.trim())));
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+        });
+    }
+
+    private static JsonNode readManifest(String manifest) {
+        try {
+            return OBJECT_MAPPER.readTree(manifest);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed reading the export manifest", e);
+        }
+    }
+
+    private Export readExport(URI statusUrl, JsonNode manifest, String type) {
+        var urls = new ArrayList<URI>();
+        for (var output : manifest.path("output")) {
+            if (type.equals(output.path("type").asText()) && output.hasNonNull("url")) {
+                urls.add(URI.create(output.get("url").asText()));
+            }
+        }
+        logger.debug("Export of {} completed with {} output files", type, urls.size());
+        return new Export(statusUrl, urls, manifest.path("requiresAccessToken").asBoolean(false));
+    }
+
+    /**
+     * A completed export.
+     *
+     * @param statusUrl           the status url of the export job
+     * @param outputs             the urls of the output files of the exported type
+     * @param requiresAccessToken whether the output files can only be downloaded with an access token
+     */
+    private record Export(URI statusUrl, List<URI> outputs, boolean requiresAccessToken) {
+    }
+
+    /**
+     * Returns the client to download {@code url} with.
+     * <p>
+     * The client of the source server is only used if the export requires an access token and {@code url} has the
+     * same origin as the source server, so that its credentials are never sent to another host.
+     */
+    private WebClient clientOf(Export export, URI url) {
+        return export.requiresAccessToken() && sameOrigin(url, sourceServer) ? webClient : downloadClient;
+    }
+
+    static boolean sameOrigin(URI a, URI b) {
+        return a.getScheme() != null && a.getScheme().equalsIgnoreCase(b.getScheme())
+                && a.getHost() != null && a.getHost().equalsIgnoreCase(b.getHost())
+                && port(a) == port(b);
+    }
+
+    private static int port(URI uri) {
+        if (uri.getPort() != -1) {
+            return uri.getPort();
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * Downloads the output files of {@code export} and parses the resources of {@code type} that match
+     * {@code filter}.
+     */
+    private Flux<ResourceWithIncludes> readResources(Export export, String type, Predicate<Resource> filter) {
+        return Flux.fromIterable(export.outputs())
+                .flatMap(url -> downloadLines(clientOf(export, url), url), settings.parallelism())
+                .buffer(PARSE_BATCH_SIZE)
+                .flatMap(lines -> Mono.fromCallable(() -> workerPool.time(WorkerPool.Stage.PARSE,
+                                () -> parseLines(lines, type, filter)))
+                        .subscribeOn(workerPool.scheduler()), settings.parallelism())
+                .flatMapIterable(Function.identity())
+                .map(resource -> new ResourceWithIncludes(resource, Map.of(), applicationFhirPathEngine));
+    }
+
+    /**
+     * Downloads the lines of the output file {@code url}.
+     * <p>
+     * If the download fails transiently, the file is downloaded again and the lines that were already emitted are
+     * skipped, so that no resource is evaluated twice.
+     */
+    private Flux<Line> downloadLines(WebClient client, URI url) {
+        var emittedLines = new AtomicInteger();
+        return Flux.defer(() -> {
+                    var splitter = new LineSplitter(url);
+                    return client.get().uri(url)
+                            .accept(FHIR_NDJSON)
+                            .retrieve()
+                            .bodyToFlux(DataBuffer.class)
+                            .concatMapIterable(splitter::feed)
+                            .concatWith(Flux.defer(() -> Flux.fromIterable(splitter.finish())))
+                            .filter(line -> line.number() > emittedLines.get())
+                            .doOnNext(line -> emittedLines.set(line.number()));
+                })
+                .retryWhen(retry("Download of " + url));
+    }
+
+    private List<Resource> parseLines(List<Line> lines, String type, Predicate<Resource> filter) {
+        var parser = context.newJsonParser();
+        var resources = new ArrayList<Resource>(lines.size());
+        for (var line : lines) {
+            Resource resource;
+            try {
+                resource = (Resource) parser.parseResource(line.content());
+            } catch (DataFormatException e) {
+                throw new BundleParsingException(e, "%s line %d".formatted(line.url(), line.number()));
+            }
+            if (resource.fhirType().equals(type) && filter.test(resource)) {
+                resources.add(resource);
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * One non-blank line of an output file.
+     *
+     * @param url     the url of the output file, used for error messages
+     * @param number  the number of the line in the file starting at 1
+     * @param content the line without the newline
+     */
+    record Line(URI url, int number, String content) {
+    }
+
+    /**
+     * Splits the downloaded bytes of one output file into lines.
+     * <p>
+     * The bytes of a line are collected until its newline arrives, so lines and multibyte characters may span
+     * several buffers. This class is not thread-safe.
+     */
+    static final class LineSplitter {
+
+        private final URI url;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private int lineNumber;
+
+        LineSplitter(URI url) {
+            this.url = requireNonNull(url);
+        }
+
+        List<Line> feed(DataBuffer buffer) {
+            try {
+                var bytes = new byte[buffer.readableByteCount()];
+                buffer.read(bytes);
+                return feed(bytes);
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+        }
+
+        List<Line> feed(byte[] bytes) {
+            var lines = new ArrayList<Line>();
+            var start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    pending.write(bytes, start, i - start);
+                    addLine(lines);
+                    start = i + 1;
+                }
+            }
+            pending.write(bytes, start, bytes.length - start);
+            return lines;
+        }
+
+        List<Line> finish() {
+            var lines = new ArrayList<Line>(1);
+            addLine(lines);
+            return lines;
+        }
+
+        private void addLine(List<Line> lines) {
+            lineNumber++;
+            var content = pending.toString(StandardCharsets.UTF_8);
+            pending.reset();
+            if (!content.isBlank()) {
+                lines.add(new Line(url, lineNumber, content));
+            }
+        }
+    }
+}
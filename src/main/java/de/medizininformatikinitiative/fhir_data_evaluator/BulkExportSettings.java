@@ -0,0 +1,51 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import java.time.Duration;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds the settings that control how a {@link BulkExportResourceSource} exports and downloads resources.
+ *
+ * @param pollInterval the time to wait between polls of the export status if the server doesn't send a
+ *                     {@code Retry-After} header
+ * @param timeout      the maximum time an export may take from its start until it is complete
+ * @param parallelism  the number of files downloaded and the number of batches parsed in parallel
+ * @param retry        the settings used to retry a single failed request of the export or download of a file
+ */
+public record BulkExportSettings(Duration pollInterval, Duration timeout, int parallelism, RetrySettings retry) {
+
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofHours(12);
+
+    public BulkExportSettings {
+        requireNonNull(pollInterval);
+        requireNonNull(timeout);
+        requireNonNull(retry);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("Export timeout must be positive");
+        }
+    }
+
+    /**
+     * Creates the default settings with the given {@code pollInterval} and {@code parallelism}.
+     *
+     * @param pollInterval the time to wait between polls of the export status if the server doesn't send a
+     *                     {@code Retry-After} header
+     * @param parallelism  the number of files downloaded and the number of batches parsed in parallel
+     * @return the default settings
+     */
+    public static BulkExportSettings of(Duration pollInterval, int parallelism) {
+        return new BulkExportSettings(pollInterval, DEFAULT_TIMEOUT, parallelism, RetrySettings.DEFAULT);
+    }
+
+    public BulkExportSettings withTimeout(Duration timeout) {
+        return new BulkExportSettings(pollInterval, timeout, parallelism, retry);
+    }
+
+    public BulkExportSettings withRetry(RetrySettings retry) {
+        return new BulkExportSettings(pollInterval, timeout, parallelism, retry);
+    }
+}
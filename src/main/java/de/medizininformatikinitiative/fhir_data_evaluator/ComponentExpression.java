@@ -10,35 +10,62 @@ import org.hl7.fhir.r4.model.ExpressionNode;
 import org.hl7.fhir.r4.model.Measure;
 
 import java.util.List;
+import java.util.Optional;
 
 import static java.util.Objects.requireNonNull;
 
 /**
  * Holds a {@link HashableCoding} and a pre-parsed FHIRPath {@link ExpressionNode} of a single stratifier component.
  *
- * @param code           the component code
- * @param expression     the expression to extract the stratum value
+ * @param code               the component code
+ * @param expression         the expression to extract the stratum value
+ * @param compiledExpression the compiled {@code expression} that is evaluated instead of {@code expression}, if it could
+ *                           be compiled
  */
-public record ComponentExpression(HashableCoding code, IFhirPath.IParsedExpression expression) {
+public record ComponentExpression(HashableCoding code, IFhirPath.IParsedExpression expression,
+                                  Optional<FhirPathCompiler.CompiledPath> compiledExpression) {
 
     private static final String STRATIFIER_LANGUAGE = "text/fhirpath";
 
     public ComponentExpression {
         requireNonNull(code);
         requireNonNull(expression);
+        requireNonNull(compiledExpression);
+    }
+
+    public ComponentExpression(HashableCoding code, IFhirPath.IParsedExpression expression) {
+        this(code, expression, Optional.empty());
     }
 
     public static ComponentExpression fromCriteria(IFhirPath fhirPathEngine, Measure.MeasureGroupStratifierComponent fhirStratifier) throws Exception {
+        return fromCriteria(fhirPathEngine, Optional.empty(), fhirStratifier);
+    }
+
+    /**
+     * @param compiler if present, the expression is compiled if it has a supported shape
+     */
+    public static ComponentExpression fromCriteria(IFhirPath fhirPathEngine, Optional<FhirPathCompiler> compiler,
+                                                   Measure.MeasureGroupStratifierComponent fhirStratifier) throws Exception {
         if (!fhirStratifier.getCriteria().getLanguage().equals(STRATIFIER_LANGUAGE)) {
             throw new IllegalArgumentException("Language of Stratifier was not equal to '%s'".formatted(STRATIFIER_LANGUAGE));
         }
 
+        var expression = fhirStratifier.getCriteria().getExpression();
         return new ComponentExpression(
                 HashableCoding.ofFhirCoding(fhirStratifier.getCode().getCodingFirstRep()),
-                fhirPathEngine.parse(fhirStratifier.getCriteria().getExpression()));
+                fhirPathEngine.parse(expression),
+                compiler.flatMap(c -> c.compile(expression)));
     }
 
     public static ComponentExpression fromComponent(IFhirPath fhirPathEngine, Measure.MeasureGroupStratifierComponentComponent component) {
+        return fromComponent(fhirPathEngine, Optional.empty(), component);
+    }
+
+    /**
+     * @param compiler if present, the expression is compiled if it has a supported shape
+     */
+    public static ComponentExpression fromComponent(IFhirPath fhirPathEngine, Optional<FhirPathCompiler> compiler,
+                                                    Measure.MeasureGroupStratifierComponentComponent component) {
         if (component.getCode().getCoding().size() != 1) {
             throw new IllegalArgumentException("Stratifier component did not contain exactly one coding");
         }
@@ -47,24 +74,47 @@ public record ComponentExpression(HashableCoding code, IFhirPath.IParsedExpressi
             throw new IllegalArgumentException("Language of stratifier component was not equal to '%s'".formatted(STRATIFIER_LANGUAGE));
         }
 
+        var expression = component.getCriteria().getExpression();
         try {
             return new ComponentExpression(
                     HashableCoding.ofFhirCoding(component.getCode().getCodingFirstRep()),
-                    fhirPathEngine.parse(component.getCriteria().getExpression()));
+                    fhirPathEngine.parse(expression),
+                    compiler.flatMap(c -> c.compile(expression)));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public StratumComponent evaluate(ResourceWithIncludes resource) {
-        List<Base> found = resource.fhirPathEngine().evaluate(resource.mainResource(), expression, Base.class);
+    /**
+     * Evaluates the expression on {@code resource}.
+     * <p>
+     * The compiled expression is used if there is one and it can be evaluated on {@code resource}.
+     *
+     * @param resource the resource to evaluate
+     * @return the found value or one of the failure codings if no valid value was found
+     */
+    public HashableCoding evaluateValue(ResourceWithIncludes resource) {
+        return evaluateFound(evaluate(resource));
+    }
+
+    private List<Base> evaluate(ResourceWithIncludes resource) {
+        if (compiledExpression.isPresent()) {
+            var found = compiledExpression.get().evaluate(resource.mainResource(), resource.includes());
+            if (found != null) {
+                return found;
+            }
+        }
+        return resource.evaluate(expression, Base.class);
+    }
+
+    private HashableCoding evaluateFound(List<Base> found) {
 
         if (found.isEmpty()) {
-            return StratumComponent.ofFailedNoValueFound(code);
+            return HashableCoding.FAIL_NO_VALUE_FOUND;
         }
 
         if (found.size() > 1) {
-            return StratumComponent.ofFailedTooManyValues(code);
+            return HashableCoding.FAIL_TOO_MANY_VALUES;
         }
 
         if (found.get(0) instanceof Coding coding) {
@@ -83,31 +133,31 @@ public record ComponentExpression(HashableCoding code, IFhirPath.IParsedExpressi
             return evaluateBoolean(bool);
         }
 
-        return StratumComponent.ofFailedInvalidType(code);
+        return HashableCoding.FAIL_INVALID_TYPE;
     }
 
-    private StratumComponent evaluateCoding(Coding coding) {
+    private HashableCoding evaluateCoding(Coding coding) {
 
         return (coding.hasSystem() && coding.hasCode()) ?
-                new StratumComponent(code, HashableCoding.ofFhirCoding(coding)) :
-                StratumComponent.ofFailedMissingFields(code);
+                HashableCoding.ofFhirCoding(coding) :
+                HashableCoding.FAIL_MISSING_FIELDS;
     }
 
-    private StratumComponent evaluateCodeEnumeration(Enumeration<?> valueCode) {
+    private HashableCoding evaluateCodeEnumeration(Enumeration<?> valueCode) {
         return valueCode.hasCode() ?
-                new StratumComponent(code, HashableCoding.ofSingleCodeValue(valueCode.getCode())) :
-                StratumComponent.ofFailedMissingFields(code);
+                HashableCoding.ofSingleCodeValue(valueCode.getCode()) :
+                HashableCoding.FAIL_MISSING_FIELDS;
     }
 
-    private StratumComponent evaluateCode(CodeType valueCode) {
+    private HashableCoding evaluateCode(CodeType valueCode) {
         return valueCode.hasCode() ?
-                new StratumComponent(code, HashableCoding.ofSingleCodeValue(valueCode.getCode())) :
-                StratumComponent.ofFailedMissingFields(code);
+                HashableCoding.ofSingleCodeValue(valueCode.getCode()) :
+                HashableCoding.FAIL_MISSING_FIELDS;
     }
 
-    private StratumComponent evaluateBoolean(BooleanType bool) {
+    private HashableCoding evaluateBoolean(BooleanType bool) {
         return bool.hasValue() ?
-                new StratumComponent(code, HashableCoding.ofSingleCodeValue(bool.getValueAsString())) :
-                StratumComponent.ofFailedMissingFields(code);
+                HashableCoding.ofSingleCodeValue(bool.getValueAsString()) :
+                HashableCoding.FAIL_MISSING_FIELDS;
     }
 }
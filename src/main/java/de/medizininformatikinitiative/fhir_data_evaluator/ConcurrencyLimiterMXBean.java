@@ -0,0 +1,27 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+/**
+ * The metrics of an {@link AdaptiveConcurrencyLimiter}, which are registered with the platform MBean server.
+ */
+public interface ConcurrencyLimiterMXBean {
+
+    /**
+     * Returns the current maximum number of requests in flight.
+     */
+    int getLimit();
+
+    /**
+     * Returns the number of requests that were sent and whose response is not yet consumed.
+     */
+    int getInFlight();
+
+    /**
+     * Returns the number of requests that wait for the number of requests in flight to fall below the limit.
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of responses with status {@code 429} or {@code 503}.
+     */
+    long getRejections();
+}
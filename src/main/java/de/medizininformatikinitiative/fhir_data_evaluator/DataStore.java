@@ -3,12 +3,18 @@ package de.medizininformatikinitiative.fhir_data_evaluator;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.fhirpath.IFhirPath;
 import ca.uhn.fhir.parser.DataFormatException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.client.WebClient;
@@ -19,47 +25,403 @@ import reactor.util.retry.Retry;
 
 import java.io.IOException;
 import java.net.URI;
-import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
-import static de.medizininformatikinitiative.fhir_data_evaluator.ResourceWithIncludes.processBundleIncludes;
+import static de.medizininformatikinitiative.fhir_data_evaluator.ResourceWithIncludes.processIncludes;
+import static java.util.Objects.requireNonNull;
 
-public class DataStore {
+public class DataStore implements ResourceSource {
 
     private final WebClient webClient;
-    private final int pageCount;
+    private final DataStoreSettings settings;
     private final FhirContext context;
     private final IFhirPath applicationFhirPathEngine;
+    private final LastUpdatedPartitioner partitioner;
+    private final Optional<IncludeCache> includeCache;
+    private final WorkerPool workerPool;
+
+    private static final int IO_HANDOFF_BUFFERS = 16;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
     private final Logger logger = LoggerFactory.getLogger(DataStore.class);
 
-    public DataStore(WebClient webClient, int pageCount, FhirContext context, IFhirPath fhirPathEngine) {
+    public DataStore(WebClient webClient, int pageCount, FhirContext context, IFhirPath fhirPathEngine,
+                     WorkerPool workerPool) {
+        this(webClient, DataStoreSettings.ofPageCount(pageCount), context, fhirPathEngine, workerPool);
+    }
+
+    /**
+     * @param workerPool the pool that parses the pages and on which the resources are emitted
+     */
+    public DataStore(WebClient webClient, DataStoreSettings settings, FhirContext context, IFhirPath fhirPathEngine,
+                     WorkerPool workerPool) {
         this.webClient = webClient;
-        this.pageCount = pageCount;
+        this.settings = requireNonNull(settings);
         this.context = context;
         this.applicationFhirPathEngine = fhirPathEngine;
+        this.partitioner = new LastUpdatedPartitioner(webClient, settings.partitions(), settings.pageCount());
+        this.includeCache = settings.includeCacheSize() > 0
+                ? Optional.of(new IncludeCache(context, settings.includeCacheSize()))
+                : Optional.empty();
+        this.workerPool = requireNonNull(workerPool);
     }
 
     /**
      * Executes {@code query} and returns all resources found with that query.
+     * <p>
+     * If more than one partition is configured, {@code query} is split into disjoint {@code _lastUpdated} ranges by a
+     * {@link LastUpdatedPartitioner}, which are paged through concurrently. The resources of the ranges are emitted
+     * in no particular order.
      *
      * @param query the fhir search query
      * @return the resources found with the {@code query}
      */
+    @Override
     public Flux<ResourceWithIncludes> getResources(String query) {
-        return webClient.get()
-                .uri(appendPageCount(query))
-                .retrieve()
-                .bodyToMono(String.class)
-                .doOnNext(response -> logger.debug("Initial query success: {}", appendPageCount(query)))
-                .map(this::parseBundle)
-                .expand(bundle -> Optional.ofNullable(bundle.getLink("next"))
-                        .map(link -> fetchPage(webClient, link.getUrl()))
-                        .orElse(Mono.empty()))
-                .retryWhen(Retry.backoff(3, Duration.ofSeconds(1))
-                        .filter(e -> e instanceof WebClientResponseException &&
-                                shouldRetry(((WebClientResponseException) e).getStatusCode())))
-                .flatMap(bundle -> Flux.fromStream(processBundleIncludes(bundle, applicationFhirPathEngine, context)));
+        if (settings.partitions() == 1) {
+            return getPartition(query);
+        }
+        return partitioner.partition(query).flatMapMany(partitions -> Flux.fromIterable(partitions)
+                .flatMap(this::getPartition, partitions.size()));
+    }
+
+    /**
+     * Estimates the size of {@code query} by the total the server returns with {@code _summary=count}.
+     *
+     * @param query the fhir search query
+     * @return the number of resources of {@code query} or an empty {@code Mono} if the server returned no total
+     */
+    @Override
+    public Mono<Long> estimateSize(String query) {
+        return partitioner.count(query).onErrorResume(e -> {
+            logger.debug("Unknown size of query {}: {}", query, e.getMessage());
+            return Mono.empty();
+        });
+    }
+
+    private Flux<ResourceWithIncludes> getPartition(String query) {
+        return settings.streamingParsing() ? streamResources(query) : bufferResources(query);
+    }
+
+    /**
+     * Pages through {@code query} and parses each page as a whole {@link Bundle}.
+     * <p>
+     * The link to the next page is extracted from the raw response before the page is parsed, so that the next page
+     * can already be downloaded while the current page is parsed and evaluated. With parallel parsing, the entries of
+     * each page are parsed concurrently by a {@link ParallelBundleParser}. In both cases, the matches of a page are only
+     * emitted after all its 'include' resources are parsed.
+     * <p>
+     * If {@code query} includes other resources, they are interned in the {@link IncludeCache}, if there is one, and
+     * resolve the references of later pages through the {@link IncludeCache.Scope} of the query.
+     */
+    private Flux<ResourceWithIncludes> bufferResources(String query) {
+        var includeCache = includeCache(query);
+        var scope = includeCache.map(IncludeCache::newScope);
+        var controller = new PageCountController(settings.adaptivePageCount(), settings.pageCount());
+        var rawPages = prefetch(fetchRawPages(query, Optional.empty(), controller), settings.prefetchPages());
+        var resources = settings.parallelParsing()
+                ? rawPages.concatMap(page -> parsePage(page,
+                        new ParallelBundleParser(context, workerPool, includeCache), controller, includeCache, scope))
+                : rawPages.map(page -> internIncludes(ParallelBundleParser.Page.of(parseBundle(page, controller)),
+                                includeCache))
+                        .flatMapIterable(parsed -> processIncludes(parsed.matches(), parsed.includes(),
+                                applicationFhirPathEngine, context, scope).toList());
+        return resources.doOnComplete(() -> logPageCounts(query, controller));
+    }
+
+    /**
+     * Fetches the pages of {@code query}, starting with the first page or with {@code pageUrl}, and requests each
+     * next page once the previous page is emitted.
+     */
+    private Flux<RawPage> fetchRawPages(String query, Optional<String> pageUrl, PageCountController controller) {
+        var initialQuery = pageUrl.orElseGet(() -> appendPageCount(query, controller.pageCount()));
+        var initialRequest = pageUrl.isPresent() ? webClient.get().uri(URI.create(initialQuery))
+                : webClient.get().uri(initialQuery);
+        return fetchRawPage(initialRequest, initialQuery)
+                .doOnNext(response -> logger.debug("Initial query success: {}", initialQuery))
+                .expand(page -> page.nextUrl()
+                        .map(controller::nextUrl)
+                        .map(url -> fetchRawPage(webClient.get().uri(URI.create(url)), url)
+                                .doOnNext(response -> logger.trace("Fetch page success: {}", url)))
+                        .orElse(Mono.empty()));
+    }
+
+    /**
+     * Returns whether {@code query} can be fetched page by page.
+     * <p>
+     * Only queries without includes, whose pages resolve references with the 'include' resources of earlier pages, are
+     * supported, and only if the pages are neither partitioned, streamed nor prefetched, so that all resources of a
+     * page are emitted before the next page is requested.
+     */
+    @Override
+    public boolean supportsPages(String query) {
+        return settings.partitions() == 1 && !settings.streamingParsing() && settings.prefetchPages() == 0
+                && !hasIncludes(query);
+    }
+
+    /**
+     * Executes {@code query} like {@link #getResources(String)} and emits the resources of each page together with the
+     * link to the next page as returned by the server.
+     */
+    @Override
+    public Flux<Page> getPages(String query, Optional<String> pageUrl) {
+        if (!supportsPages(query)) {
+            throw new UnsupportedOperationException("Can't fetch the query %s page by page".formatted(query));
+        }
+        var controller = new PageCountController(settings.adaptivePageCount(), settings.pageCount());
+        return fetchRawPages(query, pageUrl, controller)
+                .concatMap(page -> (settings.parallelParsing()
+                        ? parsePage(page, new ParallelBundleParser(context, workerPool, Optional.empty()), controller,
+                        Optional.empty(), Optional.empty())
+                        : Mono.fromSupplier(() -> ParallelBundleParser.Page.of(parseBundle(page, controller)))
+                        .flatMapIterable(parsed -> processIncludes(parsed.matches(), parsed.includes(),
+                                applicationFhirPathEngine, context).toList()))
+                        .collectList()
+                        .map(resources -> new Page(resources, page.nextUrl())))
+                .doOnComplete(() -> logPageCounts(query, controller));
+    }
+
+    /**
+     * Parses the entries of {@code page} concurrently and falls back to parsing it as a whole {@link Bundle} if it
+     * can't be split into entries, so that errors are reported the same way.
+     */
+    private Flux<ResourceWithIncludes> parsePage(RawPage page, ParallelBundleParser parser,
+                                                 PageCountController controller,
+                                                 Optional<IncludeCache> includeCache,
+                                                 Optional<IncludeCache.Scope> scope) {
+        return Mono.defer(() -> {
+                    var start = System.nanoTime();
+                    return parser.parse(page.body())
+                            .switchIfEmpty(Mono.fromSupplier(() -> workerPool.time(WorkerPool.Stage.PARSE,
+                                    () -> internIncludes(ParallelBundleParser.Page.of(parseBundle(page.body())),
+                                            includeCache))))
+                            .doOnNext(parsed -> controller.recordPage(parsed.matches().size(), page.body().length(),
+                                    page.latencyNanos(), System.nanoTime() - start));
+                })
+                .flatMapIterable(parsed -> processIncludes(parsed.matches(), parsed.includes(),
+                        applicationFhirPathEngine, context, scope).toList());
+    }
+
+    /**
+     * Returns the {@link IncludeCache} if {@code query} includes other resources.
+     * <p>
+     * Queries with {@code _elements} don't use the cache, because the server also projects their 'include' resources,
+     * and a projected copy must neither be served to another query nor replace the complete copy of another query.
+     */
+    private Optional<IncludeCache> includeCache(String query) {
+        return hasIncludes(query) && !query.contains("_elements=") ? includeCache : Optional.empty();
+    }
+
+    private static ParallelBundleParser.Page internIncludes(ParallelBundleParser.Page page,
+                                                            Optional<IncludeCache> includeCache) {
+        return includeCache.map(cache -> new ParallelBundleParser.Page(page.matches(), cache.internAll(page.includes())))
+                .orElse(page);
+    }
+
+    private Bundle parseBundle(RawPage page, PageCountController controller) {
+        var start = System.nanoTime();
+        var bundle = workerPool.time(WorkerPool.Stage.PARSE, () -> parseBundle(page.body()));
+        var matches = (int) bundle.getEntry().stream()
+                .filter(entry -> entry.getSearch().getMode() != Bundle.SearchEntryMode.INCLUDE)
+                .count();
+        controller.recordPage(matches, page.body().length(), page.latencyNanos(), System.nanoTime() - start);
+        return bundle;
+    }
+
+    private void logPageCounts(String query, PageCountController controller) {
+        if (controller.isAdaptive()) {
+            logger.info("Fetched query {}: {}", query, controller.summary());
+        }
+    }
+
+    /**
+     * Pages through {@code query} and parses the response bytes of each page with a {@link StreamingBundleParser}.
+     * <p>
+     * Resources are emitted as soon as their entry is complete. Only if {@code query} includes other resources, the
+     * matches of a page are held back until the page is complete, because the 'include' resources usually follow
+     * the matches and are needed to resolve references.
+     */
+    private Flux<ResourceWithIncludes> streamResources(String query) {
+        var controller = new PageCountController(settings.adaptivePageCount(), settings.pageCount());
+        var initialQuery = appendPageCount(query, controller.pageCount());
+        var items = streamPage(webClient.get().uri(initialQuery), initialQuery, controller)
+                .doOnSubscribe(s -> logger.debug("Initial query: {}", initialQuery))
+                .expand(item -> {
+                    if (item instanceof StreamingBundleParser.NextLink link) {
+                        var url = controller.nextUrl(link.url());
+                        return streamPage(webClient.get().uri(URI.create(url)), url, controller);
+                    }
+                    return Flux.empty();
+                })
+                .doOnComplete(() -> logPageCounts(query, controller));
+
+        items = prefetch(items, settings.prefetchPages() * settings.pageCount());
+
+        if (!hasIncludes(query)) {
+            return items.ofType(StreamingBundleParser.Entry.class)
+                    .filter(entry -> entry.mode() == Bundle.SearchEntryMode.MATCH)
+                    .map(entry -> new ResourceWithIncludes(entry.resource(), Map.of(), applicationFhirPathEngine));
+        }
+
+        var includeCache = includeCache(query);
+        var scope = includeCache.map(IncludeCache::newScope);
+        return items.bufferUntil(item -> item == StreamingBundleParser.PageEnd.INSTANCE)
+                .map(page -> internIncludes(new ParallelBundleParser.Page(
+                        entriesByMode(page, Bundle.SearchEntryMode.MATCH),
+                        entriesByMode(page, Bundle.SearchEntryMode.INCLUDE)), includeCache))
+                .flatMapIterable(page -> processIncludes(page.matches(), page.includes(),
+                        applicationFhirPathEngine, context, scope).toList());
+    }
+
+    /**
+     * Decouples the downloading of pages from the parsing and evaluation downstream, allowing up to {@code prefetch}
+     * elements to be downloaded ahead.
+     * <p>
+     * The elements are already emitted on the {@link WorkerPool}, so this hand-off only lets another worker thread
+     * continue downstream.
+     */
+    private <T> Flux<T> prefetch(Flux<T> elements, int prefetch) {
+        return prefetch == 0 ? elements : elements.publishOn(workerPool.scheduler(), prefetch);
+    }
+
+    /**
+     * Downloads one page on the I/O thread and hands it off to the {@link WorkerPool}.
+     * <p>
+     * The next link is only extracted after the hand-off, so that the I/O thread doesn't scan the page and the time
+     * is booked as parsing.
+     */
+    private Mono<RawPage> fetchRawPage(WebClient.RequestHeadersSpec<?> request, String url) {
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            var latencyNanos = new long[1];
+            return request.retrieve()
+                    .bodyToMono(String.class)
+                    .retryWhen(pageRetry(url))
+                    .doOnNext(body -> latencyNanos[0] = System.nanoTime() - start)
+                    .publishOn(workerPool.scheduler())
+                    .map(body -> new RawPage(body, workerPool.time(WorkerPool.Stage.PARSE, () -> findNextLink(body)),
+                            latencyNanos[0]));
+        });
+    }
+
+    /**
+     * Creates the retry of a single page request.
+     * <p>
+     * Because only the request of the failed page is repeated, the pages before it are neither downloaded nor
+     * evaluated again. Only error responses are retried, which always arrive before any entry of the page.
+     *
+     * @param url the url of the page, used for logging
+     * @return the retry specification
+     */
+    private Retry pageRetry(String url) {
+        var retry = settings.retry();
+        return Retry.backoff(retry.maxAttempts(), retry.minBackoff())
+                .maxBackoff(retry.maxBackoff())
+                .jitter(retry.jitter())
+                .filter(e -> e instanceof WebClientResponseException &&
+                        shouldRetry(((WebClientResponseException) e).getStatusCode()))
+                .doBeforeRetry(signal -> logger.warn("Retrying page {} ({}/{}) after: {}", url,
+                        signal.totalRetries() + 1, retry.maxAttempts(), signal.failure().getMessage()));
+    }
+
+    /**
+     * A page that was downloaded but not yet parsed.
+     *
+     * @param body         the page as it was returned by the server
+     * @param nextUrl      the url of the next page if there is one
+     * @param latencyNanos the time from the request until the page was received, including retries
+     */
+    private record RawPage(String body, Optional<String> nextUrl, long latencyNanos) {
+    }
+
+    /**
+     * Reads only the links of the bundle without parsing its entries.
+     *
+     * @param bundle the raw bundle
+     * @return the url of the next page or an empty {@code Optional} if there is none or the bundle is malformed, in
+     * which case parsing the bundle will report the error
+     */
+    static Optional<String> findNextLink(String bundle) {
+        try (JsonParser parser = JSON_FACTORY.createParser(bundle)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return Optional.empty();
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var field = parser.currentName();
+                var value = parser.nextToken();
+                if ("link".equals(field) && value == JsonToken.START_ARRAY) {
+                    return findNextLinkInArray(OBJECT_MAPPER.readTree(parser));
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<String> findNextLinkInArray(JsonNode links) {
+        for (var link : links) {
+            if ("next".equals(link.path("relation").asText()) && link.hasNonNull("url")) {
+                return Optional.of(link.get("url").asText());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Streams the items of one page and records the page in {@code controller} once it is complete.
+     * <p>
+     * The I/O thread only copies the received bytes, which are handed off to the {@link WorkerPool} through a bounded
+     * queue and parsed there while the rest of the page is received. So the parse time is part of the latency.
+     */
+    private Flux<StreamingBundleParser.Item> streamPage(WebClient.RequestHeadersSpec<?> request, String url,
+                                                        PageCountController controller) {
+        return Flux.defer(() -> {
+            var parser = new StreamingBundleParser(context);
+            var start = System.nanoTime();
+            var bytes = new long[1];
+            var matches = new int[1];
+            return request.retrieve()
+                    .bodyToFlux(DataBuffer.class)
+                    .map(this::readBytes)
+                    .doOnNext(buffer -> bytes[0] += buffer.length)
+                    .publishOn(workerPool.scheduler(), IO_HANDOFF_BUFFERS)
+                    .concatMapIterable(buffer -> workerPool.time(WorkerPool.Stage.PARSE, () -> parser.feed(buffer)))
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(workerPool.time(WorkerPool.Stage.PARSE, parser::finish))))
+                    .doOnNext(item -> {
+                        if (item instanceof StreamingBundleParser.Entry entry && entry.mode() == Bundle.SearchEntryMode.MATCH) {
+                            matches[0]++;
+                        }
+                    })
+                    .doOnComplete(() -> controller.recordPage(matches[0], bytes[0], System.nanoTime() - start, 0));
+        }).retryWhen(pageRetry(url));
+    }
+
+    private byte[] readBytes(DataBuffer buffer) {
+        var start = System.nanoTime();
+        try {
+            var bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            return bytes;
+        } finally {
+            DataBufferUtils.release(buffer);
+            workerPool.record(WorkerPool.Stage.IO, System.nanoTime() - start);
+        }
+    }
+
+    private static List<Resource> entriesByMode(List<StreamingBundleParser.Item> page, Bundle.SearchEntryMode mode) {
+        return page.stream()
+                .filter(item -> item instanceof StreamingBundleParser.Entry entry && entry.mode() == mode)
+                .map(item -> ((StreamingBundleParser.Entry) item).resource())
+                .toList();
+    }
+
+    static boolean hasIncludes(String query) {
+        return query.contains("_include") || query.contains("_revinclude");
     }
 
     /**
@@ -114,6 +476,9 @@ public class DataStore {
         } catch (JsonProcessingException e) {
             throw originalException;
         }
+        if (bundleEntries == null) {
+            throw originalException;
+        }
         for (var bundleEntry : bundleEntries) {
             var resource = bundleEntry.get("resource");
             try {
@@ -128,20 +493,11 @@ public class DataStore {
     }
 
     private static boolean shouldRetry(HttpStatusCode code) {
-        return code.is5xxServerError() || code.value() == 404;
-    }
-
-    private Mono<Bundle> fetchPage(WebClient client, String url) {
-        return client.get()
-                .uri(URI.create(url))
-                .retrieve()
-                .bodyToMono(String.class)
-                .doOnNext(response -> logger.trace("Fetch page success: {}", url))
-                .map(response -> context.newJsonParser().parseResource(Bundle.class, response));
+        return code.is5xxServerError() || code.value() == 404 || code.value() == 429;
     }
 
-    String appendPageCount(String query) {
-        return query.contains("?") ? query + "&_count=" + this.pageCount : query + "?_count=" + this.pageCount;
+    static String appendPageCount(String query, int pageCount) {
+        return query.contains("?") ? query + "&_count=" + pageCount : query + "?_count=" + pageCount;
     }
 
 }
@@ -0,0 +1,89 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds the settings that control how a {@link DataStore} pages through and parses search results.
+ *
+ * @param pageCount         the number of resources requested per page
+ * @param streamingParsing  whether pages are parsed incrementally entry by entry instead of being buffered as a whole
+ * @param prefetchPages     the number of pages that are downloaded ahead while the current page is parsed and
+ *                          evaluated
+ * @param retry             the settings used to retry a single failed page request
+ * @param partitions        the maximum number of disjoint {@code _lastUpdated} ranges a query is split into, which
+ *                          are paged through concurrently, or {@code 1} to page through each query sequentially
+ * @param adaptivePageCount the bounds within which the page count is adapted to the observed pages, starting with
+ *                          {@code pageCount}, or an empty {@code Optional} to always request {@code pageCount}
+ * @param parallelParsing   whether the entries of a buffered page are parsed concurrently instead of parsing the page
+ *                          as a whole on one thread, which has no effect with {@code streamingParsing}
+ * @param includeCacheSize  the maximum total size of the 'include' resources cached across pages and queries, in
+ *                          characters of their JSON representation, or {@code 0} to not cache them
+ */
+public record DataStoreSettings(int pageCount, boolean streamingParsing, int prefetchPages, RetrySettings retry,
+                                int partitions, Optional<AdaptivePageCountSettings> adaptivePageCount,
+                                boolean parallelParsing, long includeCacheSize) {
+
+    public DataStoreSettings {
+        requireNonNull(retry);
+        requireNonNull(adaptivePageCount);
+        if (pageCount < 1) {
+            throw new IllegalArgumentException("Page count must be at least 1");
+        }
+        if (prefetchPages < 0) {
+            throw new IllegalArgumentException("Number of prefetched pages must not be negative");
+        }
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Number of partitions must be at least 1");
+        }
+        if (includeCacheSize < 0) {
+            throw new IllegalArgumentException("Include cache size must not be negative");
+        }
+    }
+
+    /**
+     * Creates the default settings with the given {@code pageCount}.
+     *
+     * @param pageCount the number of resources requested per page
+     * @return the default settings
+     */
+    public static DataStoreSettings ofPageCount(int pageCount) {
+        return new DataStoreSettings(pageCount, false, 1, RetrySettings.DEFAULT, 1, Optional.empty(), false, 0);
+    }
+
+    public DataStoreSettings withStreamingParsing(boolean streamingParsing) {
+        return new DataStoreSettings(pageCount, streamingParsing, prefetchPages, retry, partitions, adaptivePageCount,
+                parallelParsing, includeCacheSize);
+    }
+
+    public DataStoreSettings withPrefetchPages(int prefetchPages) {
+        return new DataStoreSettings(pageCount, streamingParsing, prefetchPages, retry, partitions, adaptivePageCount,
+                parallelParsing, includeCacheSize);
+    }
+
+    public DataStoreSettings withRetry(RetrySettings retry) {
+        return new DataStoreSettings(pageCount, streamingParsing, prefetchPages, retry, partitions, adaptivePageCount,
+                parallelParsing, includeCacheSize);
+    }
+
+    public DataStoreSettings withPartitions(int partitions) {
+        return new DataStoreSettings(pageCount, streamingParsing, prefetchPages, retry, partitions, adaptivePageCount,
+                parallelParsing, includeCacheSize);
+    }
+
+    public DataStoreSettings withAdaptivePageCount(AdaptivePageCountSettings adaptivePageCount) {
+        return new DataStoreSettings(pageCount, streamingParsing, prefetchPages, retry, partitions,
+                Optional.of(adaptivePageCount), parallelParsing, includeCacheSize);
+    }
+
+    public DataStoreSettings withParallelParsing(boolean parallelParsing) {
+        return new DataStoreSettings(pageCount, streamingParsing, prefetchPages, retry, partitions, adaptivePageCount,
+                parallelParsing, includeCacheSize);
+    }
+
+    public DataStoreSettings withIncludeCacheSize(long includeCacheSize) {
+        return new DataStoreSettings(pageCount, streamingParsing, prefetchPages, retry, partitions, adaptivePageCount,
+                parallelParsing, includeCacheSize);
+    }
+}
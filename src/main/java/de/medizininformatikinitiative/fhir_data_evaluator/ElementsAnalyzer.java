@@ -0,0 +1,178 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.utils.FHIRLexer;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+import org.hl7.fhir.r4.utils.FHIRPathUtilityClasses;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Finds the top-level elements of a resource that FHIRPath expressions can navigate to, so that only these elements
+ * have to be fetched with the {@code _elements} search parameter.
+ * <p>
+ * The expressions are parsed into their syntax tree, which is walked while keeping track of whether the current focus
+ * is a whole resource or an element within a resource. Each name navigated to from a resource is a top-level element.
+ * Names navigated to after {@code resolve()} are top-level elements of the resolved 'include' resource, which are
+ * added to the same set, because {@code _elements} applies to the 'include' resources as well.
+ * <p>
+ * Expressions that could navigate to any element, like {@code descendants()} on a resource, can't be analysed. For
+ * them, no elements are returned and the resources have to be fetched in full.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ElementsAnalyzer {
+
+    /**
+     * Functions that result in a subset of their focus.
+     */
+    private static final Set<ExpressionNode.Function> FILTER_FUNCTIONS = EnumSet.of(
+            ExpressionNode.Function.Where, ExpressionNode.Function.OfType, ExpressionNode.Function.As,
+            ExpressionNode.Function.Single, ExpressionNode.Function.First, ExpressionNode.Function.Last,
+            ExpressionNode.Function.Tail, ExpressionNode.Function.Skip, ExpressionNode.Function.Take,
+            ExpressionNode.Function.Item, ExpressionNode.Function.Distinct, ExpressionNode.Function.Trace);
+
+    /**
+     * Functions whose parameters are evaluated on each item of their focus.
+     */
+    private static final Set<ExpressionNode.Function> ITERATING_FUNCTIONS = EnumSet.of(
+            ExpressionNode.Function.Where, ExpressionNode.Function.Exists, ExpressionNode.Function.All);
+
+    /**
+     * Functions whose parameters are type names instead of expressions.
+     */
+    private static final Set<ExpressionNode.Function> TYPE_FUNCTIONS = EnumSet.of(
+            ExpressionNode.Function.OfType, ExpressionNode.Function.As, ExpressionNode.Function.Is);
+
+    /**
+     * Functions that may navigate to elements that aren't named in the expression.
+     */
+    private static final Set<ExpressionNode.Function> UNANALYSABLE_FUNCTIONS = EnumSet.of(
+            ExpressionNode.Function.Children, ExpressionNode.Function.Descendants, ExpressionNode.Function.Repeat,
+            ExpressionNode.Function.Select, ExpressionNode.Function.Aggregate, ExpressionNode.Function.Union,
+            ExpressionNode.Function.Combine, ExpressionNode.Function.Intersect, ExpressionNode.Function.Exclude,
+            ExpressionNode.Function.Custom, ExpressionNode.Function.AliasAs, ExpressionNode.Function.Alias);
+
+    private static final Set<String> RESOURCE_VARIABLES = Set.of("%resource", "%rootResource", "%context");
+
+    private final FHIRPathEngine engine;
+
+    public ElementsAnalyzer(FhirContext context) {
+        this.engine = new FHIRPathEngine(new HapiWorkerContext(requireNonNull(context), context.getValidationSupport()));
+    }
+
+    /**
+     * Returns the top-level elements that {@code expressions} can navigate to.
+     *
+     * @param expressions the FHIRPath expressions that are evaluated on the resources
+     * @return the names of the top-level elements or an empty {@code Optional} if any expression can't be analysed
+     */
+    public Optional<SortedSet<String>> requiredElements(Collection<String> expressions) {
+        var elements = new TreeSet<String>();
+        try {
+            for (var expression : expressions) {
+                evaluate(engine.parse(expression), Focus.RESOURCE, elements);
+            }
+        } catch (FHIRLexer.FHIRLexerException | UnanalysableExpressionException e) {
+            return Optional.empty();
+        }
+        return Optional.of(elements);
+    }
+
+    /**
+     * Whether an expression is evaluated on a whole resource or on an element within a resource.
+     */
+    private enum Focus {
+        RESOURCE, ELEMENT
+    }
+
+    private static final class UnanalysableExpressionException extends RuntimeException {
+        UnanalysableExpressionException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Walks {@code node}, the items it navigates to and its right operand.
+     *
+     * @return the focus of the result of {@code node}
+     */
+    private static Focus evaluate(ExpressionNode node, Focus focus, Set<String> elements) {
+        var result = step(node, focus, elements);
+        if (node.getInner() != null) {
+            result = evaluate(node.getInner(), result, elements);
+        }
+        if (node.getOpNext() != null) {
+            var right = evaluate(node.getOpNext(), focus, elements);
+            result = node.getOperation() == ExpressionNode.Operation.Union && result == right ? result : Focus.ELEMENT;
+        }
+        return result;
+    }
+
+    private static Focus step(ExpressionNode node, Focus focus, Set<String> elements) {
+        return switch (node.getKind()) {
+            case Name -> name(node.getName(), focus, elements);
+            case Function -> function(node, focus, elements);
+            case Constant -> node.getConstant() instanceof FHIRPathUtilityClasses.FHIRConstant c &&
+                    RESOURCE_VARIABLES.contains(c.getValue()) ? Focus.RESOURCE : Focus.ELEMENT;
+            case Group -> evaluate(node.getGroup(), focus, elements);
+            default -> throw new UnanalysableExpressionException();
+        };
+    }
+
+    private static Focus name(String name, Focus focus, Set<String> elements) {
+        if (name.equals("$this")) {
+            return focus;
+        }
+        if (name.startsWith("$") || focus == Focus.ELEMENT) {
+            return Focus.ELEMENT;
+        }
+        // names of resource types only filter the resource
+        if (Character.isUpperCase(name.charAt(0))) {
+            return Focus.RESOURCE;
+        }
+        elements.add(name);
+        return Focus.ELEMENT;
+    }
+
+    private static Focus function(ExpressionNode node, Focus focus, Set<String> elements) {
+        var function = node.getFunction();
+        if (UNANALYSABLE_FUNCTIONS.contains(function)) {
+            throw new UnanalysableExpressionException();
+        }
+        if (!TYPE_FUNCTIONS.contains(function) && node.getParameters() != null) {
+            // parameters of other functions are evaluated on the outer context, which is at most the resource
+            var parameterFocus = ITERATING_FUNCTIONS.contains(function) ? focus : Focus.RESOURCE;
+            for (var parameter : node.getParameters()) {
+                evaluate(parameter, parameterFocus, elements);
+            }
+        }
+
+        if (function == ExpressionNode.Function.Resolve) {
+            if (focus == Focus.RESOURCE) {
+                throw new UnanalysableExpressionException();
+            }
+            return Focus.RESOURCE;
+        }
+        if (function == ExpressionNode.Function.Extension && focus == Focus.RESOURCE) {
+            elements.add("extension");
+            return Focus.ELEMENT;
+        }
+        if (FILTER_FUNCTIONS.contains(function)) {
+            return focus;
+        }
+        if (focus == Focus.RESOURCE && node.getInner() != null) {
+            throw new UnanalysableExpressionException();
+        }
+        return Focus.ELEMENT;
+    }
+}
@@ -0,0 +1,378 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A checkpoint of the evaluation of a measure on disk, which records the report groups of all finished groups.
+ * <p>
+ * The checkpoint is a file of JSON lines. The first line holds the format version, the SHA-256 hash of the measure,
+ * the base URL of the source server and the time the checkpoint was created. Each following line holds the report
+ * group of one finished group together with its index in the measure and the evaluation time so far. A line is
+ * appended after every finished group, so that an evaluation that is aborted, for example because its container is
+ * evicted, can be resumed by an evaluation of the same measure against the same source server, which only evaluates
+ * the groups that aren't finished yet. A checkpoint of another measure, source server or format version and a
+ * checkpoint that is older than the maximum age are ignored and overwritten, so that the results of an old evaluation
+ * aren't merged with the results of the current data.
+ * <p>
+ * A group that is evaluated page by page also appends a line with its partial report group and the url of the next
+ * page at most every page interval, so that an aborted evaluation can resume the group from that page. A partial report
+ * group only holds counts, so it is merged with the report group of the remaining pages by adding the counts.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class EvaluationCheckpoint {
+
+    static final int VERSION = 4;
+
+    /**
+     * The default minimum time between two partial report groups of the same group.
+     */
+    public static final Duration DEFAULT_PAGE_INTERVAL = Duration.ofMinutes(1);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final Logger logger = LoggerFactory.getLogger(EvaluationCheckpoint.class);
+
+    private final Path file;
+    private final String measureHash;
+    private final String sourceServer;
+    private final Instant createdAt;
+    private final Duration resumedDuration;
+    private final Duration pageInterval;
+    private final long openedNanos = System.nanoTime();
+    private final IParser parser;
+    private final Map<Integer, MeasureReport.MeasureReportGroupComponent> resumedGroups;
+    private final Map<Integer, PartialGroup> partialGroups;
+    private boolean headerWritten;
+
+    private EvaluationCheckpoint(Path file, String measureHash, String sourceServer, Instant createdAt,
+                                 Duration resumedDuration, Duration pageInterval, IParser parser,
+                                 Map<Integer, MeasureReport.MeasureReportGroupComponent> resumedGroups,
+                                 Map<Integer, PartialGroup> partialGroups, boolean headerWritten) {
+        this.file = requireNonNull(file);
+        this.measureHash = requireNonNull(measureHash);
+        this.sourceServer = requireNonNull(sourceServer);
+        this.createdAt = requireNonNull(createdAt);
+        this.resumedDuration = requireNonNull(resumedDuration);
+        this.pageInterval = requireNonNull(pageInterval);
+        this.parser = requireNonNull(parser);
+        this.resumedGroups = Collections.unmodifiableMap(resumedGroups);
+        this.partialGroups = Collections.unmodifiableMap(partialGroups);
+        this.headerWritten = headerWritten;
+    }
+
+    /**
+     * The progress of a group that was evaluated page by page but not finished.
+     *
+     * @param nextUrl     the url of the first page that isn't counted in {@code reportGroup}
+     * @param reportGroup the report group of all pages before {@code nextUrl}, which only holds counts
+     */
+    public record PartialGroup(String nextUrl, MeasureReport.MeasureReportGroupComponent reportGroup) {
+
+        public PartialGroup {
+            requireNonNull(nextUrl);
+            requireNonNull(reportGroup);
+        }
+
+        /**
+         * Returns a new report group with the counts of this partial report group and of {@code rest}, the report
+         * group of the same group over the pages from {@link #nextUrl()} on.
+         * <p>
+         * Populations are matched by their code and strata by their value or the codes and values of their
+         * components. Neither this partial report group nor {@code rest} is changed.
+         *
+         * @param rest the report group of the remaining pages
+         * @return the report group of all pages
+         */
+        public MeasureReport.MeasureReportGroupComponent mergeWith(MeasureReport.MeasureReportGroupComponent rest) {
+            var merged = new MeasureReport.MeasureReportGroupComponent();
+            var populations = new LinkedHashMap<String, MeasureReport.MeasureReportGroupPopulationComponent>();
+            for (var population : concat(reportGroup.getPopulation(), rest.getPopulation())) {
+                populations.merge(key(population.getCode()), population.copy(),
+                        (a, b) -> a.setCount(a.getCount() + b.getCount()));
+            }
+            merged.setPopulation(new ArrayList<>(populations.values()));
+
+            if (reportGroup.getStratifier().size() != rest.getStratifier().size()) {
+                throw new IllegalArgumentException("Partial report group has %d stratifiers instead of %d"
+                        .formatted(reportGroup.getStratifier().size(), rest.getStratifier().size()));
+            }
+            for (int i = 0; i < rest.getStratifier().size(); i++) {
+                var strata = new LinkedHashMap<String, MeasureReport.StratifierGroupComponent>();
+                for (var stratum : concat(reportGroup.getStratifier().get(i).getStratum(),
+                        rest.getStratifier().get(i).getStratum())) {
+                    strata.merge(key(stratum), stratum.copy(), PartialGroup::addCounts);
+                }
+                merged.addStratifier().setCode(rest.getStratifier().get(i).getCode())
+                        .setStratum(new ArrayList<>(strata.values()));
+            }
+            return merged;
+        }
+
+        private static MeasureReport.StratifierGroupComponent addCounts(MeasureReport.StratifierGroupComponent a,
+                                                                        MeasureReport.StratifierGroupComponent b) {
+            for (var population : b.getPopulation()) {
+                var code = key(population.getCode());
+                a.getPopulation().stream().filter(p -> key(p.getCode()).equals(code)).findFirst().ifPresentOrElse(
+                        p -> p.setCount(p.getCount() + population.getCount()),
+                        () -> a.addPopulation(population.copy()));
+            }
+            return a;
+        }
+
+        private static String key(MeasureReport.StratifierGroupComponent stratum) {
+            if (stratum.hasValue()) {
+                return key(stratum.getValue());
+            }
+            return stratum.getComponent().stream()
+                    .map(component -> key(component.getCode()) + "=" + key(component.getValue()))
+                    .sorted().toList().toString();
+        }
+
+        private static String key(CodeableConcept concept) {
+            var coding = concept.getCodingFirstRep();
+            return coding.getSystem() + "|" + coding.getCode();
+        }
+
+        private static <T> List<T> concat(List<T> a, List<T> b) {
+            var all = new ArrayList<T>(a);
+            all.addAll(b);
+            return all;
+        }
+    }
+
+    /**
+     * Opens the checkpoint in {@code file} for the evaluation of {@code measure} against {@code sourceServer}.
+     * <p>
+     * The finished groups of an existing checkpoint are only resumed if it was written with the same format version
+     * for the same measure and source server, and if it was created at most {@code maxAge} ago. Unreadable checkpoints
+     * are ignored. A last line that is incomplete, because the evaluation was aborted while appending it, is skipped.
+     *
+     * @param file         the file of the checkpoint, which doesn't have to exist
+     * @param measure      the JSON of the measure as read from the measure file
+     * @param sourceServer the base URL of the source server or the directory of the NDJSON files
+     * @param maxAge       the maximum age of a checkpoint that is resumed
+     * @param context      the context used to encode and parse the report groups
+     * @return the checkpoint
+     */
+    public static EvaluationCheckpoint open(Path file, String measure, String sourceServer, Duration maxAge,
+                                           FhirContext context) {
+        return open(file, measure, sourceServer, maxAge, DEFAULT_PAGE_INTERVAL, context);
+    }
+
+    /**
+     * Like {@link #open(Path, String, String, Duration, FhirContext)} with the minimum time between two partial report
+     * groups of the same group.
+     *
+     * @param pageInterval the minimum time between two partial report groups of the same group
+     */
+    public static EvaluationCheckpoint open(Path file, String measure, String sourceServer, Duration maxAge,
+                                           Duration pageInterval, FhirContext context) {
+        var measureHash = hash(measure);
+        var parser = context.newJsonParser();
+        var now = Instant.now();
+
+        if (Files.exists(file)) {
+            try {
+                var lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                var header = lines.isEmpty() ? OBJECT_MAPPER.createObjectNode() : OBJECT_MAPPER.readTree(lines.get(0));
+                if (header.path("version").asInt() != VERSION
+                        || !measureHash.equals(header.path("measureHash").asText())) {
+                    logger.info("Ignore checkpoint {} of another measure or format version", file);
+                } else if (!sourceServer.equals(header.path("sourceServer").asText())) {
+                    logger.info("Ignore checkpoint {} of another source server {}", file,
+                            header.path("sourceServer").asText());
+                } else {
+                    var created = Instant.parse(header.path("createdAt").asText());
+                    if (created.plus(maxAge).isBefore(now)) {
+                        logger.info("Ignore checkpoint {} created at {}, which is older than {}", file, created, maxAge);
+                    } else {
+                        var resumedGroups = new TreeMap<Integer, MeasureReport.MeasureReportGroupComponent>();
+                        var partialGroups = new TreeMap<Integer, PartialGroup>();
+                        var evaluationMillis = 0L;
+                        for (int i = 1; i < lines.size(); i++) {
+                            JsonNode line;
+                            try {
+                                line = OBJECT_MAPPER.readTree(lines.get(i));
+                            } catch (JsonProcessingException e) {
+                                if (i < lines.size() - 1) {
+                                    throw e;
+                                }
+                                logger.debug("Skip incomplete last line of checkpoint {}", file);
+                                break;
+                            }
+                            var index = line.path("index").asInt();
+                            if (line.hasNonNull("nextUrl")) {
+                                partialGroups.put(index, new PartialGroup(line.get("nextUrl").asText(),
+                                        decode(parser, line.path("group"))));
+                            } else {
+                                resumedGroups.put(index, decode(parser, line.path("group")));
+                            }
+                            evaluationMillis = Math.max(evaluationMillis, line.path("evaluationMillis").asLong());
+                        }
+                        resumedGroups.keySet().forEach(partialGroups::remove);
+                        logger.info("Resume from checkpoint {} created at {} with {} finished and {} partial groups",
+                                file, created, resumedGroups.size(), partialGroups.size());
+                        return new EvaluationCheckpoint(file, measureHash, sourceServer, created,
+                                Duration.ofMillis(evaluationMillis), pageInterval, parser, resumedGroups,
+                                partialGroups, true);
+                    }
+                }
+            } catch (IOException | DataFormatException | DateTimeParseException e) {
+                logger.warn("Ignore unreadable checkpoint {}: {}", file, e.getMessage());
+            }
+        }
+        return new EvaluationCheckpoint(file, measureHash, sourceServer, now, Duration.ZERO, pageInterval, parser,
+                Map.of(), Map.of(), false);
+    }
+
+    /**
+     * Returns the SHA-256 hash of {@code measure} in hexadecimal.
+     */
+    static String hash(String measure) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(measure.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MeasureReport.MeasureReportGroupComponent decode(IParser parser, JsonNode group) {
+        var report = OBJECT_MAPPER.createObjectNode().put("resourceType", "MeasureReport");
+        report.putArray("group").add(group);
+        return parser.parseResource(MeasureReport.class, report.toString()).getGroupFirstRep();
+    }
+
+    private JsonNode encode(MeasureReport.MeasureReportGroupComponent group) throws IOException {
+        return OBJECT_MAPPER.readTree(parser.encodeResourceToString(new MeasureReport().addGroup(group)))
+                .path("group").get(0);
+    }
+
+    /**
+     * Returns the report groups of the groups that were already finished when this checkpoint was opened by the index
+     * of the group in the measure.
+     */
+    public Map<Integer, MeasureReport.MeasureReportGroupComponent> resumedGroups() {
+        return resumedGroups;
+    }
+
+    /**
+     * Returns the progress of the groups that were evaluated page by page but not finished when this checkpoint was
+     * opened by the index of the group in the measure.
+     */
+    public Map<Integer, PartialGroup> partialGroups() {
+        return partialGroups;
+    }
+
+    /**
+     * Returns the minimum time between two partial report groups of the same group.
+     */
+    public Duration pageInterval() {
+        return pageInterval;
+    }
+
+    /**
+     * Returns the time that the earlier evaluations spent until they finished their last group of the resumed groups.
+     */
+    public Duration resumedDuration() {
+        return resumedDuration;
+    }
+
+    /**
+     * Records the group with {@code index} as finished by appending it to the checkpoint.
+     * <p>
+     * The first line of a new checkpoint replaces any existing file with the header through a temporary
+     * file, so that an ignored checkpoint isn't mixed with the new one. Each group is then appended as a single line,
+     * so the cost of recording a group doesn't grow with the number of finished groups. This method does blocking I/O
+     * and shouldn't be called on the worker threads. Failures to write are logged, because the evaluation itself
+     * doesn't depend on the checkpoint.
+     *
+     * @param index       the index of the group in the measure
+     * @param reportGroup the report group of the group
+     */
+    public synchronized void groupFinished(int index, MeasureReport.MeasureReportGroupComponent reportGroup) {
+        append(index, null, reportGroup);
+    }
+
+    /**
+     * Records the partial report group of the group with {@code index} by appending it to the checkpoint.
+     * <p>
+     * Like {@link #groupFinished(int, MeasureReport.MeasureReportGroupComponent)}, this method does blocking I/O and
+     * only logs failures. A later partial or finished report group of the same group replaces this one on resume.
+     *
+     * @param index        the index of the group in the measure
+     * @param partialGroup the report group of all pages before the next page of the group
+     */
+    public synchronized void groupProgressed(int index, PartialGroup partialGroup) {
+        append(index, partialGroup.nextUrl(), partialGroup.reportGroup());
+    }
+
+    private void append(int index, String nextUrl, MeasureReport.MeasureReportGroupComponent reportGroup) {
+        try {
+            if (!headerWritten) {
+                var header = OBJECT_MAPPER.createObjectNode()
+                        .put("version", VERSION)
+                        .put("measureHash", measureHash)
+                        .put("sourceServer", sourceServer)
+                        .put("createdAt", createdAt.toString());
+                var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.writeString(tmp, header + "\n", StandardCharsets.UTF_8);
+                Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+                headerWritten = true;
+            }
+
+            var line = OBJECT_MAPPER.createObjectNode()
+                    .put("index", index)
+                    .put("evaluationMillis", resumedDuration.plusNanos(System.nanoTime() - openedNanos).toMillis());
+            if (nextUrl != null) {
+                line.put("nextUrl", nextUrl);
+            }
+            line.set("group", encode(reportGroup));
+            Files.writeString(file, line + "\n", StandardCharsets.UTF_8, APPEND);
+        } catch (IOException e) {
+            logger.warn("Could not write checkpoint {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the checkpoint after the evaluation is finished and its report is written.
+     */
+    public synchronized void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Could not delete checkpoint {}: {}", file, e.getMessage());
+        }
+    }
+}
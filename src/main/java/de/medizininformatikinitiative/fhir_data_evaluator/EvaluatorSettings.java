@@ -0,0 +1,84 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.HyperLogLogUniqueCounter;
+
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds the settings that control how a {@link MeasureEvaluator} and its {@link GroupEvaluator} evaluate the groups of
+ * a measure.
+ *
+ * @param maxConcurrency       the maximum number of initial population queries that are evaluated at the same time
+ * @param reduceParallelism    the number of rails the resources of one group are reduced on, {@code 1} reduces the
+ *                             resources sequentially
+ * @param uniqueCountPrecision the default HyperLogLog precision of unique counts, {@code 0} counts exactly
+ * @param elementsAnalyzer     if present, the initial population queries are restricted with {@code _elements} to the
+ *                             elements that the FHIRPath expressions of their groups can navigate to
+ * @param compiler             if present, the stratifier expressions of the supported shapes are compiled into direct
+ *                             accessors instead of being interpreted by the FHIRPath engine
+ * @param stratifierShards     the number of workers the stratifiers of one group are split over, {@code 1} applies
+ *                             each resource to all stratifiers on the same worker
+ * @param sizeAwareScheduling  whether the sizes of the initial population queries are estimated, so that the largest
+ *                             queries start first
+ */
+public record EvaluatorSettings(int maxConcurrency, int reduceParallelism, int uniqueCountPrecision,
+                                Optional<ElementsAnalyzer> elementsAnalyzer, Optional<FhirPathCompiler> compiler,
+                                int stratifierShards, boolean sizeAwareScheduling) {
+
+    public static final EvaluatorSettings DEFAULT = new EvaluatorSettings(1, 1, 0, Optional.empty(), Optional.empty(),
+            1, false);
+
+    public EvaluatorSettings {
+        requireNonNull(elementsAnalyzer);
+        requireNonNull(compiler);
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Maximum concurrency must be at least 1");
+        }
+        if (reduceParallelism < 1) {
+            throw new IllegalArgumentException("Reduce parallelism must be at least 1");
+        }
+        if (uniqueCountPrecision != 0) {
+            HyperLogLogUniqueCounter.checkPrecision(uniqueCountPrecision);
+        }
+        if (stratifierShards < 1) {
+            throw new IllegalArgumentException("Stratifier shards must be at least 1");
+        }
+    }
+
+    public EvaluatorSettings withMaxConcurrency(int maxConcurrency) {
+        return new EvaluatorSettings(maxConcurrency, reduceParallelism, uniqueCountPrecision, elementsAnalyzer, compiler,
+                stratifierShards, sizeAwareScheduling);
+    }
+
+    public EvaluatorSettings withReduceParallelism(int reduceParallelism) {
+        return new EvaluatorSettings(maxConcurrency, reduceParallelism, uniqueCountPrecision, elementsAnalyzer, compiler,
+                stratifierShards, sizeAwareScheduling);
+    }
+
+    public EvaluatorSettings withUniqueCountPrecision(int uniqueCountPrecision) {
+        return new EvaluatorSettings(maxConcurrency, reduceParallelism, uniqueCountPrecision, elementsAnalyzer, compiler,
+                stratifierShards, sizeAwareScheduling);
+    }
+
+    public EvaluatorSettings withElementsAnalyzer(ElementsAnalyzer elementsAnalyzer) {
+        return new EvaluatorSettings(maxConcurrency, reduceParallelism, uniqueCountPrecision,
+                Optional.of(elementsAnalyzer), compiler, stratifierShards, sizeAwareScheduling);
+    }
+
+    public EvaluatorSettings withCompiler(FhirPathCompiler compiler) {
+        return new EvaluatorSettings(maxConcurrency, reduceParallelism, uniqueCountPrecision, elementsAnalyzer,
+                Optional.of(compiler), stratifierShards, sizeAwareScheduling);
+    }
+
+    public EvaluatorSettings withStratifierShards(int stratifierShards) {
+        return new EvaluatorSettings(maxConcurrency, reduceParallelism, uniqueCountPrecision, elementsAnalyzer, compiler,
+                stratifierShards, sizeAwareScheduling);
+    }
+
+    public EvaluatorSettings withSizeAwareScheduling(boolean sizeAwareScheduling) {
+        return new EvaluatorSettings(maxConcurrency, reduceParallelism, uniqueCountPrecision, elementsAnalyzer, compiler,
+                stratifierShards, sizeAwareScheduling);
+    }
+}
@@ -0,0 +1,203 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import de.medizininformatikinitiative.fhir_data_evaluator.FhirPathCompiler.CompiledPath;
+import de.medizininformatikinitiative.fhir_data_evaluator.FhirPathCompiler.Path;
+import de.medizininformatikinitiative.fhir_data_evaluator.FhirPathCompiler.Step;
+import org.hl7.fhir.r4.model.Base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Evaluates the compiled paths of one group together, so that each step they share is applied only once per resource.
+ * <p>
+ * The stratifiers of a group often share prefixes, like {@code Observation.code.coding} in
+ * {@code Observation.code.coding.where(system = 'a').code} and {@code Observation.code.coding.where(system = 'b').code},
+ * and the measure observation often repeats a stratifier path. The paths are merged into a tree of their steps, in
+ * which equal paths end at the same node. When one of the planned paths is evaluated on a resource, the whole tree is
+ * evaluated on it and the results of all paths are kept until the next resource is evaluated on the same thread or
+ * the plan is {@link #release(List) released}.
+ * <p>
+ * Only the paths of {@link FhirPathCompiler#compile(String) compiled} expressions can be planned. Paths that resolve
+ * references and expressions that are evaluated by the FHIRPath engine are still evaluated on their own. This class is
+ * thread-safe.
+ */
+public final class ExpressionPlan {
+
+    private final Map<String, Node> roots;
+    private final int pathCount;
+    private final Queue<Evaluation> allEvaluations = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Evaluation> evaluations;
+
+    private ExpressionPlan(Map<String, Node> roots, int pathCount) {
+        this.roots = requireNonNull(roots);
+        this.pathCount = pathCount;
+        this.evaluations = ThreadLocal.withInitial(() -> {
+            var evaluation = new Evaluation();
+            allEvaluations.add(evaluation);
+            return evaluation;
+        });
+    }
+
+    /**
+     * Plans {@code paths} together.
+     *
+     * @param paths the compiled paths of the stratifiers and measure observation of a group
+     * @return a path for each of {@code paths} in the same order, which reads its result from the shared evaluation
+     * or is the path itself if it can't be planned
+     */
+    public static List<CompiledPath> plan(List<CompiledPath> paths) {
+        var indices = new LinkedHashMap<Path, Integer>();
+        for (var path : paths) {
+            if (path instanceof Path p) {
+                indices.putIfAbsent(p, indices.size());
+            }
+        }
+        if (paths.stream().filter(Path.class::isInstance).count() < 2) {
+            return paths;
+        }
+
+        var roots = new LinkedHashMap<String, Node>();
+        indices.forEach((path, index) -> {
+            var node = roots.computeIfAbsent(path.resourceType(), type -> new Node(null));
+            for (var step : path.steps()) {
+                node = node.child(step);
+            }
+            node.ends.add(new End(index, path.exists()));
+        });
+        var plan = new ExpressionPlan(roots, indices.size());
+        return paths.stream()
+                .map(path -> path instanceof Path p ? (CompiledPath) new PlannedPath(plan, indices.get(p)) : path)
+                .toList();
+    }
+
+    /**
+     * Drops the last resource and its results that the plans of {@code paths} keep on each thread.
+     * <p>
+     * The worker threads outlive the evaluation of a group, so the plans of a group have to be released once its
+     * resources are reduced. This must not be called while the paths are evaluated, but they can still be evaluated
+     * afterwards.
+     *
+     * @param paths the paths returned by {@link #plan(List)}
+     */
+    public static void release(List<CompiledPath> paths) {
+        paths.forEach(path -> {
+            if (path instanceof PlannedPath planned) {
+                planned.plan().release();
+            }
+        });
+    }
+
+    /**
+     * Returns whether a plan of {@code paths} keeps the results of a resource on any thread.
+     */
+    static boolean holdsResults(List<CompiledPath> paths) {
+        return paths.stream().anyMatch(path -> path instanceof PlannedPath planned
+                && planned.plan().allEvaluations.stream().anyMatch(evaluation -> evaluation.resource != null));
+    }
+
+    private void release() {
+        for (var evaluation : allEvaluations) {
+            evaluation.resource = null;
+            Arrays.fill(evaluation.results, null);
+        }
+    }
+
+    /**
+     * Returns the number of distinct paths of this plan.
+     */
+    public int pathCount() {
+        return pathCount;
+    }
+
+    private List<Base> evaluate(Base resource, int index) {
+        var evaluation = evaluations.get();
+        if (evaluation.resource != resource) {
+            Arrays.fill(evaluation.results, null);
+            roots.forEach((type, root) -> root.evaluate(resource.fhirType().equals(type) ? List.of(resource) : List.of(),
+                    evaluation.results));
+            evaluation.resource = resource;
+        }
+        return evaluation.results[index];
+    }
+
+    /**
+     * A node of the tree, which is reached by applying {@code step} to the items of its parent.
+     */
+    private static final class Node {
+
+        private final Step step;
+        private final Map<Step, Node> children = new LinkedHashMap<>();
+        private final List<End> ends = new ArrayList<>();
+
+        private Node(Step step) {
+            this.step = step;
+        }
+
+        private Node child(Step step) {
+            return children.computeIfAbsent(step, Node::new);
+        }
+
+        /**
+         * Stores the results of the paths ending here and evaluates the children with {@code items}.
+         * <p>
+         * If a step can't be applied, the results of the paths below it stay {@code null}, so that they are evaluated
+         * by the FHIRPath engine.
+         */
+        private void evaluate(List<Base> items, List<Base>[] results) {
+            for (var end : ends) {
+                results[end.index()] = end.exists() ? Path.exists(items) : items;
+            }
+            for (var child : children.values()) {
+                var result = new ArrayList<Base>(items.size());
+                if (child.apply(items, result)) {
+                    child.evaluate(result, results);
+                }
+            }
+        }
+
+        private boolean apply(List<Base> items, List<Base> result) {
+            for (var item : items) {
+                if (!step.apply(item, result)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private record End(int index, boolean exists) {
+    }
+
+    /**
+     * The results of all paths for the last resource evaluated on a thread.
+     */
+    private final class Evaluation {
+
+        @SuppressWarnings("unchecked")
+        private final List<Base>[] results = new List[pathCount];
+        private Base resource;
+    }
+
+    /**
+     * A path of a plan, which reads its result from the shared evaluation of the plan.
+     */
+    private record PlannedPath(ExpressionPlan plan, int index) implements CompiledPath {
+
+        private PlannedPath {
+            requireNonNull(plan);
+        }
+
+        @Override
+        public List<Base> evaluate(Base resource) {
+            return plan.evaluate(resource, index);
+        }
+    }
+}
@@ -33,14 +33,19 @@ import org.springframework.web.reactive.function.client.WebClient;
 import reactor.netty.http.client.HttpClient;
 import reactor.netty.resources.ConnectionProvider;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.BufferedReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -63,24 +68,113 @@ public class FhirDataEvaluatorApplication {
 
     @Bean
     public IFhirPath fhirPathEngine(FhirContext context) {
-        return context.newFhirPath();
+        return new SharedFhirPathEngine(context);
     }
 
     @Bean
-    public DataStore sourceDataStore(WebClient sourceClient, @Value("${fhir.source.pageCount}") int sourcePageCount,
-                                     FhirContext context, IFhirPath fhirPathEngine) {
-        return new DataStore(sourceClient, sourcePageCount, context, fhirPathEngine);
+    public WorkerPool workerPool(@Value("${workerThreads}") int workerThreads) {
+        var workerPool = WorkerPool.of("worker", workerThreads);
+        registerMBean(workerPool, "de.medizininformatikinitiative.fhir_data_evaluator:type=WorkerPool");
+        return workerPool;
     }
 
     @Bean
-    public DataStore reportDataStore(WebClient reportClient, FhirContext context, IFhirPath fhirPathEngine) {
-        return new DataStore(reportClient, 100, context, fhirPathEngine);
+    public DataStoreSettings sourceDataStoreSettings(@Value("${fhir.source.pageCount}") int sourcePageCount,
+                                                     @Value("${fhir.source.streamingParsing}") boolean streamingParsing,
+                                                     @Value("${fhir.source.prefetchPages}") int prefetchPages,
+                                                     @Value("${fhir.source.parallelParsing}") boolean parallelParsing,
+                                                     @Value("${fhir.source.includeCacheSizeMib}") int includeCacheSizeMib,
+                                                     @Value("${fhir.source.partitions}") int partitions,
+                                                     @Value("${fhir.source.adaptivePageCount.enabled}") boolean adaptivePageCount,
+                                                     @Value("${fhir.source.adaptivePageCount.min}") int minPageCount,
+                                                     @Value("${fhir.source.adaptivePageCount.max}") int maxPageCount,
+                                                     @Value("${fhir.source.adaptivePageCount.targetPageSizeMib}") int targetPageSizeMib,
+                                                     @Value("${fhir.source.retry.maxAttempts}") int retryMaxAttempts,
+                                                     @Value("${fhir.source.retry.minBackoff}") Duration retryMinBackoff,
+                                                     @Value("${fhir.source.retry.maxBackoff}") Duration retryMaxBackoff,
+                                                     @Value("${fhir.source.retry.jitter}") double retryJitter) {
+        var settings = DataStoreSettings.ofPageCount(sourcePageCount)
+                .withStreamingParsing(streamingParsing)
+                .withPrefetchPages(prefetchPages)
+                .withParallelParsing(parallelParsing)
+                .withIncludeCacheSize(includeCacheSizeMib * 1024L * 1024L)
+                .withPartitions(partitions)
+                .withRetry(new RetrySettings(retryMaxAttempts, retryMinBackoff, retryMaxBackoff, retryJitter));
+        return adaptivePageCount
+                ? settings.withAdaptivePageCount(new AdaptivePageCountSettings(minPageCount, maxPageCount,
+                        targetPageSizeMib * 1024L * 1024L))
+                : settings;
     }
 
     @Bean
-    public MeasureEvaluator measureEvaluator(DataStore sourceDataStore, IFhirPath fhirPathEngine,
-                                             @Value("${fhir.source.maxConnections}") int maxConnections) {
-        return new MeasureEvaluator(sourceDataStore, fhirPathEngine, maxConnections);
+    public DataStore sourceDataStore(WebClient sourceClient, DataStoreSettings sourceDataStoreSettings,
+                                     FhirContext context, IFhirPath fhirPathEngine, WorkerPool workerPool) {
+        return new DataStore(sourceClient, sourceDataStoreSettings, context, fhirPathEngine, workerPool);
+    }
+
+    @Bean
+    public DataStore reportDataStore(WebClient reportClient, FhirContext context, IFhirPath fhirPathEngine,
+                                     WorkerPool workerPool) {
+        return new DataStore(reportClient, 100, context, fhirPathEngine, workerPool);
+    }
+
+    @Bean
+    public ResourceSource resourceSource(DataStore sourceDataStore, WebClient sourceClient, FhirContext context,
+                                         IFhirPath fhirPathEngine, WorkerPool workerPool,
+                                         @Value("${fhir.source.ndjson.dir}") String ndjsonDir,
+                                         @Value("${fhir.source.ndjson.chunkSizeMib}") int chunkSizeMib,
+                                         @Value("${fhir.source.bulkExport.enabled}") boolean bulkExport,
+                                         @Value("${fhir.source.bulkExport.pollInterval}") Duration bulkExportPollInterval,
+                                         @Value("${fhir.source.bulkExport.timeout}") Duration bulkExportTimeout,
+                                         @Value("${fhir.source.server}") String fhirServer,
+                                         @Value("${fhir.source.maxConnections}") int maxConnections,
+                                         DataStoreSettings sourceDataStoreSettings) {
+        if (!ndjsonDir.isBlank()) {
+            return new NdjsonResourceSource(Path.of(ndjsonDir), context, fhirPathEngine, chunkSizeMib * 1024 * 1024,
+                    workerPool.getThreads(), workerPool);
+        }
+        if (bulkExport) {
+            // output files on other hosts or without access token are downloaded without the source credentials
+            var downloadClient = WebClient.builder()
+                    .clientConnector(new ReactorClientHttpConnector(HttpClient.create(
+                            ConnectionProvider.builder("bulk-export-download").maxConnections(maxConnections).build())))
+                    .build();
+            return new BulkExportResourceSource(sourceClient, downloadClient, URI.create(fhirServer), sourceDataStore,
+                    context, fhirPathEngine, BulkExportSettings.of(bulkExportPollInterval, maxConnections)
+                    .withTimeout(bulkExportTimeout)
+                    .withRetry(sourceDataStoreSettings.retry()), workerPool);
+        }
+        return sourceDataStore;
+    }
+
+    @Bean
+    public EvaluatorSettings evaluatorSettings(FhirContext context,
+                                               @Value("${fhir.source.maxConnections}") int maxConnections,
+                                               @Value("${fhir.source.elementsProjection}") boolean elementsProjection,
+                                               @Value("${groupReduceParallelism}") int groupReduceParallelism,
+                                               @Value("${uniqueCountPrecision}") int uniqueCountPrecision,
+                                               @Value("${fhirPathCompilation}") boolean fhirPathCompilation,
+                                               @Value("${fhirPathResolveCacheSize}") int fhirPathResolveCacheSize,
+                                               @Value("${stratifierShards}") int stratifierShards,
+                                               @Value("${sizeAwareScheduling}") boolean sizeAwareScheduling) {
+        var settings = EvaluatorSettings.DEFAULT
+                .withMaxConcurrency(maxConnections)
+                .withReduceParallelism(groupReduceParallelism)
+                .withUniqueCountPrecision(uniqueCountPrecision)
+                .withStratifierShards(stratifierShards)
+                .withSizeAwareScheduling(sizeAwareScheduling);
+        if (elementsProjection) {
+            settings = settings.withElementsAnalyzer(new ElementsAnalyzer(context));
+        }
+        return fhirPathCompilation
+                ? settings.withCompiler(new FhirPathCompiler(context, fhirPathResolveCacheSize))
+                : settings;
+    }
+
+    @Bean
+    public MeasureEvaluator measureEvaluator(ResourceSource resourceSource, IFhirPath fhirPathEngine,
+                                             EvaluatorSettings evaluatorSettings, WorkerPool workerPool) {
+        return new MeasureEvaluator(resourceSource, fhirPathEngine, evaluatorSettings, workerPool);
     }
 
     @Bean
@@ -90,8 +184,30 @@ public class FhirDataEvaluatorApplication {
                                @Value("${fhir.source.maxConnections}") int maxConnections,
                                @Value("${fhir.source.bearerToken}") String bearerToken,
                                @Value("${maxInMemorySizeMib}") int maxInMemorySizeMib,
+                               @Value("${fhir.source.adaptiveConcurrency.enabled}") boolean adaptiveConcurrency,
+                               @Value("${fhir.source.adaptiveConcurrency.minLimit}") int minConcurrencyLimit,
                                @Qualifier("sourceOauth") ExchangeFilterFunction oauthExchangeFilterFunction) {
-        return getWebClient(fhirServer, user, password, maxConnections, bearerToken, maxInMemorySizeMib, oauthExchangeFilterFunction);
+        var filter = oauthExchangeFilterFunction;
+        if (adaptiveConcurrency) {
+            var limiter = new AdaptiveConcurrencyLimiter(Math.min(minConcurrencyLimit, maxConnections), maxConnections);
+            registerMBean(limiter, "de.medizininformatikinitiative.fhir_data_evaluator:type=ConcurrencyLimiter,name=source");
+            // the limiter comes first, so that waiting requests don't hold an OAuth token
+            filter = limiter.andThen(oauthExchangeFilterFunction);
+        }
+        return getWebClient(fhirServer, user, password, maxConnections, bearerToken, maxInMemorySizeMib, filter);
+    }
+
+    private void registerMBean(Object bean, String name) {
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(bean, objectName);
+        } catch (JMException e) {
+            logger().warn("Failed registering the metrics {}: {}", name, e.getMessage());
+        }
     }
 
     @Bean
@@ -210,7 +326,18 @@ class EvaluationExecutor implements CommandLineRunner {
     private String reportServer;
     @Value("${obfuscationCount}")
     private int obfuscationCount;
+    @Value("${checkpointing}")
+    private boolean checkpointing;
+    @Value("${checkpointMaxAge}")
+    private Duration checkpointMaxAge;
+    @Value("${checkpointPageInterval}")
+    private Duration checkpointPageInterval;
+    @Value("${fhir.source.server}")
+    private String sourceServer;
+    @Value("${fhir.source.ndjson.dir}")
+    private String sourceNdjsonDir;
     private final String TRANSACTION_BUNDLE_TEMPLATE_FILE = "/transaction-bundle-template.json";
+    private final String CHECKPOINT_FILE = "checkpoint.ndjson";
 
     private final MeasureEvaluator measureEvaluator;
     private final FhirContext context;
@@ -351,9 +478,18 @@ class EvaluationExecutor implements CommandLineRunner {
         String measureFile = getMeasureFile();
     Measure measure = context.newJsonParser().parseResource(Measure.class, measureFile);
 
+        // the checkpoint is kept outside the dated directory of this run, so that the next run finds it
+        Optional<EvaluationCheckpoint> checkpoint = checkpointing
+                ? Optional.of(EvaluationCheckpoint.open(Path.of(outputDirectory, CHECKPOINT_FILE), measureFile,
+                        sourceNdjsonDir.isBlank() ? sourceServer : sourceNdjsonDir, checkpointMaxAge,
+                        checkpointPageInterval, context))
+                : Optional.empty();
+
         long startTime = System.nanoTime();
-        MeasureReport measureReport = measureEvaluator.evaluateMeasure(measure).block();
-        double evaluationDuration = (double) (System.nanoTime() - startTime) / NANOS_IN_SECOND;
+        MeasureReport measureReport = measureEvaluator.evaluateMeasure(measure, checkpoint).block();
+        // the duration includes the time the earlier runs spent on the groups resumed from the checkpoint
+        long resumedNanos = checkpoint.map(c -> c.resumedDuration().toNanos()).orElse(0L);
+        double evaluationDuration = (double) (resumedNanos + System.nanoTime() - startTime) / NANOS_IN_SECOND;
         assert measureReport != null;
         measureReport.addExtension(new Extension()
                 .setUrl("http://fhir-evaluator/StructureDefinition/eval-duration")
@@ -381,5 +517,6 @@ class EvaluationExecutor implements CommandLineRunner {
                     writeFile(outputDirectory + directoryAddition + "/measure-report-obfuscated.json", r);
             });
         }
+        checkpoint.ifPresent(EvaluationCheckpoint::delete);
     }
 }
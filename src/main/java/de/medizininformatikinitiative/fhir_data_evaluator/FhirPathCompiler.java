@@ -0,0 +1,484 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.utils.FHIRLexer;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+import org.hl7.fhir.r4.utils.FHIRPathUtilityClasses;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Compiles the FHIRPath expressions of the common stratifier shapes into direct accessors of the R4 model.
+ * <p>
+ * Supported are paths of element names other than {@code id} that start with a resource type, like
+ * {@code Patient.gender} or {@code Condition.subject.reference}, optionally filtered with {@code where(name = 'literal')}
+ * and ending with {@code first()} or {@code exists()}, like
+ * {@code Condition.code.coding.where(system = 'http://snomed.info/sct')} or {@code Patient.birthDate.exists()}. Each
+ * name is looked up with the generated {@link Base#listChildrenByName} of the model, which the FHIRPath engine uses as
+ * well, so no lists of intermediate results, execution contexts and type checks of the interpreter are needed.
+ * <p>
+ * With a resolve cache, such a path may also be followed by {@code resolve()} and a tail, like
+ * {@code MedicationStatement.medication.resolve().ofType(Medication).code.coding}. The reference is looked up in the
+ * 'include' resources directly, and the tail, which only depends on the referenced resource, is evaluated by the
+ * FHIRPath engine only once per referenced resource and version. See {@link ResolvePath}.
+ * <p>
+ * All other expressions can't be compiled and have to be evaluated by the FHIRPath engine. A compiled path also
+ * defers to the engine if it meets a value whose comparison it doesn't implement, like a decimal or a date.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class FhirPathCompiler {
+
+    /**
+     * The functions whose result doesn't only depend on the resource they are evaluated on.
+     */
+    private static final Set<ExpressionNode.Function> CONTEXT_FUNCTIONS = EnumSet.of(ExpressionNode.Function.Resolve,
+            ExpressionNode.Function.Custom, ExpressionNode.Function.Now, ExpressionNode.Function.Today,
+            ExpressionNode.Function.Trace, ExpressionNode.Function.Check, ExpressionNode.Function.MemberOf,
+            ExpressionNode.Function.ConformsTo, ExpressionNode.Function.AliasAs, ExpressionNode.Function.Alias);
+
+    private final FHIRPathEngine engine;
+    private final int resolveCacheSize;
+    private final ThreadLocal<FHIRPathEngine> tailEngines;
+    private final Map<String, ResolvePath> resolvePaths = new ConcurrentHashMap<>();
+
+    public FhirPathCompiler(FhirContext context) {
+        this(context, 0);
+    }
+
+    /**
+     * @param context          the {@link FhirContext}
+     * @param resolveCacheSize the maximum number of referenced resources whose tail results are cached per expression,
+     *                         {@code 0} doesn't compile expressions with {@code resolve()}
+     */
+    public FhirPathCompiler(FhirContext context, int resolveCacheSize) {
+        this.engine = new FHIRPathEngine(new HapiWorkerContext(requireNonNull(context), context.getValidationSupport()));
+        if (resolveCacheSize < 0) {
+            throw new IllegalArgumentException("Resolve cache size must not be negative");
+        }
+        this.resolveCacheSize = resolveCacheSize;
+        this.tailEngines = ThreadLocal.withInitial(() -> {
+            var tailEngine = new FHIRPathEngine(new HapiWorkerContext(context, context.getValidationSupport()));
+            tailEngine.setDoNotEnforceAsCaseSensitive(true);
+            tailEngine.setDoNotEnforceAsSingletonRule(true);
+            return tailEngine;
+        });
+    }
+
+    /**
+     * A compiled FHIRPath expression.
+     */
+    @FunctionalInterface
+    public interface CompiledPath {
+
+        /**
+         * Evaluates the path on {@code resource}.
+         *
+         * @param resource the resource to evaluate
+         * @return the same items as the FHIRPath engine would return or {@code null} if the path has to be evaluated
+         * by the FHIRPath engine
+         */
+        List<Base> evaluate(Base resource);
+
+        /**
+         * Evaluates the path on {@code resource} and resolves references with {@code includes}.
+         *
+         * @param resource the resource to evaluate
+         * @param includes maps the reference uri string to the corresponding referenced resource
+         * @return the same items as the FHIRPath engine would return or {@code null} if the path has to be evaluated
+         * by the FHIRPath engine
+         */
+        default List<Base> evaluate(Base resource, Map<String, Resource> includes) {
+            return evaluate(resource);
+        }
+    }
+
+    /**
+     * A single step of a path, which adds the items it results in for {@code item} to {@code result}.
+     * <p>
+     * Steps are compared by value, so that the steps that paths share can be found.
+     */
+    interface Step {
+
+        /**
+         * @return {@code false} if the step can't be evaluated on {@code item}
+         */
+        boolean apply(Base item, List<Base> result);
+    }
+
+    /**
+     * Compiles {@code expression}.
+     *
+     * @param expression the FHIRPath expression
+     * @return the compiled path or an empty {@code Optional} if {@code expression} doesn't have a supported shape
+     */
+    public Optional<CompiledPath> compile(String expression) {
+        ExpressionNode root;
+        try {
+            root = engine.parse(expression);
+        } catch (FHIRLexer.FHIRLexerException e) {
+            return Optional.empty();
+        }
+        if (root.getKind() != ExpressionNode.Kind.Name || !isResourceType(root.getName()) || hasOperation(root)) {
+            return Optional.empty();
+        }
+
+        var resourceType = root.getName();
+        var steps = new ArrayList<Step>();
+        var exists = false;
+        for (var node = root.getInner(); node != null; node = node.getInner()) {
+            if (exists || hasOperation(node)) {
+                return Optional.empty();
+            }
+            if (isResolve(node)) {
+                return resolvePath(expression, new Path(resourceType, List.copyOf(steps), false),
+                        node.getInner());
+            }
+            var step = step(node);
+            if (step.isEmpty()) {
+                if (!isExists(node)) {
+                    return Optional.empty();
+                }
+                exists = true;
+            } else {
+                steps.add(step.get());
+            }
+        }
+        return Optional.of(new Path(resourceType, List.copyOf(steps), exists));
+    }
+
+    private static Optional<Step> step(ExpressionNode node) {
+        if (node.getKind() == ExpressionNode.Kind.Name && isElementName(node.getName())) {
+            return Optional.of(new Child(node.getName()));
+        }
+        if (node.getKind() != ExpressionNode.Kind.Function) {
+            return Optional.empty();
+        }
+        if (node.getFunction() == ExpressionNode.Function.First && node.getParameters().isEmpty()) {
+            return Optional.of(new First());
+        }
+        if (node.getFunction() == ExpressionNode.Function.Where && node.getParameters().size() == 1) {
+            return whereEquals(node.getParameters().get(0));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Compiles the criterion {@code name = 'literal'} of {@code where()}.
+     */
+    private static Optional<Step> whereEquals(ExpressionNode criterion) {
+        if (criterion.getKind() != ExpressionNode.Kind.Name || !isElementName(criterion.getName()) ||
+                criterion.getInner() != null || criterion.getOperation() != ExpressionNode.Operation.Equals) {
+            return Optional.empty();
+        }
+        var literal = criterion.getOpNext();
+        if (literal.getKind() != ExpressionNode.Kind.Constant || literal.getInner() != null ||
+                literal.getOpNext() != null || !(literal.getConstant() instanceof StringType value)) {
+            return Optional.empty();
+        }
+        return Optional.of(new WhereEquals(criterion.getName(), value.getValue()));
+    }
+
+    private Optional<CompiledPath> resolvePath(String expression, Path head, ExpressionNode tail) {
+        if (resolveCacheSize == 0 || tail == null || !isResourceIndependent(tail) ||
+                (tail.getKind() == ExpressionNode.Kind.Name && !isElementName(tail.getName()))) {
+            return Optional.empty();
+        }
+        return Optional.of(resolvePaths.computeIfAbsent(expression,
+                e -> new ResolvePath(e, head, tail, tailEngines, resolveCacheSize)));
+    }
+
+    /**
+     * Returns the compiled paths with {@code resolve()}, whose statistics are reported per expression.
+     */
+    public Collection<ResolvePath> resolvePaths() {
+        return List.copyOf(resolvePaths.values());
+    }
+
+    private static boolean isResolve(ExpressionNode node) {
+        return node.getKind() == ExpressionNode.Kind.Function && node.getFunction() == ExpressionNode.Function.Resolve &&
+                node.getParameters().isEmpty();
+    }
+
+    /**
+     * Whether the result of {@code node} only depends on the items it is evaluated on, so that it doesn't use
+     * variables like {@code %resource}, resolves no references and calls no functions of the host.
+     */
+    private static boolean isResourceIndependent(ExpressionNode node) {
+        if (node == null) {
+            return true;
+        }
+        if (node.getKind() == ExpressionNode.Kind.Constant &&
+                node.getConstant() instanceof FHIRPathUtilityClasses.FHIRConstant) {
+            return false;
+        }
+        if (node.getKind() == ExpressionNode.Kind.Function) {
+            if (CONTEXT_FUNCTIONS.contains(node.getFunction())) {
+                return false;
+            }
+            for (var parameter : node.getParameters()) {
+                if (!isResourceIndependent(parameter)) {
+                    return false;
+                }
+            }
+        }
+        return isResourceIndependent(node.getGroup()) && isResourceIndependent(node.getInner()) &&
+                isResourceIndependent(node.getOpNext());
+    }
+
+    private static boolean isExists(ExpressionNode node) {
+        return node.getKind() == ExpressionNode.Kind.Function && node.getFunction() == ExpressionNode.Function.Exists &&
+                node.getParameters().isEmpty();
+    }
+
+    private static boolean hasOperation(ExpressionNode node) {
+        return node.getOperation() != null || node.getOpNext() != null;
+    }
+
+    private static boolean isResourceType(String name) {
+        try {
+            return ResourceType.fromCode(name) != null;
+        } catch (FHIRException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether {@code name} is the name of an element other than {@code id}, which the FHIRPath engine treats specially.
+     */
+    private static boolean isElementName(String name) {
+        return !name.isEmpty() && Character.isLowerCase(name.charAt(0)) && !name.equals("id");
+    }
+
+    /**
+     * Adds the children named {@code name} of {@code item} to {@code result} the way the FHIRPath engine does.
+     */
+    private static void addChildren(Base item, String name, List<Base> result) {
+        var children = item.listChildrenByName(name, false);
+        if (children == null) {
+            return;
+        }
+        for (var child : children) {
+            if (child != null) {
+                result.add(child);
+            }
+        }
+    }
+
+    /**
+     * A path of {@code steps} that starts with the resource of {@code resourceType}.
+     *
+     * @param resourceType the type of the resources the path results in items for
+     * @param steps        the steps that are applied one after another
+     * @param exists       whether the path ends with {@code exists()}
+     */
+    record Path(String resourceType, List<Step> steps, boolean exists) implements CompiledPath {
+
+        @Override
+        public List<Base> evaluate(Base resource) {
+            List<Base> items = new ArrayList<>(1);
+            if (resource.fhirType().equals(resourceType)) {
+                items.add(resource);
+            }
+            for (var step : steps) {
+                var result = new ArrayList<Base>(items.size());
+                for (var item : items) {
+                    if (!step.apply(item, result)) {
+                        return null;
+                    }
+                }
+                items = result;
+            }
+            return exists ? exists(items) : items;
+        }
+
+        /**
+         * Returns the result of {@code exists()} on {@code items}.
+         */
+        static List<Base> exists(List<Base> items) {
+            return List.of(new BooleanType(items.stream().anyMatch(item -> !item.isEmpty())).noExtensions());
+        }
+    }
+
+    private record Child(String name) implements Step {
+
+        @Override
+        public boolean apply(Base item, List<Base> result) {
+            addChildren(item, name, result);
+            return true;
+        }
+    }
+
+    private record First() implements Step {
+
+        @Override
+        public boolean apply(Base item, List<Base> result) {
+            if (result.isEmpty()) {
+                result.add(item);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Keeps the items with exactly one child named {@code name} whose value equals {@code value}.
+     */
+    private record WhereEquals(String name, String value) implements Step {
+
+        @Override
+        public boolean apply(Base item, List<Base> result) {
+            var children = new ArrayList<Base>(1);
+            addChildren(item, name, children);
+            if (children.size() != 1) {
+                // no children results in no comparison and more children in an unequal comparison
+                return true;
+            }
+            var child = children.get(0);
+            if (!child.isPrimitive() || child.isDateTime() || child instanceof DecimalType) {
+                return false;
+            }
+            if (value.equals(child.primitiveValue())) {
+                result.add(item);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A compiled path followed by {@code resolve()} and a tail, like
+     * {@code MedicationStatement.medication.resolve().ofType(Medication).code.coding}.
+     * <p>
+     * The references the path results in are looked up in the 'include' resources directly. If exactly one of them
+     * can be resolved, the result of the tail on the referenced resource is taken from a cache, keyed by the type, id
+     * and version id of the referenced resource. Otherwise, the whole expression is evaluated by the FHIRPath engine.
+     * The cache holds the results of at most {@code maxEntries} referenced resources. Once it's full, the results of
+     * other resources are evaluated each time.
+     * <p>
+     * The hits and misses of the cache are counted, so that its hit rate can be reported per expression.
+     */
+    public static final class ResolvePath implements CompiledPath {
+
+        private final String expression;
+        private final Path head;
+        private final ExpressionNode tail;
+        private final ThreadLocal<FHIRPathEngine> engines;
+        private final int maxEntries;
+        private final Map<String, List<Base>> results = new ConcurrentHashMap<>();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        private ResolvePath(String expression, Path head, ExpressionNode tail, ThreadLocal<FHIRPathEngine> engines,
+                            int maxEntries) {
+            this.expression = requireNonNull(expression);
+            this.head = requireNonNull(head);
+            this.tail = requireNonNull(tail);
+            this.engines = requireNonNull(engines);
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * Always defers to the FHIRPath engine, because references can't be resolved without the 'include' resources.
+         */
+        @Override
+        public List<Base> evaluate(Base resource) {
+            return null;
+        }
+
+        @Override
+        public List<Base> evaluate(Base resource, Map<String, Resource> includes) {
+            var references = head.evaluate(resource);
+            if (references == null) {
+                return null;
+            }
+            Resource referenced = null;
+            for (var item : references) {
+                if (!(item instanceof Reference reference)) {
+                    return null;
+                }
+                var url = reference.getReference();
+                if (url == null) {
+                    continue;
+                }
+                if (url.startsWith("#")) {
+                    return null;
+                }
+                var target = includes.get(url);
+                if (target == null) {
+                    continue;
+                }
+                if (referenced != null) {
+                    return null;
+                }
+                referenced = target;
+            }
+            return referenced == null ? null : evaluateTail(referenced);
+        }
+
+        private List<Base> evaluateTail(Resource referenced) {
+            if (referenced.getIdPart() == null) {
+                misses.increment();
+                return evaluateTailUncached(referenced);
+            }
+            var key = referenced.fhirType() + "/" + referenced.getIdPart() + "/" + referenced.getMeta().getVersionId();
+            var cached = results.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+            misses.increment();
+            var found = evaluateTailUncached(referenced);
+            if (results.size() < maxEntries) {
+                results.putIfAbsent(key, found);
+            }
+            return found;
+        }
+
+        private List<Base> evaluateTailUncached(Resource referenced) {
+            try {
+                return List.copyOf(engines.get().evaluate(referenced, tail));
+            } catch (FHIRException e) {
+                throw new FhirPathExecutionException("Error during FHIRPath evaluation: " + e.getMessage(), e);
+            }
+        }
+
+        public String expression() {
+            return expression;
+        }
+
+        public long hits() {
+            return hits.sum();
+        }
+
+        public long misses() {
+            return misses.sum();
+        }
+
+        /**
+         * Returns the number of referenced resources whose tail results are cached.
+         */
+        public int size() {
+            return results.size();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.Population;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.Individual;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.PopulationAccumulator;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Accumulates the populations and strata of one group while its resources are reduced.
+ * <p>
+ * This is the mutable counterpart of {@link GroupResult}. Applying a resource mutates the accumulator in place, so
+ * that the reduce doesn't create new populations, results or lists per resource. The immutable {@link GroupResult} is
+ * only created by {@link #toGroupResult()}.
+ * <p>
+ * This class is not thread-safe. Each rail of a parallel reduce has its own accumulator.
+ *
+ * @param <T> the type of the population
+ * @param <I> the corresponding individual of the population type
+ */
+public final class GroupAccumulator<T extends Population<T, I>, I extends Individual<T>> {
+
+    private final Function<PopulationAccumulator, T> toPopulation;
+    private final PopulationAccumulator populations;
+    private final List<StratifierAccumulator> stratifierAccumulators;
+
+    /**
+     * @param toPopulation           creates the immutable population from the accumulated counts
+     * @param populations            the empty accumulator of the populations of the group
+     * @param stratifierAccumulators one empty accumulator for each stratifier in the group
+     */
+    public GroupAccumulator(Function<PopulationAccumulator, T> toPopulation, PopulationAccumulator populations,
+                            List<StratifierAccumulator> stratifierAccumulators) {
+        this.toPopulation = requireNonNull(toPopulation);
+        this.populations = requireNonNull(populations);
+        this.stratifierAccumulators = List.copyOf(stratifierAccumulators);
+    }
+
+    /**
+     * Adds {@code resource} to the populations of the group and to the strata of each stratifier by mutating this
+     * accumulator and then returns itself.
+     * <p>
+     * This method assumes that the {@code stratifierOperation} at index {@code i} belongs to the stratifier accumulator
+     * at index {@code i}.
+     *
+     * @param stratifierOperations one operation for each stratifier of the group
+     * @param resource             the resource to add
+     * @param containsMeasurePop   whether the resource is part of the measure population
+     * @param observationValue     the value to add to the observation population or {@code null} if there is none
+     * @return the mutated {@link GroupAccumulator} itself
+     */
+    public GroupAccumulator<T, I> applyResource(List<StratifierReduceOp> stratifierOperations, ResourceWithIncludes resource,
+                                                boolean containsMeasurePop, String observationValue) {
+        populations.add(containsMeasurePop, observationValue);
+        return applyStratifiers(stratifierOperations, resource, containsMeasurePop, observationValue);
+    }
+
+    /**
+     * Like {@link #applyResource(List, ResourceWithIncludes, boolean, String)} with the values of an
+     * {@link GroupReduceOp.EvaluatedResource}.
+     */
+    public GroupAccumulator<T, I> applyResource(List<StratifierReduceOp> stratifierOperations,
+                                                GroupReduceOp.EvaluatedResource resource) {
+        return applyResource(stratifierOperations, resource.resource(), resource.containsMeasurePop(),
+                resource.observationValue());
+    }
+
+    /**
+     * Adds {@code resource} only to the strata of each stratifier and leaves the populations of the group unchanged.
+     * <p>
+     * This is used if the stratifiers of a group are split over several accumulators, of which only one accumulates
+     * the populations of the group.
+     *
+     * @param stratifierOperations one operation for each stratifier of this accumulator
+     * @param resource             the resource together with the values of the populations of the group
+     * @return the mutated {@link GroupAccumulator} itself
+     */
+    public GroupAccumulator<T, I> applyStratifiers(List<StratifierReduceOp> stratifierOperations,
+                                                   GroupReduceOp.EvaluatedResource resource) {
+        return applyStratifiers(stratifierOperations, resource.resource(), resource.containsMeasurePop(),
+                resource.observationValue());
+    }
+
+    private GroupAccumulator<T, I> applyStratifiers(List<StratifierReduceOp> stratifierOperations,
+                                                    ResourceWithIncludes resource, boolean containsMeasurePop,
+                                                    String observationValue) {
+        assert stratifierAccumulators.size() == stratifierOperations.size();
+        for (int i = 0; i < stratifierOperations.size(); i++) {
+            stratifierOperations.get(i).apply(stratifierAccumulators.get(i), resource).add(containsMeasurePop, observationValue);
+        }
+        return this;
+    }
+
+    /**
+     * Creates the immutable {@link GroupResult} of all accumulated resources.
+     * <p>
+     * This accumulator must not be used afterward.
+     */
+    public GroupResult<T, I> toGroupResult() {
+        return new GroupResult<>(toPopulation.apply(populations), stratifierAccumulators.stream()
+                .map(s -> s.<T, I>toStratifierResult(toPopulation)).toList());
+    }
+}
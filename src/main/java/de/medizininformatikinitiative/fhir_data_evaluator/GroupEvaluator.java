@@ -1,20 +1,25 @@
 package de.medizininformatikinitiative.fhir_data_evaluator;
 
 import ca.uhn.fhir.fhirpath.IFhirPath;
-import de.medizininformatikinitiative.fhir_data_evaluator.populations.InitialAndMeasurePopulation;
-import de.medizininformatikinitiative.fhir_data_evaluator.populations.InitialPopulation;
-import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.InitialAndMeasureAndObsIndividual;
-import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.InitialAndMeasureIndividual;
-import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.InitialIndividual;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.Population;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.Individual;
 import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.AggregateUniqueCounter;
-import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.InitialAndMeasureAndObsPopulation;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.BitmapUniqueCounter;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.HyperLogLogUniqueCounter;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.ReferenceDictionary;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 import static de.medizininformatikinitiative.fhir_data_evaluator.HashableCoding.INITIAL_POPULATION_CODING;
 import static de.medizininformatikinitiative.fhir_data_evaluator.HashableCoding.MEASURE_OBSERVATION_CODING;
@@ -27,12 +32,28 @@ public class GroupEvaluator {
     final String FHIR_PATH = "text/fhirpath";
     final String CRITERIA_REFERENCE_URL = "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-criteriaReference";
 
-    private final DataStore dataStore;
+    private final ResourceSource source;
     private final IFhirPath fhirPathEngine;
+    private final int reduceParallelism;
+    private final int uniqueCountPrecision;
+    private final Optional<FhirPathCompiler> compiler;
+    private final int stratifierShards;
+    private final WorkerPool workerPool;
 
-    public GroupEvaluator(DataStore dataStore, IFhirPath fhirPathEngine) {
-        this.dataStore = requireNonNull(dataStore);
+    /**
+     * @param settings   the settings of which the reduce parallelism, unique count precision, compiler and stratifier
+     *                   shards are used
+     * @param workerPool the pool that the resources are reduced on
+     */
+    public GroupEvaluator(ResourceSource source, IFhirPath fhirPathEngine, EvaluatorSettings settings,
+                          WorkerPool workerPool) {
+        this.source = requireNonNull(source);
         this.fhirPathEngine = requireNonNull(fhirPathEngine);
+        this.reduceParallelism = settings.reduceParallelism();
+        this.uniqueCountPrecision = settings.uniqueCountPrecision();
+        this.compiler = settings.compiler();
+        this.stratifierShards = settings.stratifierShards();
+        this.workerPool = requireNonNull(workerPool);
     }
 
     /**
@@ -43,9 +64,22 @@ public class GroupEvaluator {
      * @throws IllegalArgumentException if the group doesn't have exactly one initial population
      */
     public Mono<MeasureReport.MeasureReportGroupComponent> evaluateGroup(Measure.MeasureGroupComponent group) {
-        var population = dataStore.getResources("/" +
-                findFhirInitialPopulation(group).getCriteria().getExpressionElement());
+        return evaluateGroup(group, source.getResources("/" + initialPopulationQuery(group)));
+    }
 
+    /**
+     * Evaluates {@code group} over an already fetched {@code population}.
+     * <p>
+     * The {@code population} has to be the result of the {@link #initialPopulationQuery(Measure.MeasureGroupComponent)
+     * initial population query} of the group, so that it can be shared between groups with the same query.
+     *
+     * @param group      the group to evaluate
+     * @param population the resources of the initial population of the group
+     * @return a {@code Mono} of the {@link MeasureReport.MeasureReportGroupComponent}
+     * @throws IllegalArgumentException if the group doesn't have valid populations
+     */
+    public Mono<MeasureReport.MeasureReportGroupComponent> evaluateGroup(Measure.MeasureGroupComponent group,
+                                                                         Flux<ResourceWithIncludes> population) {
         var measurePopulationExpression = findMeasurePopulationExpression(group);
         var observationPopulationExpression = findObservationPopulationExpression(group);
         if (measurePopulationExpression.isEmpty() && observationPopulationExpression.isPresent()) {
@@ -63,42 +97,315 @@ public class GroupEvaluator {
     }
 
     private Mono<MeasureReport.MeasureReportGroupComponent> evaluateGroupOfInitial(Flux<ResourceWithIncludes> population, Measure.MeasureGroupComponent group) {
-        var groupReduceOp = new GroupReduceOpInitial(group.getStratifier().stream().map(s ->
-                new StratifierReduceOp<InitialPopulation, InitialIndividual>(getComponentExpressions(s))).toList());
+        var plannedGroup = planGroup(group, Optional.empty());
+        var groupReduceOp = new GroupReduceOpInitial(plannedGroup.stratifierReduceOps());
 
-        List<StratifierResult<InitialPopulation, InitialIndividual>> initialStratifierResults = group.getStratifier().stream().map(s ->
-                StratifierResult.initial(s, InitialPopulation.class)).toList();
-        return population.reduce(new GroupResult<>(InitialPopulation.ZERO, initialStratifierResults), groupReduceOp)
-                .map(GroupResult::toReportGroup);
+        return reduce(population, groupReduceOp).doFinally(signal -> plannedGroup.release());
     }
 
     private Mono<MeasureReport.MeasureReportGroupComponent> evaluateGroupOfInitialAndMeasure(Flux<ResourceWithIncludes> population,
                                                                                              Measure.MeasureGroupComponent group,
                                                                                              IFhirPath.IParsedExpression measurePopulationExpression) {
-        var groupReduceOp = new GroupReduceOpMeasure(group.getStratifier().stream().map(s ->
-                new StratifierReduceOp<InitialAndMeasurePopulation, InitialAndMeasureIndividual>(getComponentExpressions(s))).toList(),
-                measurePopulationExpression);
+        var plannedGroup = planGroup(group, Optional.empty());
+        var groupReduceOp = new GroupReduceOpMeasure(plannedGroup.stratifierReduceOps(), measurePopulationExpression);
 
-        List<StratifierResult<InitialAndMeasurePopulation, InitialAndMeasureIndividual>> initialStratifierResults = group.getStratifier().stream().map(s ->
-                StratifierResult.initial(s, InitialAndMeasurePopulation.class)).toList();
-        return population.reduce(new GroupResult<>(InitialAndMeasurePopulation.ZERO, initialStratifierResults), groupReduceOp)
-                .map(GroupResult::toReportGroup);
+        return reduce(population, groupReduceOp).doFinally(signal -> plannedGroup.release());
     }
 
     private Mono<MeasureReport.MeasureReportGroupComponent> evaluateGroupOfInitialAndMeasureAndObs(Flux<ResourceWithIncludes> population,
                                                                                                    Measure.MeasureGroupComponent group,
                                                                                                    IFhirPath.IParsedExpression measurePopulationExpression,
                                                                                                    IFhirPath.IParsedExpression observationPopulationExpression) {
-        var groupReduceOp = new GroupReduceOpObservation(group.getStratifier().stream().map(s ->
-                new StratifierReduceOp<InitialAndMeasureAndObsPopulation, InitialAndMeasureAndObsIndividual>(getComponentExpressions(s))).toList(),
-                measurePopulationExpression, observationPopulationExpression);
+        var observationExpression = findPopulationsByCode(group, MEASURE_OBSERVATION_CODING).get(0).getCriteria().getExpression();
+        var plannedGroup = planGroup(group, compiler.flatMap(c -> c.compile(observationExpression)));
+        var groupReduceOp = new GroupReduceOpObservation(plannedGroup.stratifierReduceOps(),
+                measurePopulationExpression, observationPopulationExpression, findUniqueCounter(group),
+                plannedGroup.observationPath());
+
+        return reduce(population, groupReduceOp).doFinally(signal -> plannedGroup.release());
+    }
+
+    /**
+     * Returns whether {@code group} can be {@link #evaluateGroupInPages(Measure.MeasureGroupComponent, Flux, Duration)
+     * evaluated page by page}.
+     * <p>
+     * Only groups without a measure observation population are supported, because only report groups of counts can be
+     * merged, and only if the resources are reduced sequentially without stratifier shards, so that the accumulator
+     * holds all resources of the pages before the current one.
+     */
+    public boolean supportsPages(Measure.MeasureGroupComponent group) {
+        return reduceParallelism == 1 && shardCount(group.getStratifier().size()) == 1
+                && findPopulationsByCode(group, MEASURE_OBSERVATION_CODING).isEmpty();
+    }
+
+    /**
+     * Evaluates {@code group} over the {@code pages} of its initial population and emits its progress.
+     * <p>
+     * After a page with a next page, the report group of all pages so far is emitted together with the url of the next
+     * page, if at least {@code interval} passed since the last emitted progress. After the last page, the final report
+     * group is emitted without a next url.
+     *
+     * @param group    the group to evaluate
+     * @param pages    the pages of the initial population of the group
+     * @param interval the minimum time between two emitted progresses before the last
+     * @return a {@code Flux} of the progress of the group that ends with the final report group
+     * @throws IllegalArgumentException if the group isn't {@link #supportsPages(Measure.MeasureGroupComponent)
+     *                                  supported} or doesn't have valid populations
+     */
+    public Flux<Progress> evaluateGroupInPages(Measure.MeasureGroupComponent group, Flux<ResourceSource.Page> pages,
+                                               Duration interval) {
+        if (!supportsPages(group)) {
+            throw new IllegalArgumentException("Group can't be evaluated page by page");
+        }
+        var plannedGroup = planGroup(group, Optional.empty());
+        var stratifierReduceOps = plannedGroup.stratifierReduceOps();
+        var measurePopulationExpression = findMeasurePopulationExpression(group);
+        var progress = measurePopulationExpression.isEmpty()
+                ? reducePages(pages, new GroupReduceOpInitial(stratifierReduceOps), interval)
+                : reducePages(pages, new GroupReduceOpMeasure(stratifierReduceOps, measurePopulationExpression.get()),
+                interval);
+        return progress.doFinally(signal -> plannedGroup.release());
+    }
 
-        List<StratifierResult<InitialAndMeasureAndObsPopulation, InitialAndMeasureAndObsIndividual>> initialStratifierResults = group.getStratifier().stream().map(s ->
-                StratifierResult.initial(s, InitialAndMeasureAndObsPopulation.class)).toList();
-        return population.reduce(new GroupResult<>(InitialAndMeasureAndObsPopulation.empty(), initialStratifierResults), groupReduceOp)
+    /**
+     * The progress of a group that is evaluated page by page.
+     *
+     * @param reportGroup the report group of all pages before {@code nextUrl}
+     * @param nextUrl     the url of the next page or an empty {@code Optional} if {@code reportGroup} is final
+     */
+    public record Progress(MeasureReport.MeasureReportGroupComponent reportGroup, Optional<String> nextUrl) {
+
+        public Progress {
+            requireNonNull(reportGroup);
+            requireNonNull(nextUrl);
+        }
+    }
+
+    /**
+     * Reduces {@code pages} sequentially into one accumulator and creates a report group of it after a page at most
+     * every {@code interval}.
+     * <p>
+     * The populations of groups without an observation population only hold counts, so their accumulator can still
+     * be used after creating a {@link GroupResult}.
+     */
+    private <T extends Population<T, I>, I extends Individual<T>> Flux<Progress> reducePages(
+            Flux<ResourceSource.Page> pages, GroupReduceOp<T, I> groupReduceOp, Duration interval) {
+        return Flux.defer(() -> {
+            var accumulator = groupReduceOp.initialAccumulator();
+            var lastProgress = new long[]{System.nanoTime()};
+            return pages.<Progress>handle((page, sink) -> {
+                        var start = System.nanoTime();
+                        page.resources().forEach(resource -> groupReduceOp.apply(accumulator, resource));
+                        var end = System.nanoTime();
+                        workerPool.record(WorkerPool.Stage.EVALUATE, end - start);
+                        if (page.nextUrl().isPresent() && end - lastProgress[0] >= interval.toNanos()) {
+                            lastProgress[0] = end;
+                            sink.next(new Progress(accumulator.toGroupResult().toReportGroup(), page.nextUrl()));
+                        }
+                    })
+                    .concatWith(Mono.fromSupplier(() ->
+                            new Progress(accumulator.toGroupResult().toReportGroup(), Optional.empty())));
+        });
+    }
+
+    /**
+     * Reduces {@code population} into a {@link GroupResult}.
+     * <p>
+     * The resources are applied to a mutable {@link GroupAccumulator} and the immutable {@link GroupResult} is only
+     * created at the end. With a {@code reduceParallelism} greater than one, the resources are spread over that many
+     * rails. Each rail reduces its resources into its own accumulator, and the resulting partial results are merged at
+     * the end. With more than one stratifier shard, the resources are reduced by
+     * {@link #reduceSharded(Flux, GroupReduceOp) stratifier shards} instead.
+     *
+     * @param population    the resources to reduce
+     * @param groupReduceOp the operator that applies one resource to an accumulator
+     * @return a {@code Mono} of the {@link MeasureReport.MeasureReportGroupComponent}
+     */
+    private <T extends Population<T, I>, I extends Individual<T>> Mono<MeasureReport.MeasureReportGroupComponent> reduce(
+            Flux<ResourceWithIncludes> population, GroupReduceOp<T, I> groupReduceOp) {
+        if (shardCount(groupReduceOp.stratifierReduceOps().size()) > 1) {
+            return reduceSharded(population, groupReduceOp).map(GroupResult::toReportGroup);
+        }
+        Supplier<GroupAccumulator<T, I>> initialAccumulator = groupReduceOp::initialAccumulator;
+        BiFunction<GroupAccumulator<T, I>, ResourceWithIncludes, GroupAccumulator<T, I>> timedReduceOp =
+                (accumulator, resource) -> {
+                    var start = System.nanoTime();
+                    var result = groupReduceOp.apply(accumulator, resource);
+                    workerPool.record(WorkerPool.Stage.EVALUATE, System.nanoTime() - start);
+                    return result;
+                };
+        if (reduceParallelism == 1) {
+            return population.reduceWith(initialAccumulator, timedReduceOp)
+                    .map(accumulator -> accumulator.toGroupResult().toReportGroup());
+        }
+        return population.parallel(reduceParallelism).runOn(workerPool.scheduler())
+                .reduce(initialAccumulator, timedReduceOp)
+                .map(GroupAccumulator::toGroupResult)
+                .reduce(GroupResult::merge)
                 .map(GroupResult::toReportGroup);
     }
 
+    /**
+     * Reduces {@code population} with the stratifiers of the group split over several shards.
+     * <p>
+     * The populations of the group are evaluated once per resource. The evaluated resources are then published to all
+     * shards through a bounded queue, and each shard applies them to its own stratifiers on its own worker, so that
+     * the stratifiers of a single stream of resources are evaluated concurrently. Each shard owns the accumulators of
+     * its stratifiers, and only the first shard accumulates the populations of the group, so no locks are needed.
+     * The results of the shards are combined in the order of the stratifiers at the end.
+     *
+     * @param population    the resources to reduce
+     * @param groupReduceOp the operator that evaluates the populations and applies one resource to the stratifiers
+     * @return a {@code Mono} of the {@link GroupResult}
+     */
+    private <T extends Population<T, I>, I extends Individual<T>> Mono<GroupResult<T, I>> reduceSharded(
+            Flux<ResourceWithIncludes> population, GroupReduceOp<T, I> groupReduceOp) {
+        var stratifierReduceOps = groupReduceOp.stratifierReduceOps();
+        var shardCount = shardCount(stratifierReduceOps.size());
+        var evaluated = population
+                .map(resource -> workerPool.time(WorkerPool.Stage.EVALUATE,
+                        () -> groupReduceOp.evaluatePopulations(resource)))
+                .publish()
+                .autoConnect(shardCount);
+
+        var shards = IntStream.range(0, shardCount).mapToObj(shard -> {
+            var shardOps = shardIndices(shard, stratifierReduceOps.size()).stream()
+                    .map(stratifierReduceOps::get).toList();
+            return evaluated.publishOn(workerPool.scheduler())
+                    .reduceWith(() -> groupReduceOp.initialAccumulator(shardOps), (accumulator, resource) -> {
+                        var start = System.nanoTime();
+                        var result = shard == 0 ? accumulator.applyResource(shardOps, resource)
+                                : accumulator.applyStratifiers(shardOps, resource);
+                        workerPool.record(WorkerPool.Stage.EVALUATE, System.nanoTime() - start);
+                        return result;
+                    })
+                    .map(GroupAccumulator::toGroupResult);
+        }).toList();
+
+        return Mono.zip(shards, results -> {
+            @SuppressWarnings("unchecked")
+            var first = (GroupResult<T, I>) results[0];
+            var stratifierResults = new ArrayList<StratifierResult<T, I>>(stratifierReduceOps.size());
+            for (int i = 0; i < stratifierReduceOps.size(); i++) {
+                @SuppressWarnings("unchecked")
+                var shardResult = (GroupResult<T, I>) results[i % shardCount];
+                stratifierResults.add(shardResult.stratifierResults().get(i / shardCount));
+            }
+            return new GroupResult<>(first.populations(), stratifierResults);
+        });
+    }
+
+    /**
+     * Returns the number of shards the {@code stratifierCount} stratifiers of a group are split over.
+     */
+    private int shardCount(int stratifierCount) {
+        return Math.max(1, Math.min(stratifierShards, stratifierCount));
+    }
+
+    /**
+     * Returns the indices of the stratifiers of {@code shard}, which are assigned to the shards in turn.
+     */
+    private List<Integer> shardIndices(int shard, int stratifierCount) {
+        var shardCount = shardCount(stratifierCount);
+        return IntStream.iterate(shard, i -> i < stratifierCount, i -> i + shardCount).boxed().toList();
+    }
+
+    /**
+     * The stratifier reduce ops of a group and the compiled path of its observation population, which are evaluated
+     * with {@link ExpressionPlan}s.
+     *
+     * @param plannedPaths all paths returned by the plans, which are {@link #release() released} after the reduce
+     */
+    private record PlannedGroup(List<StratifierReduceOp> stratifierReduceOps,
+                                Optional<FhirPathCompiler.CompiledPath> observationPath,
+                                List<FhirPathCompiler.CompiledPath> plannedPaths) {
+
+        private void release() {
+            ExpressionPlan.release(plannedPaths);
+        }
+    }
+
+    /**
+     * Creates the stratifier reduce ops of {@code group} and plans their compiled expressions together with
+     * {@code observationPath}, so that the steps they share are evaluated only once per resource.
+     * <p>
+     * A plan keeps its results per thread, so with stratifier shards, the stratifiers of each shard are planned on
+     * their own and the observation population, which is evaluated before the shards, isn't planned.
+     *
+     * @param group           the group to create the stratifier reduce ops of
+     * @param observationPath the compiled path of the observation population of the group, if any
+     */
+    private PlannedGroup planGroup(Measure.MeasureGroupComponent group,
+                                   Optional<FhirPathCompiler.CompiledPath> observationPath) {
+        var stratifiers = group.getStratifier();
+        var componentExpressions = new ArrayList<>(stratifiers.stream().map(this::getComponentExpressions).toList());
+        var shardCount = shardCount(stratifiers.size());
+
+        var plannedObservationPath = observationPath;
+        var allPlannedPaths = new ArrayList<FhirPathCompiler.CompiledPath>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            var indices = shardIndices(shard, stratifiers.size());
+            var paths = new ArrayList<FhirPathCompiler.CompiledPath>();
+            indices.forEach(i -> componentExpressions.get(i)
+                    .forEach(e -> e.compiledExpression().ifPresent(paths::add)));
+            if (shardCount == 1) {
+                observationPath.ifPresent(paths::add);
+            }
+            var planned = ExpressionPlan.plan(paths);
+            allPlannedPaths.addAll(planned);
+            var plannedPaths = planned.iterator();
+
+            for (var i : indices) {
+                componentExpressions.set(i, componentExpressions.get(i).stream()
+                        .map(e -> e.compiledExpression().isEmpty() ? e
+                                : new ComponentExpression(e.code(), e.expression(), Optional.of(plannedPaths.next())))
+                        .toList());
+            }
+            if (shardCount == 1) {
+                plannedObservationPath = observationPath.map(path -> plannedPaths.next());
+            }
+        }
+
+        var stratifierReduceOps = IntStream.range(0, stratifiers.size())
+                .mapToObj(i -> StratifierReduceOp.of(stratifiers.get(i), componentExpressions.get(i))).toList();
+        return new PlannedGroup(stratifierReduceOps, plannedObservationPath, allPlannedPaths);
+    }
+
+    /**
+     * Returns the FHIR search query of the initial population of {@code group}.
+     *
+     * @param group the group to get the query from
+     * @return the query without leading slash
+     * @throws IllegalArgumentException if the group doesn't have exactly one initial population
+     */
+    public String initialPopulationQuery(Measure.MeasureGroupComponent group) {
+        return findFhirInitialPopulation(group).getCriteria().getExpression();
+    }
+
+    /**
+     * Returns the FHIRPath expressions of the populations and stratifiers of {@code group}, which are evaluated on the
+     * resources of its initial population.
+     */
+    public List<String> fhirPathExpressions(Measure.MeasureGroupComponent group) {
+        var expressions = new ArrayList<String>();
+        for (var population : group.getPopulation()) {
+            if (FHIR_PATH.equals(population.getCriteria().getLanguage()) && population.getCriteria().hasExpression()) {
+                expressions.add(population.getCriteria().getExpression());
+            }
+        }
+        for (var stratifier : group.getStratifier()) {
+            if (stratifier.getCriteria().hasExpression()) {
+                expressions.add(stratifier.getCriteria().getExpression());
+            }
+            for (var component : stratifier.getComponent()) {
+                if (component.getCriteria().hasExpression()) {
+                    expressions.add(component.getCriteria().getExpression());
+                }
+            }
+        }
+        return expressions;
+    }
+
     private Measure.MeasureGroupPopulationComponent findFhirInitialPopulation(Measure.MeasureGroupComponent group) {
         var foundInitialPopulations = findPopulationsByCode(group, INITIAL_POPULATION_CODING);
 
@@ -182,6 +489,35 @@ public class GroupEvaluator {
         }
     }
 
+    /**
+     * Selects the counter of the unique values of the observation population.
+     * <p>
+     * The HyperLogLog precision extension of the observation population takes precedence over the default
+     * {@code uniqueCountPrecision}. A precision of {@code 0} counts exactly with bitmaps over one
+     * {@link ReferenceDictionary} shared by all populations and rails of the group.
+     */
+    private Supplier<AggregateUniqueCounter> findUniqueCounter(Measure.MeasureGroupComponent group) {
+        var foundObservationPopulation = findPopulationsByCode(group, MEASURE_OBSERVATION_CODING).get(0);
+        var precisions = foundObservationPopulation.getExtensionsByUrl(HyperLogLogUniqueCounter.PRECISION_EXTENSION_URL);
+        if (precisions.size() > 1)
+            throw new IllegalArgumentException("Measure Observation Population did contain more than one HyperLogLog precision");
+
+        var precision = uniqueCountPrecision;
+        if (!precisions.isEmpty()) {
+            if (!(precisions.get(0).getValue() instanceof IntegerType precisionValue) || !precisionValue.hasValue())
+                throw new IllegalArgumentException("HyperLogLog precision of Measure Observation Population is not an integer");
+            precision = precisionValue.getValue();
+        }
+
+        if (precision == 0) {
+            var dictionary = new ReferenceDictionary();
+            return () -> BitmapUniqueCounter.of(dictionary);
+        }
+        HyperLogLogUniqueCounter.checkPrecision(precision);
+        var hyperLogLogPrecision = precision;
+        return () -> HyperLogLogUniqueCounter.of(hyperLogLogPrecision);
+    }
+
     private List<Measure.MeasureGroupPopulationComponent> findPopulationsByCode(Measure.MeasureGroupComponent group, HashableCoding code) {
         return group.getPopulation().stream().filter(population -> {
             var codings = population.getCode().getCoding();
@@ -208,7 +544,7 @@ public class GroupEvaluator {
 
     private List<ComponentExpression> getComponentExpressionsFromCriteria(Measure.MeasureGroupStratifierComponent fhirStratifier) {
         try {
-            return List.of(ComponentExpression.fromCriteria(fhirPathEngine, fhirStratifier));
+            return List.of(ComponentExpression.fromCriteria(fhirPathEngine, compiler, fhirStratifier));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -216,6 +552,6 @@ public class GroupEvaluator {
 
     private List<ComponentExpression> getComponentExpressionsFromComponents(Measure.MeasureGroupStratifierComponent fhirStratifier) {
         return fhirStratifier.getComponent().stream()
-                .map(component -> ComponentExpression.fromComponent(fhirPathEngine, component)).toList();
+                .map(component -> ComponentExpression.fromComponent(fhirPathEngine, compiler, component)).toList();
     }
 }
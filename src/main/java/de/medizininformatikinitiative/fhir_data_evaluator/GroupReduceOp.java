@@ -0,0 +1,71 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.Population;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.Individual;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.List;
+import java.util.function.BiFunction;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An operator that appends the data of a {@link Resource} to a {@link GroupAccumulator} by mutating it.
+ * <p>
+ * Applying a {@code GroupReduceOp} to a {@code GroupAccumulator} and a {@code Resource} evaluates the populations of
+ * the group with the {@code Resource} and applies the {@code Resource} to each stratifier in the
+ * {@code GroupAccumulator}. Both steps are also available on their own, so that the stratifiers of a group can be
+ * split over several accumulators that are evaluated concurrently.
+ *
+ * @param <T> the type of the population
+ * @param <I> the corresponding individual of the population type
+ */
+public interface GroupReduceOp<T extends Population<T, I>, I extends Individual<T>>
+        extends BiFunction<GroupAccumulator<T, I>, ResourceWithIncludes, GroupAccumulator<T, I>> {
+
+    /**
+     * Returns one {@link StratifierReduceOp} for each stratifier in the group.
+     */
+    List<StratifierReduceOp> stratifierReduceOps();
+
+    /**
+     * Creates a new, empty accumulator for the group.
+     */
+    default GroupAccumulator<T, I> initialAccumulator() {
+        return initialAccumulator(stratifierReduceOps());
+    }
+
+    /**
+     * Creates a new, empty accumulator for the populations of the group and {@code stratifierReduceOps}.
+     *
+     * @param stratifierReduceOps all or some of the stratifier reduce ops of the group
+     */
+    GroupAccumulator<T, I> initialAccumulator(List<StratifierReduceOp> stratifierReduceOps);
+
+    /**
+     * Evaluates the populations of the group with {@code resource}.
+     *
+     * @param resource the resource to evaluate
+     * @return the resource together with the values of the populations of the group
+     */
+    EvaluatedResource evaluatePopulations(ResourceWithIncludes resource);
+
+    @Override
+    default GroupAccumulator<T, I> apply(GroupAccumulator<T, I> groupAccumulator, ResourceWithIncludes resource) {
+        return groupAccumulator.applyResource(stratifierReduceOps(), evaluatePopulations(resource));
+    }
+
+    /**
+     * A resource together with the values of the populations of a group that it is applied with.
+     *
+     * @param resource           the resource
+     * @param containsMeasurePop whether the resource is part of the measure population
+     * @param observationValue   the value to add to the observation population or {@code null} if there is none
+     */
+    record EvaluatedResource(ResourceWithIncludes resource, boolean containsMeasurePop, String observationValue) {
+
+        public EvaluatedResource {
+            requireNonNull(resource);
+        }
+    }
+}
@@ -3,56 +3,71 @@ package de.medizininformatikinitiative.fhir_data_evaluator;
 import ca.uhn.fhir.fhirpath.IFhirPath;
 import de.medizininformatikinitiative.fhir_data_evaluator.populations.MeasurePopulation;
 import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.InitialAndMeasureAndObsIndividual;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.AggregateUniqueCounter;
 import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.InitialAndMeasureAndObsPopulation;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.PopulationAccumulator;
 import org.hl7.fhir.r4.model.Resource;
 
 import java.util.List;
 import java.util.Optional;
-import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import static de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.ObservationPopulation.evaluateObservationPop;
 import static java.util.Objects.requireNonNull;
 
 /**
- * An operator that appends the data of a {@link Resource} to a {@link GroupResult} producing a new {@code GroupResult}.
+ * A {@link GroupReduceOp} that appends the data of a {@link Resource} to a {@link GroupAccumulator} by mutating it.
  * <p>
- * Applying a {@code GroupReduceOp} to a {@code GroupResult} and a {@code Resource} evaluates the
- * {@link GroupResult#populations() GroupResult populations} with the {@code Resource} and applies the {@code Resource}
- * to each {@link StratifierResult} in the {@code GroupResult}.
- * <p>
- * This operates on GroupResults that contain an {@link InitialAndMeasureAndObsPopulation}.
+ * This operates on GroupAccumulators that result in an {@link InitialAndMeasureAndObsPopulation}.
  *
  * @param stratifierReduceOps             holds one {@link StratifierReduceOp} for each stratifier in a group
  * @param measurePopulationExpression     the expression to evaluate the measure population
  * @param observationPopulationExpression the expression to evaluate the observation population
+ * @param newUniqueCounter                creates the counter of the unique observation values of each population
+ * @param compiledObservationExpression   the compiled {@code observationPopulationExpression} that is evaluated instead
+ *                                        of it on the measure population resource, if it could be compiled
  */
 public record GroupReduceOpObservation(
-        List<StratifierReduceOp<InitialAndMeasureAndObsPopulation, InitialAndMeasureAndObsIndividual>> stratifierReduceOps,
+        List<StratifierReduceOp> stratifierReduceOps,
         IFhirPath.IParsedExpression measurePopulationExpression,
-        IFhirPath.IParsedExpression observationPopulationExpression)
-        implements BiFunction<GroupResult<InitialAndMeasureAndObsPopulation, InitialAndMeasureAndObsIndividual>,
-        ResourceWithIncludes,
-        GroupResult<InitialAndMeasureAndObsPopulation, InitialAndMeasureAndObsIndividual>> {
+        IFhirPath.IParsedExpression observationPopulationExpression,
+        Supplier<AggregateUniqueCounter> newUniqueCounter,
+        Optional<FhirPathCompiler.CompiledPath> compiledObservationExpression)
+        implements GroupReduceOp<InitialAndMeasureAndObsPopulation, InitialAndMeasureAndObsIndividual> {
 
     public GroupReduceOpObservation {
         requireNonNull(stratifierReduceOps);
         requireNonNull(measurePopulationExpression);
         requireNonNull(observationPopulationExpression);
+        requireNonNull(newUniqueCounter);
+        requireNonNull(compiledObservationExpression);
     }
 
-    @Override
-    public GroupResult<InitialAndMeasureAndObsPopulation, InitialAndMeasureAndObsIndividual> apply(
-            GroupResult<InitialAndMeasureAndObsPopulation, InitialAndMeasureAndObsIndividual> groupResult,
-            ResourceWithIncludes resource) {
-        return groupResult.applyResource(stratifierReduceOps, resource, calcIncrementIndividual(resource));
+    public GroupReduceOpObservation(List<StratifierReduceOp> stratifierReduceOps,
+                                    IFhirPath.IParsedExpression measurePopulationExpression,
+                                    IFhirPath.IParsedExpression observationPopulationExpression,
+                                    Supplier<AggregateUniqueCounter> newUniqueCounter) {
+        this(stratifierReduceOps, measurePopulationExpression, observationPopulationExpression, newUniqueCounter,
+                Optional.empty());
     }
 
-    private InitialAndMeasureAndObsIndividual calcIncrementIndividual(ResourceWithIncludes resource) {
-        Optional<ResourceWithIncludes> measurePopResource = MeasurePopulation.evaluateMeasurePopResource(resource, measurePopulationExpression);
-        var obsVal = measurePopResource.flatMap(r -> evaluateObservationPop(r, observationPopulationExpression));
-
-        return new InitialAndMeasureAndObsIndividual(measurePopResource.isPresent(), obsVal);
+    @Override
+    public GroupAccumulator<InitialAndMeasureAndObsPopulation, InitialAndMeasureAndObsIndividual> initialAccumulator(
+            List<StratifierReduceOp> stratifierReduceOps) {
+        Supplier<PopulationAccumulator> newPopulation = () -> new PopulationAccumulator(newUniqueCounter);
+        return new GroupAccumulator<>(PopulationAccumulator::toInitialAndMeasureAndObsPopulation, newPopulation.get(),
+                stratifierReduceOps.stream().map(s -> s.initialAccumulator(newPopulation)).toList());
     }
 
+    @Override
+    public EvaluatedResource evaluatePopulations(ResourceWithIncludes resource) {
+        var measurePopResource = MeasurePopulation.evaluateMeasurePopResource(resource, measurePopulationExpression);
+        // the compiled expression may be planned together with the stratifiers, which are evaluated on the resource
+        // itself, so it's only used if the measure population resource is that resource
+        var obsVal = measurePopResource == null ? null : evaluateObservationPop(measurePopResource,
+                observationPopulationExpression,
+                measurePopResource.mainResource() == resource.mainResource() ? compiledObservationExpression : Optional.empty());
 
+        return new EvaluatedResource(resource, measurePopResource != null, obsVal);
+    }
 }
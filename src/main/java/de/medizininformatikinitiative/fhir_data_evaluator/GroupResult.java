@@ -11,6 +11,8 @@ import static java.util.Objects.requireNonNull;
 
 /**
  * Holds {@link Population}s and {@link StratifierResult}s of one group.
+ * <p>
+ * A {@code GroupResult} is created from a {@link GroupAccumulator} after all resources of a group are reduced.
  *
  * @param populations       the count of all resources of the group without any stratification
  * @param stratifierResults holds the results of each stratifier
@@ -28,22 +30,19 @@ public record GroupResult<T extends Population<T, I>, I extends Individual<T>>(T
         return new GroupResult<T, I>(populations, initialResults);
     }
 
-    public GroupResult<T, I> applyResource(List<StratifierReduceOp<T, I>> stratifierOperations, ResourceWithIncludes resource, I incrementIndividual) {
-        assert stratifierResults.size() == stratifierOperations.size();
-        var newPopulation = populations.increment(incrementIndividual);
-
-        return new GroupResult<T, I>(newPopulation, applyEachStratifier(stratifierOperations, resource, incrementIndividual));
-    }
-
     /**
-     * This method assumes that the {@code stratifierOperation} at index {@code i} belongs to the {@code stratifierResult}
-     * at index {@code i}.
+     * Combines this {@code GroupResult} with a {@code GroupResult} of the same group that was built from a disjoint set
+     * of resources.
+     * <p>
+     * The {@link StratifierResult}s of this {@code GroupResult} are mutated, so {@code other} must not be used afterward.
+     *
+     * @param other the partial result to combine with this partial result
+     * @return the combined {@code GroupResult}
      */
-    private List<StratifierResult<T, I>> applyEachStratifier(List<StratifierReduceOp<T, I>> stratifierOperations,
-                                                             ResourceWithIncludes resource,
-                                                             I incrementIndividual) {
-        return IntStream.range(0, stratifierOperations.size()).mapToObj(i ->
-                stratifierOperations.get(i).apply(stratifierResults.get(i), resource, incrementIndividual)).toList();
+    public GroupResult<T, I> merge(GroupResult<T, I> other) {
+        assert stratifierResults.size() == other.stratifierResults.size();
+        return new GroupResult<T, I>(populations.merge(other.populations), IntStream.range(0, stratifierResults.size())
+                .mapToObj(i -> stratifierResults.get(i).merge(other.stratifierResults.get(i))).toList());
     }
 
     public MeasureReport.MeasureReportGroupComponent toReportGroup() {
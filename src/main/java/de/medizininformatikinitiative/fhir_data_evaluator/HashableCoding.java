@@ -3,8 +3,6 @@ package de.medizininformatikinitiative.fhir_data_evaluator;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 
-import java.util.Objects;
-
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -53,6 +51,7 @@ public record HashableCoding(String system, String code, String display) {
 
     @Override
     public int hashCode() {
-        return Objects.hash(system, code);
+        // same value as Objects.hash(system, code) but without allocating the varargs array
+        return 31 * (31 + system.hashCode()) + code.hashCode();
     }
 }
@@ -0,0 +1,244 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A bounded cache of 'include' resources that is shared by all pages and queries of a {@link DataStore}.
+ * <p>
+ * Queries like {@code MedicationStatement?_include=MedicationStatement:medication} return the same few 'include'
+ * resources on almost every page. The cache interns them by type, id and version id, so that each of them is held
+ * only once and, with parallel parsing, parsed only once.
+ * <p>
+ * The references of a page whose target isn't included in the page itself, like if the server returned it with an
+ * earlier page, are resolved by the {@link Scope} of the query instead, which only holds the 'include' resources of
+ * the earlier pages of the same query. So the resources a reference resolves to neither depend on other queries nor on
+ * the order in which this cache evicts resources.
+ * <p>
+ * Only complete resources are cached. A resource tagged as {@code SUBSETTED}, like if the server applied
+ * {@code _elements} to it, is never cached, so that a query never gets a copy of an 'include' resource that is
+ * missing elements another query needs.
+ * <p>
+ * The size of a resource is the length of its JSON representation. If the total size exceeds the maximum size, the
+ * least recently used resources are evicted. This class is thread-safe.
+ */
+public final class IncludeCache {
+
+    static final String SUBSETTED_SYSTEM = "http://terminology.hl7.org/CodeSystem/v3-ObservationValue";
+    static final String SUBSETTED_CODE = "SUBSETTED";
+
+    private final FhirContext context;
+    private final long maxSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param context the {@link FhirContext} to determine the size of resources
+     * @param maxSize the maximum total length of the JSON representations of the cached resources
+     */
+    public IncludeCache(FhirContext context, long maxSize) {
+        this.context = requireNonNull(context);
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum size of the include cache must be at least 1");
+        }
+        this.maxSize = maxSize;
+    }
+
+    private record Entry(Resource resource, String versionId, long size) {
+    }
+
+    /**
+     * Returns the cached resource with {@code versionId}, which doesn't have to be parsed again.
+     *
+     * @param resourceType the type of the resource
+     * @param id           the id of the resource
+     * @param versionId    the version id of the resource or {@code null} if it has none
+     * @return the cached resource or an empty {@code Optional} if no resource with that version is cached
+     */
+    public synchronized Optional<Resource> get(String resourceType, String id, String versionId) {
+        if (resourceType == null || id == null) {
+            return Optional.empty();
+        }
+        var entry = entries.get(resourceType + "/" + id);
+        if (entry == null || !Objects.equals(entry.versionId(), versionId)) {
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(entry.resource());
+    }
+
+    /**
+     * Returns the cached resource with the same type, id and version id as {@code resource} or caches
+     * {@code resource}, replacing any other version.
+     *
+     * @param resource the 'include' resource of a page
+     * @return the resource that should be used instead of {@code resource}
+     */
+    public Resource intern(Resource resource) {
+        return intern(resource, () -> context.newJsonParser().encodeResourceToString(resource).length());
+    }
+
+    /**
+     * Like {@link #intern(Resource)} with the already known {@code size} of {@code resource}.
+     */
+    public Resource intern(Resource resource, long size) {
+        return intern(resource, () -> size);
+    }
+
+    private Resource intern(Resource resource, LongSupplier size) {
+        if (resource.getIdPart() == null || isSubsetted(resource)) {
+            return resource;
+        }
+        var key = key(resource);
+        var versionId = resource.getMeta().getVersionId();
+        synchronized (this) {
+            var entry = entries.get(key);
+            if (entry != null && Objects.equals(entry.versionId(), versionId)) {
+                hits++;
+                return entry.resource();
+            }
+            misses++;
+        }
+
+        // determine the size outside the lock, because it may encode the resource
+        var entrySize = size.getAsLong();
+        synchronized (this) {
+            var entry = entries.get(key);
+            if (entry != null && Objects.equals(entry.versionId(), versionId)) {
+                return entry.resource();
+            }
+            put(key, new Entry(resource, versionId, entrySize));
+            return resource;
+        }
+    }
+
+    /**
+     * Interns all {@code resources}.
+     */
+    public List<Resource> internAll(List<Resource> resources) {
+        return resources.stream().map(this::intern).toList();
+    }
+
+    private void put(String key, Entry entry) {
+        var replaced = entries.remove(key);
+        if (replaced != null) {
+            size -= replaced.size();
+        }
+        if (entry.size() > maxSize) {
+            return;
+        }
+        entries.put(key, entry);
+        size += entry.size();
+
+        var eldest = entries.values().iterator();
+        while (size > maxSize) {
+            size -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Returns a new, empty scope for the pages of one query, which is bounded by the maximum size of this cache.
+     */
+    public Scope newScope() {
+        return new Scope();
+    }
+
+    private long sizeOf(Resource resource) {
+        synchronized (this) {
+            var entry = entries.get(key(resource));
+            if (entry != null && entry.resource() == resource) {
+                return entry.size();
+            }
+        }
+        return context.newJsonParser().encodeResourceToString(resource).length();
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int resourceCount() {
+        return entries.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    static boolean isSubsetted(Resource resource) {
+        return resource.getMeta().getTag(SUBSETTED_SYSTEM, SUBSETTED_CODE) != null;
+    }
+
+    private static String key(Resource resource) {
+        return resource.fhirType() + "/" + resource.getIdPart();
+    }
+
+    /**
+     * The 'include' resources of the pages of one query that were already built.
+     * <p>
+     * The pages of a query have to be built in order. Each page gets a snapshot of the 'include' resources of the
+     * earlier pages, taken when the page is built, so that the resources its references resolve to don't change while
+     * its matches are evaluated. If the total size of the resources exceeds the maximum size of the cache, the
+     * resources that were least recently included by a page are evicted.
+     */
+    public final class Scope {
+
+        private final LinkedHashMap<String, Entry> scopeEntries = new LinkedHashMap<>();
+        private long scopeSize;
+
+        private Scope() {
+        }
+
+        /**
+         * Returns the 'include' resources of a page together with the 'include' resources of the earlier pages that the
+         * page doesn't include itself, and adds the 'include' resources of the page to this scope.
+         *
+         * @param includes maps the reference uri string to the corresponding 'include' resource of the page
+         * @return a map that contains the entries of {@code includes} and of the earlier pages
+         */
+        public synchronized Map<String, Resource> pageIncludes(Map<String, Resource> includes) {
+            var snapshot = new HashMap<String, Resource>(scopeEntries.size() + includes.size());
+            scopeEntries.forEach((reference, entry) -> snapshot.put(reference, entry.resource()));
+            snapshot.putAll(includes);
+
+            includes.forEach((reference, resource) -> {
+                var replaced = scopeEntries.remove(reference);
+                if (replaced != null) {
+                    scopeSize -= replaced.size();
+                }
+                var entrySize = sizeOf(resource);
+                if (entrySize <= maxSize) {
+                    scopeEntries.put(reference, new Entry(resource, resource.getMeta().getVersionId(), entrySize));
+                    scopeSize += entrySize;
+                }
+            });
+            var eldest = scopeEntries.values().iterator();
+            while (scopeSize > maxSize) {
+                scopeSize -= eldest.next().size();
+                eldest.remove();
+            }
+            return snapshot;
+        }
+
+        synchronized int resourceCount() {
+            return scopeEntries.size();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Splits a search query into disjoint {@code _lastUpdated} ranges, so that the ranges can be paged through
+ * concurrently.
+ * <p>
+ * The oldest and newest resource of the query are found with two {@code _sort=_lastUpdated} probes. Starting with a
+ * single range, the range with the most resources is split at the middle of its time span, and the resources of both
+ * halves are counted with {@code _summary=count}. This is repeated until there are enough ranges, no range has more
+ * resources than one page or the probe budget is used up. The first range has no lower and the last range no upper
+ * bound, so that resources updated while the ranges are planned aren't missed.
+ * <p>
+ * The query is not split if the server doesn't return totals or the {@code lastUpdated} of the resources, or if the
+ * counts of the ranges don't add up to the total of the query.
+ */
+class LastUpdatedPartitioner {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final int PROBES_PER_PARTITION = 8;
+
+    private final WebClient webClient;
+    private final int partitions;
+    private final int pageCount;
+
+    private final Logger logger = LoggerFactory.getLogger(LastUpdatedPartitioner.class);
+
+    /**
+     * @param webClient  the client of the server the query is executed on
+     * @param partitions the maximum number of ranges
+     * @param pageCount  the number of resources per page, ranges with at most that many resources aren't split
+     */
+    LastUpdatedPartitioner(WebClient webClient, int partitions, int pageCount) {
+        this.webClient = requireNonNull(webClient);
+        this.partitions = partitions;
+        this.pageCount = pageCount;
+    }
+
+    /**
+     * Splits {@code query} into disjoint queries that together return the same resources.
+     *
+     * @param query the fhir search query
+     * @return the queries of the ranges or a list containing only {@code query} if it can't be split
+     */
+    Mono<List<String>> partition(String query) {
+        return count(query)
+                .flatMap(total -> total <= pageCount ? Mono.just(List.of(query)) : bounds(query, total)
+                        .flatMap(range -> split(query, List.of(range), partitions * PROBES_PER_PARTITION))
+                        .flatMap(ranges -> checkTotal(query, ranges, total))
+                        .map(ranges -> ranges.stream().map(range -> range.query(query)).toList()))
+                .doOnNext(queries -> logger.debug("Split query {} into {} partitions", query, queries.size()))
+                .onErrorResume(e -> {
+                    logger.warn("Not splitting query {}: {}", query, e.getMessage());
+                    return Mono.just(List.of(query));
+                });
+    }
+
+    private Mono<List<Range>> checkTotal(String query, List<Range> ranges, long total) {
+        var sum = ranges.stream().mapToLong(Range::count).sum();
+        if (sum != total) {
+            return Mono.error(new IllegalStateException(("The counts of the partitions add up to %d instead of the " +
+                    "total of %d").formatted(sum, total)));
+        }
+        return Mono.just(ranges);
+    }
+
+    /**
+     * Creates the unbounded range of all {@code total} resources of {@code query}, spanning from the oldest to the
+     * newest resource.
+     */
+    private Mono<Range> bounds(String query, long total) {
+        return lastUpdated(query, "_lastUpdated").zipWith(lastUpdated(query, "-_lastUpdated"), (oldest, newest) ->
+                new Range(null, null, oldest, newest.plusMillis(1), total));
+    }
+
+    private Mono<Instant> lastUpdated(String query, String sort) {
+        return fetch(appendParameters(query, "_sort=" + sort + "&_count=1")).flatMap(bundle -> {
+            var lastUpdated = bundle.path("entry").path(0).path("resource").path("meta").path("lastUpdated");
+            if (!lastUpdated.isTextual()) {
+                return Mono.error(new IllegalStateException("The server returned no lastUpdated for " + sort));
+            }
+            try {
+                return Mono.just(Instant.parse(lastUpdated.asText()));
+            } catch (DateTimeParseException e) {
+                return Mono.error(new IllegalStateException("The server returned the lastUpdated %s, which is no instant"
+                        .formatted(lastUpdated.asText())));
+            }
+        });
+    }
+
+    /**
+     * Splits the range with the most resources until there are enough ranges or {@code probes} is used up.
+     */
+    private Mono<List<Range>> split(String query, List<Range> ranges, int probes) {
+        var largest = ranges.stream()
+                .filter(range -> range.count() > pageCount && range.spanMillis() > 1)
+                .max(Comparator.comparingLong(Range::count));
+        if (ranges.size() >= partitions || probes < 2 || largest.isEmpty()) {
+            return Mono.just(ranges);
+        }
+
+        var range = largest.get();
+        var middle = range.start().plusMillis(range.spanMillis() / 2);
+        var lower = new Range(range.lower(), middle, range.start(), middle, 0);
+        var upper = new Range(middle, range.upper(), middle, range.end(), 0);
+        return count(lower.query(query)).zipWith(count(upper.query(query))).flatMap(counts -> {
+            if (counts.getT1() + counts.getT2() != range.count()) {
+                return Mono.error(new IllegalStateException(("The halves of a partition with %d resources have %d " +
+                        "and %d resources").formatted(range.count(), counts.getT1(), counts.getT2())));
+            }
+            var result = new ArrayList<Range>(ranges.size() + 1);
+            for (var r : ranges) {
+                if (r != range) {
+                    result.add(r);
+                } else if (counts.getT1() == 0) {
+                    // keep the bounds, so that no resources are missed, but continue splitting the non-empty half
+                    result.add(new Range(range.lower(), range.upper(), middle, range.end(), counts.getT2()));
+                } else if (counts.getT2() == 0) {
+                    result.add(new Range(range.lower(), range.upper(), range.start(), middle, counts.getT1()));
+                } else {
+                    result.add(new Range(lower.lower(), lower.upper(), lower.start(), lower.end(), counts.getT1()));
+                    result.add(new Range(upper.lower(), upper.upper(), upper.start(), upper.end(), counts.getT2()));
+                }
+            }
+            return split(query, result, probes - 2);
+        });
+    }
+
+    /**
+     * Counts the resources of {@code query} with {@code _summary=count}.
+     *
+     * @param query the fhir search query
+     * @return the total of the query or an error if the server returned none
+     */
+    Mono<Long> count(String query) {
+        return fetch(appendParameters(query, "_summary=count")).flatMap(bundle -> bundle.path("total").canConvertToLong()
+                ? Mono.just(bundle.path("total").asLong())
+                : Mono.error(new IllegalStateException("The server returned no total")));
+    }
+
+    private Mono<JsonNode> fetch(String query) {
+        return webClient.get().uri(query)
+                .retrieve()
+                .bodyToMono(String.class)
+                .map(LastUpdatedPartitioner::readTree);
+    }
+
+    private static JsonNode readTree(String body) {
+        try {
+            return OBJECT_MAPPER.readTree(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String appendParameters(String query, String parameters) {
+        return query + (query.contains("?") ? "&" : "?") + parameters;
+    }
+
+    /**
+     * A range of {@code lastUpdated} instants.
+     *
+     * @param lower the inclusive lower bound used in the query or {@code null} if the range has none
+     * @param upper the exclusive upper bound used in the query or {@code null} if the range has none
+     * @param start the start of the time span known to contain the resources of the range
+     * @param end   the exclusive end of the time span known to contain the resources of the range
+     * @param count the number of resources in the range
+     */
+    record Range(Instant lower, Instant upper, Instant start, Instant end, long count) {
+
+        long spanMillis() {
+            return end.toEpochMilli() - start.toEpochMilli();
+        }
+
+        String query(String query) {
+            var parameters = new ArrayList<String>(2);
+            Optional.ofNullable(lower).ifPresent(lower -> parameters.add("_lastUpdated=ge" + lower));
+            Optional.ofNullable(upper).ifPresent(upper -> parameters.add("_lastUpdated=lt" + upper));
+            return parameters.isEmpty() ? query : appendParameters(query, String.join("&", parameters));
+        }
+    }
+}
@@ -5,33 +5,236 @@ import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static java.util.Objects.requireNonNull;
+
 public class MeasureEvaluator {
 
+    private final ResourceSource source;
     private final GroupEvaluator groupEvaluator;
-    private final Scheduler SCHEDULER = Schedulers.parallel();
     private final int maxConcurrency;
+    private final Optional<ElementsAnalyzer> elementsAnalyzer;
+    private final Optional<FhirPathCompiler> compiler;
+    private final boolean sizeAwareScheduling;
+    private final WorkerPool workerPool;
     private AtomicInteger progressCounter = new AtomicInteger(0);
     private final Logger logger = LoggerFactory.getLogger(MeasureEvaluator.class);
 
-    public MeasureEvaluator(DataStore dataStore, IFhirPath fhirPathEngine, int maxConcurrency) {
-        this.groupEvaluator = new GroupEvaluator(dataStore, fhirPathEngine);
-        this.maxConcurrency = maxConcurrency;
+    /**
+     * @param workerPool the pool that the groups are evaluated on and whose utilisation is logged
+     */
+    public MeasureEvaluator(ResourceSource source, IFhirPath fhirPathEngine, EvaluatorSettings settings,
+                            WorkerPool workerPool) {
+        this.source = requireNonNull(source);
+        this.groupEvaluator = new GroupEvaluator(source, fhirPathEngine, settings, workerPool);
+        this.maxConcurrency = settings.maxConcurrency();
+        this.elementsAnalyzer = settings.elementsAnalyzer();
+        this.compiler = settings.compiler();
+        this.sizeAwareScheduling = settings.sizeAwareScheduling();
+        this.workerPool = requireNonNull(workerPool);
     }
 
+    /**
+     * Evaluates all groups of {@code measure}.
+     * <p>
+     * Groups with the same initial population query share a single scan of the data store. Up to
+     * {@code maxConcurrency} scans run at the same time, and the next scan starts as soon as any running scan is
+     * finished. With size-aware scheduling, the largest scans start first, so that the measure isn't held up by a
+     * large scan that starts last. The groups of the resulting report are in the same order as the groups of the
+     * measure.
+     *
+     * @param measure the measure to evaluate
+     * @return a {@code Mono} of the {@link MeasureReport}
+     */
     public Mono<MeasureReport> evaluateMeasure(Measure measure) {
+        return evaluateMeasure(measure, Optional.empty());
+    }
+
+    /**
+     * Evaluates all groups of {@code measure} like {@link #evaluateMeasure(Measure)}, but resumes from
+     * {@code checkpoint}.
+     * <p>
+     * The groups that are finished in the checkpoint aren't evaluated again, and their report groups are taken from
+     * the checkpoint. Each group that is finished by this evaluation is recorded in the checkpoint.
+     * <p>
+     * A group that has its initial population query to itself is evaluated page by page if both the source and the
+     * {@link GroupEvaluator} support it. Its partial report group is then recorded in the checkpoint together with the
+     * url of the next page, and an evaluation that resumes the group continues with that page. All other groups are
+     * evaluated again from the start if they weren't finished.
+     *
+     * @param measure    the measure to evaluate
+     * @param checkpoint if present, the checkpoint of {@code measure} to resume from and record the finished groups in
+     * @return a {@code Mono} of the {@link MeasureReport}
+     */
+    public Mono<MeasureReport> evaluateMeasure(Measure measure, Optional<EvaluationCheckpoint> checkpoint) {
+        var resumedGroups = checkpoint.map(EvaluationCheckpoint::resumedGroups).orElse(Map.of());
         logger.info("Begin Evaluating Measure: for {} groups", measure.getGroup().size());
+        if (!resumedGroups.isEmpty()) {
+            logger.info("Skip {} groups finished in checkpoint", resumedGroups.size());
+        }
+        var start = workerPool.snapshot();
 
-        return Flux.fromStream(measure.getGroup().stream()).parallel(maxConcurrency).runOn(SCHEDULER)
-                .flatMap(groupEvaluator::evaluateGroup, false, 1)
+        return Flux.defer(() -> orderScans(planScans(measure.getGroup(), resumedGroups.keySet())))
+                .doOnNext(scan -> logger.debug("Scan query {} for {} groups", scan.query(), scan.groups().size()))
+                .flatMap(scan -> evaluateScan(scan, checkpoint), maxConcurrency)
+                // the checkpoint is written with blocking I/O, which mustn't hold up the worker threads
+                .transform(groups -> checkpoint.map(c -> groups.publishOn(Schedulers.boundedElastic())
+                                .doOnNext(group -> c.groupFinished(group.index(), group.reportGroup())))
+                        .orElse(groups))
                 .doOnNext(response -> logger.info("Evaluated {} out of {} groups", progressCounter.incrementAndGet(), measure.getGroup().size()))
-                .sequential().collectList()
-                .map(measureReportGroup -> new MeasureReport().setGroup(measureReportGroup));
+                .concatWith(Flux.fromIterable(resumedGroups.entrySet()).map(e -> new EvaluatedGroup(e.getKey(), e.getValue())))
+                .collectSortedList(Comparator.comparingInt(EvaluatedGroup::index))
+                .doOnNext(evaluatedGroups -> logger.info("Utilisation: {}", workerPool.utilisationSince(start)))
+                .doOnNext(evaluatedGroups -> logResolveCaches())
+                .map(evaluatedGroups -> new MeasureReport().setGroup(evaluatedGroups.stream().map(EvaluatedGroup::reportGroup).toList()));
+    }
+
+    /**
+     * Logs the hit rate of the resolve cache of each stratifier expression with {@code resolve()}.
+     */
+    private void logResolveCaches() {
+        compiler.ifPresent(c -> c.resolvePaths().forEach(path -> {
+            var lookups = path.hits() + path.misses();
+            logger.info("Resolve cache of expression {}: {} hits, {} misses, hit rate {}%, {} cached resources",
+                    path.expression(), path.hits(), path.misses(),
+                    lookups == 0 ? 0 : Math.round(100.0 * path.hits() / lookups), path.size());
+        }));
+    }
+
+    /**
+     * Groups the measure groups by their initial population query, keeping the order of first occurrence.
+     *
+     * @param finishedGroups the indices of the groups that are already finished and aren't scanned
+     */
+    private List<SharedScan> planScans(List<Measure.MeasureGroupComponent> groups, Set<Integer> finishedGroups) {
+        var groupsByQuery = new LinkedHashMap<String, List<IndexedGroup>>();
+        for (int i = 0; i < groups.size(); i++) {
+            if (finishedGroups.contains(i)) {
+                continue;
+            }
+            var group = groups.get(i);
+            groupsByQuery.computeIfAbsent(groupEvaluator.initialPopulationQuery(group), query -> new ArrayList<>())
+                    .add(new IndexedGroup(i, group));
+        }
+        return groupsByQuery.entrySet().stream()
+                .map(e -> new SharedScan(projectElements(e.getKey(), e.getValue()), e.getValue()))
+                .toList();
+    }
+
+    /**
+     * Orders {@code scans} by their estimated size, largest first.
+     * <p>
+     * Scans of unknown size are started before all others, because they may be the largest. The order is only changed
+     * with size-aware scheduling and if not all scans can run at the same time.
+     */
+    private Flux<SharedScan> orderScans(List<SharedScan> scans) {
+        if (!sizeAwareScheduling || scans.size() <= maxConcurrency) {
+            return Flux.fromIterable(scans);
+        }
+        return Flux.fromIterable(scans)
+                .flatMapSequential(scan -> source.estimateSize("/" + scan.query())
+                        .doOnNext(size -> logger.debug("Estimated size of scan query {}: {}", scan.query(), size))
+                        .map(size -> new SizedScan(scan, size))
+                        .defaultIfEmpty(new SizedScan(scan, Long.MAX_VALUE)), maxConcurrency)
+                .sort(Comparator.comparingLong(SizedScan::size).reversed())
+                .map(SizedScan::scan);
+    }
+
+    /**
+     * Appends {@code _elements} with the elements that the expressions of {@code groups} need to {@code query}.
+     * <p>
+     * The query is returned unchanged if there is no {@link ElementsAnalyzer}, if the query already restricts the
+     * elements or if any expression can't be analysed.
+     */
+    private String projectElements(String query, List<IndexedGroup> groups) {
+        if (elementsAnalyzer.isEmpty() || query.contains("_elements=")) {
+            return query;
+        }
+        var expressions = groups.stream()
+                .flatMap(g -> groupEvaluator.fhirPathExpressions(g.group()).stream())
+                .toList();
+        return elementsAnalyzer.get().requiredElements(expressions)
+                // the id is always returned, so it stands for no elements at all
+                .map(elements -> elements.isEmpty() ? List.of("id") : elements)
+                .map(elements -> query + (query.contains("?") ? "&" : "?") + "_elements=" + String.join(",", elements))
+                .orElse(query);
+    }
+
+    /**
+     * Fetches the resources of {@code scan} once and multicasts them to all of its groups.
+     * <p>
+     * The data store is only subscribed to after every group has subscribed. The multicast buffers a bounded number of
+     * resources, so the slowest group throttles the shared scan. A scan of a single group is evaluated page by page
+     * if there is a checkpoint and the group and its query support it.
+     */
+    private Flux<EvaluatedGroup> evaluateScan(SharedScan scan, Optional<EvaluationCheckpoint> checkpoint) {
+        if (checkpoint.isPresent() && scan.groups().size() == 1 && source.supportsPages("/" + scan.query())
+                && groupEvaluator.supportsPages(scan.groups().get(0).group())) {
+            var group = scan.groups().get(0);
+            var partialGroup = Optional.ofNullable(checkpoint.get().partialGroups().get(group.index()));
+            partialGroup.ifPresent(p -> logger.info("Resume group {} from page {}", group.index(), p.nextUrl()));
+            return evaluateInPages(scan.query(), group, checkpoint.get(), partialGroup)
+                    .onErrorResume(e -> partialGroup.isPresent() && e instanceof WebClientResponseException response
+                            && response.getStatusCode().is4xxClientError(), e -> {
+                        logger.warn("Evaluate group {} again from the start, because resuming it failed: {}",
+                                group.index(), e.getMessage());
+                        return evaluateInPages(scan.query(), group, checkpoint.get(), Optional.empty());
+                    });
+        }
+
+        var population = source.getResources("/" + scan.query())
+                .publish()
+                .autoConnect(scan.groups().size());
+
+        return Flux.fromIterable(scan.groups())
+                .flatMap(g -> groupEvaluator.evaluateGroup(g.group(), population)
+                        .map(reportGroup -> new EvaluatedGroup(g.index(), reportGroup)), scan.groups().size());
+    }
+
+    /**
+     * Evaluates {@code group} page by page, starting with the next page of {@code partialGroup} if present, and
+     * records its progress in {@code checkpoint}.
+     * <p>
+     * The report groups of the progress are merged with the partial report group, so that each recorded progress and
+     * the final report group count all pages. The progress is recorded with blocking I/O off the worker threads.
+     */
+    private Flux<EvaluatedGroup> evaluateInPages(String query, IndexedGroup group, EvaluationCheckpoint checkpoint,
+                                                 Optional<EvaluationCheckpoint.PartialGroup> partialGroup) {
+        var pages = source.getPages("/" + query, partialGroup.map(EvaluationCheckpoint.PartialGroup::nextUrl));
+        return groupEvaluator.evaluateGroupInPages(group.group(), pages, checkpoint.pageInterval())
+                .publishOn(Schedulers.boundedElastic())
+                .handle((progress, sink) -> {
+                    var reportGroup = partialGroup.map(p -> p.mergeWith(progress.reportGroup()))
+                            .orElse(progress.reportGroup());
+                    progress.nextUrl().ifPresentOrElse(
+                            url -> checkpoint.groupProgressed(group.index(),
+                                    new EvaluationCheckpoint.PartialGroup(url, reportGroup)),
+                            () -> sink.next(new EvaluatedGroup(group.index(), reportGroup)));
+                });
+    }
+
+    private record IndexedGroup(int index, Measure.MeasureGroupComponent group) {
+    }
+
+    private record SharedScan(String query, List<IndexedGroup> groups) {
+    }
+
+    private record SizedScan(SharedScan scan, long size) {
+    }
+
+    private record EvaluatedGroup(int index, MeasureReport.MeasureReportGroupComponent reportGroup) {
     }
 }
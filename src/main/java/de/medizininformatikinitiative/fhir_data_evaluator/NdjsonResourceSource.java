@@ -0,0 +1,373 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static de.medizininformatikinitiative.fhir_data_evaluator.ResourceWithIncludes.engineWithIncludes;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads the resources of a query from local FHIR Bulk Data NDJSON files instead of searching a FHIR server.
+ * <p>
+ * The resources of one type are read from all files in the directory named {@code <type>.ndjson} or
+ * {@code <type>.<anything>.ndjson}, as written by a {@code $export}. Each file is memory-mapped and split into chunks
+ * at newline boundaries, which are parsed in parallel. The search parameters of the query are applied locally, so only
+ * a small subset of the FHIR search is supported:
+ * <ul>
+ *     <li>{@code _profile} and {@code _profile:below} match the canonical url of a profile of the resource, with
+ *     {@code :below} also matching versioned and child urls</li>
+ *     <li>{@code _id} matches the id of the resource</li>
+ *     <li>{@code _include} of a reference search parameter includes all resources of the target types</li>
+ *     <li>{@code _count} and {@code _elements} are ignored</li>
+ * </ul>
+ * Other search parameters result in an {@link IllegalArgumentException}, because ignoring them would silently count
+ * too many resources.
+ */
+public class NdjsonResourceSource implements ResourceSource {
+
+    private static final int NEWLINE_SEARCH_BUFFER_SIZE = 8192;
+
+    private final Path directory;
+    private final FhirContext context;
+    private final IFhirPath applicationFhirPathEngine;
+    private final int chunkSize;
+    private final int parallelism;
+    private final WorkerPool workerPool;
+
+    private final Logger logger = LoggerFactory.getLogger(NdjsonResourceSource.class);
+
+    /**
+     * @param directory      the directory of the NDJSON files
+     * @param context        the {@link FhirContext} used to parse the resources
+     * @param fhirPathEngine the fhir path engine that is used to evaluate resources without 'include' resources
+     * @param chunkSize      the approximate number of bytes of one chunk that is parsed at once
+     * @param parallelism    the number of chunks parsed in parallel
+     * @param workerPool     the pool that parses the chunks
+     */
+    public NdjsonResourceSource(Path directory, FhirContext context, IFhirPath fhirPathEngine, int chunkSize,
+                                int parallelism, WorkerPool workerPool) {
+        this.directory = requireNonNull(directory);
+        this.context = requireNonNull(context);
+        this.applicationFhirPathEngine = requireNonNull(fhirPathEngine);
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.workerPool = requireNonNull(workerPool);
+    }
+
+    /**
+     * Reads all resources of the type of {@code query} that match its search parameters.
+     *
+     * @param query the fhir search query
+     * @return the resources found with the {@code query}
+     * @throws IllegalArgumentException if the query contains unsupported search parameters
+     */
+    @Override
+    public Flux<ResourceWithIncludes> getResources(String query) {
+        var search = Search.parse(query);
+        var includedTypes = search.includes().stream()
+                .flatMap(include -> includeTargets(search.type(), include).stream())
+                .distinct().toList();
+
+        if (includedTypes.isEmpty()) {
+            return readResources(search.type(), search.filter())
+                    .map(resource -> new ResourceWithIncludes(resource, Map.of(), applicationFhirPathEngine));
+        }
+
+        return Flux.fromIterable(includedTypes)
+                .concatMap(type -> readResources(type, resource -> true))
+                .collectMap(resource -> resource.fhirType() + "/" + resource.getIdPart(), Function.identity())
+                .doOnNext(includes -> logger.debug("Read {} include resources of types {}", includes.size(), includedTypes))
+                .flatMapMany(includes -> {
+                    var fhirPathEngine = engineWithIncludes(applicationFhirPathEngine, context, includes);
+                    return readResources(search.type(), search.filter())
+                            .map(resource -> new ResourceWithIncludes(resource, includes, fhirPathEngine));
+                });
+    }
+
+    /**
+     * Estimates the size of {@code query} by the total length of the files of its type.
+     *
+     * @param query the fhir search query
+     * @return the number of bytes of the files of the type of {@code query}
+     */
+    @Override
+    public Mono<Long> estimateSize(String query) {
+        return Mono.fromCallable(() -> {
+            var size = 0L;
+            for (var file : findFiles(Search.parse(query).type())) {
+                size += Files.size(file);
+            }
+            return size;
+        });
+    }
+
+    /**
+     * Reads all resources in the files of {@code type} that match {@code filter}.
+     */
+    private Flux<Resource> readResources(String type, Predicate<Resource> filter) {
+        return Flux.defer(() -> Flux.fromIterable(findFiles(type)))
+                .doOnNext(file -> logger.debug("Read resources of type {} from {}", type, file))
+                .concatMapIterable(this::planChunks)
+                .flatMapSequential(chunk -> Mono.fromCallable(() -> {
+                            var start = System.nanoTime();
+                            try {
+                                return parseChunk(chunk, type, filter);
+                            } finally {
+                                workerPool.record(WorkerPool.Stage.PARSE, System.nanoTime() - start);
+                            }
+                        })
+                        .subscribeOn(workerPool.scheduler()), parallelism)
+                .flatMapIterable(Function.identity());
+    }
+
+    private List<Path> findFiles(String type) {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> isFileOfType(file.getFileName().toString(), type)).sorted().toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed listing the NDJSON directory " + directory, e);
+        }
+    }
+
+    static boolean isFileOfType(String fileName, String type) {
+        return fileName.endsWith(".ndjson") && (fileName.equals(type + ".ndjson") || fileName.startsWith(type + "."));
+    }
+
+    /**
+     * Splits {@code file} into chunks of about {@code chunkSize} bytes that each end after a newline or at the end of
+     * the file.
+     */
+    List<Chunk> planChunks(Path file) {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var size = channel.size();
+            var chunks = new ArrayList<Chunk>();
+            var start = 0L;
+            while (start < size) {
+                var end = findLineEnd(channel, Math.min(size, start + chunkSize), size);
+                chunks.add(new Chunk(file, start, end));
+                start = end;
+            }
+            return chunks;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the position after the first newline at or after {@code position} or {@code size} if there is none.
+     */
+    private static long findLineEnd(FileChannel channel, long position, long size) throws IOException {
+        if (position == size) {
+            return position;
+        }
+        var buffer = ByteBuffer.allocate(NEWLINE_SEARCH_BUFFER_SIZE);
+        var offset = position - 1;
+        while (offset < size) {
+            buffer.clear();
+            var read = channel.read(buffer, offset);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return size;
+    }
+
+    /**
+     * Maps {@code chunk} into memory and parses each of its lines into a resource.
+     *
+     * @return the resources of the chunk of {@code type} that match {@code filter}
+     * @throws BundleParsingException if a line isn't a valid resource
+     */
+    private List<Resource> parseChunk(Chunk chunk, String type, Predicate<Resource> filter) throws IOException {
+        MappedByteBuffer buffer;
+        try (var channel = FileChannel.open(chunk.file(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start(), chunk.end() - chunk.start());
+        }
+
+        var parser = context.newJsonParser();
+        var resources = new ArrayList<Resource>();
+        var lineStart = 0;
+        var limit = buffer.limit();
+        for (int i = 0; i <= limit; i++) {
+            if (i == limit || buffer.get(i) == '\n') {
+                var resource = parseLine(parser, buffer, lineStart, i, chunk);
+                if (resource != null && resource.fhirType().equals(type) && filter.test(resource)) {
+                    resources.add(resource);
+                }
+                lineStart = i + 1;
+            }
+        }
+        return resources;
+    }
+
+    private static Resource parseLine(IParser parser, MappedByteBuffer buffer, int start, int end, Chunk chunk) {
+        var bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        var line = new String(bytes, StandardCharsets.UTF_8);
+        if (line.isBlank()) {
+            return null;
+        }
+        try {
+            return (Resource) parser.parseResource(line);
+        } catch (DataFormatException e) {
+            throw new BundleParsingException(e, "%s at byte %d".formatted(chunk.file().getFileName(), chunk.start() + start));
+        }
+    }
+
+    /**
+     * Returns the types of the resources that are included by {@code include}.
+     *
+     * @param type    the type of the searched resources
+     * @param include the value of the {@code _include} parameter, for example {@code MedicationStatement:medication}
+     * @throws IllegalArgumentException if {@code include} is not a reference search parameter of {@code type}
+     */
+    private Collection<String> includeTargets(String type, String include) {
+        var parts = include.split(":");
+        if (parts.length < 2 || parts.length > 3 || !parts[0].equals(type)) {
+            throw new IllegalArgumentException("Invalid _include '%s' in search of %s".formatted(include, type));
+        }
+        RuntimeSearchParam searchParam = context.getResourceDefinition(type).getSearchParam(parts[1]);
+        if (searchParam == null || searchParam.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
+            throw new IllegalArgumentException("Invalid _include '%s' in search of %s".formatted(include, type));
+        }
+        return parts.length == 3 ? List.of(parts[2]) : searchParam.getTargets();
+    }
+
+    /**
+     * A range of bytes of one file that starts at the beginning of a line and ends after a newline or at the end of the
+     * file.
+     *
+     * @param file  the NDJSON file
+     * @param start the position of the first byte
+     * @param end   the position after the last byte
+     */
+    record Chunk(Path file, long start, long end) {
+
+        Chunk {
+            requireNonNull(file);
+        }
+    }
+
+    /**
+     * The parsed search query.
+     *
+     * @param type     the resource type of the search
+     * @param filter   matches the resources that fulfill all search parameters
+     * @param includes the values of the {@code _include} parameters
+     */
+    record Search(String type, Predicate<Resource> filter, List<String> includes) {
+
+        private static final Set<String> IGNORED_PARAMETERS = Set.of("_count", "_elements");
+
+        Search {
+            requireNonNull(type);
+            requireNonNull(filter);
+            includes = List.copyOf(includes);
+        }
+
+        /**
+         * Parses {@code query} of the form {@code /<type>?<name>=<value>&...}.
+         *
+         * @throws IllegalArgumentException if the query contains unsupported search parameters
+         */
+        static Search parse(String query) {
+            var path = query.startsWith("/") ? query.substring(1) : query;
+            var questionMark = path.indexOf('?');
+            var type = questionMark < 0 ? path : path.substring(0, questionMark);
+            Predicate<Resource> filter = resource -> true;
+            var includes = new ArrayList<String>();
+            if (questionMark < 0) {
+                return new Search(type, filter, includes);
+            }
+
+            for (var parameter : path.substring(questionMark + 1).split("&")) {
+                if (parameter.isEmpty()) {
+                    continue;
+                }
+                var equals = parameter.indexOf('=');
+                var name = decode(equals < 0 ? parameter : parameter.substring(0, equals));
+                var value = equals < 0 ? "" : decode(parameter.substring(equals + 1));
+                var values = Set.copyOf(Arrays.asList(value.split(",")));
+
+                switch (name) {
+                    case "_profile" -> filter = filter.and(resource -> hasProfile(resource, values, false));
+                    case "_profile:below" -> filter = filter.and(resource -> hasProfile(resource, values, true));
+                    case "_id" -> filter = filter.and(resource -> values.contains(resource.getIdPart()));
+                    case "_include" -> includes.add(value);
+                    default -> {
+                        if (!IGNORED_PARAMETERS.contains(name)) {
+                            throw new IllegalArgumentException("Search parameter '%s' is not supported by the NDJSON source"
+                                    .formatted(name));
+                        }
+                    }
+                }
+            }
+            return new Search(type, filter, includes);
+        }
+
+        private static String decode(String value) {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8);
+        }
+
+        private static boolean hasProfile(Resource resource, Set<String> profiles, boolean below) {
+            for (var profile : resource.getMeta().getProfile()) {
+                var url = profile.getValue();
+                if (url == null) {
+                    continue;
+                }
+                if (profiles.contains(url) || profiles.contains(withoutVersion(url))) {
+                    return true;
+                }
+                if (below && profiles.stream().anyMatch(p -> url.startsWith(p + "/") || url.startsWith(p + "|"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String withoutVersion(String url) {
+            var bar = url.indexOf('|');
+            return bar < 0 ? url : url.substring(0, bar);
+        }
+    }
+}
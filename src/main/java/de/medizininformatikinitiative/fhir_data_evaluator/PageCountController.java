@@ -0,0 +1,112 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the number of resources requested per page while paging through one query.
+ * <p>
+ * After each page, the throughput of the page in resources per second of server latency and parse time is compared
+ * to the throughput of the previous page. As long as the throughput doesn't drop, the page count is doubled, because
+ * larger pages need fewer round trips. If it drops, the page count is reduced by a quarter. In both cases the page
+ * count is limited so that a page with resources of the observed size doesn't exceed the target page size, and kept
+ * within the configured bounds.
+ * <p>
+ * The page count of the following pages is changed by rewriting the {@code _count} parameter of the next links, so
+ * servers that don't include {@code _count} in their next links keep the initial page count. Because pages may be
+ * requested ahead, a page count may be based on the statistics of a page before the previous one.
+ * <p>
+ * Without {@link AdaptivePageCountSettings}, the page count stays fixed and only the statistics are collected. This
+ * class is thread-safe.
+ */
+class PageCountController {
+
+    private static final Pattern COUNT_PARAMETER = Pattern.compile("([?&]_count=)\\d+");
+    private static final double THROUGHPUT_TOLERANCE = 0.95;
+
+    private final Optional<AdaptivePageCountSettings> settings;
+    private int pageCount;
+    private double lastThroughput;
+
+    private long pages;
+    private long resources;
+    private long bytes;
+    private long nanos;
+    private int minPageCount;
+    private int maxPageCount;
+
+    /**
+     * @param settings         the bounds of the page count or an empty {@code Optional} to keep {@code initialPageCount}
+     * @param initialPageCount the page count of the first page
+     */
+    PageCountController(Optional<AdaptivePageCountSettings> settings, int initialPageCount) {
+        this.settings = settings;
+        this.pageCount = settings.map(s -> clamp(initialPageCount, s)).orElse(initialPageCount);
+        this.minPageCount = pageCount;
+        this.maxPageCount = pageCount;
+    }
+
+    private static int clamp(long pageCount, AdaptivePageCountSettings settings) {
+        return (int) Math.max(settings.minPageCount(), Math.min(settings.maxPageCount(), pageCount));
+    }
+
+    synchronized int pageCount() {
+        return pageCount;
+    }
+
+    boolean isAdaptive() {
+        return settings.isPresent();
+    }
+
+    /**
+     * Records a received page and chooses the page count of the following pages.
+     *
+     * @param resources    the number of matched resources of the page
+     * @param bytes        the size of the page in bytes
+     * @param latencyNanos the time from the request until the page was received
+     * @param parseNanos   the time it took to parse the page, if it wasn't parsed while it was received
+     */
+    synchronized void recordPage(int resources, long bytes, long latencyNanos, long parseNanos) {
+        this.pages++;
+        this.resources += resources;
+        this.bytes += bytes;
+        this.nanos += latencyNanos + parseNanos;
+        if (settings.isEmpty() || resources == 0 || bytes == 0) {
+            return;
+        }
+
+        var throughput = resources / (double) Math.max(1, latencyNanos + parseNanos);
+        var candidate = lastThroughput == 0 || throughput >= lastThroughput * THROUGHPUT_TOLERANCE
+                ? 2L * pageCount
+                : pageCount * 3L / 4;
+        var sizeLimit = settings.get().targetPageBytes() * resources / bytes;
+        pageCount = clamp(Math.min(candidate, sizeLimit), settings.get());
+        lastThroughput = throughput;
+        minPageCount = Math.min(minPageCount, pageCount);
+        maxPageCount = Math.max(maxPageCount, pageCount);
+    }
+
+    /**
+     * Replaces the {@code _count} parameter of {@code url} with the current page count.
+     *
+     * @param url the url of the next page
+     * @return the url with the current page count or {@code url} if the page count isn't adapted
+     */
+    String nextUrl(String url) {
+        return isAdaptive() ? withPageCount(url, pageCount()) : url;
+    }
+
+    static String withPageCount(String url, int pageCount) {
+        return COUNT_PARAMETER.matcher(url).replaceFirst(match -> match.group(1) + pageCount);
+    }
+
+    /**
+     * Describes the chosen page counts and the throughput of the pages recorded so far.
+     */
+    synchronized String summary() {
+        var seconds = nanos / 1e9;
+        return "%d resources in %d pages with page counts between %d and %d, %.0f resources/s and %.2f MiB/s"
+                .formatted(resources, pages, minPageCount, maxPageCount, seconds == 0 ? 0 : resources / seconds,
+                        seconds == 0 ? 0 : bytes / seconds / (1024 * 1024));
+    }
+}
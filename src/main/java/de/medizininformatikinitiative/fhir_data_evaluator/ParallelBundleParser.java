@@ -0,0 +1,279 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static de.medizininformatikinitiative.fhir_data_evaluator.ResourceWithIncludes.resourcesByMode;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Parses the entries of a single search set {@link Bundle} concurrently on the {@link WorkerPool}.
+ * <p>
+ * The raw page is first scanned with a plain JSON tokenizer, which only records the character range, search mode and
+ * full url of each entry. The resources of the entries are then split into batches, which are parsed by the HAPI
+ * parser on different worker threads, and reassembled in the order of the page. Because the scan is much cheaper than
+ * the HAPI parser, a large page is parsed in a fraction of the time a single thread needs.
+ * <p>
+ * As with a parsed {@link Bundle}, the id of a resource is replaced by the full url of its entry, if that is an
+ * absolute url. With an {@link IncludeCache}, 'include' resources that are already cached in the same version aren't
+ * parsed again and all others are interned. This class is thread-safe.
+ */
+public class ParallelBundleParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int MIN_ENTRIES_PER_BATCH = 16;
+
+    private final FhirContext context;
+    private final WorkerPool workerPool;
+    private final Optional<IncludeCache> includeCache;
+
+    public ParallelBundleParser(FhirContext context, WorkerPool workerPool) {
+        this(context, workerPool, Optional.empty());
+    }
+
+    public ParallelBundleParser(FhirContext context, WorkerPool workerPool, Optional<IncludeCache> includeCache) {
+        this.context = requireNonNull(context);
+        this.workerPool = requireNonNull(workerPool);
+        this.includeCache = requireNonNull(includeCache);
+    }
+
+    /**
+     * The resources of one page, separated by search mode.
+     *
+     * @param matches  the resources with search mode 'match' in the order of the page
+     * @param includes the resources with search mode 'include' in the order of the page
+     */
+    public record Page(List<Resource> matches, List<Resource> includes) {
+
+        public Page {
+            requireNonNull(matches);
+            requireNonNull(includes);
+        }
+
+        /**
+         * Takes the resources of an already parsed {@code bundle}.
+         */
+        public static Page of(Bundle bundle) {
+            return new Page(resourcesByMode(bundle.getEntry(), Bundle.SearchEntryMode.MATCH),
+                    resourcesByMode(bundle.getEntry(), Bundle.SearchEntryMode.INCLUDE));
+        }
+    }
+
+    /**
+     * The position of the resource of one entry within the raw page.
+     *
+     * @param start        the index of the first character of the resource
+     * @param end          the index after the last character of the resource
+     * @param mode         the search mode of the entry or {@code null} if it has none
+     * @param fullUrl      the full url of the entry or {@code null} if it has none
+     * @param resourceType the type of the resource, used to report a malformed resource
+     * @param id           the id of the resource, used to report a malformed resource
+     * @param versionId    the version id of the resource or {@code null} if it has none
+     */
+    record EntryRange(int start, int end, Bundle.SearchEntryMode mode, String fullUrl, String resourceType,
+                      String id, String versionId) {
+    }
+
+    /**
+     * Parses the resources of {@code bundle}.
+     *
+     * @param bundle the raw search set bundle
+     * @return the resources of the page or an empty {@code Mono} if {@code bundle} isn't a well-formed bundle, in
+     * which case it should be parsed as a whole to report the error, or a {@link BundleParsingException} if the
+     * HAPI parser could not parse one of the resources
+     */
+    public Mono<Page> parse(String bundle) {
+        return Mono.fromCallable(() -> workerPool.time(WorkerPool.Stage.PARSE, () -> split(bundle)))
+                .flatMap(ranges -> ranges.map(r -> parseEntries(bundle, r)).orElse(Mono.empty()));
+    }
+
+    private Mono<Page> parseEntries(String bundle, List<EntryRange> ranges) {
+        var threads = workerPool.getThreads();
+        var batchSize = Math.max(MIN_ENTRIES_PER_BATCH, (ranges.size() + threads - 1) / threads);
+        var batches = new ArrayList<List<EntryRange>>();
+        for (var i = 0; i < ranges.size(); i += batchSize) {
+            batches.add(ranges.subList(i, Math.min(ranges.size(), i + batchSize)));
+        }
+        return Flux.fromIterable(batches)
+                .flatMapSequential(batch -> Mono.fromCallable(() -> workerPool.time(WorkerPool.Stage.PARSE,
+                        () -> parseBatch(bundle, batch))).subscribeOn(workerPool.scheduler()), batches.size() + 1)
+                .collectList()
+                .map(parsed -> {
+                    var matches = new ArrayList<Resource>(ranges.size());
+                    var includes = new ArrayList<Resource>();
+                    for (var i = 0; i < batches.size(); i++) {
+                        var batch = batches.get(i);
+                        for (var j = 0; j < batch.size(); j++) {
+                            if (batch.get(j).mode() == Bundle.SearchEntryMode.MATCH) {
+                                matches.add(parsed.get(i).get(j));
+                            } else if (batch.get(j).mode() == Bundle.SearchEntryMode.INCLUDE) {
+                                includes.add(parsed.get(i).get(j));
+                            }
+                        }
+                    }
+                    return new Page(matches, includes);
+                });
+    }
+
+    private List<Resource> parseBatch(String bundle, List<EntryRange> batch) {
+        var parser = context.newJsonParser();
+        var resources = new ArrayList<Resource>(batch.size());
+        for (var range : batch) {
+            var cached = cachedInclude(range);
+            if (cached.isPresent()) {
+                resources.add(cached.get());
+                continue;
+            }
+            Resource resource;
+            try {
+                resource = (Resource) parser.parseResource(bundle.substring(range.start(), range.end()));
+            } catch (DataFormatException e) {
+                throw new BundleParsingException(e, range.resourceType() + "/" + range.id());
+            }
+            if (range.fullUrl() != null) {
+                var fullUrl = new IdType(range.fullUrl());
+                if (fullUrl.isAbsolute()) {
+                    resource.setIdElement(new IdType(fullUrl.getBaseUrl(), resource.fhirType(), resource.getIdPart(),
+                            resource.getMeta().getVersionId()));
+                }
+            }
+            if (range.mode() == Bundle.SearchEntryMode.INCLUDE && includeCache.isPresent()) {
+                resource = includeCache.get().intern(resource, range.end() - range.start());
+            }
+            resources.add(resource);
+        }
+        return resources;
+    }
+
+    private Optional<Resource> cachedInclude(EntryRange range) {
+        return range.mode() == Bundle.SearchEntryMode.INCLUDE
+                ? includeCache.flatMap(cache -> cache.get(range.resourceType(), range.id(), range.versionId()))
+                : Optional.empty();
+    }
+
+    /**
+     * Finds the resources of the entries of {@code bundle} without parsing them.
+     *
+     * @param bundle the raw search set bundle
+     * @return the ranges of the resources in the order of the page or an empty {@code Optional} if {@code bundle}
+     * isn't a well-formed bundle
+     */
+    static Optional<List<EntryRange>> split(String bundle) {
+        try (JsonParser parser = JSON_FACTORY.createParser(bundle)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return Optional.empty();
+            }
+            var ranges = new ArrayList<EntryRange>();
+            var isBundle = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var field = parser.currentName();
+                var value = parser.nextToken();
+                if ("resourceType".equals(field)) {
+                    isBundle = "Bundle".equals(parser.getValueAsString());
+                } else if ("entry".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        var range = readEntry(parser);
+                        if (range.isEmpty()) {
+                            return Optional.empty();
+                        }
+                        ranges.add(range.get());
+                    }
+                    if (parser.currentToken() != JsonToken.END_ARRAY) {
+                        return Optional.empty();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return isBundle && parser.nextToken() == null ? Optional.of(ranges) : Optional.empty();
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<EntryRange> readEntry(JsonParser parser) throws IOException {
+        var start = -1;
+        var end = -1;
+        Optional<Bundle.SearchEntryMode> mode = Optional.empty();
+        String fullUrl = null;
+        String resourceType = null;
+        String id = null;
+        String versionId = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.currentName();
+            var value = parser.nextToken();
+            if ("resource".equals(field) && value == JsonToken.START_OBJECT) {
+                start = (int) parser.currentTokenLocation().getCharOffset();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var resourceField = parser.currentName();
+                    parser.nextToken();
+                    if ("resourceType".equals(resourceField)) {
+                        resourceType = parser.getValueAsString();
+                    } else if ("id".equals(resourceField)) {
+                        id = parser.getValueAsString();
+                    } else if ("meta".equals(resourceField) && parser.currentToken() == JsonToken.START_OBJECT) {
+                        versionId = readVersionId(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                end = (int) parser.currentLocation().getCharOffset();
+            } else if ("fullUrl".equals(field)) {
+                fullUrl = parser.getValueAsString();
+            } else if ("search".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var searchField = parser.currentName();
+                    parser.nextToken();
+                    if ("mode".equals(searchField)) {
+                        mode = searchEntryMode(parser.getValueAsString());
+                        if (mode.isEmpty()) {
+                            return Optional.empty();
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return start < 0 || end <= start ? Optional.empty()
+                : Optional.of(new EntryRange(start, end, mode.orElse(null), fullUrl, resourceType, id, versionId));
+    }
+
+    private static String readVersionId(JsonParser parser) throws IOException {
+        String versionId = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.currentName();
+            parser.nextToken();
+            if ("versionId".equals(field)) {
+                versionId = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return versionId;
+    }
+
+    private static Optional<Bundle.SearchEntryMode> searchEntryMode(String code) {
+        try {
+            return Optional.ofNullable(Bundle.SearchEntryMode.fromCode(code));
+        } catch (FHIRException e) {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A source of the resources that are evaluated.
+ * <p>
+ * Resources are either searched on a live FHIR server with the {@link DataStore} or read from local FHIR Bulk Data
+ * files with the {@link NdjsonResourceSource}.
+ */
+public interface ResourceSource {
+
+    /**
+     * Executes {@code query} and returns all resources found with that query.
+     *
+     * @param query the fhir search query
+     * @return the resources found with the {@code query}
+     */
+    Flux<ResourceWithIncludes> getResources(String query);
+
+    /**
+     * Estimates how many resources {@code query} will return without fetching them.
+     * <p>
+     * The estimate doesn't have to be a number of resources, but has to be comparable between the queries of the same
+     * source, so that the largest queries can be started first.
+     *
+     * @param query the fhir search query
+     * @return the estimated size or an empty {@code Mono} if it is unknown
+     */
+    default Mono<Long> estimateSize(String query) {
+        return Mono.empty();
+    }
+
+    /**
+     * Returns whether the resources of {@code query} can be fetched page by page with
+     * {@link #getPages(String, Optional)}.
+     *
+     * @param query the fhir search query
+     * @return {@code true} if {@code query} can be fetched page by page
+     */
+    default boolean supportsPages(String query) {
+        return false;
+    }
+
+    /**
+     * Executes {@code query} like {@link #getResources(String)}, but emits the resources page by page together with
+     * the url of the next page, so that the query can later be continued from that page.
+     *
+     * @param query   the fhir search query
+     * @param pageUrl the url of the page to start with as emitted with an earlier page, or an empty {@code Optional}
+     *                to start with the first page
+     * @return the pages of the {@code query} in order
+     * @throws UnsupportedOperationException if {@code query} isn't {@link #supportsPages(String) supported}
+     */
+    default Flux<Page> getPages(String query, Optional<String> pageUrl) {
+        throw new UnsupportedOperationException("Source can't fetch the query %s page by page".formatted(query));
+    }
+
+    /**
+     * The resources of one page.
+     *
+     * @param resources the resources of the page
+     * @param nextUrl   the url of the next page if there is one
+     */
+    record Page(List<ResourceWithIncludes> resources, Optional<String> nextUrl) {
+
+        public Page {
+            resources = List.copyOf(resources);
+            requireNonNull(nextUrl);
+        }
+    }
+}
@@ -10,7 +10,10 @@ import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Resource;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -26,11 +29,55 @@ import java.util.stream.Stream;
  */
 public record ResourceWithIncludes(Resource mainResource, Map<String, Resource> includes, IFhirPath fhirPathEngine) {
 
+    /**
+     * Evaluates {@code expression} on the main resource and resolves references with the 'include' resources.
+     * <p>
+     * A {@link SharedFhirPathEngine} gets the 'include' resources with the evaluation, every other engine must already
+     * have a resolver set.
+     *
+     * @param expression the expression parsed by the engine of this resource
+     * @param returnType the type of all items of the result
+     * @return the items of the result
+     */
+    public <T extends IBase> List<T> evaluate(IFhirPath.IParsedExpression expression, Class<T> returnType) {
+        if (fhirPathEngine instanceof SharedFhirPathEngine sharedEngine) {
+            return sharedEngine.evaluate(mainResource, expression, returnType, includes);
+        }
+        return fhirPathEngine.evaluate(mainResource, expression, returnType);
+    }
+
+    /**
+     * Returns the engine to evaluate the resources with {@code includes}.
+     * <p>
+     * A {@link SharedFhirPathEngine} is returned as is, because it gets the 'include' resources with each evaluation.
+     * Otherwise, a new engine with a resolver of {@code includes} is created if there are 'include' resources.
+     *
+     * @param applicationFhirPathEngine the fhir path engine of the spring application
+     * @param context                   the {@link FhirContext} to create a new fhir path engine
+     * @param includes                  maps the reference uri string to the corresponding referenced resource
+     * @return the engine to evaluate the resources with {@code includes}
+     */
+    public static IFhirPath engineWithIncludes(IFhirPath applicationFhirPathEngine, FhirContext context,
+                                               Map<String, Resource> includes) {
+        if (includes.isEmpty() || applicationFhirPathEngine instanceof SharedFhirPathEngine) {
+            return applicationFhirPathEngine;
+        }
+        var fhirPathEngine = context.newFhirPath();
+        setResolver(fhirPathEngine, includes);
+        return fhirPathEngine;
+    }
 
     /**
      * Sets an evaluation context that uses the 'include' resources to resolve references.
+     *
+     * @throws IllegalStateException if {@code fhirPathEngine} is a {@link SharedFhirPathEngine}, which ignores
+     *                               evaluation contexts and gets the 'include' resources with each evaluation instead
      */
     public static void setResolver(IFhirPath fhirPathEngine, Map<String, Resource> includes) {
+        if (fhirPathEngine instanceof SharedFhirPathEngine) {
+            throw new IllegalStateException("A SharedFhirPathEngine gets the 'include' resources with each evaluation " +
+                    "and can't have a resolver");
+        }
         IFhirPathEvaluationContext evaluationContext = new IFhirPathEvaluationContext() {
             @Override
             public IBase resolveReference(@Nonnull IIdType theReference, @Nullable IBase theContext) {
@@ -55,19 +102,60 @@ public record ResourceWithIncludes(Resource mainResource, Map<String, Resource>
      * @return a stream of all resulting {@link ResourceWithIncludes}
      */
     public static Stream<ResourceWithIncludes> processBundleIncludes(Bundle bundle, IFhirPath applicationFhirPathEngine, FhirContext context) {
-        Map<String, Resource> includes = bundle.getEntry().stream()
-                .filter(e -> e.getSearch().getMode().equals(Bundle.SearchEntryMode.INCLUDE))
-                .collect(Collectors.toMap(e -> e.getResource().fhirType() + "/" + e.getResource().getIdPart(), Bundle.BundleEntryComponent::getResource));
+        return processIncludes(
+                resourcesByMode(bundle.getEntry(), Bundle.SearchEntryMode.MATCH),
+                resourcesByMode(bundle.getEntry(), Bundle.SearchEntryMode.INCLUDE),
+                applicationFhirPathEngine, context);
+    }
 
-        IFhirPath fhirPathEngine;
-        if (includes.isEmpty()) {
-            fhirPathEngine = applicationFhirPathEngine;
-        } else {
-            fhirPathEngine = context.newFhirPath();
-            setResolver(fhirPathEngine, includes);
-        }
+    /**
+     * Creates a {@link ResourceWithIncludes} for every resource in {@code matches} and appends the resources in
+     * {@code includes} to each of them.
+     * <p>
+     * Also, if there are 'include' resources, a resolver has to be set that uses the 'include' resources to resolve
+     * references in the FHIRPath of the stratifiers, unless the application engine is a {@link SharedFhirPathEngine}.
+     *
+     * @param matches                   the resources with search mode 'match' of one page
+     * @param includes                  the resources with search mode 'include' of the same page
+     * @param applicationFhirPathEngine the fhir path engine of the spring application that is used to evaluate resources
+     *                                  without 'include' resources
+     * @param context                   the {@link FhirContext} to create a new fhir path engine that is used for all
+     *                                  {@code matches} in case there are 'include' resources
+     * @return a stream of all resulting {@link ResourceWithIncludes}
+     */
+    public static Stream<ResourceWithIncludes> processIncludes(List<Resource> matches, List<Resource> includes,
+                                                               IFhirPath applicationFhirPathEngine, FhirContext context) {
+        return processIncludes(matches, includes, applicationFhirPathEngine, context, Optional.empty());
+    }
+
+    /**
+     * Like {@link #processIncludes(List, List, IFhirPath, FhirContext)}, but also resolves references that the
+     * {@code includes} of the page don't contain with the 'include' resources of the earlier pages in {@code scope}.
+     * <p>
+     * The pages of a query have to be processed in order, because the {@code includes} are added to the
+     * {@code scope}.
+     *
+     * @param matches                   the resources with search mode 'match' of one page
+     * @param includes                  the resources with search mode 'include' of the same page
+     * @param applicationFhirPathEngine the fhir path engine of the spring application
+     * @param context                   the {@link FhirContext} to create a new fhir path engine
+     * @param scope                     the 'include' resources of the earlier pages of the same query or an empty
+     *                                  {@code Optional}
+     * @return a stream of all resulting {@link ResourceWithIncludes}
+     */
+    public static Stream<ResourceWithIncludes> processIncludes(List<Resource> matches, List<Resource> includes,
+                                                               IFhirPath applicationFhirPathEngine, FhirContext context,
+                                                               Optional<IncludeCache.Scope> scope) {
+        Map<String, Resource> pageIncludes = includes.stream()
+                .collect(Collectors.toMap(r -> r.fhirType() + "/" + r.getIdPart(), Function.identity()));
+        var includesByReference = scope.map(s -> s.pageIncludes(pageIncludes)).orElse(pageIncludes);
+
+        var fhirPathEngine = engineWithIncludes(applicationFhirPathEngine, context, includesByReference);
+        return matches.stream().map(match -> new ResourceWithIncludes(match, includesByReference, fhirPathEngine));
+    }
 
-        return bundle.getEntry().stream().filter(e -> e.getSearch().getMode().equals(Bundle.SearchEntryMode.MATCH))
-                .map(match -> new ResourceWithIncludes(match.getResource(), includes, fhirPathEngine));
+    static List<Resource> resourcesByMode(List<Bundle.BundleEntryComponent> entries, Bundle.SearchEntryMode mode) {
+        return entries.stream().filter(e -> mode.equals(e.getSearch().getMode()))
+                .map(Bundle.BundleEntryComponent::getResource).toList();
     }
 }
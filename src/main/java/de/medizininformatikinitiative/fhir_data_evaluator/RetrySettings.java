@@ -0,0 +1,29 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import java.time.Duration;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds the settings of the exponential backoff that is used to retry a single failed page request.
+ *
+ * @param maxAttempts the maximum number of retries of one page
+ * @param minBackoff  the backoff before the first retry, which is doubled for each further retry
+ * @param maxBackoff  the upper limit of the backoff
+ * @param jitter      the jitter factor between {@code 0} and {@code 1} that is applied to each backoff
+ */
+public record RetrySettings(int maxAttempts, Duration minBackoff, Duration maxBackoff, double jitter) {
+
+    public static final RetrySettings DEFAULT = new RetrySettings(3, Duration.ofSeconds(1), Duration.ofMinutes(1), 0.5);
+
+    public RetrySettings {
+        requireNonNull(minBackoff);
+        requireNonNull(maxBackoff);
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("Maximum number of retries must not be negative");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter factor must be between 0 and 1");
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.fhirpath.IFhirPathEvaluationContext;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.TypeDetails;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+import org.hl7.fhir.r4.utils.FHIRPathUtilityClasses;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A FHIRPath engine that can be shared by all threads and resolves references to the 'include' resources passed with
+ * each evaluation.
+ * <p>
+ * The HAPI engine keeps its evaluation context, which resolves references, as mutable state and isn't documented to be
+ * thread-safe. So instead of one engine per page with 'include' resources, this engine keeps one HAPI engine per
+ * thread, configured like the engines of {@link FhirContext#newFhirPath()}. The 'include' resources of a resource are
+ * passed to the HAPI engine as the application context of the evaluation, which is handed back to the single stateless
+ * resolver, so that references can only be resolved within the page of the resource.
+ * <p>
+ * Expressions have to be parsed by this engine. An evaluation context set on this engine is ignored, because the
+ * 'include' resources are passed with {@link #evaluate(IBase, IParsedExpression, Class, Map)}. This class is
+ * thread-safe.
+ */
+public final class SharedFhirPathEngine implements IFhirPath {
+
+    private final ThreadLocal<FHIRPathEngine> engines;
+
+    public SharedFhirPathEngine(FhirContext context) {
+        requireNonNull(context);
+        this.engines = ThreadLocal.withInitial(() -> {
+            var engine = new FHIRPathEngine(new HapiWorkerContext(context, context.getValidationSupport()));
+            engine.setDoNotEnforceAsCaseSensitive(true);
+            engine.setDoNotEnforceAsSingletonRule(true);
+            engine.setHostServices(IncludeResolver.INSTANCE);
+            return engine;
+        });
+    }
+
+    private record ParsedExpression(ExpressionNode node) implements IParsedExpression {
+    }
+
+    @Override
+    public IParsedExpression parse(String expression) {
+        return new ParsedExpression(engines.get().parse(expression));
+    }
+
+    @Override
+    public <T extends IBase> List<T> evaluate(IBase input, String expression, Class<T> returnType) {
+        return evaluate(input, parse(expression), returnType, Map.of());
+    }
+
+    @Override
+    public <T extends IBase> List<T> evaluate(IBase input, IParsedExpression expression, Class<T> returnType) {
+        return evaluate(input, expression, returnType, Map.of());
+    }
+
+    /**
+     * Evaluates {@code expression} on {@code input} and resolves references with {@code includes}.
+     *
+     * @param input      the resource or element to evaluate
+     * @param expression the expression parsed by this engine
+     * @param returnType the type of all items of the result
+     * @param includes   maps the reference uri string to the corresponding referenced resource
+     * @return the items of the result
+     * @throws FhirPathExecutionException if the evaluation fails or an item isn't of {@code returnType}
+     */
+    public <T extends IBase> List<T> evaluate(IBase input, IParsedExpression expression, Class<T> returnType,
+                                              Map<String, Resource> includes) {
+        if (!(expression instanceof ParsedExpression parsed)) {
+            throw new IllegalArgumentException("Expression was not parsed by a SharedFhirPathEngine");
+        }
+        var base = (Base) input;
+        var root = base.isResource() ? base : null;
+        List<Base> found;
+        try {
+            found = engines.get().evaluate(includes, root, root, base, parsed.node());
+        } catch (FHIRException e) {
+            throw new FhirPathExecutionException("Error during FHIRPath evaluation: " + e.getMessage(), e);
+        }
+
+        var result = new ArrayList<T>(found.size());
+        for (var item : found) {
+            if (!returnType.isInstance(item)) {
+                throw new FhirPathExecutionException("FHIRPath expression returned unexpected type %s - Expected %s"
+                        .formatted(item.getClass().getSimpleName(), returnType.getName()));
+            }
+            result.add(returnType.cast(item));
+        }
+        return result;
+    }
+
+    @Override
+    public <T extends IBase> Optional<T> evaluateFirst(IBase input, String expression, Class<T> returnType) {
+        return evaluate(input, expression, returnType).stream().findFirst();
+    }
+
+    @Override
+    public <T extends IBase> Optional<T> evaluateFirst(IBase input, IParsedExpression expression, Class<T> returnType) {
+        return evaluate(input, expression, returnType).stream().findFirst();
+    }
+
+    /**
+     * Does nothing, because this engine resolves references only with the 'include' resources passed with
+     * {@link #evaluate(IBase, IParsedExpression, Class, Map)} and not with an evaluation context shared by all
+     * evaluations.
+     */
+    @Override
+    public void setEvaluationContext(IFhirPathEvaluationContext evaluationContext) {
+    }
+
+    /**
+     * Resolves references with the 'include' resources passed as application context of the evaluation.
+     */
+    private static final class IncludeResolver implements FHIRPathEngine.IEvaluationContext {
+
+        private static final IncludeResolver INSTANCE = new IncludeResolver();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Base resolveReference(Object appContext, String url, Base refContext) {
+            return appContext instanceof Map<?, ?> includes ? ((Map<String, Resource>) includes).get(url) : null;
+        }
+
+        @Override
+        public List<Base> resolveConstant(Object appContext, String name, boolean beforeContext) {
+            return List.of();
+        }
+
+        @Override
+        public TypeDetails resolveConstantType(Object appContext, String name) {
+            return null;
+        }
+
+        @Override
+        public boolean log(String argument, List<Base> focus) {
+            return false;
+        }
+
+        @Override
+        public FHIRPathUtilityClasses.FunctionDetails resolveFunction(String functionName) {
+            return null;
+        }
+
+        @Override
+        public TypeDetails checkFunction(Object appContext, String functionName, List<TypeDetails> parameters) {
+            return null;
+        }
+
+        @Override
+        public List<Base> executeFunction(Object appContext, List<Base> focus, String functionName,
+                                          List<List<Base>> parameters) {
+            return null;
+        }
+
+        @Override
+        public boolean conformsToProfile(Object appContext, Base item, String url) {
+            return false;
+        }
+
+        @Override
+        public ValueSet resolveValueSet(Object appContext, String url) {
+            return null;
+        }
+    }
+}
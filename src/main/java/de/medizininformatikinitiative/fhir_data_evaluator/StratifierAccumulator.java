@@ -0,0 +1,92 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.Population;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.Individual;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.PopulationAccumulator;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Accumulates the strata of one stratifier while the resources of a group are reduced.
+ * <p>
+ * The values of each component are interned into a {@link ValueDictionary} of that component, and a stratum is keyed
+ * by the tuple of the ids of its values. The tuple of the current resource is written into a reusable key buffer, so
+ * looking up a stratum neither creates a key nor hashes the tuple of values. Each value is still hashed and compared
+ * once per resource when its id is looked up in the dictionary. The {@link StratumComponent}s are only created by
+ * {@link #toStratifierResult(Function)}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class StratifierAccumulator {
+
+    private final Optional<HashableCoding> code;
+    private final List<HashableCoding> componentCodes;
+    private final ValueDictionary[] dictionaries;
+    private final int[] keyBuffer;
+    private final StratumKeyMap populations;
+
+    /**
+     * @param code           the code of the stratifier if the stratifier consists of criteria and code
+     * @param componentCodes the codes of the components of the stratifier
+     * @param newPopulation  creates the empty population of a new stratum
+     */
+    public StratifierAccumulator(Optional<HashableCoding> code, List<HashableCoding> componentCodes,
+                                 Supplier<PopulationAccumulator> newPopulation) {
+        this.code = requireNonNull(code);
+        this.componentCodes = List.copyOf(componentCodes);
+        this.dictionaries = new ValueDictionary[componentCodes.size()];
+        for (int i = 0; i < dictionaries.length; i++) {
+            dictionaries[i] = new ValueDictionary();
+        }
+        this.keyBuffer = new int[componentCodes.size()];
+        this.populations = new StratumKeyMap(componentCodes.size(), newPopulation);
+    }
+
+    /**
+     * Sets the value of the component at {@code index} for the current resource.
+     *
+     * @param index the index of the component in the stratifier
+     * @param value the value found in the resource
+     */
+    void setComponentValue(int index, HashableCoding value) {
+        keyBuffer[index] = dictionaries[index].idOf(value);
+    }
+
+    /**
+     * Returns the population of the stratum of the component values that were set last, creating an empty population
+     * if the stratum is new.
+     */
+    PopulationAccumulator population() {
+        return populations.getOrCreate(keyBuffer);
+    }
+
+    /**
+     * Creates the immutable {@link StratifierResult} of all accumulated strata.
+     *
+     * @param toPopulation creates the immutable population of one stratum
+     * @return the {@link StratifierResult}
+     */
+    public <T extends Population<T, I>, I extends Individual<T>> StratifierResult<T, I> toStratifierResult(
+            Function<PopulationAccumulator, T> toPopulation) {
+        var result = new HashMap<Set<StratumComponent>, T>();
+        populations.forEach((key, population) ->
+                result.merge(decode(key), toPopulation.apply(population), (p1, p2) -> p1.merge(p2)));
+        return new StratifierResult<>(code, result);
+    }
+
+    private Set<StratumComponent> decode(int[] key) {
+        var components = new HashSet<StratumComponent>();
+        for (int i = 0; i < key.length; i++) {
+            components.add(new StratumComponent(componentCodes.get(i), dictionaries[i].valueOf(key[i])));
+        }
+        return components;
+    }
+}
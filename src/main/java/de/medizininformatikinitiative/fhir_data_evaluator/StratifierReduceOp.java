@@ -1,35 +1,52 @@
 package de.medizininformatikinitiative.fhir_data_evaluator;
 
-import de.medizininformatikinitiative.fhir_data_evaluator.populations.Population;
-import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.Individual;
-import org.apache.commons.lang3.function.TriFunction;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.PopulationAccumulator;
+import org.hl7.fhir.r4.model.Measure;
 
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
 
 /**
  * Represents a reduce operation for one stratifier that consists of one or more components.
  * <p>
- * This operation evaluates each component of the {@code parsedStratifier} and mutates a {@link StratifierResult} to add
- * the evaluated StratumComponents.
+ * This operation evaluates each component of the stratifier into a {@link StratifierAccumulator} and returns the
+ * population of the found stratum.
  *
+ * @param code                 the code of the stratifier if the stratifier consists of criteria and code
  * @param componentExpressions holds one {@link ComponentExpression} for each component of the stratifier
  */
-public record StratifierReduceOp<T extends Population<T, I>, I extends Individual<T>>(
-        List<ComponentExpression> componentExpressions)
-        implements TriFunction<StratifierResult<T, I>, ResourceWithIncludes, I, StratifierResult<T, I>> {
+public record StratifierReduceOp(Optional<HashableCoding> code, List<ComponentExpression> componentExpressions)
+        implements BiFunction<StratifierAccumulator, ResourceWithIncludes, PopulationAccumulator> {
 
     public StratifierReduceOp {
+        requireNonNull(code);
         componentExpressions = List.copyOf(componentExpressions);
     }
 
-    @Override
-    public StratifierResult<T, I> apply(StratifierResult<T, I> s, ResourceWithIncludes resource, I incrementIndividual) {
-        return s.mergeStratumComponents(evaluateStratifier(resource), incrementIndividual);
+    public static StratifierReduceOp of(Measure.MeasureGroupStratifierComponent s, List<ComponentExpression> componentExpressions) {
+        var code = s.hasCode() ? HashableCoding.ofFhirCoding(s.getCode().getCodingFirstRep()) : null;
+        return new StratifierReduceOp(Optional.ofNullable(code), componentExpressions);
     }
 
-    private Set<StratumComponent> evaluateStratifier(ResourceWithIncludes resource) {
-        return componentExpressions.stream().map(e -> e.evaluate(resource)).collect(Collectors.toSet());
+    /**
+     * Creates a new, empty accumulator for this stratifier.
+     *
+     * @param newPopulation creates the empty population of a new stratum
+     */
+    public StratifierAccumulator initialAccumulator(Supplier<PopulationAccumulator> newPopulation) {
+        return new StratifierAccumulator(code, componentExpressions.stream().map(ComponentExpression::code).toList(),
+                newPopulation);
+    }
+
+    @Override
+    public PopulationAccumulator apply(StratifierAccumulator s, ResourceWithIncludes resource) {
+        for (int i = 0; i < componentExpressions.size(); i++) {
+            s.setComponentValue(i, componentExpressions.get(i).evaluateValue(resource));
+        }
+        return s.population();
     }
 }
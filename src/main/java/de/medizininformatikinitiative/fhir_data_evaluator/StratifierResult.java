@@ -3,10 +3,8 @@ package de.medizininformatikinitiative.fhir_data_evaluator;
 import de.medizininformatikinitiative.fhir_data_evaluator.populations.Population;
 import de.medizininformatikinitiative.fhir_data_evaluator.populations.individuals.Individual;
 import org.hl7.fhir.r4.model.CodeableConcept;
-import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -21,7 +19,7 @@ import static java.util.Objects.requireNonNull;
  * <p>
  * In the {@code MeasureReport} a {@link StratifierResult} is the equivalent to a {@link MeasureReport.MeasureReportGroupStratifierComponent stratifier}.
  * <p>
- * Note that this record is mutable through the {@link StratifierResult#mergeStratumComponents(Set, Individual)} method.
+ * Note that this record is mutable through the {@link StratifierResult#merge(StratifierResult)} method.
  *
  * @param code        the code of the stratifier if the stratifier consists of criteria and code
  * @param populations mutable map of the populations of each found set of values
@@ -35,21 +33,16 @@ public record StratifierResult<T extends Population<T, I>, I extends Individual<
         requireNonNull(populations);
     }
 
-    public static <T extends Population<T, I>, I extends Individual<T>> StratifierResult<T, I> initial(Measure.MeasureGroupStratifierComponent s, Class<T> type) {
-        var code = s.hasCode() ? HashableCoding.ofFhirCoding(s.getCode().getCodingFirstRep()) : null;
-        return new StratifierResult<T, I>(Optional.ofNullable(code), new HashMap<>());
-    }
-
     /**
-     * Merges {@code components} and the corresponding {@code individual} into the {@code StratifierResult} by
-     * mutating it and then returns itself.
+     * Merges the populations of {@code other} into this {@code StratifierResult} by mutating it and then returns itself.
+     * <p>
+     * Populations of the same set of values are combined with {@link Population#merge(Population)}.
      *
-     * @param components the key of the population to increment
-     * @param individual the {@link Individual} used to initialize or increment the strata
+     * @param other the {@link StratifierResult} of the same stratifier built from a disjoint set of resources
      * @return the mutated {@link StratifierResult} itself
      */
-    public StratifierResult<T, I> mergeStratumComponents(Set<StratumComponent> components, I individual) {
-        populations.compute(components, (k, p) -> p == null ? individual.toPopulation() : p.increment(individual));
+    public StratifierResult<T, I> merge(StratifierResult<T, I> other) {
+        other.populations.forEach((components, population) -> populations.merge(components, population, (p1, p2) -> p1.merge(p2)));
         return this;
     }
 
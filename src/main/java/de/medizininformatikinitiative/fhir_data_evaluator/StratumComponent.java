@@ -17,22 +17,6 @@ public record StratumComponent(HashableCoding code, HashableCoding value) {
         requireNonNull(value);
     }
 
-    public static StratumComponent ofFailedInvalidType(HashableCoding code) {
-        return new StratumComponent(code, HashableCoding.FAIL_INVALID_TYPE);
-    }
-
-    public static StratumComponent ofFailedTooManyValues(HashableCoding code) {
-        return new StratumComponent(code, HashableCoding.FAIL_TOO_MANY_VALUES);
-    }
-
-    public static StratumComponent ofFailedNoValueFound(HashableCoding code) {
-        return new StratumComponent(code, HashableCoding.FAIL_NO_VALUE_FOUND);
-    }
-
-    public static StratumComponent ofFailedMissingFields(HashableCoding code) {
-        return new StratumComponent(code, HashableCoding.FAIL_MISSING_FIELDS);
-    }
-
     public MeasureReport.StratifierGroupComponentComponent toReport() {
         return new MeasureReport.StratifierGroupComponentComponent()
                 .setCode(code.toCodeableConcept())
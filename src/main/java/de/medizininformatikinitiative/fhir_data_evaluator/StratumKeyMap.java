@@ -0,0 +1,125 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.PopulationAccumulator;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An open-addressing hash map from stratum keys to {@link PopulationAccumulator}s.
+ * <p>
+ * A stratum key is a tuple of {@code width} dictionary ids, one for each component of a stratifier. All keys are
+ * stored in one flat {@code int} array, so neither looking up nor inserting a key creates a key object. Collisions are
+ * resolved by linear probing.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class StratumKeyMap {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int width;
+    private final Supplier<PopulationAccumulator> newPopulation;
+    private int[] keys;
+    private PopulationAccumulator[] values;
+    private int size;
+
+    /**
+     * @param width         the number of ids of each key
+     * @param newPopulation creates the empty population of a new key
+     */
+    StratumKeyMap(int width, Supplier<PopulationAccumulator> newPopulation) {
+        this.width = width;
+        this.newPopulation = requireNonNull(newPopulation);
+        this.keys = new int[INITIAL_CAPACITY * width];
+        this.values = new PopulationAccumulator[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Returns the population of {@code key}, creating an empty population if the key is new.
+     * <p>
+     * The {@code key} is copied on insert, so the caller can reuse it.
+     *
+     * @param key the ids of the stratum
+     * @return the population of the stratum
+     */
+    PopulationAccumulator getOrCreate(int[] key) {
+        int mask = values.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keyEquals(slot, key)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        var population = newPopulation.get();
+        System.arraycopy(key, 0, keys, slot * width, width);
+        values[slot] = population;
+        if (++size * 4 > values.length * 3) {
+            resize();
+        }
+        return population;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Calls {@code action} with a copy of each key and its population.
+     */
+    void forEach(BiConsumer<int[], PopulationAccumulator> action) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null) {
+                action.accept(Arrays.copyOfRange(keys, slot * width, slot * width + width), values[slot]);
+            }
+        }
+    }
+
+    private boolean keyEquals(int slot, int[] key) {
+        int offset = slot * width;
+        for (int i = 0; i < width; i++) {
+            if (keys[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resize() {
+        var oldKeys = keys;
+        var oldValues = values;
+        keys = new int[oldValues.length * 2 * width];
+        values = new PopulationAccumulator[oldValues.length * 2];
+
+        int mask = values.length - 1;
+        var key = new int[width];
+        for (int oldSlot = 0; oldSlot < oldValues.length; oldSlot++) {
+            if (oldValues[oldSlot] != null) {
+                System.arraycopy(oldKeys, oldSlot * width, key, 0, width);
+                int slot = hash(key) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                System.arraycopy(key, 0, keys, slot * width, width);
+                values[slot] = oldValues[oldSlot];
+            }
+        }
+    }
+
+    /**
+     * Hashes the ids of a key, spreading the dense ids over the whole table.
+     */
+    private static int hash(int[] key) {
+        int h = 1;
+        for (int id : key) {
+            h = 31 * h + id;
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,256 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Incrementally parses a single search set {@link Bundle} from chunks of raw bytes.
+ * <p>
+ * The bytes of a page are fed in the order they arrive from the network. As soon as an entry is complete, only its
+ * resource is handed to the HAPI parser, so neither the whole page as a string nor the whole page as a {@link Bundle}
+ * is ever held in memory.
+ * <p>
+ * An instance holds the parsing state of exactly one page and is not thread-safe.
+ */
+public class StreamingBundleParser {
+
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .enable(StreamWriteFeature.WRITE_BIGDECIMAL_AS_PLAIN)
+            .build();
+
+    private static final int ROOT_DEPTH = 1;
+    private static final int ARRAY_ELEMENT_DEPTH = 3;
+    private static final int ENTRY_CHILD_DEPTH = 4;
+
+    private final IParser resourceParser;
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+
+    private int depth;
+    private String rootField;
+    private String elementField;
+    private boolean bundleChecked;
+
+    private String searchMode;
+    private String linkRelation;
+    private String linkUrl;
+
+    private ByteArrayOutputStream resourceBytes;
+    private JsonGenerator resourceGenerator;
+    private String resourceType;
+    private String resourceId;
+    private Resource resource;
+
+    public StreamingBundleParser(FhirContext context) {
+        this.resourceParser = requireNonNull(context).newJsonParser();
+        try {
+            this.parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    /**
+     * Represents a part of a page that is complete and can be processed further.
+     */
+    public sealed interface Item permits Entry, NextLink, PageEnd {
+    }
+
+    /**
+     * An entry of the bundle.
+     *
+     * @param resource the parsed resource of the entry
+     * @param mode     the search mode of the entry or {@code null} if the entry has no search mode
+     */
+    public record Entry(Resource resource, Bundle.SearchEntryMode mode) implements Item {
+        public Entry {
+            requireNonNull(resource);
+        }
+    }
+
+    /**
+     * The link to the next page of the search set.
+     *
+     * @param url the url of the next page
+     */
+    public record NextLink(String url) implements Item {
+        public NextLink {
+            requireNonNull(url);
+        }
+    }
+
+    /**
+     * Marks that all items of a page were emitted.
+     */
+    public enum PageEnd implements Item {
+        INSTANCE
+    }
+
+    /**
+     * Feeds the next chunk of bytes of the page into the parser.
+     *
+     * @param bytes the next chunk of the page
+     * @return all items that were completed by this chunk
+     * @throws DataFormatException     if the page is not valid JSON or not a Bundle
+     * @throws BundleParsingException  if a resource of the page could not be parsed
+     */
+    public List<Item> feed(byte[] bytes) {
+        try {
+            feeder.feedInput(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage(), e);
+        }
+        return drain();
+    }
+
+    /**
+     * Signals that the page is complete.
+     *
+     * @return all remaining items of the page, always ending with {@link PageEnd}
+     * @throws DataFormatException if the page ended before the Bundle was complete
+     */
+    public List<Item> finish() {
+        feeder.endOfInput();
+        var items = drain();
+        if (!bundleChecked || depth != 0) {
+            throw new DataFormatException("Failed to parse JSON encoded FHIR content: unexpected end of Bundle");
+        }
+        items.add(PageEnd.INSTANCE);
+        return items;
+    }
+
+    private List<Item> drain() {
+        var items = new ArrayList<Item>();
+        try {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                handle(token, items);
+            }
+        } catch (IOException e) {
+            throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage(), e);
+        }
+        return items;
+    }
+
+    private void handle(JsonToken token, List<Item> items) throws IOException {
+        if (token == JsonToken.START_OBJECT && depth == ENTRY_CHILD_DEPTH - 1 && inEntry()
+                && "resource".equals(elementField)) {
+            resourceBytes = new ByteArrayOutputStream();
+            resourceGenerator = JSON_FACTORY.createGenerator(resourceBytes);
+        }
+        if (resourceGenerator != null) {
+            resourceGenerator.copyCurrentEventExact(parser);
+        }
+
+        switch (token) {
+            case START_OBJECT, START_ARRAY -> depth++;
+            case END_OBJECT, END_ARRAY -> {
+                depth--;
+                if (token == JsonToken.END_OBJECT) {
+                    endObject(items);
+                }
+            }
+            case FIELD_NAME -> fieldName(parser.currentName());
+            case VALUE_STRING -> stringValue(parser.getText());
+            default -> {
+            }
+        }
+    }
+
+    private void fieldName(String name) {
+        if (depth == ROOT_DEPTH) {
+            rootField = name;
+        } else if (depth == ARRAY_ELEMENT_DEPTH) {
+            elementField = name;
+        }
+    }
+
+    private void stringValue(String value) throws IOException {
+        if (depth == ROOT_DEPTH && "resourceType".equals(rootField)) {
+            if (!"Bundle".equals(value)) {
+                throw new DataFormatException("Incorrect resource type found, expected \"Bundle\" but found \"%s\""
+                        .formatted(value));
+            }
+            bundleChecked = true;
+        } else if (depth == ARRAY_ELEMENT_DEPTH && "link".equals(rootField)) {
+            if ("relation".equals(elementField)) {
+                linkRelation = value;
+            } else if ("url".equals(elementField)) {
+                linkUrl = value;
+            }
+        } else if (depth == ENTRY_CHILD_DEPTH && inEntry()) {
+            if (resourceGenerator != null) {
+                resourceField(value);
+            } else if ("search".equals(elementField) && "mode".equals(parser.currentName())) {
+                searchMode = value;
+            }
+        }
+    }
+
+    private void resourceField(String value) throws IOException {
+        if ("resourceType".equals(parser.currentName())) {
+            resourceType = value;
+        } else if ("id".equals(parser.currentName())) {
+            resourceId = value;
+        }
+    }
+
+    private void endObject(List<Item> items) throws IOException {
+        if (depth == ARRAY_ELEMENT_DEPTH && resourceGenerator != null) {
+            resourceGenerator.close();
+            resource = parseResource(resourceBytes.toByteArray());
+            resourceGenerator = null;
+            resourceBytes = null;
+        } else if (depth == ARRAY_ELEMENT_DEPTH - 1 && inEntry()) {
+            if (resource != null) {
+                items.add(new Entry(resource, Bundle.SearchEntryMode.fromCode(searchMode)));
+            }
+            resource = null;
+            searchMode = null;
+            elementField = null;
+        } else if (depth == ARRAY_ELEMENT_DEPTH - 1 && "link".equals(rootField)) {
+            if ("next".equals(linkRelation) && linkUrl != null) {
+                items.add(new NextLink(linkUrl));
+            }
+            linkRelation = null;
+            linkUrl = null;
+            elementField = null;
+        }
+    }
+
+    private boolean inEntry() {
+        return "entry".equals(rootField);
+    }
+
+    private Resource parseResource(byte[] bytes) {
+        try {
+            return (Resource) resourceParser.parseResource(new InputStreamReader(new ByteArrayInputStream(bytes), UTF_8));
+        } catch (DataFormatException e) {
+            throw new BundleParsingException(e, resourceType + "/" + resourceId);
+        } finally {
+            resourceType = null;
+            resourceId = null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns the values of one stratifier component into dense {@code int} ids.
+ * <p>
+ * The first value gets the id {@code 0}, the next new value the id {@code 1} and so on. Equal values always get the
+ * same id.
+ * <p>
+ * Looking up an id hashes the system and code of the value and compares them with the stored value, because the
+ * values of each resource are new instances whose {@code String}s have no cached hash yet. The dictionary only spares
+ * the stratum map from hashing and comparing tuples of values and from holding the values of each stratum.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class ValueDictionary {
+
+    private final Map<HashableCoding, Integer> ids = new HashMap<>();
+    private final List<HashableCoding> values = new ArrayList<>();
+
+    /**
+     * Returns the id of {@code value}, assigning a new id if the value wasn't seen before.
+     *
+     * @param value the value to get the id of
+     * @return the id of {@code value}
+     */
+    int idOf(HashableCoding value) {
+        var id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            values.add(value);
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the value of {@code id}.
+     *
+     * @param id an id that was returned by {@link #idOf(HashableCoding)}
+     * @return the value of {@code id}
+     */
+    HashableCoding valueOf(int id) {
+        return values.get(id);
+    }
+}
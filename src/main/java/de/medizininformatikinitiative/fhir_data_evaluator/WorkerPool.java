@@ -0,0 +1,162 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The pool of threads that parses and evaluates resources, separate from the I/O threads that read the responses.
+ * <p>
+ * The I/O threads only copy the received bytes and hand them off to this pool through the bounded queues of the
+ * {@code publishOn} operators, so that parsing and FHIRPath evaluation never stall the reading of other responses.
+ * The pool measures the time spent in each {@link Stage}, so that its utilisation can be compared to the number of
+ * available cores. The measurements are exposed through {@link WorkerPoolMXBean}.
+ * <p>
+ * A single pool is shared by all sources and evaluators of the application, which get it passed in. Closing the pool
+ * disposes its threads. This class is thread-safe.
+ */
+public final class WorkerPool implements WorkerPoolMXBean, AutoCloseable {
+
+    /**
+     * The stages of the evaluation whose busy time is measured.
+     */
+    public enum Stage {
+        /**
+         * Reading response bytes on the I/O threads.
+         */
+        IO,
+        /**
+         * Parsing resources on the worker threads.
+         */
+        PARSE,
+        /**
+         * Evaluating the FHIRPath expressions of the groups on the worker threads.
+         */
+        EVALUATE
+    }
+
+    private final Scheduler scheduler;
+    private final int threads;
+    private final long startNanos = System.nanoTime();
+    private final Map<Stage, LongAdder> busyNanos = new EnumMap<>(Stage.class);
+
+    /**
+     * @param name    the prefix of the thread names
+     * @param threads the number of worker threads
+     */
+    public WorkerPool(String name, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of worker threads must be at least 1");
+        }
+        this.scheduler = Schedulers.newParallel(name, threads, true);
+        this.threads = threads;
+        for (var stage : Stage.values()) {
+            busyNanos.put(stage, new LongAdder());
+        }
+    }
+
+    /**
+     * Creates a pool of {@code threads} threads.
+     *
+     * @param name    the prefix of the thread names
+     * @param threads the number of worker threads or {@code 0} for the number of available processors
+     * @return the pool
+     */
+    public static WorkerPool of(String name, int threads) {
+        return new WorkerPool(name, threads == 0 ? Runtime.getRuntime().availableProcessors() : threads);
+    }
+
+    public Scheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Adds {@code nanos} to the busy time of {@code stage}.
+     */
+    public void record(Stage stage, long nanos) {
+        busyNanos.get(stage).add(nanos);
+    }
+
+    /**
+     * Runs {@code work} and adds its duration to the busy time of {@code stage}.
+     */
+    public <T> T time(Stage stage, Supplier<T> work) {
+        var start = System.nanoTime();
+        try {
+            return work.get();
+        } finally {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Takes the busy times of the stages so far.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(System.nanoTime(), busyNanos.get(Stage.IO).sum(), busyNanos.get(Stage.PARSE).sum(),
+                busyNanos.get(Stage.EVALUATE).sum());
+    }
+
+    /**
+     * Describes the utilisation of the stages since {@code start}.
+     */
+    public String utilisationSince(Snapshot start) {
+        var end = snapshot();
+        var capacity = (double) Math.max(1, end.nanos() - start.nanos()) * threads;
+        return "parse %.0f%% and evaluate %.0f%% of %d worker threads, %.1f s reading responses".formatted(
+                100 * (end.parseNanos() - start.parseNanos()) / capacity,
+                100 * (end.evaluateNanos() - start.evaluateNanos()) / capacity, threads,
+                (end.ioNanos() - start.ioNanos()) / 1e9);
+    }
+
+    /**
+     * The busy times of the stages at one point in time.
+     *
+     * @param nanos the time of the snapshot
+     */
+    public record Snapshot(long nanos, long ioNanos, long parseNanos, long evaluateNanos) {
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public double getUtilisation() {
+        var busy = busyNanos.get(Stage.PARSE).sum() + busyNanos.get(Stage.EVALUATE).sum();
+        return busy / ((double) Math.max(1, System.nanoTime() - startNanos) * threads);
+    }
+
+    @Override
+    public double getIoSeconds() {
+        return seconds(Stage.IO);
+    }
+
+    @Override
+    public double getParseSeconds() {
+        return seconds(Stage.PARSE);
+    }
+
+    @Override
+    public double getEvaluateSeconds() {
+        return seconds(Stage.EVALUATE);
+    }
+
+    private double seconds(Stage stage) {
+        return busyNanos.get(stage).sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Disposes the threads of this pool.
+     */
+    @Override
+    public void close() {
+        scheduler.dispose();
+    }
+}
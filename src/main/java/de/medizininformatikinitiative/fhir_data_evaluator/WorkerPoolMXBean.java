@@ -0,0 +1,33 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+/**
+ * The metrics of a {@link WorkerPool}, which are registered with the platform MBean server.
+ */
+public interface WorkerPoolMXBean {
+
+    /**
+     * Returns the number of worker threads.
+     */
+    int getThreads();
+
+    /**
+     * Returns the fraction of the capacity of the worker threads spent parsing and evaluating since the pool was
+     * created.
+     */
+    double getUtilisation();
+
+    /**
+     * Returns the total time spent reading response bytes on the I/O threads.
+     */
+    double getIoSeconds();
+
+    /**
+     * Returns the total time spent parsing resources.
+     */
+    double getParseSeconds();
+
+    /**
+     * Returns the total time spent evaluating resources.
+     */
+    double getEvaluateSeconds();
+}
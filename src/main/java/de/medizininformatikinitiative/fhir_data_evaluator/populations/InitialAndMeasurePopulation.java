@@ -33,6 +33,13 @@ public record InitialAndMeasurePopulation(InitialPopulation initialPopulation, M
                 individual.containsMeasurePop() ? measurePopulation.increment() : measurePopulation);
     }
 
+    @Override
+    public InitialAndMeasurePopulation merge(InitialAndMeasurePopulation other) {
+        return new InitialAndMeasurePopulation(
+                initialPopulation.merge(other.initialPopulation),
+                measurePopulation.merge(other.measurePopulation));
+    }
+
     @Override
     public MeasureReport.StratifierGroupComponent toReportStratifierGroupComponent() {
         return new MeasureReport.StratifierGroupComponent().setPopulation(
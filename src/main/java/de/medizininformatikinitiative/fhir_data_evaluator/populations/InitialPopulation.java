@@ -28,6 +28,11 @@ public record InitialPopulation(int count) implements Population<InitialPopulati
         return new InitialPopulation(count + individual.count());
     }
 
+    @Override
+    public InitialPopulation merge(InitialPopulation other) {
+        return new InitialPopulation(count + other.count);
+    }
+
     @Override
     public MeasureReport.StratifierGroupComponent toReportStratifierGroupComponent() {
         return new MeasureReport.StratifierGroupComponent().setPopulation(List.of(toReportStratifierPopulation()));
@@ -7,7 +7,6 @@ import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Resource;
 
 import java.util.List;
-import java.util.Optional;
 
 import static de.medizininformatikinitiative.fhir_data_evaluator.HashableCoding.MEASURE_POPULATION_CODING;
 
@@ -28,17 +27,33 @@ public record MeasurePopulation(int count) {
         return new MeasurePopulation(count + 1);
     }
 
-    public static Optional<ResourceWithIncludes> evaluateMeasurePopResource(ResourceWithIncludes resource, IFhirPath.IParsedExpression expression) {
-        List<Base> found = resource.fhirPathEngine().evaluate(resource.mainResource(), expression, Base.class);
+    /**
+     * Adds the count of {@code other} to the count of this measure population.
+     *
+     * @param other the measure population to combine with this measure population
+     */
+    public MeasurePopulation merge(MeasurePopulation other) {
+        return new MeasurePopulation(count + other.count);
+    }
+
+    /**
+     * Evaluates the measure population {@code expression} on {@code resource}.
+     *
+     * @return the resource of the measure population or {@code null} if {@code resource} is not part of the measure
+     * population
+     * @throws IllegalArgumentException if the expression evaluated into more than one entity or not into a resource
+     */
+    public static ResourceWithIncludes evaluateMeasurePopResource(ResourceWithIncludes resource, IFhirPath.IParsedExpression expression) {
+        List<Base> found = resource.evaluate(expression, Base.class);
 
         if (found.isEmpty())
-            return Optional.empty();
+            return null;
 
         if (found.size() > 1)
             throw new IllegalArgumentException("Measure population evaluated into more than one entity");
 
         if (found.get(0) instanceof Resource r)
-            return Optional.of(new ResourceWithIncludes(r, resource.includes(), resource.fhirPathEngine()));
+            return new ResourceWithIncludes(r, resource.includes(), resource.fhirPathEngine());
 
         throw new IllegalArgumentException("Measure population evaluated into different type than 'Resource'");
     }
@@ -24,6 +24,17 @@ public interface Population<T extends Population<T, I>, I extends Individual<T>>
      */
     T increment(I individual);
 
+    /**
+     * Combines this population with another population of the same type that was built from a disjoint set of
+     * resources.
+     * <p>
+     * Merging is associative and commutative, so partial populations can be merged in any order.
+     *
+     * @param other the population to combine with this population
+     * @return the new population containing the data of both populations
+     */
+    T merge(T other);
+
     MeasureReport.StratifierGroupComponent toReportStratifierGroupComponent();
 
     MeasureReport.MeasureReportGroupComponent toReportGroupComponent();
@@ -2,47 +2,58 @@ package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
 
 import org.hl7.fhir.r4.model.Quantity;
 
-import java.util.HashSet;
 import java.util.Set;
 
-import static java.util.Objects.requireNonNull;
-
 /**
- * Holds a set of unique {@link String}s.
+ * Counts the unique {@link String} values of an observation population.
  * <p>
- * This record is mutable because it holds a mutable {@link HashSet}, which is necessary to efficiently store and add
- * many values without copying.
- *
- * @param aggregatedValues the set of unique aggregated values
+ * Implementations are mutable, which is necessary to efficiently add many values without copying.
  */
-public record AggregateUniqueCounter(Set<String> aggregatedValues) {
-    public static final String EXTENSION_URL = "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-aggregateMethod";
-    public static final String EXTENSION_VALUE = "unique-count";
-
-    public AggregateUniqueCounter {
-        aggregatedValues = new HashSet<>(aggregatedValues);
-    }
+public sealed interface AggregateUniqueCounter permits BitmapUniqueCounter, ExactUniqueCounter, HyperLogLogUniqueCounter {
+    String EXTENSION_URL = "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-aggregateMethod";
+    String EXTENSION_VALUE = "unique-count";
 
-    public static AggregateUniqueCounter of() {
-        return new AggregateUniqueCounter(Set.of());
+    /**
+     * Creates an empty counter that counts exactly.
+     */
+    static AggregateUniqueCounter of() {
+        return new ExactUniqueCounter(Set.of());
     }
 
-    public static AggregateUniqueCounter of(String value) {
-        return new AggregateUniqueCounter(Set.of(value));
+    /**
+     * Creates a counter that counts exactly and already holds {@code value}.
+     */
+    static AggregateUniqueCounter of(String value) {
+        return new ExactUniqueCounter(Set.of(value));
     }
 
     /**
-     * Mutates {@code aggregatedValues} to add a new value.
+     * Mutates this counter to add a new value.
      *
      * @param val the value to add to the aggregated values
-     * @return itself with the mutated {@code aggregatedValues}
+     * @return itself with the added value
      */
-    public AggregateUniqueCounter addValue(String val) {
-        aggregatedValues.add(requireNonNull(val));
-        return this;
-    }
+    AggregateUniqueCounter addValue(String val);
 
-    public Quantity score() {
-        return new Quantity(aggregatedValues.size());
-    }
+    /**
+     * Mutates this counter to add all values of {@code other}.
+     *
+     * @param other a counter of the same kind whose values are added to this counter
+     * @return itself with the added values
+     * @throws IllegalArgumentException if {@code other} is of a different kind
+     */
+    AggregateUniqueCounter merge(AggregateUniqueCounter other);
+
+    /**
+     * Returns the number of unique values as measure score.
+     */
+    Quantity score();
+
+    /**
+     * Returns the number of bytes this counter retains on the heap, not counting state shared with other counters.
+     * <p>
+     * The size is computed for the layout described in {@link HeapLayout}, so it is deterministic and comparable
+     * between the kinds of counters.
+     */
+    long retainedBytes();
 }
@@ -0,0 +1,67 @@
+package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
+
+import org.hl7.fhir.r4.model.Quantity;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Exactly counts unique {@link String}s by their ids in a shared {@link ReferenceDictionary}.
+ * <p>
+ * In contrast to the {@link ExactUniqueCounter}, this counter doesn't hold the values themselves. Each value is stored
+ * once in the dictionary and each counter only holds a {@link CompressedIntSet} of the ids of its values. So a subject
+ * that appears in many strata costs 16 bits per stratum while its chunk of {@code 2^16} ids holds up to
+ * {@value CompressedIntSet#MAX_ARRAY_SIZE} ids of that stratum, and one bit per id of the chunk beyond that, instead of
+ * a hash set node and a {@code String} per stratum.
+ * <p>
+ * Only counters of the same dictionary can be merged, which unions their bitmaps.
+ * <p>
+ * This class is mutable and not thread-safe, only the dictionary may be shared between threads.
+ */
+public final class BitmapUniqueCounter implements AggregateUniqueCounter {
+
+    private final ReferenceDictionary dictionary;
+    private final CompressedIntSet ids = new CompressedIntSet();
+
+    private BitmapUniqueCounter(ReferenceDictionary dictionary) {
+        this.dictionary = requireNonNull(dictionary);
+    }
+
+    /**
+     * Creates an empty counter.
+     *
+     * @param dictionary the dictionary shared by all counters that may be merged with each other
+     * @return the empty counter
+     */
+    public static BitmapUniqueCounter of(ReferenceDictionary dictionary) {
+        return new BitmapUniqueCounter(dictionary);
+    }
+
+    @Override
+    public BitmapUniqueCounter addValue(String val) {
+        ids.add(dictionary.idOf(requireNonNull(val)));
+        return this;
+    }
+
+    @Override
+    public BitmapUniqueCounter merge(AggregateUniqueCounter other) {
+        if (!(other instanceof BitmapUniqueCounter bitmap) || bitmap.dictionary != dictionary) {
+            throw new IllegalArgumentException("Can only merge bitmap unique counters of the same dictionary");
+        }
+        ids.or(bitmap.ids);
+        return this;
+    }
+
+    @Override
+    public Quantity score() {
+        return new Quantity(ids.cardinality());
+    }
+
+    /**
+     * Returns the size of this counter and its ids, not counting the shared dictionary.
+     */
+    @Override
+    public long retainedBytes() {
+        // dictionary and ids references
+        return HeapLayout.object(2 * HeapLayout.REFERENCE) + ids.retainedBytes();
+    }
+}
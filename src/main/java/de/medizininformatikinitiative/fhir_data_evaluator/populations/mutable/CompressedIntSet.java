@@ -0,0 +1,274 @@
+package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative {@code int}s stored as compressed bitmap in the style of a Roaring bitmap.
+ * <p>
+ * The values are partitioned by their upper 16 bits into chunks of up to {@code 2^16} values. A chunk with few values
+ * holds them as sorted array of their lower 16 bits using two bytes per value. Once a chunk holds more than
+ * {@value #MAX_ARRAY_SIZE} values, it is converted into a plain bitmap of {@code 2^16} bits, which is smaller from
+ * there on. Because the values are dense ids of a {@link ReferenceDictionary}, the chunks are well filled.
+ * <p>
+ * This class is mutable and not thread-safe.
+ */
+final class CompressedIntSet {
+
+    static final int MAX_ARRAY_SIZE = 4096;
+
+    private char[] keys = new char[0];
+    private Container[] containers = new Container[0];
+    private int size;
+
+    /**
+     * Adds {@code value} to this set.
+     *
+     * @param value the value to add
+     */
+    void add(int value) {
+        var key = (char) (value >>> 16);
+        var index = indexOf(key);
+        if (index >= 0) {
+            containers[index] = containers[index].add((char) value);
+        } else {
+            insert(-index - 1, key, new ArrayContainer().add((char) value));
+        }
+    }
+
+    /**
+     * Returns whether {@code value} is in this set.
+     */
+    boolean contains(int value) {
+        var index = indexOf((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    /**
+     * Mutates this set to also hold all values of {@code other}.
+     *
+     * @param other the set whose values are added, stays unchanged
+     */
+    void or(CompressedIntSet other) {
+        for (int i = 0; i < other.size; i++) {
+            var index = indexOf(other.keys[i]);
+            if (index >= 0) {
+                containers[index] = containers[index].or(other.containers[i]);
+            } else {
+                insert(-index - 1, other.keys[i], other.containers[i].copy());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of values in this set.
+     */
+    int cardinality() {
+        var cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    /**
+     * Returns the number of bytes this set retains on the heap.
+     */
+    long retainedBytes() {
+        // keys and containers references and size
+        var bytes = HeapLayout.object(2 * HeapLayout.REFERENCE + 4) + HeapLayout.array(2, keys.length)
+                + HeapLayout.array(HeapLayout.REFERENCE, containers.length);
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].retainedBytes();
+        }
+        return bytes;
+    }
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insert(int index, char key, Container container) {
+        if (size == keys.length) {
+            var capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    /**
+     * The lower 16 bits of the values of one chunk.
+     * <p>
+     * Mutating operations return the container that holds the result, which is either the mutated container itself or
+     * a new container of another kind.
+     */
+    private abstract static sealed class Container permits ArrayContainer, BitmapContainer {
+
+        abstract Container add(char value);
+
+        abstract boolean contains(char value);
+
+        abstract Container or(Container other);
+
+        abstract int cardinality();
+
+        abstract Container copy();
+
+        abstract long retainedBytes();
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        private char[] values = new char[4];
+        private int cardinality;
+
+        @Override
+        Container add(char value) {
+            var index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality == MAX_ARRAY_SIZE) {
+                return toBitmap().add(value);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, cardinality + (cardinality >> 1)));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof ArrayContainer array && cardinality + array.cardinality <= MAX_ARRAY_SIZE) {
+                return merge(array);
+            }
+            return toBitmap().or(other);
+        }
+
+        private ArrayContainer merge(ArrayContainer other) {
+            var merged = new char[cardinality + other.cardinality];
+            int i = 0, j = 0, k = 0;
+            while (i < cardinality && j < other.cardinality) {
+                var a = values[i];
+                var b = other.values[j];
+                if (a < b) {
+                    merged[k++] = a;
+                    i++;
+                } else if (a > b) {
+                    merged[k++] = b;
+                    j++;
+                } else {
+                    merged[k++] = a;
+                    i++;
+                    j++;
+                }
+            }
+            while (i < cardinality) {
+                merged[k++] = values[i++];
+            }
+            while (j < other.cardinality) {
+                merged[k++] = other.values[j++];
+            }
+            values = merged;
+            cardinality = k;
+            return this;
+        }
+
+        private BitmapContainer toBitmap() {
+            var bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container copy() {
+            var copy = new ArrayContainer();
+            copy.values = Arrays.copyOf(values, Math.max(4, cardinality));
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        @Override
+        long retainedBytes() {
+            return HeapLayout.object(HeapLayout.REFERENCE + 4) + HeapLayout.array(2, values.length);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words = new long[1 << 10];
+        private int cardinality;
+
+        @Override
+        BitmapContainer add(char value) {
+            var word = words[value >>> 6];
+            var updated = word | (1L << value);
+            if (updated != word) {
+                words[value >>> 6] = updated;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer bitmap) {
+                var cardinality = 0;
+                for (int i = 0; i < words.length; i++) {
+                    words[i] |= bitmap.words[i];
+                    cardinality += Long.bitCount(words[i]);
+                }
+                this.cardinality = cardinality;
+            } else {
+                var array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    add(array.values[i]);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container copy() {
+            var copy = new BitmapContainer();
+            System.arraycopy(words, 0, copy.words, 0, words.length);
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        @Override
+        long retainedBytes() {
+            return HeapLayout.object(HeapLayout.REFERENCE + 4) + HeapLayout.array(8, words.length);
+        }
+    }
+}
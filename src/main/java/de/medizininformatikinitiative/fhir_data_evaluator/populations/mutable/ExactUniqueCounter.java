@@ -0,0 +1,80 @@
+package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
+
+import org.hl7.fhir.r4.model.Quantity;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds a set of unique {@link String}s.
+ * <p>
+ * The {@link BitmapUniqueCounter} needs less memory when many counters hold the same values, but this counter doesn't
+ * need a shared dictionary.
+ * <p>
+ * This record is mutable because it holds a mutable {@link HashSet}, which is necessary to efficiently store and add
+ * many values without copying.
+ *
+ * @param aggregatedValues the set of unique aggregated values
+ */
+public record ExactUniqueCounter(Set<String> aggregatedValues) implements AggregateUniqueCounter {
+
+    public ExactUniqueCounter {
+        aggregatedValues = new HashSet<>(aggregatedValues);
+    }
+
+    /**
+     * Mutates {@code aggregatedValues} to add a new value.
+     *
+     * @param val the value to add to the aggregated values
+     * @return itself with the mutated {@code aggregatedValues}
+     */
+    @Override
+    public ExactUniqueCounter addValue(String val) {
+        aggregatedValues.add(requireNonNull(val));
+        return this;
+    }
+
+    /**
+     * Mutates {@code aggregatedValues} to add all values of {@code other}.
+     *
+     * @param other the counter whose values are added to the aggregated values
+     * @return itself with the mutated {@code aggregatedValues}
+     */
+    @Override
+    public ExactUniqueCounter merge(AggregateUniqueCounter other) {
+        if (!(other instanceof ExactUniqueCounter exact)) {
+            throw new IllegalArgumentException("Can't merge an exact unique counter with a %s"
+                    .formatted(other.getClass().getSimpleName()));
+        }
+        aggregatedValues.addAll(exact.aggregatedValues);
+        return this;
+    }
+
+    @Override
+    public Quantity score() {
+        return new Quantity(aggregatedValues.size());
+    }
+
+    /**
+     * Returns the size of this counter, its {@link HashSet} and all values, even though the values may also be held by
+     * other counters.
+     */
+    @Override
+    public long retainedBytes() {
+        var size = aggregatedValues.size();
+        var capacity = 16;
+        while (size > capacity * 3 / 4) {
+            capacity <<= 1;
+        }
+        // the record, the HashSet and the HashMap with its table
+        var bytes = HeapLayout.object(HeapLayout.REFERENCE) + HeapLayout.object(HeapLayout.REFERENCE)
+                + HeapLayout.object(6 * HeapLayout.REFERENCE + 4 * 4) + HeapLayout.array(HeapLayout.REFERENCE, capacity);
+        for (String value : aggregatedValues) {
+            // the HashMap.Node with hash, key, value and next
+            bytes += HeapLayout.object(4 + 3 * HeapLayout.REFERENCE) + HeapLayout.string(value);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,47 @@
+package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
+
+/**
+ * Computes the heap sizes of objects for the layout of a 64-bit JVM with compressed references.
+ * <p>
+ * Objects have a 12 byte header, arrays a 16 byte header, references take 4 bytes and every object is aligned to
+ * 8 bytes. The sizes are deterministic, so they can be used to compare the memory of counters independently of the
+ * garbage collector.
+ */
+final class HeapLayout {
+
+    static final int REFERENCE = 4;
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+
+    private HeapLayout() {
+    }
+
+    /**
+     * Returns the size of an object whose fields take {@code fieldBytes}.
+     */
+    static long object(int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    /**
+     * Returns the size of an array of {@code length} elements of {@code elementBytes} each.
+     */
+    static long array(int elementBytes, int length) {
+        return align(ARRAY_HEADER + (long) elementBytes * length);
+    }
+
+    /**
+     * Returns the size of {@code value} including its backing array, which holds one byte per char if all chars are
+     * Latin-1 and two otherwise.
+     */
+    static long string(String value) {
+        var latin1 = value.chars().allMatch(c -> c < 256);
+        // value reference, hash, coder and hashIsZero
+        return object(REFERENCE + 4 + 1 + 1) + array(latin1 ? 1 : 2, value.length());
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -0,0 +1,162 @@
+package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
+
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.Quantity;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Approximately counts unique {@link String}s with a HyperLogLog sketch.
+ * <p>
+ * In contrast to the exact counters, the memory of this counter doesn't grow with the number of values.
+ * It always holds {@code 2^precision} one byte registers. The relative standard error of the count is
+ * {@code 1.04 / sqrt(2^precision)}, which is about 0.8% for the default precision of 14 with 16 KiB of registers.
+ * <p>
+ * Counters of the same precision are merged by taking the maximum of each register, so merging is exact in the sense
+ * that the merged sketch equals the sketch of all values.
+ * <p>
+ * This class is mutable and not thread-safe.
+ */
+public final class HyperLogLogUniqueCounter implements AggregateUniqueCounter {
+
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+    public static final int DEFAULT_PRECISION = 14;
+    public static final String PRECISION_EXTENSION_URL = "http://fhir-evaluator/StructureDefinition/hyperloglog-precision";
+    public static final String STANDARD_ERROR_EXTENSION_URL = "http://fhir-evaluator/StructureDefinition/unique-count-relative-standard-error";
+
+    private final int precision;
+    private final byte[] registers;
+
+    private HyperLogLogUniqueCounter(int precision) {
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Creates an empty counter.
+     *
+     * @param precision the number of bits used to select a register, between {@link #MIN_PRECISION} and
+     *                  {@link #MAX_PRECISION}
+     * @return the empty counter
+     * @throws IllegalArgumentException if {@code precision} is out of range
+     */
+    public static HyperLogLogUniqueCounter of(int precision) {
+        checkPrecision(precision);
+        return new HyperLogLogUniqueCounter(precision);
+    }
+
+    /**
+     * Checks that {@code precision} can be used to create a counter.
+     *
+     * @throws IllegalArgumentException if {@code precision} is out of range
+     */
+    public static void checkPrecision(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("HyperLogLog precision must be between %d and %d, but was %d"
+                    .formatted(MIN_PRECISION, MAX_PRECISION, precision));
+        }
+    }
+
+    public int precision() {
+        return precision;
+    }
+
+    /**
+     * Returns the relative standard error of the count.
+     */
+    public double relativeStandardError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    @Override
+    public HyperLogLogUniqueCounter addValue(String val) {
+        long hash = hash(val);
+        int index = (int) (hash >>> (Long.SIZE - precision));
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+        return this;
+    }
+
+    @Override
+    public HyperLogLogUniqueCounter merge(AggregateUniqueCounter other) {
+        if (!(other instanceof HyperLogLogUniqueCounter hll) || hll.precision != precision) {
+            throw new IllegalArgumentException("Can only merge HyperLogLog counters of precision %d".formatted(precision));
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (hll.registers[i] > registers[i]) {
+                registers[i] = hll.registers[i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Estimates the number of unique values.
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Returns the estimated number of unique values with an extension holding the relative standard error.
+     */
+    @Override
+    public Quantity score() {
+        var score = new Quantity(estimate());
+        score.addExtension(STANDARD_ERROR_EXTENSION_URL,
+                new DecimalType(new BigDecimal(relativeStandardError(), new MathContext(3))));
+        return score;
+    }
+
+    /**
+     * Returns the size of this counter and its registers, which doesn't depend on the number of values.
+     */
+    @Override
+    public long retainedBytes() {
+        // precision and registers reference
+        return HeapLayout.object(4 + HeapLayout.REFERENCE) + HeapLayout.array(1, registers.length);
+    }
+
+    private static double alpha(int m) {
+        return switch (m) {
+            case 16 -> 0.673;
+            case 32 -> 0.697;
+            case 64 -> 0.709;
+            default -> 0.7213 / (1 + 1.079 / m);
+        };
+    }
+
+    /**
+     * Hashes {@code value} into 64 bits with FNV-1a over its chars followed by the MurmurHash3 finalizer.
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -47,6 +47,21 @@ public record InitialAndMeasureAndObsPopulation(InitialPopulation initialPopulat
                 individual.obsValue().map(observationPopulation::increment).orElse(observationPopulation));
     }
 
+    /**
+     * Merges the populations of {@code other} into this collection of populations.
+     * <p>
+     * The {@link AggregateUniqueCounter} of this collection is mutated, so {@code other} must not be used afterward.
+     *
+     * @param other the collection of populations to combine with this collection
+     */
+    @Override
+    public InitialAndMeasureAndObsPopulation merge(InitialAndMeasureAndObsPopulation other) {
+        return new InitialAndMeasureAndObsPopulation(
+                initialPopulation.merge(other.initialPopulation),
+                measurePopulation.merge(other.measurePopulation),
+                observationPopulation.merge(other.observationPopulation));
+    }
+
     @Override
     public MeasureReport.StratifierGroupComponent toReportStratifierGroupComponent() {
         return new MeasureReport.StratifierGroupComponent()
@@ -1,6 +1,7 @@
 package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
 
 import ca.uhn.fhir.fhirpath.IFhirPath;
+import de.medizininformatikinitiative.fhir_data_evaluator.FhirPathCompiler;
 import de.medizininformatikinitiative.fhir_data_evaluator.ResourceWithIncludes;
 import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.MeasureReport;
@@ -43,17 +44,45 @@ public record ObservationPopulation(int count, AggregateUniqueCounter aggregateM
         return new ObservationPopulation(count + 1, aggregateMethod.addValue(requireNonNull(value)));
     }
 
-    public static Optional<String> evaluateObservationPop(ResourceWithIncludes resource, IFhirPath.IParsedExpression expression) {
-        List<Base> found = resource.fhirPathEngine().evaluate(resource.mainResource(), expression, Base.class);
+    /**
+     * Adds the count of {@code other} to the count of this observation population and merges the values of both
+     * aggregate methods.
+     *
+     * @param other the observation population to combine with this observation population
+     */
+    public ObservationPopulation merge(ObservationPopulation other) {
+        return new ObservationPopulation(count + other.count, aggregateMethod.merge(other.aggregateMethod));
+    }
+
+    /**
+     * Evaluates the observation population {@code expression} on {@code resource}.
+     *
+     * @return the value of the observation population or {@code null} if the expression evaluated into nothing
+     * @throws IllegalArgumentException if the expression evaluated into more than one entity or not into a string
+     */
+    public static String evaluateObservationPop(ResourceWithIncludes resource, IFhirPath.IParsedExpression expression) {
+        return evaluateObservationPop(resource, expression, Optional.empty());
+    }
+
+    /**
+     * Like {@link #evaluateObservationPop(ResourceWithIncludes, IFhirPath.IParsedExpression)} but evaluates
+     * {@code compiledExpression} instead of {@code expression} if it is present and can be evaluated on
+     * {@code resource}.
+     */
+    public static String evaluateObservationPop(ResourceWithIncludes resource, IFhirPath.IParsedExpression expression,
+                                                Optional<FhirPathCompiler.CompiledPath> compiledExpression) {
+        List<Base> found = compiledExpression
+                .map(path -> path.evaluate(resource.mainResource(), resource.includes()))
+                .orElseGet(() -> resource.evaluate(expression, Base.class));
 
         if (found.isEmpty())
-            return Optional.empty();
+            return null;
 
         if (found.size() > 1)
             throw new IllegalArgumentException("Measure observation population evaluated into more than one entity");
 
         if (found.get(0) instanceof StringType s)
-            return Optional.of(s.getValue());
+            return s.getValue();
 
         throw new IllegalArgumentException("Measure observation population evaluated into different type than 'String'");
     }
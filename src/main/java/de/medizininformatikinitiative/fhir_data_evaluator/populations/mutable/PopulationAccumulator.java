@@ -0,0 +1,84 @@
+package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
+
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.InitialAndMeasurePopulation;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.InitialPopulation;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.MeasurePopulation;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.Population;
+
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Accumulates the counts of a collection of populations while the resources of a group are reduced.
+ * <p>
+ * In contrast to the immutable {@link Population}s, this class is mutated for each resource with primitive counters,
+ * so that adding a resource doesn't create any garbage. The immutable populations are only created once all resources
+ * are added.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class PopulationAccumulator {
+
+    private final Supplier<AggregateUniqueCounter> newUniqueCounter;
+    private int initialCount;
+    private int measureCount;
+    private int observationCount;
+    private AggregateUniqueCounter aggregateMethod;
+
+    /**
+     * Creates an empty accumulator that counts the unique observation values exactly.
+     */
+    public PopulationAccumulator() {
+        this(AggregateUniqueCounter::of);
+    }
+
+    /**
+     * Creates an empty accumulator.
+     *
+     * @param newUniqueCounter creates the counter of the unique observation values
+     */
+    public PopulationAccumulator(Supplier<AggregateUniqueCounter> newUniqueCounter) {
+        this.newUniqueCounter = requireNonNull(newUniqueCounter);
+    }
+
+    /**
+     * Adds one resource to the populations.
+     *
+     * @param containsMeasurePop whether the resource is part of the measure population
+     * @param observationValue   the value of the resource to add to the observation population or {@code null} if the
+     *                           resource has no such value
+     */
+    public void add(boolean containsMeasurePop, String observationValue) {
+        initialCount++;
+        if (containsMeasurePop) {
+            measureCount++;
+        }
+        if (observationValue != null) {
+            observationCount++;
+            if (aggregateMethod == null) {
+                aggregateMethod = newUniqueCounter.get();
+            }
+            aggregateMethod.addValue(observationValue);
+        }
+    }
+
+    public InitialPopulation toInitialPopulation() {
+        return new InitialPopulation(initialCount);
+    }
+
+    public InitialAndMeasurePopulation toInitialAndMeasurePopulation() {
+        return new InitialAndMeasurePopulation(toInitialPopulation(), new MeasurePopulation(measureCount));
+    }
+
+    /**
+     * Creates the populations including the observation population.
+     * <p>
+     * The returned population shares the {@link AggregateUniqueCounter} with this accumulator, so this accumulator must
+     * not be used afterward.
+     */
+    public InitialAndMeasureAndObsPopulation toInitialAndMeasureAndObsPopulation() {
+        return new InitialAndMeasureAndObsPopulation(toInitialPopulation(), new MeasurePopulation(measureCount),
+                new ObservationPopulation(observationCount, aggregateMethod == null ? newUniqueCounter.get() : aggregateMethod));
+    }
+}
@@ -0,0 +1,39 @@
+package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns the unique values of an observation population, usually subject references, into dense {@code int} ids.
+ * <p>
+ * The first value gets the id {@code 0}, the next new value the id {@code 1} and so on. Equal values always get the
+ * same id, so counters that share a dictionary can count the ids instead of the values.
+ * <p>
+ * This class is thread-safe, so that all rails of a parallel reduce can share one dictionary.
+ */
+public final class ReferenceDictionary {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Returns the id of {@code value}, assigning a new id if the value wasn't seen before.
+     *
+     * @param value the value to get the id of
+     * @return the id of {@code value}
+     */
+    public int idOf(String value) {
+        var id = ids.get(value);
+        if (id == null) {
+            id = ids.computeIfAbsent(value, v -> nextId.getAndIncrement());
+        }
+        return id;
+    }
+
+    /**
+     * Returns the number of values in this dictionary.
+     */
+    public int size() {
+        return ids.size();
+    }
+}
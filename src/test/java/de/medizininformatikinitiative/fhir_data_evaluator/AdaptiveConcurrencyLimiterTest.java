@@ -0,0 +1,180 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.http.HttpMethod.GET;
+
+class AdaptiveConcurrencyLimiterTest {
+
+    static final ClientRequest REQUEST = ClientRequest.create(GET, URI.create("http://localhost/fhir/Observation")).build();
+
+    AtomicLong nanoTime;
+    List<ClientResponse> responses;
+
+    @BeforeEach
+    void setUp() {
+        nanoTime = new AtomicLong();
+        responses = new ArrayList<>();
+    }
+
+    /**
+     * Responds with {@code status} after {@code latency} and keeps the response, so that its body can be consumed.
+     */
+    private ExchangeFunction respond(HttpStatus status, Duration latency, String... headers) {
+        return request -> Mono.fromSupplier(() -> {
+            nanoTime.addAndGet(latency.toNanos());
+            var builder = ClientResponse.create(status).body("{}");
+            for (int i = 0; i < headers.length; i += 2) {
+                builder.header(headers[i], headers[i + 1]);
+            }
+            return builder.build();
+        });
+    }
+
+    private void exchange(AdaptiveConcurrencyLimiter limiter, ExchangeFunction next) {
+        exchange(limiter, REQUEST, next);
+    }
+
+    private void exchange(AdaptiveConcurrencyLimiter limiter, ClientRequest request, ExchangeFunction next) {
+        limiter.filter(request, next).subscribe(responses::add);
+    }
+
+    private void consume(int response) {
+        responses.get(response).releaseBody().block();
+    }
+
+    @Test
+    @DisplayName("queues requests above the limit until a response is consumed")
+    void queues() {
+        var limiter = new AdaptiveConcurrencyLimiter(1, 2, nanoTime::get);
+        var next = respond(HttpStatus.OK, Duration.ofMillis(10));
+
+        exchange(limiter, next);
+        exchange(limiter, next);
+        exchange(limiter, next);
+
+        assertThat(responses).hasSize(2);
+        assertThat(limiter.getInFlight()).isEqualTo(2);
+        assertThat(limiter.getQueueDepth()).isEqualTo(1);
+
+        consume(0);
+
+        assertThat(responses).hasSize(3);
+        assertThat(limiter.getInFlight()).isEqualTo(2);
+        assertThat(limiter.getQueueDepth()).isZero();
+    }
+
+    @Test
+    @DisplayName("halves the limit if the server is overloaded and increases it again while the latency is stable")
+    void overloaded() {
+        var limiter = new AdaptiveConcurrencyLimiter(1, 8, nanoTime::get);
+
+        exchange(limiter, respond(HttpStatus.SERVICE_UNAVAILABLE, Duration.ofMillis(10)));
+        consume(0);
+        exchange(limiter, respond(HttpStatus.TOO_MANY_REQUESTS, Duration.ofMillis(10)));
+        consume(1);
+
+        assertThat(limiter.getLimit()).isEqualTo(2);
+        assertThat(limiter.getRejections()).isEqualTo(2);
+
+        for (int i = 2; i < 20; i++) {
+            exchange(limiter, respond(HttpStatus.OK, Duration.ofMillis(10)));
+            consume(i);
+        }
+
+        assertThat(limiter.getLimit()).isGreaterThan(4);
+        assertThat(limiter.getInFlight()).isZero();
+    }
+
+    @Test
+    @DisplayName("reduces the limit if the latency rises")
+    void latency() {
+        var limiter = new AdaptiveConcurrencyLimiter(1, 10, nanoTime::get);
+
+        exchange(limiter, respond(HttpStatus.OK, Duration.ofMillis(10)));
+        consume(0);
+        exchange(limiter, respond(HttpStatus.OK, Duration.ofMillis(100)));
+        consume(1);
+
+        assertThat(limiter.getLimit()).isEqualTo(9);
+    }
+
+    @Test
+    @DisplayName("compares the latency of pages and probes with separate baselines")
+    void interleavedProbes() {
+        var limiter = new AdaptiveConcurrencyLimiter(1, 10, nanoTime::get);
+        var count = ClientRequest.create(GET, URI.create("http://localhost/fhir/Observation?_summary=count")).build();
+        var probe = ClientRequest.create(GET,
+                URI.create("http://localhost/fhir/Observation?_sort=_lastUpdated&_count=1")).build();
+        var page = ClientRequest.create(GET, URI.create("http://localhost/fhir/Observation?_count=1000")).build();
+
+        for (int i = 0; i < 30; i += 3) {
+            exchange(limiter, count, respond(HttpStatus.OK, Duration.ofMillis(5)));
+            consume(i);
+            exchange(limiter, probe, respond(HttpStatus.OK, Duration.ofMillis(10)));
+            consume(i + 1);
+            exchange(limiter, page, respond(HttpStatus.OK, Duration.ofMillis(400)));
+            consume(i + 2);
+        }
+
+        assertThat(limiter.getLimit()).isEqualTo(10);
+
+        exchange(limiter, page, respond(HttpStatus.OK, Duration.ofMillis(1000)));
+        consume(30);
+
+        assertThat(limiter.getLimit()).isEqualTo(9);
+    }
+
+    @Test
+    @DisplayName("classifies requests by _summary and _count")
+    void requestKind() {
+        assertThat(AdaptiveConcurrencyLimiter.RequestKind.of(URI.create("http://localhost/fhir/Observation?_summary=count")))
+                .isEqualTo(AdaptiveConcurrencyLimiter.RequestKind.SUMMARY);
+        assertThat(AdaptiveConcurrencyLimiter.RequestKind.of(URI.create("http://localhost/fhir/Observation?_count=1")))
+                .isEqualTo(AdaptiveConcurrencyLimiter.RequestKind.PROBE);
+        assertThat(AdaptiveConcurrencyLimiter.RequestKind.of(URI.create("http://localhost/fhir/Observation?_count=1000")))
+                .isEqualTo(AdaptiveConcurrencyLimiter.RequestKind.PAGE);
+        assertThat(AdaptiveConcurrencyLimiter.RequestKind.of(URI.create("http://localhost/fhir?_getpages=abc")))
+                .isEqualTo(AdaptiveConcurrencyLimiter.RequestKind.PAGE);
+    }
+
+    @Test
+    @DisplayName("doesn't start queued requests before Retry-After has passed")
+    void retryAfter() throws InterruptedException {
+        var limiter = new AdaptiveConcurrencyLimiter(1, 1, nanoTime::get);
+
+        exchange(limiter, respond(HttpStatus.TOO_MANY_REQUESTS, Duration.ofMillis(10), "Retry-After", "1"));
+        exchange(limiter, respond(HttpStatus.OK, Duration.ofMillis(10)));
+        consume(0);
+
+        assertThat(responses).hasSize(1);
+        assertThat(limiter.getQueueDepth()).isEqualTo(1);
+
+        Thread.sleep(1500);
+
+        assertThat(responses).hasSize(2);
+    }
+
+    @Test
+    @DisplayName("parses Retry-After as seconds and as date")
+    void parseRetryAfter() {
+        assertThat(AdaptiveConcurrencyLimiter.retryAfter(List.of(" 120 "))).contains(Duration.ofSeconds(120));
+        assertThat(AdaptiveConcurrencyLimiter.retryAfter(List.of("Wed, 21 Oct 2015 07:28:00 GMT"))).isEmpty();
+        assertThat(AdaptiveConcurrencyLimiter.retryAfter(List.of("soon"))).isEmpty();
+        assertThat(AdaptiveConcurrencyLimiter.retryAfter(List.of())).isEmpty();
+    }
+}
@@ -0,0 +1,355 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.hl7.fhir.r4.model.Condition;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class BulkExportResourceSourceTest {
+
+    static final WorkerPool WORKER_POOL = new WorkerPool("test-worker", 4);
+
+    @AfterAll
+    static void closeWorkerPool() {
+        WORKER_POOL.close();
+    }
+
+    static final String PROFILE = "https://www.medizininformatik-initiative.de/fhir/core/modul-diagnose/StructureDefinition/Diagnose";
+    static final RetrySettings RETRY = new RetrySettings(2, Duration.ofMillis(1), Duration.ofMillis(10), 0);
+
+    @Mock
+    ResourceSource fallback;
+
+    MockWebServer server;
+    FhirContext context;
+    BulkExportResourceSource source;
+    Map<String, MockResponse> responses;
+    Map<String, Deque<MockResponse>> queuedResponses;
+    List<RecordedRequest> requests;
+    AtomicInteger kickOffs;
+    AtomicInteger polls;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        context = FhirContext.forR4();
+        responses = new ConcurrentHashMap<>();
+        queuedResponses = new ConcurrentHashMap<>();
+        requests = new CopyOnWriteArrayList<>();
+        kickOffs = new AtomicInteger();
+        polls = new AtomicInteger();
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                requests.add(request);
+                var path = request.getPath();
+                if ("DELETE".equals(request.getMethod())) {
+                    return new MockResponse().setResponseCode(202);
+                }
+                var queued = queuedResponses.getOrDefault(path, new ArrayDeque<>()).poll();
+                if (queued != null) {
+                    return queued;
+                }
+                if (path.startsWith("/fhir/$export")) {
+                    kickOffs.incrementAndGet();
+                } else if (path.startsWith("/status")) {
+                    // the first poll reports the export to be in progress
+                    if (polls.getAndIncrement() == 0) {
+                        return new MockResponse().setResponseCode(202).setHeader("Retry-After", "0");
+                    }
+                }
+                return responses.getOrDefault(path, new MockResponse().setResponseCode(500));
+            }
+        });
+        server.start();
+
+        source = source(BulkExportSettings.of(Duration.ofSeconds(10), 2).withRetry(RETRY));
+    }
+
+    private BulkExportResourceSource source(BulkExportSettings settings) {
+        var serverUrl = "http://localhost:%d/fhir".formatted(server.getPort());
+        var client = WebClient.builder().baseUrl(serverUrl).defaultHeader("Authorization", "Bearer secret").build();
+        return new BulkExportResourceSource(client, WebClient.create(), URI.create(serverUrl), fallback, context,
+                context.newFhirPath(), settings, WORKER_POOL);
+    }
+
+    private void queue(String path, MockResponse... responses) {
+        queuedResponses.computeIfAbsent(path, p -> new ConcurrentLinkedDeque<>()).addAll(List.of(responses));
+    }
+
+    private List<RecordedRequest> requests(String method, String pathPrefix) {
+        return requests.stream()
+                .filter(r -> method.equals(r.getMethod()) && r.getPath().startsWith(pathPrefix))
+                .toList();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private String url(String path) {
+        return "http://localhost:%d%s".formatted(server.getPort(), path);
+    }
+
+    private String ndjson(int from, int to, String profile) {
+        var parser = context.newJsonParser();
+        return IntStream.range(from, to).mapToObj(i -> {
+            var condition = new Condition();
+            condition.setId("c" + i);
+            condition.getMeta().addProfile(profile);
+            return parser.encodeResourceToString(condition);
+        }).collect(Collectors.joining("\n", "", "\n"));
+    }
+
+    private void stubExport() {
+        stubExport(false, url("/output/1.ndjson"));
+    }
+
+    private void stubExport(boolean requiresAccessToken, String firstOutputUrl) {
+        responses.put("/fhir/$export?_type=Condition", new MockResponse().setResponseCode(202)
+                .setHeader("Content-Location", url("/status/1")));
+        responses.put("/status/1", new MockResponse().setResponseCode(200).setBody("""
+                {"transactionTime": "2024-01-01T00:00:00Z", "request": "%s", "requiresAccessToken": %s,
+                 "output": [{"type": "Condition", "url": "%s"}, {"type": "Condition", "url": "%s"}], "error": []}
+                """.formatted(url("/fhir/$export?_type=Condition"), requiresAccessToken, firstOutputUrl,
+                url("/output/2.ndjson"))));
+        responses.put("/output/1.ndjson", new MockResponse().setBody(ndjson(0, 600, PROFILE)));
+        responses.put("/output/2.ndjson", new MockResponse().setBody(ndjson(600, 700, "http://other-profile")));
+    }
+
+    @Test
+    @DisplayName("exports, polls and downloads all output files")
+    void exportsResources() {
+        stubExport();
+
+        var result = source.getResources("/Condition").collectList().block();
+
+        assertThat(result).hasSize(700);
+        assertThat(result.stream().map(r -> r.mainResource().getIdPart()).distinct()).hasSize(700);
+        assertThat(polls.get()).isEqualTo(2);
+        verifyNoInteractions(fallback);
+    }
+
+    @Test
+    @DisplayName("applies the search parameters locally and reuses the export for the same type")
+    void reusesExport() {
+        stubExport();
+
+        StepVerifier.create(source.getResources("/Condition?_profile=" + PROFILE)).expectNextCount(600).verifyComplete();
+        StepVerifier.create(source.getResources("/Condition?_profile=http://other-profile")).expectNextCount(100).verifyComplete();
+
+        assertThat(kickOffs.get()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("falls back to search if the server doesn't support $export")
+    void fallsBackIfUnsupported() {
+        responses.put("/fhir/$export?_type=Condition", new MockResponse().setResponseCode(404));
+        var condition = new ResourceWithIncludes(new Condition(), Map.of(), context.newFhirPath());
+        when(fallback.getResources("/Condition")).thenReturn(Flux.just(condition));
+
+        StepVerifier.create(source.getResources("/Condition")).expectNext(condition).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("falls back to search for includes and unsupported search parameters")
+    void fallsBackForUnsupportedQueries() {
+        when(fallback.getResources("/Observation?_versionId=125")).thenReturn(Flux.empty());
+        when(fallback.getResources("/MedicationStatement?_include=MedicationStatement:medication")).thenReturn(Flux.empty());
+
+        StepVerifier.create(source.getResources("/Observation?_versionId=125")).verifyComplete();
+        StepVerifier.create(source.getResources("/MedicationStatement?_include=MedicationStatement:medication")).verifyComplete();
+
+        verify(fallback).getResources("/Observation?_versionId=125");
+        assertThat(kickOffs.get()).isZero();
+    }
+
+    @Test
+    @DisplayName("falls back to search if the manifest of the export reports errors")
+    void fallsBackOnManifestErrors() {
+        stubExport();
+        responses.put("/status/1", new MockResponse().setResponseCode(200).setBody("""
+                {"transactionTime": "2024-01-01T00:00:00Z", "request": "%s", "requiresAccessToken": false,
+                 "output": [{"type": "Condition", "url": "%s"}],
+                 "error": [{"type": "OperationOutcome", "url": "%s"}]}
+                """.formatted(url("/fhir/$export?_type=Condition"), url("/output/1.ndjson"),
+                url("/error/1.ndjson"))));
+        var condition = new ResourceWithIncludes(new Condition(), Map.of(), context.newFhirPath());
+        when(fallback.getResources("/Condition")).thenReturn(Flux.just(condition));
+        when(fallback.getResources("/Condition?_profile=" + PROFILE)).thenReturn(Flux.just(condition));
+
+        StepVerifier.create(source.getResources("/Condition")).expectNext(condition).verifyComplete();
+        StepVerifier.create(source.getResources("/Condition?_profile=" + PROFILE)).expectNext(condition)
+                .verifyComplete();
+
+        assertThat(kickOffs.get()).isEqualTo(1);
+        assertThat(requests("GET", "/output")).isEmpty();
+        assertThat(requests("DELETE", "/status/1")).hasSize(1);
+    }
+
+    @Test
+    @DisplayName("starts a new export after an export failed")
+    void doesNotCacheFailedExport() {
+        stubExport();
+        queue("/status/1", new MockResponse().setResponseCode(410));
+
+        StepVerifier.create(source.getResources("/Condition")).verifyError();
+        StepVerifier.create(source.getResources("/Condition")).expectNextCount(700).verifyComplete();
+
+        assertThat(kickOffs.get()).isEqualTo(2);
+        assertThat(requests("DELETE", "/status/1")).hasSize(1);
+    }
+
+    @Test
+    @DisplayName("retries transient errors of the kick-off, the polls and the downloads")
+    void retriesTransientErrors() {
+        stubExport();
+        queue("/fhir/$export?_type=Condition", new MockResponse().setResponseCode(503));
+        queue("/status/1", new MockResponse().setResponseCode(202).setHeader("Retry-After", "0"),
+                new MockResponse().setResponseCode(500));
+        queue("/output/1.ndjson", new MockResponse().setBody(ndjson(0, 600, PROFILE))
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+
+        var result = source.getResources("/Condition").collectList().block();
+
+        assertThat(result).hasSize(700);
+        assertThat(result.stream().map(r -> r.mainResource().getIdPart()).distinct()).hasSize(700);
+        assertThat(requests("GET", "/output/1.ndjson")).hasSize(2);
+    }
+
+    @Test
+    @DisplayName("deletes an export that doesn't complete within the timeout")
+    void timeout() {
+        source = source(BulkExportSettings.of(Duration.ofMillis(10), 2).withRetry(RETRY)
+                .withTimeout(Duration.ofMillis(200)));
+        stubExport();
+        responses.put("/status/1", new MockResponse().setResponseCode(202));
+
+        StepVerifier.create(source.getResources("/Condition"))
+                .expectErrorSatisfies(e -> assertThat(e).isInstanceOf(TimeoutException.class))
+                .verify();
+
+        assertThat(requests("DELETE", "/status/1")).hasSize(1);
+    }
+
+    @Test
+    @DisplayName("deletes the completed exports when closed")
+    void close() {
+        stubExport();
+        source.getResources("/Condition").blockLast();
+
+        assertThat(requests("DELETE", "/status/1")).isEmpty();
+
+        source.close();
+
+        assertThat(requests("DELETE", "/status/1")).hasSize(1);
+    }
+
+    @Test
+    @DisplayName("downloads the output files without credentials unless an access token is required")
+    void downloadsWithoutCredentials() {
+        stubExport(false, url("/output/1.ndjson"));
+
+        source.getResources("/Condition").blockLast();
+
+        assertThat(requests("GET", "/output/")).hasSize(2)
+                .allSatisfy(r -> assertThat(r.getHeader("Authorization")).isNull());
+        assertThat(requests("GET", "/status/1")).allSatisfy(r -> assertThat(r.getHeader("Authorization"))
+                .isEqualTo("Bearer secret"));
+    }
+
+    @Test
+    @DisplayName("downloads the output files of the source server with credentials if an access token is required")
+    void downloadsWithCredentials() {
+        stubExport(true, url("/output/1.ndjson"));
+
+        source.getResources("/Condition").blockLast();
+
+        assertThat(requests("GET", "/output/")).hasSize(2)
+                .allSatisfy(r -> assertThat(r.getHeader("Authorization")).isEqualTo("Bearer secret"));
+    }
+
+    @Test
+    @DisplayName("never sends the credentials to another host")
+    void downloadsFromOtherHostWithoutCredentials() throws IOException {
+        try (var storage = new MockWebServer()) {
+            storage.enqueue(new MockResponse().setBody(ndjson(0, 600, PROFILE)));
+            storage.start();
+            stubExport(true, "http://127.0.0.1:%d/output/1.ndjson".formatted(storage.getPort()));
+
+            var result = source.getResources("/Condition").collectList().block();
+
+            assertThat(result).hasSize(700);
+            assertThat(storage.takeRequest().getHeader("Authorization")).isNull();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    @DisplayName("compares the origin of urls")
+    void sameOrigin() {
+        assertThat(BulkExportResourceSource.sameOrigin(URI.create("http://localhost/output/1"),
+                URI.create("http://LOCALHOST:80/fhir"))).isTrue();
+        assertThat(BulkExportResourceSource.sameOrigin(URI.create("https://localhost/output/1"),
+                URI.create("http://localhost/fhir"))).isFalse();
+        assertThat(BulkExportResourceSource.sameOrigin(URI.create("http://storage/output/1"),
+                URI.create("http://localhost/fhir"))).isFalse();
+        assertThat(BulkExportResourceSource.sameOrigin(URI.create("http://localhost:8081/output/1"),
+                URI.create("http://localhost:8080/fhir"))).isFalse();
+    }
+
+    @Test
+    @DisplayName("splits lines across buffers and skips blank lines")
+    void lineSplitter() {
+        var splitter = new BulkExportResourceSource.LineSplitter(URI.create("http://localhost/output"));
+        var umlaut = "ä".getBytes(StandardCharsets.UTF_8);
+
+        var first = splitter.feed(new byte[]{'a', umlaut[0]});
+        var second = splitter.feed(new byte[]{umlaut[1], '\n', '\n', 'b'});
+        var last = splitter.finish();
+
+        assertThat(first).isEmpty();
+        assertThat(second).extracting(BulkExportResourceSource.Line::content).containsExactly("aä");
+        assertThat(last).extracting(BulkExportResourceSource.Line::content, BulkExportResourceSource.Line::number)
+                .containsExactly(tuple("b", 3));
+    }
+}
@@ -1,8 +1,16 @@
 package de.medizininformatikinitiative.fhir_data_evaluator;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Observation;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -17,11 +25,27 @@ import org.springframework.web.reactive.function.client.WebClientResponseExcepti
 import reactor.test.StepVerifier;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 class DataStoreTest {
 
+    static final WorkerPool WORKER_POOL = new WorkerPool("test-worker", 4);
+
+    @AfterAll
+    static void closeWorkerPool() {
+        WORKER_POOL.close();
+    }
+
     @Nested
     class TestGet {
         private static MockWebServer mockStore;
@@ -46,12 +70,12 @@ class DataStoreTest {
                     .defaultHeader("Accept", "application/fhir+json")
                     .build();
             FhirContext context = FhirContext.forR4();
-            dataStore = new DataStore(client, 1000, context, context.newFhirPath());
+            dataStore = new DataStore(client, 1000, context, context.newFhirPath(), WORKER_POOL);
         }
 
         @ParameterizedTest
         @DisplayName("retries the request")
-        @ValueSource(ints = {404, 500, 503, 504})
+        @ValueSource(ints = {404, 429, 500, 503, 504})
         void execute_retry(int statusCode) {
             mockStore.enqueue(new MockResponse().setResponseCode(statusCode));
             mockStore.enqueue(new MockResponse().setResponseCode(200)
@@ -85,6 +109,178 @@ class DataStoreTest {
             StepVerifier.create(result).expectError(WebClientResponseException.BadRequest.class).verify();
         }
 
+        @Test
+        @DisplayName("retries only the failed page")
+        void retriesOnlyFailedPage() {
+            mockStore.enqueue(new MockResponse().setBody(("{\"resourceType\":\"Bundle\", \"link\": [{\"relation\": \"next\", " +
+                    "\"url\": \"%s\"}], \"entry\": [{\"resource\": {\"resourceType\":\"Observation\"}, \"search\": {\"mode\": \"match\"}}]}")
+                    .formatted(mockStore.url("/fhir/page-2"))));
+            mockStore.enqueue(new MockResponse().setResponseCode(500));
+            mockStore.enqueue(new MockResponse().setBody("{\"resourceType\":\"Bundle\", \"entry\": [{\"resource\": " +
+                    "{\"resourceType\":\"Observation\"}, \"search\": {\"mode\": \"match\"}}]}"));
+
+            var result = dataStore.getResources("/Observation");
+
+            StepVerifier.create(result).expectNextCount(2).verifyComplete();
+            assertThat(takeRequestPath()).isEqualTo("/fhir/Observation?_count=1000");
+            assertThat(takeRequestPath()).isEqualTo("/fhir/page-2");
+            assertThat(takeRequestPath()).isEqualTo("/fhir/page-2");
+        }
+
+        @Test
+        @DisplayName("downloads the next page before the current page is consumed")
+        void prefetchesNextPage() {
+            mockStore.enqueue(new MockResponse().setBody(("{\"resourceType\":\"Bundle\", \"link\": [{\"relation\": \"next\", " +
+                    "\"url\": \"%s\"}], \"entry\": [{\"resource\": {\"resourceType\":\"Observation\"}, \"search\": {\"mode\": \"match\"}}]}")
+                    .formatted(mockStore.url("/fhir/page-2"))));
+            mockStore.enqueue(new MockResponse().setBody("{\"resourceType\":\"Bundle\", \"entry\": [{\"resource\": " +
+                    "{\"resourceType\":\"Observation\"}, \"search\": {\"mode\": \"match\"}}]}"));
+
+            var firstRequestPaths = new ArrayList<String>();
+            var result = dataStore.getResources("/Observation")
+                    .index()
+                    .doOnNext(r -> {
+                        // blocks the evaluation of the first page until the second page is requested
+                        if (r.getT1() == 0) {
+                            firstRequestPaths.add(takeRequestPath());
+                            firstRequestPaths.add(takeRequestPath());
+                        }
+                    });
+
+            StepVerifier.create(result).expectNextCount(2).verifyComplete();
+            assertThat(firstRequestPaths).containsExactly("/fhir/Observation?_count=1000", "/fhir/page-2");
+        }
+
+        @Test
+        @DisplayName("adapts the page count of the next link to the received page")
+        void adaptsPageCount() throws InterruptedException {
+            WebClient client = WebClient.builder()
+                    .baseUrl("http://localhost:%d/fhir".formatted(mockStore.getPort()))
+                    .defaultHeader("Accept", "application/fhir+json")
+                    .build();
+            FhirContext context = FhirContext.forR4();
+            dataStore = new DataStore(client, DataStoreSettings.ofPageCount(1).withPrefetchPages(0)
+                    .withAdaptivePageCount(new AdaptivePageCountSettings(1, 10, 1_000_000)), context, context.newFhirPath(),
+                    WORKER_POOL);
+            mockStore.enqueue(new MockResponse().setBody(("{\"resourceType\":\"Bundle\", \"link\": [{\"relation\": \"next\", " +
+                    "\"url\": \"%s\"}], \"entry\": [{\"resource\": {\"resourceType\":\"Observation\"}, \"search\": {\"mode\": \"match\"}}]}")
+                    .formatted(mockStore.url("/fhir/Observation?_count=1&__page-offset=1"))));
+            mockStore.enqueue(new MockResponse().setBody("{\"resourceType\":\"Bundle\", \"entry\": [{\"resource\": " +
+                    "{\"resourceType\":\"Observation\"}, \"search\": {\"mode\": \"match\"}}]}"));
+
+            StepVerifier.create(dataStore.getResources("/Observation")).expectNextCount(2).verifyComplete();
+
+            assertThat(takeRequestPath()).isEqualTo("/fhir/Observation?_count=1");
+            assertThat(takeRequestPath()).isEqualTo("/fhir/Observation?_count=2&__page-offset=1");
+        }
+
+        private DataStore dataStore(DataStoreSettings settings) {
+            WebClient client = WebClient.builder()
+                    .baseUrl("http://localhost:%d/fhir".formatted(mockStore.getPort()))
+                    .defaultHeader("Accept", "application/fhir+json")
+                    .build();
+            FhirContext context = FhirContext.forR4();
+            return new DataStore(client, settings, context, context.newFhirPath(), WORKER_POOL);
+        }
+
+        @ParameterizedTest
+        @DisplayName("emits the pages of a query with the url of the next page and continues with that url")
+        @ValueSource(booleans = {false, true})
+        void pages(boolean parallelParsing) {
+            var dataStore = dataStore(DataStoreSettings.ofPageCount(1000).withPrefetchPages(0)
+                    .withParallelParsing(parallelParsing));
+            var nextUrl = mockStore.url("/fhir/page-2").toString();
+            mockStore.enqueue(new MockResponse().setBody(("{\"resourceType\":\"Bundle\", \"link\": [{\"relation\": \"next\", " +
+                    "\"url\": \"%s\"}], \"entry\": [{\"resource\": {\"resourceType\":\"Observation\", \"id\": \"1\"}, " +
+                    "\"search\": {\"mode\": \"match\"}}]}").formatted(nextUrl)));
+            mockStore.enqueue(new MockResponse().setBody("{\"resourceType\":\"Bundle\", \"entry\": [{\"resource\": " +
+                    "{\"resourceType\":\"Observation\", \"id\": \"2\"}, \"search\": {\"mode\": \"match\"}}]}"));
+            mockStore.enqueue(new MockResponse().setBody("{\"resourceType\":\"Bundle\", \"entry\": [{\"resource\": " +
+                    "{\"resourceType\":\"Observation\", \"id\": \"2\"}, \"search\": {\"mode\": \"match\"}}]}"));
+
+            var pages = dataStore.getPages("/Observation", Optional.empty()).collectList().block();
+            var resumed = dataStore.getPages("/Observation", Optional.of(nextUrl)).collectList().block();
+
+            assertThat(pages).extracting(ResourceSource.Page::nextUrl)
+                    .containsExactly(Optional.of(nextUrl), Optional.empty());
+            assertThat(pages).extracting(page -> page.resources().get(0).mainResource().getIdPart())
+                    .containsExactly("1", "2");
+            assertThat(resumed).singleElement().satisfies(page -> {
+                assertThat(page.resources()).extracting(r -> r.mainResource().getIdPart()).containsExactly("2");
+                assertThat(page.nextUrl()).isEmpty();
+            });
+            assertThat(takeRequestPath()).isEqualTo("/fhir/Observation?_count=1000");
+            assertThat(takeRequestPath()).isEqualTo("/fhir/page-2");
+            assertThat(takeRequestPath()).isEqualTo("/fhir/page-2");
+        }
+
+        @Test
+        @DisplayName("supports pages only without prefetch, partitions, streaming and includes")
+        void supportsPages() {
+            var settings = DataStoreSettings.ofPageCount(1000).withPrefetchPages(0);
+
+            assertThat(dataStore(settings).supportsPages("/Observation")).isTrue();
+            assertThat(dataStore(settings).supportsPages("/MedicationStatement?_include=MedicationStatement:medication"))
+                    .isFalse();
+            assertThat(dataStore(settings.withPrefetchPages(1)).supportsPages("/Observation")).isFalse();
+            assertThat(dataStore(settings.withPartitions(2)).supportsPages("/Observation")).isFalse();
+            assertThat(dataStore(settings.withStreamingParsing(true)).supportsPages("/Observation")).isFalse();
+        }
+
+        @Test
+        @DisplayName("estimates the size of a query by its total")
+        void estimateSize() {
+            mockStore.enqueue(new MockResponse().setBody("{\"resourceType\":\"Bundle\", \"total\": 4711}"));
+
+            StepVerifier.create(dataStore.estimateSize("/Observation?code=x")).expectNext(4711L).verifyComplete();
+
+            assertThat(takeRequestPath()).isEqualTo("/fhir/Observation?code=x&_summary=count");
+        }
+
+        @ParameterizedTest
+        @DisplayName("doesn't estimate the size of a query without a total")
+        @ValueSource(strings = {"{\"resourceType\":\"Bundle\"}", "not json"})
+        void estimateSize_withoutTotal(String body) {
+            mockStore.enqueue(new MockResponse().setBody(body));
+
+            StepVerifier.create(dataStore.estimateSize("/Observation")).verifyComplete();
+            takeRequestPath();
+        }
+
+        @Test
+        @DisplayName("doesn't estimate the size of a query if the server fails")
+        void estimateSize_error() {
+            mockStore.enqueue(new MockResponse().setResponseCode(500));
+
+            StepVerifier.create(dataStore.estimateSize("/Observation")).verifyComplete();
+            takeRequestPath();
+        }
+
+        private String takeRequestPath() {
+            try {
+                var request = mockStore.takeRequest(5, TimeUnit.SECONDS);
+                return request == null ? null : request.getPath();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Test
+        @DisplayName("finds the link to the next page without parsing the entries")
+        void findNextLink() {
+            var bundle = "{\"resourceType\":\"Bundle\", \"entry\": [{\"resource\": {\"resourceType\":\"Observation\"}}], " +
+                    "\"link\": [{\"relation\": \"self\", \"url\": \"url-1\"}, {\"relation\": \"next\", \"url\": \"url-2\"}]}";
+
+            assertThat(DataStore.findNextLink(bundle)).contains("url-2");
+        }
+
+        @Test
+        @DisplayName("finds no link to the next page on the last page or malformed pages")
+        void findNoNextLink() {
+            assertThat(DataStore.findNextLink("{\"resourceType\":\"Bundle\", \"link\": [{\"relation\": \"self\", \"url\": \"url-1\"}]}")).isEmpty();
+            assertThat(DataStore.findNextLink("{\"resourceType\":\"Bundle\", \"link\": [")).isEmpty();
+        }
+
         @Nested
         class TestParsingErrors {
 
@@ -206,6 +402,570 @@ class DataStoreTest {
         }
     }
 
+    @Nested
+    class TestStreamingGet {
+        private static MockWebServer mockStore;
+
+        private DataStore dataStore;
+
+        @BeforeEach
+        void setUp() throws IOException {
+            mockStore = new MockWebServer();
+            mockStore.start();
+        }
+
+        @AfterEach
+        void tearDown() throws IOException {
+            mockStore.shutdown();
+        }
+
+        @BeforeEach
+        void initialize() {
+            WebClient client = WebClient.builder()
+                    .baseUrl("http://localhost:%d/fhir".formatted(mockStore.getPort()))
+                    .defaultHeader("Accept", "application/fhir+json")
+                    .build();
+            FhirContext context = FhirContext.forR4();
+            dataStore = new DataStore(client, DataStoreSettings.ofPageCount(1000).withStreamingParsing(true), context,
+                    context.newFhirPath(), WORKER_POOL);
+        }
+
+        private String page(String nextUrl, String... entries) {
+            var link = nextUrl == null ? "" : "\"link\": [{\"relation\": \"self\", \"url\": \"self-url\"}, " +
+                    "{\"relation\": \"next\", \"url\": \"%s\"}], ".formatted(nextUrl);
+            return "{\"resourceType\": \"Bundle\", \"type\": \"searchset\", " + link +
+                    "\"entry\": [" + String.join(", ", entries) + "]}";
+        }
+
+        private String entry(String resource, String mode) {
+            return "{\"fullUrl\": \"some-url\", \"resource\": %s, \"search\": {\"mode\": \"%s\"}}".formatted(resource, mode);
+        }
+
+        @Test
+        @DisplayName("emits the match resources of all pages")
+        void multiplePages() {
+            mockStore.enqueue(new MockResponse().setBody(page(mockStore.url("/fhir/page-2").toString(),
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-1\"}", "match"),
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-2\", \"valueQuantity\": {\"value\": 1.50}}", "match"))));
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-3\"}", "match"))));
+
+            var result = dataStore.getResources("/Observation");
+
+            StepVerifier.create(result.map(r -> r.mainResource().getIdPart()))
+                    .expectNext("obs-1", "obs-2", "obs-3")
+                    .verifyComplete();
+        }
+
+        @Test
+        @DisplayName("parses and emits the resources on the worker threads")
+        void emitsOnWorkerThreads() {
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-1\"}", "match"))));
+
+            var result = dataStore.getResources("/Observation");
+
+            StepVerifier.create(result.map(r -> Thread.currentThread().getName()))
+                    .assertNext(thread -> assertThat(thread).startsWith("test-worker"))
+                    .verifyComplete();
+        }
+
+        @Test
+        @DisplayName("keeps the exact value of decimals")
+        void exactDecimals() {
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-1\", \"valueQuantity\": {\"value\": 1.50}}", "match"))));
+
+            var result = dataStore.getResources("/Observation");
+
+            StepVerifier.create(result.map(r -> ((Observation) r.mainResource()).getValueQuantity().getValueElement().getValueAsString()))
+                    .expectNext("1.50")
+                    .verifyComplete();
+        }
+
+        @Test
+        @DisplayName("resolves references to include resources of the same page")
+        void includes() {
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    entry("{\"resourceType\": \"MedicationAdministration\", \"id\": \"ma-1\", " +
+                            "\"medicationReference\": {\"reference\": \"Medication/med-1\"}}", "match"),
+                    entry("{\"resourceType\": \"Medication\", \"id\": \"med-1\"}", "include"))));
+
+            var result = dataStore.getResources("/MedicationAdministration?_include=MedicationAdministration:medication");
+
+            StepVerifier.create(result).assertNext(r -> {
+                assertThat(r.mainResource().getIdPart()).isEqualTo("ma-1");
+                assertThat(r.includes()).containsOnlyKeys("Medication/med-1");
+                assertThat(r.fhirPathEngine().evaluate(r.mainResource(), "MedicationAdministration.medication.resolve().id", Base.class))
+                        .hasSize(1);
+            }).verifyComplete();
+        }
+
+        @ParameterizedTest
+        @DisplayName("retries the request")
+        @ValueSource(ints = {404, 500, 503, 504})
+        void execute_retry(int statusCode) {
+            mockStore.enqueue(new MockResponse().setResponseCode(statusCode));
+            mockStore.enqueue(new MockResponse().setResponseCode(200).setBody(page(null,
+                    entry("{\"resourceType\": \"Observation\"}", "match"))));
+
+            var result = dataStore.getResources("/Observation");
+
+            StepVerifier.create(result).expectNextCount(1).verifyComplete();
+        }
+
+        @Test
+        @DisplayName("retries only the failed page")
+        void retriesOnlyFailedPage() throws InterruptedException {
+            mockStore.enqueue(new MockResponse().setBody(page(mockStore.url("/fhir/page-2").toString(),
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-1\"}", "match"))));
+            mockStore.enqueue(new MockResponse().setResponseCode(500));
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-2\"}", "match"))));
+
+            var result = dataStore.getResources("/Observation");
+
+            StepVerifier.create(result.map(r -> r.mainResource().getIdPart()))
+                    .expectNext("obs-1", "obs-2")
+                    .verifyComplete();
+            assertThat(mockStore.takeRequest().getPath()).isEqualTo("/fhir/Observation?_count=1000");
+            assertThat(mockStore.takeRequest().getPath()).isEqualTo("/fhir/page-2");
+            assertThat(mockStore.takeRequest().getPath()).isEqualTo("/fhir/page-2");
+        }
+
+        @Test
+        @DisplayName("fails with the ID of the malformed resource")
+        void invalidResource() {
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    entry("{\"resourceType\": \"Encounter\", \"id\": \"enc-1\", \"location\": [{\"status\": \"planned\"}]}", "match"),
+                    entry("{\"resourceType\": \"Encounter\", \"id\": \"enc-2\", \"location\": [{\"status\": \"asdf\"}]}", "match"))));
+
+            var result = dataStore.getResources("some-query");
+
+            StepVerifier.create(result).expectErrorSatisfies(e -> assertThat(e)
+                            .isInstanceOf(BundleParsingException.class)
+                            .hasMessage("Failed parsing resource Encounter/enc-2"))
+                    .verify();
+        }
+
+        @Test
+        @DisplayName("fails if the response is not a Bundle")
+        void notABundle() {
+            mockStore.enqueue(new MockResponse().setBody("{\"resourceType\": \"OperationOutcome\"}"));
+
+            var result = dataStore.getResources("some-query");
+
+            StepVerifier.create(result).expectError(DataFormatException.class).verify();
+        }
+
+        @Test
+        @DisplayName("fails if the response ends early")
+        void truncatedPage() {
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-1\"}", "match")).substring(0, 120)));
+
+            var result = dataStore.getResources("some-query");
+
+            StepVerifier.create(result).expectError(DataFormatException.class).verify();
+        }
+    }
+
+    @Nested
+    class TestParallelGet {
+        private static MockWebServer mockStore;
+
+        private DataStore dataStore;
+
+        @BeforeEach
+        void setUp() throws IOException {
+            mockStore = new MockWebServer();
+            mockStore.start();
+        }
+
+        @AfterEach
+        void tearDown() throws IOException {
+            mockStore.shutdown();
+        }
+
+        @BeforeEach
+        void initialize() {
+            WebClient client = WebClient.builder()
+                    .baseUrl("http://localhost:%d/fhir".formatted(mockStore.getPort()))
+                    .defaultHeader("Accept", "application/fhir+json")
+                    .build();
+            FhirContext context = FhirContext.forR4();
+            dataStore = new DataStore(client, DataStoreSettings.ofPageCount(1000).withParallelParsing(true), context,
+                    context.newFhirPath(), WORKER_POOL);
+        }
+
+        private String page(String nextUrl, List<String> entries) {
+            var link = nextUrl == null ? "" : "\"link\": [{\"relation\": \"next\", \"url\": \"%s\"}], ".formatted(nextUrl);
+            return "{\"resourceType\": \"Bundle\", \"type\": \"searchset\", " + link +
+                    "\"entry\": [" + String.join(", ", entries) + "]}";
+        }
+
+        private String entry(String resource, String mode) {
+            return "{\"fullUrl\": \"some-url\", \"resource\": %s, \"search\": {\"mode\": \"%s\"}}".formatted(resource, mode);
+        }
+
+        private List<String> observations(int from, int to) {
+            return IntStream.range(from, to)
+                    .mapToObj(i -> entry("{\"resourceType\": \"Observation\", \"id\": \"obs-%d\", \"valueQuantity\": {\"value\": 1.50}}"
+                            .formatted(i), "match"))
+                    .toList();
+        }
+
+        @Test
+        @DisplayName("emits the match resources of all pages in the order of the pages")
+        void multiplePages() {
+            mockStore.enqueue(new MockResponse().setBody(page(mockStore.url("/fhir/page-2").toString(), observations(0, 150))));
+            mockStore.enqueue(new MockResponse().setBody(page(null, observations(150, 200))));
+
+            var result = dataStore.getResources("/Observation");
+
+            StepVerifier.create(result.map(r -> r.mainResource().getIdPart()).collectList())
+                    .assertNext(ids -> assertThat(ids).containsExactlyElementsOf(IntStream.range(0, 200)
+                            .mapToObj(i -> "obs-" + i).toList()))
+                    .verifyComplete();
+        }
+
+        @Test
+        @DisplayName("keeps the exact value of decimals")
+        void exactDecimals() {
+            mockStore.enqueue(new MockResponse().setBody(page(null, observations(0, 1))));
+
+            var result = dataStore.getResources("/Observation");
+
+            StepVerifier.create(result.map(r -> ((Observation) r.mainResource()).getValueQuantity().getValueElement().getValueAsString()))
+                    .expectNext("1.50")
+                    .verifyComplete();
+        }
+
+        @Test
+        @DisplayName("sets the ids of the resources like a parsed bundle")
+        void idsLikeBundle() {
+            var bundle = page(null, List.of(
+                    "{\"fullUrl\": \"http://server/fhir/Observation/obs-1\", \"resource\": {\"resourceType\": \"Observation\", " +
+                            "\"id\": \"obs-1\", \"meta\": {\"versionId\": \"2\"}}, \"search\": {\"mode\": \"match\"}}",
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-2\"}", "match")));
+            var expected = FhirContext.forR4().newJsonParser().parseResource(Bundle.class, bundle)
+                    .getEntry().stream().map(e -> e.getResource().getId()).toList();
+            mockStore.enqueue(new MockResponse().setBody(bundle));
+
+            var result = dataStore.getResources("/Observation");
+
+            StepVerifier.create(result.map(r -> r.mainResource().getId()).collectList())
+                    .assertNext(ids -> assertThat(ids).isEqualTo(expected)
+                            .containsExactly("http://server/fhir/Observation/obs-1/_history/2", "Observation/obs-2"))
+                    .verifyComplete();
+        }
+
+        @Test
+        @DisplayName("resolves references to include resources that follow the matches")
+        void includes() {
+            var entries = new ArrayList<String>();
+            IntStream.range(0, 100).forEach(i -> entries.add(entry(("{\"resourceType\": \"MedicationAdministration\", " +
+                    "\"id\": \"ma-%d\", \"medicationReference\": {\"reference\": \"Medication/med-%d\"}}").formatted(i, i % 2), "match")));
+            entries.add(entry("{\"resourceType\": \"Medication\", \"id\": \"med-0\"}", "include"));
+            entries.add(entry("{\"resourceType\": \"Medication\", \"id\": \"med-1\"}", "include"));
+            mockStore.enqueue(new MockResponse().setBody(page(null, entries)));
+
+            var result = dataStore.getResources("/MedicationAdministration?_include=MedicationAdministration:medication");
+
+            StepVerifier.create(result.collectList()).assertNext(resources -> {
+                assertThat(resources).hasSize(100);
+                assertThat(resources).allSatisfy(r -> {
+                    assertThat(r.includes()).containsOnlyKeys("Medication/med-0", "Medication/med-1");
+                    assertThat(r.fhirPathEngine().evaluate(r.mainResource(), "MedicationAdministration.medication.resolve().id", Base.class))
+                            .hasSize(1);
+                });
+            }).verifyComplete();
+        }
+
+        @Test
+        @DisplayName("fails with the ID of the malformed resource")
+        void invalidResource() {
+            var entries = new ArrayList<>(observations(0, 50));
+            entries.add(entry("{\"resourceType\": \"Encounter\", \"id\": \"enc-2\", \"location\": [{\"status\": \"asdf\"}]}", "match"));
+            mockStore.enqueue(new MockResponse().setBody(page(null, entries)));
+
+            var result = dataStore.getResources("some-query");
+
+            StepVerifier.create(result).expectErrorSatisfies(e -> assertThat(e)
+                            .isInstanceOf(BundleParsingException.class)
+                            .hasMessage("Failed parsing resource Encounter/enc-2"))
+                    .verify();
+        }
+
+        @Test
+        @DisplayName("fails if the response is not a Bundle")
+        void notABundle() {
+            mockStore.enqueue(new MockResponse().setBody("{\"resourceType\": \"OperationOutcome\"}"));
+
+            var result = dataStore.getResources("some-query");
+
+            StepVerifier.create(result).expectError(DataFormatException.class).verify();
+        }
+
+        @Test
+        @DisplayName("fails if the response ends early")
+        void truncatedPage() {
+            mockStore.enqueue(new MockResponse().setBody(page(null, observations(0, 1)).substring(0, 120)));
+
+            var result = dataStore.getResources("some-query");
+
+            StepVerifier.create(result).expectError(DataFormatException.class).verify();
+        }
+    }
+
+    @Nested
+    class TestIncludeCache {
+        static final String QUERY = "/MedicationAdministration?_include=MedicationAdministration:medication";
+        static final String RESOLVE_PATH = "MedicationAdministration.medication.resolve().ofType(Medication).code.coding.code";
+
+        private static MockWebServer mockStore;
+
+        private FhirContext context;
+        private SharedFhirPathEngine fhirPathEngine;
+
+        @BeforeEach
+        void setUp() throws IOException {
+            mockStore = new MockWebServer();
+            mockStore.start();
+            context = FhirContext.forR4();
+            fhirPathEngine = new SharedFhirPathEngine(context);
+        }
+
+        @AfterEach
+        void tearDown() throws IOException {
+            mockStore.shutdown();
+        }
+
+        private DataStore dataStore(boolean parallelParsing) {
+            WebClient client = WebClient.builder()
+                    .baseUrl("http://localhost:%d/fhir".formatted(mockStore.getPort()))
+                    .defaultHeader("Accept", "application/fhir+json")
+                    .build();
+            return new DataStore(client, DataStoreSettings.ofPageCount(1000)
+                    .withParallelParsing(parallelParsing)
+                    .withIncludeCacheSize(1024 * 1024), context, fhirPathEngine, WORKER_POOL);
+        }
+
+        private String page(String nextUrl, String... entries) {
+            var link = nextUrl == null ? "" : "\"link\": [{\"relation\": \"next\", \"url\": \"%s\"}], ".formatted(nextUrl);
+            return "{\"resourceType\": \"Bundle\", \"type\": \"searchset\", " + link +
+                    "\"entry\": [" + String.join(", ", entries) + "]}";
+        }
+
+        private String entry(String resource, String mode) {
+            return "{\"fullUrl\": \"some-url\", \"resource\": %s, \"search\": {\"mode\": \"%s\"}}".formatted(resource, mode);
+        }
+
+        private String medicationAdministration(String id) {
+            return entry(("{\"resourceType\": \"MedicationAdministration\", \"id\": \"%s\", " +
+                    "\"medicationReference\": {\"reference\": \"Medication/med-1\"}}").formatted(id), "match");
+        }
+
+        private String medication(String versionId, String code) {
+            return entry(("{\"resourceType\": \"Medication\", \"id\": \"med-1\", \"meta\": {\"versionId\": \"%s\"}, " +
+                    "\"code\": {\"coding\": [{\"system\": \"system\", \"code\": \"%s\"}]}}").formatted(versionId, code), "include");
+        }
+
+        private List<String> resolvedCodes(ResourceWithIncludes resource) {
+            return resource.evaluate(fhirPathEngine.parse(RESOLVE_PATH), CodeType.class).stream()
+                    .map(CodeType::getValue).toList();
+        }
+
+        @ParameterizedTest
+        @DisplayName("holds the same include resource of all pages only once")
+        @ValueSource(booleans = {false, true})
+        void interns(boolean parallelParsing) {
+            mockStore.enqueue(new MockResponse().setBody(page(mockStore.url("/fhir/page-2").toString(),
+                    medicationAdministration("ma-1"), medication("1", "code-1"))));
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    medicationAdministration("ma-2"), medication("1", "code-1"))));
+
+            var result = dataStore(parallelParsing).getResources(QUERY);
+
+            StepVerifier.create(result.collectList()).assertNext(resources -> {
+                assertThat(resources).hasSize(2);
+                assertThat(resources.get(1).includes().get("Medication/med-1"))
+                        .isSameAs(resources.get(0).includes().get("Medication/med-1"));
+                assertThat(resources).allSatisfy(r -> assertThat(resolvedCodes(r)).containsExactly("code-1"));
+            }).verifyComplete();
+        }
+
+        @ParameterizedTest
+        @DisplayName("resolves references to include resources of an earlier page")
+        @ValueSource(booleans = {false, true})
+        void earlierPage(boolean parallelParsing) {
+            mockStore.enqueue(new MockResponse().setBody(page(mockStore.url("/fhir/page-2").toString(),
+                    medicationAdministration("ma-1"), medication("1", "code-1"))));
+            mockStore.enqueue(new MockResponse().setBody(page(null, medicationAdministration("ma-2"))));
+
+            var result = dataStore(parallelParsing).getResources(QUERY);
+
+            StepVerifier.create(result.collectList()).assertNext(resources -> {
+                assertThat(resources).hasSize(2);
+                assertThat(resolvedCodes(resources.get(1))).containsExactly("code-1");
+            }).verifyComplete();
+        }
+
+        @ParameterizedTest
+        @DisplayName("doesn't resolve references to include resources of another query")
+        @ValueSource(booleans = {false, true})
+        void otherQuery(boolean parallelParsing) {
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    medicationAdministration("ma-1"), medication("1", "code-1"))));
+            mockStore.enqueue(new MockResponse().setBody(page(null, medicationAdministration("ma-2"))));
+            var dataStore = dataStore(parallelParsing);
+
+            var first = dataStore.getResources(QUERY).collectList().block();
+            var second = dataStore.getResources(QUERY).collectList().block();
+
+            assertThat(first).singleElement().satisfies(r -> assertThat(resolvedCodes(r)).containsExactly("code-1"));
+            assertThat(second).singleElement().satisfies(r -> assertThat(resolvedCodes(r)).isEmpty());
+        }
+
+        @ParameterizedTest
+        @DisplayName("replaces an include resource with its new version")
+        @ValueSource(booleans = {false, true})
+        void newVersion(boolean parallelParsing) {
+            mockStore.enqueue(new MockResponse().setBody(page(mockStore.url("/fhir/page-2").toString(),
+                    medicationAdministration("ma-1"), medication("1", "code-1"))));
+            mockStore.enqueue(new MockResponse().setBody(page(mockStore.url("/fhir/page-3").toString(),
+                    medicationAdministration("ma-2"), medication("2", "code-2"))));
+            mockStore.enqueue(new MockResponse().setBody(page(null, medicationAdministration("ma-3"))));
+
+            var result = dataStore(parallelParsing).getResources(QUERY);
+
+            StepVerifier.create(result.collectList()).assertNext(resources -> {
+                assertThat(resources).hasSize(3);
+                assertThat(resolvedCodes(resources.get(0))).containsExactly("code-1");
+                assertThat(resolvedCodes(resources.get(1))).containsExactly("code-2");
+                assertThat(resolvedCodes(resources.get(2))).containsExactly("code-2");
+            }).verifyComplete();
+        }
+
+        @ParameterizedTest
+        @DisplayName("doesn't serve the projected include resources of one query to a query with another projection")
+        @ValueSource(booleans = {false, true})
+        void differentProjections(boolean parallelParsing) {
+            var projected = entry("{\"resourceType\": \"Medication\", \"id\": \"med-1\", \"meta\": {\"versionId\": \"1\", " +
+                    "\"tag\": [{\"system\": \"%s\", \"code\": \"%s\"}]}}".formatted(IncludeCache.SUBSETTED_SYSTEM,
+                    IncludeCache.SUBSETTED_CODE), "include");
+            mockStore.enqueue(new MockResponse().setBody(page(null, medicationAdministration("ma-1"), projected)));
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    medicationAdministration("ma-2"), medication("1", "code-1"))));
+            var dataStore = dataStore(parallelParsing);
+
+            var projectedResult = dataStore.getResources(QUERY + "&_elements=id").collectList().block();
+            var completeResult = dataStore.getResources(QUERY).collectList().block();
+
+            assertThat(projectedResult).singleElement().satisfies(r -> assertThat(resolvedCodes(r)).isEmpty());
+            assertThat(completeResult).singleElement()
+                    .satisfies(r -> assertThat(resolvedCodes(r)).containsExactly("code-1"));
+        }
+
+        @Test
+        @DisplayName("doesn't cache resources of queries without includes")
+        void withoutIncludes() {
+            mockStore.enqueue(new MockResponse().setBody(page(null,
+                    entry("{\"resourceType\": \"Observation\", \"id\": \"obs-1\"}", "match"))));
+
+            var result = dataStore(true).getResources("/Observation");
+
+            StepVerifier.create(result).assertNext(r -> assertThat(r.includes()).isEmpty()).verifyComplete();
+        }
+    }
+
+    @Nested
+    class TestPartitionedGet {
+        static final Instant FIRST_UPDATE = Instant.parse("2024-01-01T00:00:00Z");
+        static final int RESOURCES = 20;
+
+        private MockWebServer mockStore;
+        private List<String> queries;
+        private boolean wrongTotal;
+
+        private DataStore dataStore;
+
+        @BeforeEach
+        void setUp() throws IOException {
+            queries = Collections.synchronizedList(new ArrayList<>());
+            mockStore = new MockWebServer();
+            mockStore.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    queries.add(request.getPath());
+                    return respond(request.getRequestUrl());
+                }
+            });
+            mockStore.start();
+
+            WebClient client = WebClient.builder()
+                    .baseUrl("http://localhost:%d/fhir".formatted(mockStore.getPort()))
+                    .defaultHeader("Accept", "application/fhir+json")
+                    .build();
+            FhirContext context = FhirContext.forR4();
+            dataStore = new DataStore(client, DataStoreSettings.ofPageCount(2).withPartitions(4), context,
+                    context.newFhirPath(), WORKER_POOL);
+        }
+
+        @AfterEach
+        void tearDown() throws IOException {
+            mockStore.shutdown();
+        }
+
+        /**
+         * Answers the search with the observations that were updated once per hour, most of them in the last hours.
+         */
+        private MockResponse respond(HttpUrl url) {
+            var matches = IntStream.range(0, RESOURCES)
+                    .mapToObj(i -> FIRST_UPDATE.plus(Duration.ofHours(i < 5 ? i * 100 : 500 + i)))
+                    .filter(lastUpdated -> url.queryParameterValues("_lastUpdated").stream().allMatch(p ->
+                            p.startsWith("ge") ? !lastUpdated.isBefore(Instant.parse(p.substring(2)))
+                                    : lastUpdated.isBefore(Instant.parse(p.substring(2)))))
+                    .toList();
+            if ("count".equals(url.queryParameter("_summary"))) {
+                var total = wrongTotal && url.queryParameter("_lastUpdated") != null ? 0 : matches.size();
+                return new MockResponse().setBody("{\"resourceType\": \"Bundle\", \"total\": %d}".formatted(total));
+            }
+            var sort = url.queryParameter("_sort");
+            var entries = (sort == null ? matches : List.of(sort.startsWith("-") ? matches.get(matches.size() - 1)
+                    : matches.get(0))).stream()
+                    .map(lastUpdated -> ("{\"resource\": {\"resourceType\": \"Observation\", \"id\": \"%s\", " +
+                            "\"meta\": {\"lastUpdated\": \"%s\"}}, \"search\": {\"mode\": \"match\"}}")
+                            .formatted(lastUpdated.toEpochMilli(), lastUpdated))
+                    .collect(Collectors.joining(", "));
+            return new MockResponse().setBody("{\"resourceType\": \"Bundle\", \"entry\": [%s]}".formatted(entries));
+        }
+
+        private List<String> partitionQueries() {
+            return queries.stream().filter(q -> q.contains("_count=2") && !q.contains("_sort")).toList();
+        }
+
+        @Test
+        @DisplayName("pages through disjoint lastUpdated ranges that return every resource once")
+        void splitsQuery() {
+            var result = dataStore.getResources("/Observation").collectList().block();
+
+            assertThat(result).extracting(r -> r.mainResource().getIdPart()).doesNotHaveDuplicates().hasSize(RESOURCES);
+            assertThat(partitionQueries()).hasSize(4).allMatch(q -> q.contains("_lastUpdated="));
+        }
+
+        @Test
+        @DisplayName("doesn't split the query if the counts of the ranges don't add up to the total")
+        void wrongTotal() {
+            wrongTotal = true;
+
+            var result = dataStore.getResources("/Observation").collectList().block();
+
+            assertThat(result).hasSize(RESOURCES);
+            assertThat(partitionQueries()).containsExactly("/fhir/Observation?_count=2");
+        }
+    }
+
     @Nested
     class TestPost {
         private static MockWebServer mockStore;
@@ -230,7 +990,7 @@ class DataStoreTest {
                     .defaultHeader("Accept", "application/fhir+json")
                     .build();
             FhirContext context = FhirContext.forR4();
-            dataStore = new DataStore(client, 1000, context, context.newFhirPath());
+            dataStore = new DataStore(client, 1000, context, context.newFhirPath(), WORKER_POOL);
         }
 
         @Test
@@ -0,0 +1,72 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ElementsAnalyzerTest {
+
+    static ElementsAnalyzer analyzer;
+
+    @BeforeAll
+    static void setUp() {
+        analyzer = new ElementsAnalyzer(FhirContext.forR4());
+    }
+
+    @Test
+    @DisplayName("finds the top-level elements of paths with and without type prefix")
+    void paths() {
+        var elements = analyzer.requiredElements(List.of("Condition.code.coding", "clinicalStatus.coding.code"));
+
+        assertThat(elements).hasValueSatisfying(e -> assertThat(e).containsExactly("clinicalStatus", "code"));
+    }
+
+    @Test
+    @DisplayName("finds the elements used in where() and exists()")
+    void filters() {
+        var elements = analyzer.requiredElements(List.of(
+                "Observation.value.where(%resource.status = 'final' and code.exists()).code",
+                "Observation.component.where(code.coding.exists(system = 'http://loinc.org')).value"));
+
+        assertThat(elements).hasValueSatisfying(e -> assertThat(e).containsExactly("component", "status", "value"));
+    }
+
+    @Test
+    @DisplayName("adds the elements of resolved resources")
+    void resolve() {
+        var elements = analyzer.requiredElements(List.of(
+                "MedicationStatement.medication.resolve().ofType(Medication).code.coding"));
+
+        assertThat(elements).hasValueSatisfying(e -> assertThat(e).containsExactly("code", "medication"));
+    }
+
+    @Test
+    @DisplayName("finds extensions on the resource")
+    void extension() {
+        var elements = analyzer.requiredElements(List.of(
+                "Patient.extension('http://example.com/ethnicity').value"));
+
+        assertThat(elements).hasValueSatisfying(e -> assertThat(e).containsExactly("extension"));
+    }
+
+    @Test
+    @DisplayName("returns no elements for an empty list of expressions")
+    void noExpressions() {
+        assertThat(analyzer.requiredElements(List.of())).hasValueSatisfying(e -> assertThat(e).isEmpty());
+    }
+
+    @ParameterizedTest
+    @DisplayName("can't analyse expressions that may navigate to any element")
+    @ValueSource(strings = {"Condition.descendants().code", "Condition.children()", "Condition.select(code)",
+            "Condition.code.resolve().descendants()", "Condition.code.coding(", "Condition.resolve().code"})
+    void unanalysable(String expression) {
+        assertThat(analyzer.requiredElements(List.of("Condition.code", expression))).isEmpty();
+    }
+}
@@ -0,0 +1,232 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EvaluationCheckpointTest {
+
+    static final String MEASURE = "{\"resourceType\":\"Measure\"}";
+    static final String SOURCE = "http://localhost:8080/fhir";
+    static final Duration MAX_AGE = Duration.ofHours(24);
+
+    static FhirContext context;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void setUp() {
+        context = FhirContext.forR4();
+    }
+
+    static MeasureReport.MeasureReportGroupComponent reportGroup(String code, int count) {
+        var group = new MeasureReport.MeasureReportGroupComponent();
+        group.addPopulation().setCount(count).setCode(new CodeableConcept(new Coding().setCode("initial-population")));
+        group.addStratifier().addStratum().setValue(new CodeableConcept().setText(code)).addPopulation().setCount(count);
+        return group;
+    }
+
+    @Test
+    void withoutFile_resumesNothing() {
+        var checkpoint = EvaluationCheckpoint.open(dir.resolve("checkpoint.ndjson"), MEASURE, SOURCE, MAX_AGE, context);
+
+        assertThat(checkpoint.resumedGroups()).isEmpty();
+    }
+
+    @Test
+    void resumesFinishedGroups() {
+        var file = dir.resolve("checkpoint.ndjson");
+        var checkpoint = EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context);
+        checkpoint.groupFinished(2, reportGroup("b", 5));
+        checkpoint.groupFinished(0, reportGroup("a", 3));
+
+        var resumed = EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).resumedGroups();
+
+        assertThat(resumed).containsOnlyKeys(0, 2);
+        assertThat(resumed.get(0).equalsDeep(reportGroup("a", 3))).isTrue();
+        assertThat(resumed.get(2).equalsDeep(reportGroup("b", 5))).isTrue();
+        assertThat(dir.resolve("checkpoint.ndjson.tmp")).doesNotExist();
+    }
+
+    @Test
+    void resumesLatestPartialGroups() {
+        var file = dir.resolve("checkpoint.ndjson");
+        var checkpoint = EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context);
+        checkpoint.groupProgressed(0, new EvaluationCheckpoint.PartialGroup("http://page-2", reportGroup("a", 1)));
+        checkpoint.groupProgressed(0, new EvaluationCheckpoint.PartialGroup("http://page-3", reportGroup("a", 2)));
+        checkpoint.groupProgressed(1, new EvaluationCheckpoint.PartialGroup("http://page-2", reportGroup("b", 1)));
+        checkpoint.groupFinished(1, reportGroup("b", 5));
+
+        var resumed = EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context);
+
+        assertThat(resumed.resumedGroups()).containsOnlyKeys(1);
+        assertThat(resumed.partialGroups()).containsOnlyKeys(0);
+        assertThat(resumed.partialGroups().get(0).nextUrl()).isEqualTo("http://page-3");
+        assertThat(resumed.partialGroups().get(0).reportGroup().equalsDeep(reportGroup("a", 2))).isTrue();
+    }
+
+    static MeasureReport.MeasureReportGroupComponent codedReportGroup(int initialCount, String... strata) {
+        var group = new MeasureReport.MeasureReportGroupComponent();
+        group.addPopulation().setCount(initialCount).setCode(HashableCoding.INITIAL_POPULATION_CODING.toCodeableConcept());
+        var stratifier = group.addStratifier();
+        for (int i = 0; i < strata.length; i += 2) {
+            stratifier.addStratum().setValue(new CodeableConcept(new Coding("http://system", strata[i], null)))
+                    .addPopulation().setCount(Integer.parseInt(strata[i + 1]))
+                    .setCode(HashableCoding.INITIAL_POPULATION_CODING.toCodeableConcept());
+        }
+        return group;
+    }
+
+    @Test
+    void mergesPartialGroupByAddingCounts() {
+        var partial = new EvaluationCheckpoint.PartialGroup("http://page-2", codedReportGroup(3, "a", "2", "b", "1"));
+
+        var merged = partial.mergeWith(codedReportGroup(4, "b", "3", "c", "1"));
+
+        assertThat(merged.equalsDeep(codedReportGroup(7, "a", "2", "b", "4", "c", "1"))).isTrue();
+        assertThat(partial.reportGroup().equalsDeep(codedReportGroup(3, "a", "2", "b", "1"))).isTrue();
+    }
+
+    @Test
+    void keepsResumedGroups() {
+        var file = dir.resolve("checkpoint.ndjson");
+        EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).groupFinished(0, reportGroup("a", 3));
+
+        EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).groupFinished(1, reportGroup("b", 5));
+
+        assertThat(EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).resumedGroups()).containsOnlyKeys(0, 1);
+    }
+
+    @Test
+    void ignoresCheckpointOfOtherMeasure() {
+        var file = dir.resolve("checkpoint.ndjson");
+        EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).groupFinished(0, reportGroup("a", 3));
+
+        var checkpoint = EvaluationCheckpoint.open(file, "{\"resourceType\":\"Measure\",\"name\":\"other\"}", SOURCE, MAX_AGE, context);
+        checkpoint.groupFinished(1, reportGroup("b", 5));
+
+        assertThat(checkpoint.resumedGroups()).isEmpty();
+        assertThat(EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).resumedGroups()).isEmpty();
+    }
+
+    @Test
+    void ignoresCheckpointOfOtherSource() {
+        var file = dir.resolve("checkpoint.ndjson");
+        EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).groupFinished(0, reportGroup("a", 3));
+
+        var checkpoint = EvaluationCheckpoint.open(file, MEASURE, "http://other:8080/fhir", MAX_AGE, context);
+
+        assertThat(checkpoint.resumedGroups()).isEmpty();
+    }
+
+    static String header(Instant createdAt) {
+        return "{\"version\":%d,\"measureHash\":\"%s\",\"sourceServer\":\"%s\",\"createdAt\":\"%s\"}\n"
+                .formatted(EvaluationCheckpoint.VERSION, EvaluationCheckpoint.hash(MEASURE), SOURCE, createdAt);
+    }
+
+    @Test
+    void ignoresStaleCheckpoint() throws IOException {
+        var file = dir.resolve("checkpoint.ndjson");
+        Files.writeString(file, header(Instant.now().minus(MAX_AGE).minusSeconds(60)) + "{\"index\":0,\"group\":{}}\n");
+
+        assertThat(EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).resumedGroups()).isEmpty();
+        assertThat(EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE.multipliedBy(2), context).resumedGroups())
+                .containsOnlyKeys(0);
+    }
+
+    @Test
+    void resumesEvaluationDuration() throws IOException {
+        var file = dir.resolve("checkpoint.ndjson");
+        Files.writeString(file, header(Instant.now()) + "{\"index\":0,\"evaluationMillis\":1500,\"group\":{}}\n");
+
+        var checkpoint = EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context);
+        checkpoint.groupFinished(1, reportGroup("b", 5));
+
+        assertThat(checkpoint.resumedDuration()).isEqualTo(Duration.ofMillis(1500));
+        assertThat(EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).resumedDuration())
+                .isGreaterThanOrEqualTo(Duration.ofMillis(1500));
+    }
+
+    @Test
+    void appendsOneLinePerGroup() throws IOException {
+        var file = dir.resolve("checkpoint.ndjson");
+        var checkpoint = EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context);
+
+        checkpoint.groupFinished(0, reportGroup("a", 3));
+        checkpoint.groupFinished(1, reportGroup("b", 5));
+
+        assertThat(Files.readAllLines(file)).hasSize(3);
+    }
+
+    @Test
+    void skipsIncompleteLastLine() throws IOException {
+        var file = dir.resolve("checkpoint.ndjson");
+        EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).groupFinished(0, reportGroup("a", 3));
+        Files.writeString(file, "{\"index\":1,\"group\":{\"popul", StandardOpenOption.APPEND);
+
+        assertThat(EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).resumedGroups())
+                .containsOnlyKeys(0);
+    }
+
+    @Test
+    void overwritesIgnoredCheckpoint() throws IOException {
+        var file = dir.resolve("checkpoint.ndjson");
+        Files.writeString(file, header(Instant.now().minus(MAX_AGE).minusSeconds(60)) + "{\"index\":0,\"group\":{}}\n");
+
+        EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).groupFinished(1, reportGroup("b", 5));
+
+        assertThat(EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).resumedGroups())
+                .containsOnlyKeys(1);
+    }
+
+    @Test
+    void ignoresCheckpointOfOtherVersion() throws IOException {
+        var file = dir.resolve("checkpoint.ndjson");
+        Files.writeString(file, "{\"version\":%d,\"measureHash\":\"%s\",\"groups\":[{\"index\":0,\"group\":{}}]}"
+                .formatted(EvaluationCheckpoint.VERSION + 1, EvaluationCheckpoint.hash(MEASURE)));
+
+        assertThat(EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).resumedGroups()).isEmpty();
+    }
+
+    @Test
+    void ignoresUnreadableCheckpoint() throws IOException {
+        var file = dir.resolve("checkpoint.ndjson");
+        Files.writeString(file, "{\"version\":1,\"measureHash\":");
+
+        assertThat(EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context).resumedGroups()).isEmpty();
+    }
+
+    @Test
+    void delete() {
+        var file = dir.resolve("checkpoint.ndjson");
+        var checkpoint = EvaluationCheckpoint.open(file, MEASURE, SOURCE, MAX_AGE, context);
+        checkpoint.groupFinished(0, reportGroup("a", 3));
+
+        checkpoint.delete();
+
+        assertThat(file).doesNotExist();
+    }
+
+    @Test
+    void writeFailure_doesNotFail() {
+        var checkpoint = EvaluationCheckpoint.open(dir.resolve("missing").resolve("checkpoint.ndjson"), MEASURE, SOURCE, MAX_AGE, context);
+
+        checkpoint.groupFinished(0, reportGroup("a", 3));
+
+        assertThat(dir.resolve("missing")).doesNotExist();
+    }
+}
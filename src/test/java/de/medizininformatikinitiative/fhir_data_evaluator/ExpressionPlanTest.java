@@ -0,0 +1,197 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.medizininformatikinitiative.fhir_data_evaluator.FhirPathCompiler.CompiledPath;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ExpressionPlanTest {
+
+    static FhirPathCompiler compiler;
+
+    @BeforeAll
+    static void setUp() {
+        compiler = new FhirPathCompiler(FhirContext.forR4());
+    }
+
+    static List<CompiledPath> compileAll(List<String> expressions) {
+        return expressions.stream().map(expression -> compiler.compile(expression).orElseThrow()).toList();
+    }
+
+    /**
+     * A step that counts how often it is applied.
+     */
+    record CountingStep(String name, AtomicInteger count) implements FhirPathCompiler.Step {
+
+        @Override
+        public boolean apply(Base item, List<Base> result) {
+            count.incrementAndGet();
+            result.addAll(item.getNamedProperty(name).getValues());
+            return true;
+        }
+    }
+
+    @Test
+    @DisplayName("returns the same items as the paths on their own")
+    void sameItems() {
+        var expressions = FhirPathCompilerTest.expressions();
+        var paths = compileAll(expressions);
+        var planned = ExpressionPlan.plan(paths);
+        assertThat(planned).hasSameSizeAs(paths);
+
+        // separate instances, because the planned paths keep the results of the last resource
+        var resources = FhirPathCompilerTest.resources();
+        var unplannedResources = FhirPathCompilerTest.resources();
+        for (var i = 0; i < resources.size(); i++) {
+            for (var j = 0; j < paths.size(); j++) {
+                var actual = planned.get(j).evaluate(resources.get(i));
+                var expected = paths.get(j).evaluate(unplannedResources.get(i));
+
+                if (expected == null) {
+                    assertThat(actual).as(expressions.get(j)).isNull();
+                } else {
+                    assertThat(actual)
+                            .as(expressions.get(j))
+                            .usingElementComparator((a, b) -> a.getClass() == b.getClass() && a.equalsDeep(b) ? 0 : 1)
+                            .containsExactlyElementsOf(expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("applies a shared step only once per resource")
+    void sharedStep() {
+        var count = new AtomicInteger();
+        var code = new CountingStep("code", count);
+        var coding = new CountingStep("coding", new AtomicInteger());
+        var text = new CountingStep("text", new AtomicInteger());
+        var planned = ExpressionPlan.plan(List.of(
+                new FhirPathCompiler.Path("Condition", List.of(code, coding), false),
+                new FhirPathCompiler.Path("Condition", List.of(code, text), false),
+                new FhirPathCompiler.Path("Condition", List.of(code), true)));
+        var condition = GroupEvaluatorTest.getCondition();
+
+        planned.forEach(path -> path.evaluate(condition));
+        planned.forEach(path -> path.evaluate(condition));
+
+        assertThat(count).hasValue(1);
+        assertThat(planned.get(0).evaluate(condition)).hasSize(1);
+        assertThat(planned.get(1).evaluate(condition)).isEmpty();
+        assertThat(planned.get(2).evaluate(condition)).singleElement()
+                .satisfies(exists -> assertThat(exists.primitiveValue()).isEqualTo("true"));
+    }
+
+    @Test
+    @DisplayName("evaluates again for the next resource")
+    void nextResource() {
+        var planned = ExpressionPlan.plan(compileAll(List.of("Condition.subject.reference", "Condition.subject")));
+
+        assertThat(planned.get(0).evaluate(new Condition().setSubject(new Reference("Patient/a"))))
+                .singleElement().satisfies(reference -> assertThat(reference.primitiveValue()).isEqualTo("Patient/a"));
+        assertThat(planned.get(0).evaluate(new Condition().setSubject(new Reference("Patient/b"))))
+                .singleElement().satisfies(reference -> assertThat(reference.primitiveValue()).isEqualTo("Patient/b"));
+    }
+
+    @Test
+    @DisplayName("shares the result of equal paths")
+    void equalPaths() {
+        var planned = ExpressionPlan.plan(compileAll(List.of("Condition.code.coding", "Condition.code.coding")));
+        var condition = GroupEvaluatorTest.getCondition();
+
+        assertThat(planned.get(0).evaluate(condition)).isSameAs(planned.get(1).evaluate(condition));
+    }
+
+    @Test
+    @DisplayName("defers only the paths below a step that has to be evaluated by the FHIRPath engine")
+    void defers() {
+        var planned = ExpressionPlan.plan(compileAll(List.of("Observation.value.where(value='1.50').unit",
+                "Observation.value")));
+        var observation = new Observation().setValue(new Quantity().setValue(new BigDecimal("1.5")));
+
+        assertThat(planned.get(0).evaluate(observation)).isNull();
+        assertThat(planned.get(1).evaluate(observation)).hasSize(1);
+    }
+
+    @Test
+    @DisplayName("evaluates the paths of each resource type only on resources of that type")
+    void resourceTypes() {
+        var planned = ExpressionPlan.plan(compileAll(List.of("Patient.gender", "Condition.subject.reference")));
+
+        assertThat(planned.get(0).evaluate(new Condition().setSubject(new Reference("Patient/a")))).isEmpty();
+        assertThat(planned.get(1).evaluate(new Patient())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("doesn't plan a single path or paths that resolve references")
+    void notPlanned() {
+        var single = compileAll(List.of("Patient.gender"));
+        var resolve = new FhirPathCompiler(FhirContext.forR4(), 10)
+                .compile("MedicationStatement.medication.resolve().code.coding").orElseThrow();
+        var withResolve = List.of(single.get(0), resolve);
+
+        assertThat(ExpressionPlan.plan(single)).isSameAs(single);
+        assertThat(ExpressionPlan.plan(withResolve)).isSameAs(withResolve);
+    }
+
+    @Test
+    @DisplayName("drops the results kept on all threads when released")
+    void release() throws Exception {
+        var planned = ExpressionPlan.plan(compileAll(List.of("Condition.subject.reference", "Condition.subject")));
+        var condition = new Condition().setSubject(new Reference("Patient/1"));
+        planned.get(0).evaluate(condition);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> planned.get(1).evaluate(condition)).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(ExpressionPlan.holdsResults(planned)).isTrue();
+
+        ExpressionPlan.release(planned);
+
+        assertThat(ExpressionPlan.holdsResults(planned)).isFalse();
+        assertThat(planned.get(0).evaluate(condition).get(0).primitiveValue()).isEqualTo("Patient/1");
+    }
+
+    @Test
+    @DisplayName("keeps the results of each thread apart")
+    void threads() throws Exception {
+        var planned = ExpressionPlan.plan(compileAll(List.of("Condition.subject.reference", "Condition.subject")));
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var tasks = IntStream.range(0, 8).<Callable<Boolean>>mapToObj(thread -> () -> {
+                for (var i = 0; i < 1000; i++) {
+                    var reference = "Patient/" + thread + "-" + i;
+                    var condition = new Condition().setSubject(new Reference(reference));
+                    if (!reference.equals(planned.get(0).evaluate(condition).get(0).primitiveValue())) {
+                        return false;
+                    }
+                }
+                return true;
+            }).toList();
+
+            for (var result : executor.invokeAll(tasks)) {
+                assertThat(result.get()).isTrue();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
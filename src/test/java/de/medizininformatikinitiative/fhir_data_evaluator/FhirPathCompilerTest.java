@@ -0,0 +1,376 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FhirPathCompilerTest {
+
+    static FhirContext context;
+    static IFhirPath fhirPathEngine;
+    static FhirPathCompiler compiler;
+
+    @BeforeAll
+    static void setUp() {
+        context = FhirContext.forR4();
+        fhirPathEngine = context.newFhirPath();
+        compiler = new FhirPathCompiler(context);
+    }
+
+    @ParameterizedTest
+    @DisplayName("compiles the common stratifier shapes")
+    @ValueSource(strings = {
+            "Patient.gender",
+            "Patient.birthDate.exists()",
+            "Condition.subject.reference",
+            "Condition.code.coding.where(system='http://snomed.info/sct')",
+            "Condition.code.coding.where(system = 'http://snomed.info/sct').code",
+            "Condition.code.coding.first()",
+            "Observation.value.coding",
+            "Observation.value.code.exists()",
+            "Specimen.collection.bodySite.coding.where(system='http://terminology.hl7.org/CodeSystem/icd-o-3')"})
+    void compiles(String expression) {
+        assertThat(compiler.compile(expression)).isPresent();
+    }
+
+    @ParameterizedTest
+    @DisplayName("doesn't compile other expressions")
+    @ValueSource(strings = {
+            "gender",
+            "Resource.id",
+            "Patient.id",
+            "Patient.id.value",
+            "Patient.gender | Patient.birthDate",
+            "Patient.birthDate.exists().not()",
+            "Patient.name.exists(use = 'official')",
+            "Condition.code.coding.where(system = 'a' and code = 'b')",
+            "Condition.code.coding.where(system.exists())",
+            "Condition.code.coding.where(%resource.id = 'a')",
+            "Observation.value.ofType(CodeableConcept).coding",
+            "MedicationAdministration.medication.resolve().ofType(Medication).code.coding",
+            "Patient.extension('http://example.com/ethnicity').value",
+            "Patient.name.given.first() = 'a'",
+            "Patient.gender.",
+    })
+    void doesNotCompile(String expression) {
+        assertThat(compiler.compile(expression)).isEmpty();
+    }
+
+    static List<String> expressions() {
+        return List.of(
+                "Patient.gender",
+                "Patient.birthDate",
+                "Patient.birthDate.exists()",
+                "Patient.name.given.first()",
+                "Condition.subject.reference",
+                "Condition.clinicalStatus.coding",
+                "Condition.code.coding",
+                "Condition.code.coding.first()",
+                "Condition.code.coding.where(system='http://snomed.info/sct')",
+                "Condition.code.coding.where(system='http://snomed.info/sct').code",
+                "Condition.code.coding.where(system='http://fhir.de/CodeSystem/bfarm/icd-10-gm')",
+                "Condition.code.coding.where(code='')",
+                "Condition.code.coding.where(display='Fever').exists()",
+                "Observation.value.coding",
+                "Observation.value.code",
+                "Observation.value.code.exists()",
+                "Observation.value.where(value='1.50').unit",
+                "Observation.subject.reference");
+    }
+
+    static List<Resource> resources() {
+        var fullPatient = new Patient()
+                .setGender(Enumerations.AdministrativeGender.FEMALE)
+                .setBirthDateElement(new DateType("1990-01-01"));
+        fullPatient.setId("http://server/fhir/Patient/pat-1/_history/2");
+        fullPatient.addName().addGiven("Anna").addGiven("Maria");
+
+        var emptyPatient = new Patient();
+
+        var extensionOnlyPatient = new Patient();
+        extensionOnlyPatient.getGenderElement().addExtension(new Extension("http://example.com/absent", new CodeType("x")));
+        extensionOnlyPatient.getBirthDateElement().addExtension(new Extension("http://example.com/absent", new CodeType("x")));
+
+        var condition = new Condition()
+                .setSubject(new Reference("Patient/pat-1"))
+                .setCode(new CodeableConcept()
+                        .addCoding(new Coding("http://fhir.de/CodeSystem/bfarm/icd-10-gm", "R50.9", "Fever"))
+                        .addCoding(new Coding("http://snomed.info/sct", "386661006", null)));
+        condition.setId("cond-1");
+        condition.getClinicalStatus().addCoding(new Coding("http://terminology.hl7.org/CodeSystem/condition-clinical", "active", null));
+
+        var ambiguousCondition = new Condition()
+                .setCode(new CodeableConcept()
+                        .addCoding(new Coding("http://snomed.info/sct", "386661006", null))
+                        .addCoding(new Coding("http://snomed.info/sct", "271897009", null))
+                        .addCoding(new Coding(null, "no-system", null))
+                        .addCoding(new Coding().setSystemElement((UriType) new UriType()
+                                .addExtension(new Extension("http://example.com/absent", new CodeType("x"))))
+                                .setCode("")));
+
+        var codedObservation = new Observation()
+                .setValue(new CodeableConcept(new Coding("http://loinc.org", "LA6576-8", null)))
+                .setSubject(new Reference("Patient/pat-1"));
+
+        var quantityObservation = new Observation()
+                .setValue(new Quantity().setValue(new BigDecimal("1.5")).setUnit("mg").setCode("mg"));
+
+        var stringObservation = new Observation().setValue(new StringType("1.50"));
+
+        return List.of(fullPatient, emptyPatient, extensionOnlyPatient, condition, ambiguousCondition,
+                codedObservation, quantityObservation, stringObservation);
+    }
+
+    @Nested
+    class Differential {
+
+        @ParameterizedTest
+        @DisplayName("returns the same items as the FHIRPath engine")
+        @MethodSource("de.medizininformatikinitiative.fhir_data_evaluator.FhirPathCompilerTest#expressions")
+        void sameItems(String expression) {
+            var compiled = compiler.compile(expression);
+            assertThat(compiled).isPresent();
+
+            // separate instances, because the FHIRPath engine may create missing elements
+            var resources = resources();
+            var interpretedResources = resources();
+            for (var i = 0; i < resources.size(); i++) {
+                var actual = compiled.get().evaluate(resources.get(i));
+                var expected = fhirPathEngine.evaluate(interpretedResources.get(i), expression, Base.class);
+                if (actual == null) {
+                    continue;
+                }
+
+                assertThat(actual)
+                        .as("%s on %s", expression, context.newJsonParser().encodeResourceToString(resources.get(i)))
+                        .usingElementComparator((a, b) -> a.getClass() == b.getClass() && a.equalsDeep(b) ? 0 : 1)
+                        .containsExactlyElementsOf(expected);
+            }
+        }
+
+        @ParameterizedTest
+        @DisplayName("results in the same stratum values as the FHIRPath engine")
+        @MethodSource("de.medizininformatikinitiative.fhir_data_evaluator.FhirPathCompilerTest#expressions")
+        void sameValues(String expression) {
+            var component = new Measure.MeasureGroupStratifierComponentComponent()
+                    .setCode(new CodeableConcept(new Coding("http://example.com", "component", null)))
+                    .setCriteria(new Expression().setLanguage("text/fhirpath").setExpression(expression));
+            var interpreted = ComponentExpression.fromComponent(fhirPathEngine, component);
+            var compiled = ComponentExpression.fromComponent(fhirPathEngine, Optional.of(compiler), component);
+            assertThat(compiled.compiledExpression()).isPresent();
+
+            var resources = resources();
+            var interpretedResources = resources();
+            for (var i = 0; i < resources.size(); i++) {
+                var actual = compiled.evaluateValue(new ResourceWithIncludes(resources.get(i), Map.of(), fhirPathEngine));
+                var expected = interpreted.evaluateValue(new ResourceWithIncludes(interpretedResources.get(i), Map.of(),
+                        fhirPathEngine));
+
+                assertThat(actual)
+                        .as("%s on %s", expression, context.newJsonParser().encodeResourceToString(resources.get(i)))
+                        .isEqualTo(expected);
+            }
+        }
+    }
+
+    @Nested
+    class ResolveCache {
+
+        static final String MED_CODE_PATH = "MedicationStatement.medication.resolve().ofType(Medication).code.coding" +
+                ".where(system='http://fhir.de/CodeSystem/bfarm/atc')";
+
+        FhirPathCompiler resolveCompiler = new FhirPathCompiler(context, 100);
+
+        static Medication medication(String id, String versionId, String code) {
+            var medication = new Medication().setCode(new CodeableConcept()
+                    .addCoding(new Coding("http://fhir.de/CodeSystem/bfarm/atc", code, null))
+                    .addCoding(new Coding("http://snomed.info/sct", "1234", null)));
+            medication.setId(id);
+            medication.getMeta().setVersionId(versionId);
+            return medication;
+        }
+
+        static MedicationStatement statement(String reference) {
+            return new MedicationStatement().setMedication(new Reference(reference));
+        }
+
+        List<Base> interpreted(Resource resource, Map<String, Resource> includes, String expression) {
+            var engine = context.newFhirPath();
+            ResourceWithIncludes.setResolver(engine, includes);
+            return engine.evaluate(resource, expression, Base.class);
+        }
+
+        @ParameterizedTest
+        @DisplayName("compiles paths followed by resolve() and a tail")
+        @ValueSource(strings = {
+                MED_CODE_PATH,
+                "MedicationStatement.medication.resolve().code.coding",
+                "MedicationStatement.medication.resolve().code.coding.first()",
+                "MedicationAdministration.medication.resolve().ofType(Medication).code.coding.where(system = 'a').exists()",
+                "Observation.subject.resolve().ofType(Patient).gender"})
+        void compiles(String expression) {
+            assertThat(resolveCompiler.compile(expression)).isPresent();
+        }
+
+        @ParameterizedTest
+        @DisplayName("doesn't compile tails that depend on more than the referenced resource")
+        @ValueSource(strings = {
+                "MedicationStatement.medication.resolve()",
+                "MedicationStatement.medication.resolve().Medication.code",
+                "MedicationStatement.medication.resolve().code.where(%resource.id = 'a')",
+                "MedicationStatement.medication.resolve().ingredient.item.resolve().code",
+                "MedicationStatement.medication.resolve().code.trace('x')",
+                "MedicationStatement.medication.resolve().code = %context.code",
+                "MedicationStatement.medication.ofType(Reference).resolve().code",
+                "MedicationStatement.medication.resolve().code | MedicationStatement.status"})
+        void doesNotCompile(String expression) {
+            assertThat(resolveCompiler.compile(expression)).isEmpty();
+        }
+
+        @Test
+        @DisplayName("doesn't compile resolve() without a resolve cache")
+        void withoutCache() {
+            assertThat(compiler.compile(MED_CODE_PATH)).isEmpty();
+        }
+
+        @ParameterizedTest
+        @DisplayName("returns the same items as the FHIRPath engine")
+        @ValueSource(strings = {
+                MED_CODE_PATH,
+                "MedicationStatement.medication.resolve().code.coding",
+                "MedicationStatement.medication.resolve().code.coding.first().code",
+                "MedicationStatement.medication.resolve().code.coding.where(system = 'x').exists()",
+                "MedicationStatement.medication.resolve().ofType(Patient).gender"})
+        void sameItems(String expression) {
+            var includes = Map.<String, Resource>of("Medication/med-1", medication("med-1", "1", "A01"));
+            var path = resolveCompiler.compile(expression).orElseThrow();
+
+            for (var statement : List.of(statement("Medication/med-1"), statement("Medication/med-1"))) {
+                var actual = path.evaluate(statement, includes);
+
+                assertThat(actual).isNotNull()
+                        .usingElementComparator((a, b) -> a.getClass() == b.getClass() && a.equalsDeep(b) ? 0 : 1)
+                        .containsExactlyElementsOf(interpreted(statement, includes, expression));
+            }
+        }
+
+        @Test
+        @DisplayName("evaluates the tail once per referenced resource and version")
+        void hits() {
+            var path = (FhirPathCompiler.ResolvePath) resolveCompiler.compile(MED_CODE_PATH).orElseThrow();
+            var includes1 = Map.<String, Resource>of("Medication/med-1", medication("med-1", "1", "A01"));
+            var includes2 = Map.<String, Resource>of("Medication/med-1", medication("med-1", "2", "B02"));
+
+            for (var i = 0; i < 10; i++) {
+                assertThat(path.evaluate(statement("Medication/med-1"), includes1))
+                        .extracting(coding -> ((Coding) coding).getCode()).containsExactly("A01");
+            }
+            assertThat(path.evaluate(statement("Medication/med-1"), includes2))
+                    .extracting(coding -> ((Coding) coding).getCode()).containsExactly("B02");
+
+            assertThat(path.hits()).isEqualTo(9);
+            assertThat(path.misses()).isEqualTo(2);
+            assertThat(path.size()).isEqualTo(2);
+            assertThat(resolveCompiler.resolvePaths()).containsExactly(path);
+        }
+
+        @Test
+        @DisplayName("caches at most the configured number of referenced resources")
+        void bounded() {
+            var path = (FhirPathCompiler.ResolvePath) new FhirPathCompiler(context, 2).compile(MED_CODE_PATH).orElseThrow();
+
+            for (var i = 0; i < 5; i++) {
+                var includes = Map.<String, Resource>of("Medication/med-" + i, medication("med-" + i, "1", "A0" + i));
+                assertThat(path.evaluate(statement("Medication/med-" + i), includes))
+                        .extracting(coding -> ((Coding) coding).getCode()).containsExactly("A0" + i);
+            }
+
+            assertThat(path.size()).isEqualTo(2);
+        }
+
+        @Test
+        @DisplayName("defers references that can't be resolved exactly once to the FHIRPath engine")
+        void defers() {
+            var path = resolveCompiler.compile("MedicationStatement.medication.resolve().code.coding.exists()")
+                    .orElseThrow();
+            var includes = Map.<String, Resource>of("Medication/med-1", medication("med-1", "1", "A01"));
+
+            assertThat(path.evaluate(statement("Medication/med-1"))).isNull();
+            assertThat(path.evaluate(statement("Medication/med-2"), includes)).isNull();
+            assertThat(path.evaluate(statement("#med-1"), includes)).isNull();
+            assertThat(path.evaluate(new MedicationStatement(), includes)).isNull();
+        }
+
+        @Test
+        @DisplayName("results in the same stratum values as the FHIRPath engine")
+        void sameValues() {
+            var engine = new SharedFhirPathEngine(context);
+            var component = new Measure.MeasureGroupStratifierComponentComponent()
+                    .setCode(new CodeableConcept(new Coding("http://example.com", "component", null)))
+                    .setCriteria(new Expression().setLanguage("text/fhirpath").setExpression(MED_CODE_PATH));
+            var interpreted = ComponentExpression.fromComponent(engine, component);
+            var compiled = ComponentExpression.fromComponent(engine, Optional.of(resolveCompiler), component);
+            assertThat(compiled.compiledExpression()).isPresent();
+
+            for (var includes : List.<Map<String, Resource>>of(
+                    Map.of("Medication/med-1", medication("med-1", "1", "A01")),
+                    Map.of("Medication/med-1", medication("med-1", null, "")),
+                    Map.of("Medication/med-2", medication("med-2", "1", "A01")))) {
+                var actual = compiled.evaluateValue(new ResourceWithIncludes(statement("Medication/med-1"), includes, engine));
+                var expected = interpreted.evaluateValue(new ResourceWithIncludes(statement("Medication/med-1"), includes, engine));
+
+                assertThat(actual).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("defers comparisons of decimals to the FHIRPath engine")
+    void defersDecimals() {
+        var path = compiler.compile("Observation.value.where(value='1.50')").orElseThrow();
+        var observation = new Observation().setValue(new Quantity().setValue(new BigDecimal("1.5")));
+
+        assertThat(path.evaluate(observation)).isNull();
+    }
+
+    @Test
+    @DisplayName("returns no items for resources of another type")
+    void otherResourceType() {
+        var path = compiler.compile("Patient.gender").orElseThrow();
+        var condition = new Condition();
+
+        assertThat(path.evaluate(condition)).isEmpty();
+    }
+}
@@ -2,15 +2,19 @@ package de.medizininformatikinitiative.fhir_data_evaluator;
 
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
 import ca.uhn.fhir.fhirpath.IFhirPath;
 import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.AggregateUniqueCounter;
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.HyperLogLogUniqueCounter;
 import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DecimalType;
 import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.r4.model.Expression;
 import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Medication;
@@ -21,19 +25,26 @@ import org.hl7.fhir.r4.model.Quantity;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import reactor.core.publisher.Flux;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
 
 import static de.medizininformatikinitiative.fhir_data_evaluator.HashableCoding.FAIL_INVALID_TYPE;
 import static de.medizininformatikinitiative.fhir_data_evaluator.HashableCoding.FAIL_MISSING_FIELDS;
@@ -50,6 +61,13 @@ import static org.mockito.Mockito.when;
 @ExtendWith(MockitoExtension.class)
 class GroupEvaluatorTest {
 
+    static final WorkerPool WORKER_POOL = new WorkerPool("test-worker", 4);
+
+    @AfterAll
+    static void closeWorkerPool() {
+        WORKER_POOL.close();
+    }
+
     static final String CONDITION_QUERY = "Condition?_profile=https://www.medizininformatik-initiative.de/fhir/core/modul-diagnose/StructureDefinition/Diagnose";
     static final Expression COND_CODE_PATH = expressionOfPath("Condition.code.coding");
     static final Expression COND_STATUS_PATH = expressionOfPath("Condition.clinicalStatus.coding");
@@ -142,6 +160,13 @@ class GroupEvaluatorTest {
                         new Extension(CRITERIA_REFERENCE_URL).setValue(new CodeType(MEASURE_POPULATION_ID))));
     }
 
+    public static Measure.MeasureGroupPopulationComponent getHyperLogLogObservationPopulation(String fhirpath, int precision) {
+        var population = getObservationPopulation(fhirpath);
+        var extensions = new ArrayList<>(population.getExtension());
+        extensions.add(new Extension(HyperLogLogUniqueCounter.PRECISION_EXTENSION_URL).setValue(new IntegerType(precision)));
+        return (Measure.MeasureGroupPopulationComponent) population.setExtension(extensions);
+    }
+
     public static Measure.MeasureGroupComponent getMeasureGroup() {
         Measure.MeasureGroupComponent measureGroup = new Measure.MeasureGroupComponent();
 
@@ -167,7 +192,7 @@ class GroupEvaluatorTest {
     @BeforeEach
     void setUp() {
         pathEngine = createPathEngine();
-        groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+        groupEvaluator = new GroupEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT, WORKER_POOL);
     }
 
     @Nested
@@ -502,7 +527,8 @@ class GroupEvaluatorTest {
                             .setPopulation(List.of(
                                     getInitialPopulation(CONDITION_QUERY),
                                     getInitialPopulation(CONDITION_QUERY).setCode(new CodeableConcept(new Coding().setCode("some-other-population").setSystem("some-system")))));
-                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                            EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                     var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -525,7 +551,8 @@ class GroupEvaluatorTest {
                             .setStratifier(List.of(
                                     new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
                             .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                            EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                     var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -551,7 +578,8 @@ class GroupEvaluatorTest {
                             .setStratifier(List.of(
                                     new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
                             .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                            EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                     var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -578,7 +606,8 @@ class GroupEvaluatorTest {
                             .setStratifier(List.of(
                                     new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
                             .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                            EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                     var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -608,7 +637,8 @@ class GroupEvaluatorTest {
                                 .setStratifier(List.of(
                                         new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
                                 .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                                EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                         var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -636,7 +666,8 @@ class GroupEvaluatorTest {
                                 .setStratifier(List.of(
                                         new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
                                 .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                                EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                         var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -660,7 +691,8 @@ class GroupEvaluatorTest {
                                 .setStratifier(List.of(
                                         new Measure.MeasureGroupStratifierComponent().setCriteria(expressionOfPath("Condition.code")).setCode(new CodeableConcept(COND_DEF_CODING))))
                                 .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                                EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                         var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -685,7 +717,8 @@ class GroupEvaluatorTest {
                                 .setStratifier(List.of(
                                         new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
                                 .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                                EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                         var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -710,7 +743,8 @@ class GroupEvaluatorTest {
                                 .setStratifier(List.of(
                                         new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
                                 .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                        GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                                EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                         var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -740,7 +774,8 @@ class GroupEvaluatorTest {
                                     new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING)),
                                     new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
                             .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                            EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                     var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -774,7 +809,8 @@ class GroupEvaluatorTest {
                                     new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING)),
                                     new Measure.MeasureGroupStratifierComponent().setCriteria(COND_STATUS_PATH).setCode(new CodeableConcept(STATUS_DEF_CODING.toCoding()))))
                             .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                            EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                     var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -818,7 +854,8 @@ class GroupEvaluatorTest {
                                                     new Measure.MeasureGroupStratifierComponentComponent(COND_STATUS_PATH).setCode(new CodeableConcept(STATUS_DEF_CODING.toCoding()))))
                                             .setCode(new CodeableConcept(COND_DEF_CODING))))
                             .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                            EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                     var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -851,7 +888,8 @@ class GroupEvaluatorTest {
                                                     new Measure.MeasureGroupStratifierComponentComponent(COND_CODE_PATH).setCode(new CodeableConcept(new Coding(COND_DEF_SYSTEM, "some-other-code", SOME_DISPLAY)))))
                                             .setCode(new CodeableConcept(COND_DEF_CODING))))
                             .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                            EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                     var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -904,7 +942,8 @@ class GroupEvaluatorTest {
                                                     new Measure.MeasureGroupStratifierComponentComponent(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING)),
                                                     new Measure.MeasureGroupStratifierComponentComponent(COND_STATUS_PATH).setCode(new CodeableConcept(STATUS_DEF_CODING.toCoding()))))))
                             .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)));
-                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                    GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                            EvaluatorSettings.DEFAULT, WORKER_POOL);
 
                     var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -1002,7 +1041,8 @@ class GroupEvaluatorTest {
                         .setStratifier(List.of(
                                 new Measure.MeasureGroupStratifierComponent().setCriteria(VALUE_PATH).setCode(new CodeableConcept(QUANTITY_DEF_CODING))))
                         .setPopulation(List.of(getInitialPopulation(OBSERVATION_QUERY)));
-                GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT,
+                        WORKER_POOL);
 
                 var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -1032,7 +1072,8 @@ class GroupEvaluatorTest {
                         .setStratifier(List.of(
                                 new Measure.MeasureGroupStratifierComponent().setCriteria(GENDER_PATH).setCode(new CodeableConcept(GENDER_DEF_CODING))))
                         .setPopulation(List.of(getInitialPopulation(PATIENT_QUERY)));
-                GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+                GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT,
+                        WORKER_POOL);
 
                 var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -1168,7 +1209,8 @@ class GroupEvaluatorTest {
                     .setStratifier(List.of(
                             new Measure.MeasureGroupStratifierComponent().setCriteria(MEDICATION_RESOLVE_PATH).setCode(new CodeableConcept(MED_ADM_DEF_CODING))))
                     .setPopulation(List.of(getInitialPopulation(MEDICATION_ADMINISTRATION_QUERY)));
-            GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+            GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT,
+                    WORKER_POOL);
 
             var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -1189,7 +1231,8 @@ class GroupEvaluatorTest {
                     .setStratifier(List.of(
                             new Measure.MeasureGroupStratifierComponent().setCriteria(MEDICATION_RESOLVE_PATH).setCode(new CodeableConcept(MED_ADM_DEF_CODING))))
                     .setPopulation(List.of(getInitialPopulation(MEDICATION_ADMINISTRATION_QUERY)));
-            GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine);
+            GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT,
+                    WORKER_POOL);
 
             var result = groupEvaluator.evaluateGroup(measureGroup).block();
 
@@ -1201,6 +1244,37 @@ class GroupEvaluatorTest {
             assertThat(findPopulationByCode(result.getStratifier().get(0).getStratum().get(0), INITIAL_POPULATION_CODING).getCount())
                     .isEqualTo(1);
         }
+
+        @Test
+        @DisplayName("Test pages with the same Medication reference resolve with a shared engine in parallel")
+        public void test_sharedEngine_pagesDoNotLeak() {
+            var context = FhirContext.forR4();
+            var sharedEngine = new SharedFhirPathEngine(context);
+            var resources = IntStream.range(0, 32).boxed().flatMap(page -> {
+                var medication = (Medication) new Medication().setCode(new CodeableConcept(
+                        new Coding("system", "medication-code-" + page % 4, "display"))).setId(MED_ID);
+                return ResourceWithIncludes.processIncludes(
+                        IntStream.range(0, 8).mapToObj(i -> (Resource) getMedicationAdministration()).toList(),
+                        List.of(medication), sharedEngine, context);
+            }).toList();
+            when(dataStore.getResources("/" + MEDICATION_ADMINISTRATION_QUERY)).thenReturn(Flux.fromIterable(resources));
+            Measure.MeasureGroupComponent measureGroup = getMeasureGroup()
+                    .setStratifier(List.of(
+                            new Measure.MeasureGroupStratifierComponent().setCriteria(MEDICATION_RESOLVE_PATH).setCode(new CodeableConcept(MED_ADM_DEF_CODING))))
+                    .setPopulation(List.of(getInitialPopulation(MEDICATION_ADMINISTRATION_QUERY)));
+            GroupEvaluator groupEvaluator = new GroupEvaluator(dataStore, sharedEngine,
+                    EvaluatorSettings.DEFAULT.withReduceParallelism(4), WORKER_POOL);
+
+            var result = groupEvaluator.evaluateGroup(measureGroup).block();
+
+            assertThat(result).isNotNull();
+            var strata = result.getStratifier().get(0).getStratum();
+            assertThat(strata).hasSize(4);
+            assertThat(strata).allSatisfy(stratum -> {
+                assertThat(stratum.getValue().getCodingFirstRep().getCode()).startsWith("medication-code-");
+                assertThat(findPopulationByCode(stratum, INITIAL_POPULATION_CODING).getCount()).isEqualTo(64);
+            });
+        }
     }
 
     @Nested
@@ -1399,5 +1473,253 @@ class GroupEvaluatorTest {
             assertThat(findPopulationByCode(secondStratum, MEASURE_OBSERVATION_CODING).getCount()).isEqualTo(1);
             assertThat(firstStratum.getMeasureScore().getValue()).isEqualTo(new BigDecimal(1));
         }
+
+        @Test
+        @DisplayName("HyperLogLog precision extension results in approximate unique count with standard error")
+        public void test_hyperLogLogExtension() {
+            when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine,
+                    getConditionWithSubject(UNIQUE_VAL_1),
+                    getConditionWithSubject(UNIQUE_VAL_1),
+                    getConditionWithSubject(UNIQUE_VAL_2))));
+            var observationPopulation = getHyperLogLogObservationPopulation(OBSERVATION_POPULATION_PATH, 10);
+            Measure.MeasureGroupComponent measureGroup = getMeasureGroup()
+                    .setStratifier(List.of(
+                            new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
+                    .setPopulation(List.of(
+                            getInitialPopulation(CONDITION_QUERY),
+                            getMeasurePopulation(MEASURE_POPULATION_PATH),
+                            observationPopulation));
+
+            var result = groupEvaluator.evaluateGroup(measureGroup).block();
+
+            assertThat(result).isNotNull();
+            assertThat(findPopulationByCode(result, MEASURE_OBSERVATION_CODING).getCount()).isEqualTo(3);
+            assertThat(result.getMeasureScore().getValue()).isEqualTo(new BigDecimal(2));
+            assertThat(((DecimalType) result.getMeasureScore().getExtensionByUrl(HyperLogLogUniqueCounter.STANDARD_ERROR_EXTENSION_URL)
+                    .getValue()).getValue()).isEqualTo(new BigDecimal("0.0325"));
+            var firstStratum = result.getStratifier().get(0).getStratum().get(0);
+            assertThat(firstStratum.getMeasureScore().getValue()).isEqualTo(new BigDecimal(2));
+            assertThat(firstStratum.getMeasureScore().hasExtension(HyperLogLogUniqueCounter.STANDARD_ERROR_EXTENSION_URL)).isTrue();
+        }
+
+        @Test
+        @DisplayName("Configured HyperLogLog precision results in approximate unique count")
+        public void test_hyperLogLogConfigured() {
+            groupEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                    EvaluatorSettings.DEFAULT.withUniqueCountPrecision(HyperLogLogUniqueCounter.DEFAULT_PRECISION),
+                    WORKER_POOL);
+            when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine,
+                    getConditionWithSubject(UNIQUE_VAL_1),
+                    getConditionWithSubject(UNIQUE_VAL_2))));
+            Measure.MeasureGroupComponent measureGroup = getMeasureGroup()
+                    .setPopulation(List.of(
+                            getInitialPopulation(CONDITION_QUERY),
+                            getMeasurePopulation(MEASURE_POPULATION_PATH),
+                            getObservationPopulation(OBSERVATION_POPULATION_PATH)));
+
+            var result = groupEvaluator.evaluateGroup(measureGroup).block();
+
+            assertThat(result).isNotNull();
+            assertThat(result.getMeasureScore().getValue()).isEqualTo(new BigDecimal(2));
+            assertThat(result.getMeasureScore().hasExtension(HyperLogLogUniqueCounter.STANDARD_ERROR_EXTENSION_URL)).isTrue();
+        }
+
+        @Test
+        @DisplayName("Invalid HyperLogLog precision extension results in exception")
+        public void test_invalidHyperLogLogExtension() {
+            var observationPopulation = getHyperLogLogObservationPopulation(OBSERVATION_POPULATION_PATH, 3);
+            Measure.MeasureGroupComponent measureGroup = getMeasureGroup()
+                    .setPopulation(List.of(
+                            getInitialPopulation(CONDITION_QUERY),
+                            getMeasurePopulation(MEASURE_POPULATION_PATH),
+                            observationPopulation));
+
+            assertThatThrownBy(() -> groupEvaluator.evaluateGroup(measureGroup).block())
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessage("HyperLogLog precision must be between 4 and 18, but was 3");
+        }
+    }
+
+    @Nested
+    @DisplayName("Test Parallel Reduce")
+    class ParallelReduce {
+
+        private static final int RESOURCE_COUNT = 500;
+
+        private static List<Resource> randomConditions(long seed) {
+            var random = new Random(seed);
+            return IntStream.range(0, RESOURCE_COUNT).<Resource>mapToObj(i -> {
+                var condition = random.nextInt(10) == 0 ? new Condition() : new Condition().setCode(new CodeableConcept(
+                        new Coding(COND_VALUE_SYSTEM, "cond-val-" + random.nextInt(5), SOME_DISPLAY)));
+                if (random.nextBoolean()) {
+                    condition.setClinicalStatus(new CodeableConcept(new Coding(STATUS_VALUE_SYSTEM, "status-" + random.nextInt(3), SOME_DISPLAY)));
+                }
+                return condition.setSubject(new Reference().setReference("Patient/" + random.nextInt(50)));
+            }).toList();
+        }
+
+        private static String stratumKey(MeasureReport.StratifierGroupComponent stratum) {
+            return stratum.getValue().getCodingFirstRep().getCode() + stratum.getComponent().stream()
+                    .map(c -> c.getCode().getCodingFirstRep().getCode() + "=" + c.getValue().getCodingFirstRep().getCode())
+                    .toList();
+        }
+
+        /**
+         * Sorts the strata and their components, because their order depends on the iteration order of hash maps.
+         */
+        private static MeasureReport.MeasureReportGroupComponent normalize(MeasureReport.MeasureReportGroupComponent group) {
+            group.getStratifier().forEach(stratifier -> {
+                stratifier.getStratum().forEach(stratum -> stratum.setComponent(stratum.getComponent().stream()
+                        .sorted(Comparator.comparing(c -> c.getCode().getCodingFirstRep().getCode())).toList()));
+                stratifier.setStratum(stratifier.getStratum().stream()
+                        .sorted(Comparator.comparing(ParallelReduce::stratumKey)).toList());
+            });
+            return group;
+        }
+
+        @ParameterizedTest
+        @DisplayName("parallel reduce results are identical to the sequential reduce")
+        @ValueSource(longs = {1, 2, 3, 42, 4711})
+        public void test_parallelEqualsSequential(long seed) {
+            when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.fromIterable(
+                    wrapWithoutIncludes(pathEngine, randomConditions(seed).toArray(Resource[]::new))));
+            Measure.MeasureGroupComponent measureGroup = getMeasureGroup()
+                    .setStratifier(List.of(
+                            new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING)),
+                            new Measure.MeasureGroupStratifierComponent().setComponent(List.of(
+                                    new Measure.MeasureGroupStratifierComponentComponent()
+                                            .setCriteria(COND_CODE_PATH)
+                                            .setCode(new CodeableConcept(COND_DEF_CODING)),
+                                    new Measure.MeasureGroupStratifierComponentComponent()
+                                            .setCriteria(COND_STATUS_PATH)
+                                            .setCode(new CodeableConcept(STATUS_DEF_CODING.toCoding()))))))
+                    .setPopulation(List.of(
+                            getInitialPopulation(CONDITION_QUERY),
+                            getMeasurePopulation(MEASURE_POPULATION_PATH),
+                            getObservationPopulation(OBSERVATION_POPULATION_PATH)));
+
+            var sequential = normalize(groupEvaluator.evaluateGroup(measureGroup).block());
+            var parallel = normalize(new GroupEvaluator(dataStore, pathEngine,
+                    EvaluatorSettings.DEFAULT.withReduceParallelism(4), WORKER_POOL)
+                    .evaluateGroup(measureGroup).block());
+
+            assertThat(findPopulationByCode(parallel, INITIAL_POPULATION_CODING).getCount()).isEqualTo(RESOURCE_COUNT);
+            assertThat(parallel.equalsDeep(sequential)).isTrue();
+        }
+
+        @ParameterizedTest
+        @DisplayName("results with a shared expression plan are identical to the interpreted expressions")
+        @ValueSource(longs = {1, 42})
+        public void test_plannedEqualsInterpreted(long seed) {
+            when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.fromIterable(
+                    wrapWithoutIncludes(pathEngine, randomConditions(seed).toArray(Resource[]::new))));
+            Measure.MeasureGroupComponent measureGroup = getMeasureGroup()
+                    .setStratifier(List.of(
+                            new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING)),
+                            new Measure.MeasureGroupStratifierComponent().setComponent(List.of(
+                                    new Measure.MeasureGroupStratifierComponentComponent()
+                                            .setCriteria(COND_CODE_PATH)
+                                            .setCode(new CodeableConcept(COND_DEF_CODING)),
+                                    new Measure.MeasureGroupStratifierComponentComponent()
+                                            .setCriteria(COND_STATUS_PATH)
+                                            .setCode(new CodeableConcept(STATUS_DEF_CODING.toCoding())))),
+                            new Measure.MeasureGroupStratifierComponent().setCriteria(expressionOfPath(OBSERVATION_POPULATION_PATH))
+                                    .setCode(new CodeableConcept(new Coding(STATUS_DEF_SYSTEM, "subject", null)))))
+                    .setPopulation(List.of(
+                            getInitialPopulation(CONDITION_QUERY),
+                            getMeasurePopulation(MEASURE_POPULATION_PATH),
+                            getObservationPopulation(OBSERVATION_POPULATION_PATH)));
+
+            var interpreted = normalize(groupEvaluator.evaluateGroup(measureGroup).block());
+            var planned = normalize(new GroupEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT.withReduceParallelism(4)
+                    .withCompiler(new FhirPathCompiler(FhirContext.forR4())),
+                            WORKER_POOL).evaluateGroup(measureGroup).block());
+
+            assertThat(findPopulationByCode(planned, MEASURE_OBSERVATION_CODING).getCount()).isEqualTo(RESOURCE_COUNT);
+            assertThat(planned.equalsDeep(interpreted)).isTrue();
+        }
+
+        private static Measure.MeasureGroupComponent shardedMeasureGroup() {
+            return getMeasureGroup()
+                    .setStratifier(List.of(
+                            new Measure.MeasureGroupStratifierComponent().setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING)),
+                            new Measure.MeasureGroupStratifierComponent().setCriteria(COND_STATUS_PATH)
+                                    .setCode(new CodeableConcept(STATUS_DEF_CODING.toCoding())),
+                            new Measure.MeasureGroupStratifierComponent().setComponent(List.of(
+                                    new Measure.MeasureGroupStratifierComponentComponent()
+                                            .setCriteria(COND_CODE_PATH)
+                                            .setCode(new CodeableConcept(COND_DEF_CODING)),
+                                    new Measure.MeasureGroupStratifierComponentComponent()
+                                            .setCriteria(COND_STATUS_PATH)
+                                            .setCode(new CodeableConcept(STATUS_DEF_CODING.toCoding())))),
+                            new Measure.MeasureGroupStratifierComponent().setCriteria(expressionOfPath(OBSERVATION_POPULATION_PATH))
+                                    .setCode(new CodeableConcept(new Coding(STATUS_DEF_SYSTEM, "subject", null)))))
+                    .setPopulation(List.of(
+                            getInitialPopulation(CONDITION_QUERY),
+                            getMeasurePopulation(MEASURE_POPULATION_PATH),
+                            getObservationPopulation(OBSERVATION_POPULATION_PATH)));
+        }
+
+        @ParameterizedTest
+        @DisplayName("results of stratifier shards are identical to the sequential reduce")
+        @ValueSource(ints = {2, 3, 4, 16})
+        public void test_shardedEqualsSequential(int stratifierShards) {
+            when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.fromIterable(
+                    wrapWithoutIncludes(pathEngine, randomConditions(42).toArray(Resource[]::new))));
+            var measureGroup = shardedMeasureGroup();
+
+            var sequential = normalize(groupEvaluator.evaluateGroup(measureGroup).block());
+            var sharded = normalize(new GroupEvaluator(dataStore, pathEngine,
+                    EvaluatorSettings.DEFAULT.withStratifierShards(stratifierShards), WORKER_POOL)
+                    .evaluateGroup(measureGroup).block());
+
+            assertThat(sharded.getStratifier()).hasSize(4);
+            assertThat(findPopulationByCode(sharded, INITIAL_POPULATION_CODING).getCount()).isEqualTo(RESOURCE_COUNT);
+            assertThat(sharded.equalsDeep(sequential)).isTrue();
+        }
+
+        @Test
+        @DisplayName("results of stratifier shards with planned expressions are identical to the sequential reduce")
+        public void test_shardedPlannedEqualsSequential() {
+            when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.fromIterable(
+                    wrapWithoutIncludes(pathEngine, randomConditions(4711).toArray(Resource[]::new))));
+            var measureGroup = shardedMeasureGroup();
+
+            var sequential = normalize(groupEvaluator.evaluateGroup(measureGroup).block());
+            var sharded = normalize(new GroupEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT.withStratifierShards(2)
+                    .withCompiler(new FhirPathCompiler(FhirContext.forR4())),
+                            WORKER_POOL).evaluateGroup(measureGroup).block());
+
+            assertThat(sharded.equalsDeep(sequential)).isTrue();
+        }
+
+        @Test
+        @DisplayName("stratifier shards of an empty population result in empty populations")
+        public void test_shardedEmpty() {
+            when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.empty());
+
+            var result = new GroupEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT.withStratifierShards(4),
+                    WORKER_POOL)
+                    .evaluateGroup(shardedMeasureGroup()).block();
+
+            assertThat(result).isNotNull();
+            assertThat(findPopulationByCode(result, INITIAL_POPULATION_CODING).getCount()).isZero();
+            assertThat(result.getStratifier()).hasSize(4).allSatisfy(stratifier -> assertThat(stratifier.getStratum()).isEmpty());
+        }
+
+        @Test
+        @DisplayName("an error in a stratifier shard fails the group")
+        public void test_shardedError() {
+            when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.fromIterable(
+                    wrapWithoutIncludes(pathEngine, randomConditions(1).toArray(Resource[]::new))));
+            var measureGroup = shardedMeasureGroup();
+            measureGroup.getStratifier().get(1).setCriteria(expressionOfPath("Condition.subject.reference + 1"));
+
+            var shardedEvaluator = new GroupEvaluator(dataStore, pathEngine,
+                    EvaluatorSettings.DEFAULT.withStratifierShards(2), WORKER_POOL);
+
+            assertThatThrownBy(() -> shardedEvaluator.evaluateGroup(measureGroup).block())
+                    .isInstanceOf(FhirPathExecutionException.class);
+        }
     }
 }
@@ -0,0 +1,155 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Medication;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IncludeCacheTest {
+
+    static FhirContext context;
+
+    @BeforeAll
+    static void setUp() {
+        context = FhirContext.forR4();
+    }
+
+    static Medication medication(String id, String versionId) {
+        var medication = new Medication();
+        medication.setId(id);
+        medication.getMeta().setVersionId(versionId);
+        return medication;
+    }
+
+    @Test
+    @DisplayName("interns resources with the same type, id and version")
+    void intern() {
+        var cache = new IncludeCache(context, 1000);
+        var first = medication("med-1", "1");
+
+        assertThat(cache.intern(first)).isSameAs(first);
+        assertThat(cache.intern(medication("med-1", "1"))).isSameAs(first);
+        assertThat(cache.get("Medication", "med-1", "1")).containsSame(first);
+        assertThat(cache.hits()).isEqualTo(2);
+        assertThat(cache.misses()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("replaces another version of a resource")
+    void newVersion() {
+        var cache = new IncludeCache(context, 1000);
+        cache.intern(medication("med-1", "1"));
+        var second = medication("med-1", "2");
+
+        assertThat(cache.intern(second)).isSameAs(second);
+        assertThat(cache.get("Medication", "med-1", "1")).isEmpty();
+        assertThat(cache.get("Medication", "med-1", "2")).containsSame(second);
+        assertThat(cache.resourceCount()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("evicts the least recently used resources if it's full")
+    void evictsLeastRecentlyUsed() {
+        var cache = new IncludeCache(context, 30);
+        cache.intern(medication("med-1", null), 10);
+        cache.intern(medication("med-2", null), 10);
+        cache.intern(medication("med-3", null), 10);
+        cache.get("Medication", "med-1", null);
+
+        cache.intern(medication("med-4", null), 10);
+
+        assertThat(cache.get("Medication", "med-1", null)).isPresent();
+        assertThat(cache.get("Medication", "med-2", null)).isEmpty();
+        assertThat(cache.get("Medication", "med-3", null)).isPresent();
+        assertThat(cache.get("Medication", "med-4", null)).isPresent();
+        assertThat(cache.size()).isEqualTo(30);
+    }
+
+    @Test
+    @DisplayName("doesn't cache resources larger than the cache")
+    void tooLarge() {
+        var cache = new IncludeCache(context, 10);
+
+        cache.intern(medication("med-1", null), 11);
+
+        assertThat(cache.get("Medication", "med-1", null)).isEmpty();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    @DisplayName("doesn't cache subsetted resources")
+    void subsetted() {
+        var cache = new IncludeCache(context, 1000);
+        var medication = medication("med-1", "1");
+        medication.getMeta().addTag(IncludeCache.SUBSETTED_SYSTEM, IncludeCache.SUBSETTED_CODE, null);
+
+        assertThat(cache.intern(medication)).isSameAs(medication);
+        assertThat(cache.get("Medication", "med-1", "1")).isEmpty();
+        assertThat(cache.resourceCount()).isZero();
+    }
+
+    @Test
+    @DisplayName("determines the size of a resource by its JSON representation")
+    void sizeOfJson() {
+        var cache = new IncludeCache(context, 1000);
+        var medication = medication("med-1", null);
+
+        cache.intern(medication);
+
+        assertThat(cache.size()).isEqualTo(context.newJsonParser().encodeResourceToString(medication).length());
+    }
+
+    @Test
+    @DisplayName("resolves references that a page doesn't include with the earlier pages of the same scope")
+    void scope() {
+        var cache = new IncludeCache(context, 1000);
+        var scope = cache.newScope();
+        var first = medication("med-1", null);
+        var second = medication("med-2", null);
+
+        var firstPage = scope.pageIncludes(Map.of("Medication/med-1", first));
+        var secondPage = scope.pageIncludes(Map.of("Medication/med-2", second));
+
+        assertThat(firstPage).containsOnlyKeys("Medication/med-1");
+        assertThat(secondPage).containsEntry("Medication/med-1", first).containsEntry("Medication/med-2", second);
+    }
+
+    @Test
+    @DisplayName("doesn't resolve references with resources that were cached by another scope")
+    void otherScope() {
+        var cache = new IncludeCache(context, 1000);
+        cache.intern(medication("med-1", null));
+        cache.newScope().pageIncludes(Map.of("Medication/med-2", medication("med-2", null)));
+
+        assertThat(cache.newScope().pageIncludes(Map.of())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("evicts the resources of a scope that were least recently included if it's full")
+    void scopeEvicts() {
+        var medication = medication("med-1", null);
+        var size = context.newJsonParser().encodeResourceToString(medication).length();
+        var scope = new IncludeCache(context, 2L * size).newScope();
+
+        scope.pageIncludes(Map.of("Medication/med-1", medication));
+        scope.pageIncludes(Map.of("Medication/med-2", medication("med-2", null)));
+        scope.pageIncludes(Map.of("Medication/med-1", medication));
+        var page = scope.pageIncludes(Map.of("Medication/med-3", medication("med-3", null)));
+
+        assertThat(page).containsOnlyKeys("Medication/med-1", "Medication/med-2", "Medication/med-3");
+        assertThat(scope.resourceCount()).isEqualTo(2);
+        assertThat(scope.pageIncludes(Map.of())).containsOnlyKeys("Medication/med-1", "Medication/med-3");
+    }
+
+    @Test
+    @DisplayName("requires a positive maximum size")
+    void invalidSize() {
+        assertThatThrownBy(() -> new IncludeCache(context, 0)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
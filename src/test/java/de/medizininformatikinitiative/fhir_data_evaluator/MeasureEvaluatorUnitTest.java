@@ -1,18 +1,30 @@
 package de.medizininformatikinitiative.fhir_data_evaluator;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.fhirpath.IFhirPath;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Enumerations;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.InOrder;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
 
 import static de.medizininformatikinitiative.fhir_data_evaluator.GroupEvaluatorTest.CONDITION_QUERY;
 import static de.medizininformatikinitiative.fhir_data_evaluator.GroupEvaluatorTest.COND_CODE_PATH;
@@ -34,13 +46,29 @@ import static de.medizininformatikinitiative.fhir_data_evaluator.GroupEvaluatorT
 import static de.medizininformatikinitiative.fhir_data_evaluator.GroupEvaluatorTest.getCondition;
 import static de.medizininformatikinitiative.fhir_data_evaluator.GroupEvaluatorTest.getInitialPopulation;
 import static de.medizininformatikinitiative.fhir_data_evaluator.GroupEvaluatorTest.getMeasureGroup;
+import static de.medizininformatikinitiative.fhir_data_evaluator.GroupEvaluatorTest.getObservation;
+import static de.medizininformatikinitiative.fhir_data_evaluator.GroupEvaluatorTest.getPatient;
 import static de.medizininformatikinitiative.fhir_data_evaluator.GroupEvaluatorTest.wrapWithoutIncludes;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 public class MeasureEvaluatorUnitTest {
 
+    static final WorkerPool WORKER_POOL = new WorkerPool("test-worker", 4);
+
+    @AfterAll
+    static void closeWorkerPool() {
+        WORKER_POOL.close();
+    }
+
     @Mock
     DataStore dataStore;
     IFhirPath pathEngine;
@@ -49,7 +77,8 @@ public class MeasureEvaluatorUnitTest {
     @BeforeEach
     void setUp() {
         pathEngine = createPathEngine();
-        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine, 4);
+        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine,
+                EvaluatorSettings.DEFAULT.withMaxConcurrency(4), WORKER_POOL);
     }
 
     private void assertCodeableConcept(CodeableConcept was, String expectedSystem, String expectedCode) {
@@ -142,4 +171,209 @@ public class MeasureEvaluatorUnitTest {
         assertCodeableConcept(result.getGroup().get(1).getStratifier().get(0).getCode().get(0), COND_DEF_SYSTEM, COND_DEF_CODE);
         assertCodeableConcept(result.getGroup().get(1).getStratifier().get(0).getStratum().get(0).getValue(), COND_VALUE_SYSTEM, COND_VALUE_CODE);
     }
+
+    @Test
+    void groupsWithSameQuery_shareOneScan() {
+        when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine, getCondition())));
+        when(dataStore.getResources("/Patient")).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine,
+                getPatient(Enumerations.AdministrativeGender.FEMALE), getPatient(Enumerations.AdministrativeGender.MALE))));
+        Measure measure = new Measure().setGroup(List.of(
+                getMeasureGroup().setPopulation(List.of(getInitialPopulation(CONDITION_QUERY))),
+                getMeasureGroup().setPopulation(List.of(getInitialPopulation("Patient"))),
+                getMeasureGroup().setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)))));
+
+        var result = measureEvaluator.evaluateMeasure(measure).block();
+
+        verify(dataStore, times(1)).getResources("/" + CONDITION_QUERY);
+        assertThat(result.getGroup()).extracting(g -> g.getPopulationFirstRep().getCount()).containsExactly(1, 2, 1);
+    }
+
+    @Test
+    void elementsProjection_restrictsScanQuery() {
+        var context = FhirContext.forR4();
+        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT.withMaxConcurrency(4)
+                .withElementsAnalyzer(new ElementsAnalyzer(context)), WORKER_POOL);
+        when(dataStore.getResources("/" + CONDITION_QUERY + "&_elements=clinicalStatus,code"))
+                .thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine, getCondition())));
+        Measure measure = new Measure().setGroup(List.of(
+                getMeasureGroup()
+                        .setStratifier(List.of(new Measure.MeasureGroupStratifierComponent()
+                                .setCriteria(COND_CODE_PATH).setCode(new CodeableConcept(COND_DEF_CODING))))
+                        .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY))),
+                getMeasureGroup()
+                        .setStratifier(List.of(new Measure.MeasureGroupStratifierComponent()
+                                .setCriteria(COND_STATUS_PATH).setCode(new CodeableConcept(STATUS_DEF_CODING.toCoding()))))
+                        .setPopulation(List.of(getInitialPopulation(CONDITION_QUERY)))));
+
+        var result = measureEvaluator.evaluateMeasure(measure).block();
+
+        verify(dataStore, times(1)).getResources("/" + CONDITION_QUERY + "&_elements=clinicalStatus,code");
+        assertThat(result.getGroup()).extracting(g -> g.getPopulationFirstRep().getCount()).containsExactly(1, 1);
+    }
+
+    private static Measure measureOfQueries(String... queries) {
+        return new Measure().setGroup(Arrays.stream(queries)
+                .map(query -> getMeasureGroup().setPopulation(List.of(getInitialPopulation(query)))).toList());
+    }
+
+    private void stubScans() {
+        when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine, getCondition())));
+        when(dataStore.getResources("/Patient")).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine,
+                getPatient(Enumerations.AdministrativeGender.FEMALE), getPatient(Enumerations.AdministrativeGender.MALE))));
+        when(dataStore.getResources("/Observation")).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine,
+                getObservation("a"), getObservation("b"), getObservation("c"))));
+    }
+
+    @Test
+    void sizeAwareScheduling_startsLargestScanFirst() {
+        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine,
+                EvaluatorSettings.DEFAULT.withSizeAwareScheduling(true), WORKER_POOL);
+        stubScans();
+        when(dataStore.estimateSize("/" + CONDITION_QUERY)).thenReturn(Mono.just(10L));
+        when(dataStore.estimateSize("/Patient")).thenReturn(Mono.just(1000L));
+        when(dataStore.estimateSize("/Observation")).thenReturn(Mono.empty());
+
+        var result = measureEvaluator.evaluateMeasure(measureOfQueries(CONDITION_QUERY, "Patient", "Observation")).block();
+
+        InOrder order = inOrder(dataStore);
+        order.verify(dataStore).getResources("/Observation");
+        order.verify(dataStore).getResources("/Patient");
+        order.verify(dataStore).getResources("/" + CONDITION_QUERY);
+        assertThat(result.getGroup()).extracting(g -> g.getPopulationFirstRep().getCount()).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    void checkpoint_resumesWithoutScanningFinishedGroups(@TempDir Path dir) {
+        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT, WORKER_POOL);
+        var measure = measureOfQueries(CONDITION_QUERY, "Patient", "Observation");
+        var file = dir.resolve("checkpoint.ndjson");
+        stubScans();
+        when(dataStore.getResources("/Observation")).thenReturn(Flux.error(new RuntimeException("evicted")));
+
+        var aborted = measureEvaluator.evaluateMeasure(measure, Optional.of(openCheckpoint(file)));
+        assertThatThrownBy(aborted::block).hasMessageContaining("evicted");
+
+        when(dataStore.getResources("/Observation")).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine,
+                getObservation("a"), getObservation("b"), getObservation("c"))));
+        var checkpoint = openCheckpoint(file);
+        assertThat(checkpoint.resumedGroups()).containsOnlyKeys(0, 1);
+
+        var result = measureEvaluator.evaluateMeasure(measure, Optional.of(checkpoint)).block();
+
+        verify(dataStore, times(1)).getResources("/" + CONDITION_QUERY);
+        verify(dataStore, times(1)).getResources("/Patient");
+        verify(dataStore, times(2)).getResources("/Observation");
+        assertThat(result.getGroup()).extracting(g -> g.getPopulationFirstRep().getCount()).containsExactly(1, 2, 3);
+        assertCodeableConcept(result.getGroup().get(1).getPopulationFirstRep().getCode(), POPULATION_SYSTEM,
+                INITIAL_POPULATION_CODE);
+        assertThat(openCheckpoint(file).resumedGroups()).containsOnlyKeys(0, 1, 2);
+    }
+
+    @Test
+    void checkpoint_resumesGroupFromNextPage(@TempDir Path dir) {
+        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT, WORKER_POOL);
+        var measure = measureOfQueries("Observation");
+        var file = dir.resolve("checkpoint.ndjson");
+        when(dataStore.supportsPages("/Observation")).thenReturn(true);
+        when(dataStore.getPages("/Observation", Optional.empty())).thenReturn(Flux.just(
+                        new ResourceSource.Page(wrapWithoutIncludes(pathEngine, getObservation("a"), getObservation("b")),
+                                Optional.of("http://page-2")))
+                .concatWith(Flux.error(new RuntimeException("evicted"))));
+
+        var aborted = measureEvaluator.evaluateMeasure(measure, Optional.of(openCheckpoint(file, Duration.ZERO)));
+        assertThatThrownBy(aborted::block).hasMessageContaining("evicted");
+
+        when(dataStore.getPages("/Observation", Optional.of("http://page-2"))).thenReturn(Flux.just(
+                new ResourceSource.Page(wrapWithoutIncludes(pathEngine, getObservation("c")), Optional.empty())));
+        var checkpoint = openCheckpoint(file, Duration.ZERO);
+        assertThat(checkpoint.partialGroups()).containsOnlyKeys(0);
+
+        var result = measureEvaluator.evaluateMeasure(measure, Optional.of(checkpoint)).block();
+
+        verify(dataStore, times(1)).getPages("/Observation", Optional.empty());
+        verify(dataStore, never()).getResources(anyString());
+        assertThat(result.getGroup()).extracting(g -> g.getPopulationFirstRep().getCount()).containsExactly(3);
+        assertThat(openCheckpoint(file).resumedGroups()).containsOnlyKeys(0);
+    }
+
+    @Test
+    void checkpoint_evaluatesGroupAgainIfNextPageIsGone(@TempDir Path dir) {
+        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT, WORKER_POOL);
+        var measure = measureOfQueries("Observation");
+        var file = dir.resolve("checkpoint.ndjson");
+        openCheckpoint(file).groupProgressed(0, new EvaluationCheckpoint.PartialGroup("http://page-2",
+                initialReportGroup(2)));
+        when(dataStore.supportsPages("/Observation")).thenReturn(true);
+        when(dataStore.getPages("/Observation", Optional.of("http://page-2"))).thenReturn(Flux.error(
+                WebClientResponseException.create(410, "Gone", null, null, null)));
+        when(dataStore.getPages("/Observation", Optional.empty())).thenReturn(Flux.just(new ResourceSource.Page(
+                wrapWithoutIncludes(pathEngine, getObservation("a"), getObservation("b"), getObservation("c")),
+                Optional.empty())));
+
+        var result = measureEvaluator.evaluateMeasure(measure, Optional.of(openCheckpoint(file))).block();
+
+        assertThat(result.getGroup()).extracting(g -> g.getPopulationFirstRep().getCount()).containsExactly(3);
+    }
+
+    private static MeasureReport.MeasureReportGroupComponent initialReportGroup(int count) {
+        var group = new MeasureReport.MeasureReportGroupComponent();
+        group.addPopulation().setCount(count).setCode(HashableCoding.INITIAL_POPULATION_CODING.toCodeableConcept());
+        return group;
+    }
+
+    private static EvaluationCheckpoint openCheckpoint(Path file, Duration pageInterval) {
+        return EvaluationCheckpoint.open(file, "measure", "http://localhost:8080/fhir", Duration.ofHours(24),
+                pageInterval, FhirContext.forR4());
+    }
+
+    private static EvaluationCheckpoint openCheckpoint(Path file) {
+        return EvaluationCheckpoint.open(file, "measure", "http://localhost:8080/fhir", Duration.ofHours(24),
+                FhirContext.forR4());
+    }
+
+    @Test
+    void withoutSizeAwareScheduling_keepsOrderOfScans() {
+        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT, WORKER_POOL);
+        stubScans();
+
+        measureEvaluator.evaluateMeasure(measureOfQueries(CONDITION_QUERY, "Patient", "Observation")).block();
+
+        InOrder order = inOrder(dataStore);
+        order.verify(dataStore).getResources("/" + CONDITION_QUERY);
+        order.verify(dataStore).getResources("/Patient");
+        order.verify(dataStore).getResources("/Observation");
+        verify(dataStore, never()).estimateSize(anyString());
+    }
+
+    @Test
+    void sizeAwareScheduling_doesNotEstimateIfAllScansRunAtOnce() {
+        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine, EvaluatorSettings.DEFAULT.withMaxConcurrency(4)
+                .withSizeAwareScheduling(true), WORKER_POOL);
+        stubScans();
+
+        measureEvaluator.evaluateMeasure(measureOfQueries(CONDITION_QUERY, "Patient", "Observation")).block();
+
+        verify(dataStore, never()).estimateSize(anyString());
+    }
+
+    @Test
+    void nextScanStartsAsSoonAsAnyScanIsFinished() {
+        measureEvaluator = new MeasureEvaluator(dataStore, pathEngine,
+                EvaluatorSettings.DEFAULT.withMaxConcurrency(2), WORKER_POOL);
+        Sinks.Many<ResourceWithIncludes> slowScan = Sinks.many().unicast().onBackpressureBuffer();
+        when(dataStore.getResources("/" + CONDITION_QUERY)).thenReturn(slowScan.asFlux());
+        when(dataStore.getResources("/Patient")).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine,
+                getPatient(Enumerations.AdministrativeGender.FEMALE))));
+        when(dataStore.getResources("/Observation")).thenReturn(Flux.fromIterable(wrapWithoutIncludes(pathEngine,
+                getObservation("a"))));
+
+        var result = measureEvaluator.evaluateMeasure(measureOfQueries(CONDITION_QUERY, "Patient", "Observation")).toFuture();
+
+        // the third scan starts while the first one is still running
+        verify(dataStore, timeout(5000)).getResources("/Observation");
+        assertThat(result).isNotDone();
+        slowScan.tryEmitNext(wrapWithoutIncludes(pathEngine, getCondition()).get(0));
+        slowScan.tryEmitComplete();
+        assertThat(result.join().getGroup()).extracting(g -> g.getPopulationFirstRep().getCount()).containsExactly(1, 1, 1);
+    }
 }
@@ -0,0 +1,185 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class NdjsonResourceSourceTest {
+
+    static final WorkerPool WORKER_POOL = new WorkerPool("test-worker", 4);
+
+    @AfterAll
+    static void closeWorkerPool() {
+        WORKER_POOL.close();
+    }
+
+    static final String PROFILE = "https://www.medizininformatik-initiative.de/fhir/core/modul-diagnose/StructureDefinition/Diagnose";
+    static final String OTHER_PROFILE = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-condition";
+
+    @TempDir
+    Path directory;
+
+    FhirContext context;
+
+    @BeforeEach
+    void setUp() {
+        context = FhirContext.forR4();
+    }
+
+    private NdjsonResourceSource source(int chunkSize) {
+        return new NdjsonResourceSource(directory, context, context.newFhirPath(), chunkSize, 4, WORKER_POOL);
+    }
+
+    private void write(String fileName, List<? extends Resource> resources) throws IOException {
+        var parser = context.newJsonParser();
+        Files.writeString(directory.resolve(fileName), resources.stream()
+                .map(parser::encodeResourceToString)
+                .collect(Collectors.joining("\n", "", "\n")));
+    }
+
+    private static Condition condition(int id, String profile) {
+        var condition = new Condition();
+        condition.setId("c" + id);
+        condition.getMeta().addProfile(profile);
+        return condition;
+    }
+
+    private static List<String> ids(List<ResourceWithIncludes> resources) {
+        return resources.stream().map(r -> r.mainResource().getIdPart()).sorted().toList();
+    }
+
+    @ParameterizedTest
+    @DisplayName("reads all resources of all files of the type across chunks")
+    @ValueSource(ints = {1, 100, 1_000_000})
+    void readsAllResources(int chunkSize) throws IOException {
+        write("Condition.ndjson", IntStream.range(0, 50).mapToObj(i -> condition(i, PROFILE)).toList());
+        write("Condition.001.ndjson", IntStream.range(50, 70).mapToObj(i -> condition(i, PROFILE)).toList());
+        write("ConditionDefinition.ndjson", List.of());
+
+        var result = source(chunkSize).getResources("/Condition").collectList().block();
+
+        assertThat(result).hasSize(70);
+        assertThat(ids(result)).containsExactlyInAnyOrderElementsOf(IntStream.range(0, 70).mapToObj(i -> "c" + i).toList());
+    }
+
+    @Test
+    @DisplayName("filters by profile and ignores the page count")
+    void filtersByProfile() throws IOException {
+        write("Condition.ndjson", List.of(condition(0, PROFILE), condition(1, OTHER_PROFILE), condition(2, PROFILE + "|2024")));
+
+        var result = source(1).getResources("/Condition?_profile=" + PROFILE + "&_count=10").collectList().block();
+
+        assertThat(ids(result)).containsExactly("c0", "c2");
+    }
+
+    @Test
+    @DisplayName("filters by profile below")
+    void filtersByProfileBelow() throws IOException {
+        write("Condition.ndjson", List.of(condition(0, PROFILE + "/child"), condition(1, OTHER_PROFILE)));
+
+        var result = source(1).getResources("/Condition?_profile:below=" + PROFILE).collectList().block();
+
+        assertThat(ids(result)).containsExactly("c0");
+    }
+
+    @Test
+    @DisplayName("includes the referenced resources and resolves references")
+    void includes() throws IOException {
+        var medication = new Medication();
+        medication.setId("m1");
+        medication.getCode().addCoding().setSystem("http://fhir.de/CodeSystem/bfarm/atc").setCode("A01");
+        var statement = new MedicationStatement().setMedication(new Reference("Medication/m1"));
+        statement.setId("s1");
+        write("Medication.ndjson", List.of(medication));
+        write("MedicationStatement.ndjson", List.of(statement));
+
+        var result = source(100).getResources("/MedicationStatement?_include=MedicationStatement:medication")
+                .collectList().block();
+
+        assertThat(result).hasSize(1);
+        var resource = result.get(0);
+        assertThat(resource.includes()).containsKey("Medication/m1");
+        assertThat(resource.fhirPathEngine().evaluate(resource.mainResource(),
+                "MedicationStatement.medication.resolve().code.coding.code", CodeType.class))
+                .extracting(CodeType::getValue).containsExactly("A01");
+    }
+
+    @Test
+    @DisplayName("estimates the size of a query by the size of the files of its type")
+    void estimateSize() throws IOException {
+        write("Condition.ndjson", List.of(condition(0, PROFILE)));
+        write("Condition.000.ndjson", List.of(condition(1, PROFILE), condition(2, PROFILE)));
+        write("Observation.ndjson", List.of(new Observation()));
+        var expected = Files.size(directory.resolve("Condition.ndjson")) + Files.size(directory.resolve("Condition.000.ndjson"));
+
+        StepVerifier.create(source(100).estimateSize("/Condition?_profile=" + PROFILE)).expectNext(expected).verifyComplete();
+        StepVerifier.create(source(100).estimateSize("/Patient")).expectNext(0L).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("results in no resources if there are no files of the type")
+    void noFiles() {
+        StepVerifier.create(source(100).getResources("/Observation")).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("fails on unsupported search parameters")
+    void unsupportedParameter() {
+        assertThatThrownBy(() -> source(100).getResources("/Procedure?_versionId=125"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Search parameter '_versionId' is not supported by the NDJSON source");
+    }
+
+    @Test
+    @DisplayName("fails on malformed lines")
+    void malformedLine() throws IOException {
+        Files.writeString(directory.resolve("Condition.ndjson"), "{\"resourceType\":\"Condition\"}\n{\"resourceType\":\"Condition\",\n");
+
+        // a single worker parses the chunks in order, so the resource before the malformed line is emitted first
+        try (var workerPool = new WorkerPool("test-worker", 1)) {
+            var source = new NdjsonResourceSource(directory, context, context.newFhirPath(), 1, 4, workerPool);
+
+            StepVerifier.create(source.getResources("/Condition"))
+                    .expectNextCount(1)
+                    .expectErrorMatches(e -> e instanceof BundleParsingException && e.getMessage().contains("Condition.ndjson at byte 29"))
+                    .verify();
+        }
+    }
+
+    @Test
+    @DisplayName("splits files only after newlines")
+    void planChunks() throws IOException {
+        var file = directory.resolve("Condition.ndjson");
+        Files.writeString(file, "aaa\nbbbbbb\ncc");
+
+        var chunks = source(2).planChunks(file);
+
+        assertThat(chunks).containsExactly(
+                new NdjsonResourceSource.Chunk(file, 0, 4),
+                new NdjsonResourceSource.Chunk(file, 4, 11),
+                new NdjsonResourceSource.Chunk(file, 11, 13));
+    }
+}
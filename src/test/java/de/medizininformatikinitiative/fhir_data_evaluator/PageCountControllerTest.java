@@ -0,0 +1,72 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PageCountControllerTest {
+
+    static final AdaptivePageCountSettings SETTINGS = new AdaptivePageCountSettings(10, 1000, 100_000);
+
+    @Test
+    @DisplayName("doubles the page count while the throughput doesn't drop")
+    void grows() {
+        var controller = new PageCountController(Optional.of(SETTINGS), 50);
+
+        controller.recordPage(50, 5_000, 1_000_000, 0);
+        assertThat(controller.pageCount()).isEqualTo(100);
+        controller.recordPage(100, 10_000, 1_500_000, 500_000);
+        assertThat(controller.pageCount()).isEqualTo(200);
+    }
+
+    @Test
+    @DisplayName("reduces the page count if the throughput drops")
+    void shrinks() {
+        var controller = new PageCountController(Optional.of(SETTINGS), 50);
+
+        controller.recordPage(50, 5_000, 1_000_000, 0);
+        controller.recordPage(100, 10_000, 4_000_000, 0);
+
+        assertThat(controller.pageCount()).isEqualTo(75);
+    }
+
+    @Test
+    @DisplayName("limits the page count to the target page size and the bounds")
+    void limits() {
+        var controller = new PageCountController(Optional.of(SETTINGS), 5000);
+        assertThat(controller.pageCount()).isEqualTo(1000);
+
+        controller.recordPage(1000, 1_000_000, 1_000_000, 0);
+        assertThat(controller.pageCount()).isEqualTo(100);
+
+        controller.recordPage(100, 10_000_000, 1_000_000, 0);
+        assertThat(controller.pageCount()).isEqualTo(10);
+    }
+
+    @Test
+    @DisplayName("keeps the page count and the next links without settings")
+    void fixed() {
+        var controller = new PageCountController(Optional.empty(), 50);
+
+        controller.recordPage(50, 5_000, 1_000_000, 0);
+
+        assertThat(controller.pageCount()).isEqualTo(50);
+        assertThat(controller.nextUrl("http://server/fhir?_count=50&__page-offset=50")).isEqualTo("http://server/fhir?_count=50&__page-offset=50");
+        assertThat(controller.summary()).startsWith("50 resources in 1 pages with page counts between 50 and 50");
+    }
+
+    @Test
+    @DisplayName("rewrites only the _count parameter of the next link")
+    void nextUrl() {
+        var controller = new PageCountController(Optional.of(SETTINGS), 50);
+        controller.recordPage(50, 5_000, 1_000_000, 0);
+
+        assertThat(controller.nextUrl("http://server/fhir/Observation?code=x&_count=50&__page-offset=50"))
+                .isEqualTo("http://server/fhir/Observation?code=x&_count=100&__page-offset=50");
+        assertThat(controller.nextUrl("http://server/fhir?__page-id=abc&my_count=50"))
+                .isEqualTo("http://server/fhir?__page-id=abc&my_count=50");
+    }
+}
@@ -0,0 +1,201 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.fhirpath.IFhirPathEvaluationContext;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SharedFhirPathEngineTest {
+
+    static final String MED_RESOLVE_PATH = "MedicationStatement.medication.resolve().code.coding.code";
+
+    static FhirContext context;
+    static SharedFhirPathEngine engine;
+
+    @BeforeAll
+    static void setUp() {
+        context = FhirContext.forR4();
+        engine = new SharedFhirPathEngine(context);
+    }
+
+    static MedicationStatement medicationStatement() {
+        return new MedicationStatement().setMedication(new Reference("Medication/med-1"));
+    }
+
+    static Map<String, Resource> includes(String code) {
+        var medication = new Medication().setCode(new CodeableConcept(new Coding("system", code, null)));
+        medication.setId("med-1");
+        return Map.of("Medication/med-1", medication);
+    }
+
+    @Test
+    @DisplayName("evaluates like the HAPI engine")
+    void sameAsHapi() {
+        var condition = new Condition().setCode(new CodeableConcept()
+                .addCoding(new Coding("a", "1", null))
+                .addCoding(new Coding("b", "2", null)));
+        var expression = "Condition.code.coding.where(system = 'b').code";
+
+        var actual = engine.evaluate(condition, expression, CodeType.class);
+
+        assertThat(actual).extracting(CodeType::getValue)
+                .containsExactlyElementsOf(context.newFhirPath().evaluate(condition, expression, CodeType.class)
+                        .stream().map(CodeType::getValue).toList());
+    }
+
+    @Test
+    @DisplayName("resolves references with the includes of the evaluation")
+    void resolvesIncludes() {
+        var expression = engine.parse(MED_RESOLVE_PATH);
+
+        assertThat(engine.evaluate(medicationStatement(), expression, CodeType.class, includes("code-1")))
+                .extracting(CodeType::getValue).containsExactly("code-1");
+        assertThat(engine.evaluate(medicationStatement(), expression, CodeType.class, includes("code-2")))
+                .extracting(CodeType::getValue).containsExactly("code-2");
+    }
+
+    @Test
+    @DisplayName("doesn't resolve references without includes")
+    void withoutIncludes() {
+        assertThat(engine.evaluate(medicationStatement(), engine.parse(MED_RESOLVE_PATH), Base.class)).isEmpty();
+    }
+
+    @Test
+    @DisplayName("evaluates the resource with its includes")
+    void resourceWithIncludes() {
+        var resource = new ResourceWithIncludes(medicationStatement(), includes("code-1"), engine);
+
+        assertThat(resource.evaluate(engine.parse(MED_RESOLVE_PATH), CodeType.class))
+                .extracting(CodeType::getValue).containsExactly("code-1");
+    }
+
+    @Test
+    @DisplayName("reuses itself for resources with includes")
+    void engineWithIncludes() {
+        assertThat(ResourceWithIncludes.engineWithIncludes(engine, context, includes("code-1"))).isSameAs(engine);
+    }
+
+    @Test
+    @DisplayName("fails on an unexpected result type")
+    void unexpectedType() {
+        var condition = new Condition().setCode(new CodeableConcept(new Coding("a", "1", null)));
+
+        assertThatThrownBy(() -> engine.evaluate(condition, "Condition.code.coding.code", BooleanType.class))
+                .isInstanceOf(FhirPathExecutionException.class);
+    }
+
+    @Test
+    @DisplayName("fails on expressions parsed by another engine")
+    void foreignExpression() throws Exception {
+        IFhirPath.IParsedExpression expression = context.newFhirPath().parse("Condition.code");
+
+        assertThatThrownBy(() -> engine.evaluate(new Condition(), expression, Base.class))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("ignores an evaluation context")
+    void evaluationContext() {
+        var otherEngine = new SharedFhirPathEngine(context);
+        otherEngine.setEvaluationContext(new IFhirPathEvaluationContext() {
+            @Override
+            public IBase resolveReference(IIdType theReference, IBase theContext) {
+                return includes("a").get(theReference.getValue());
+            }
+        });
+
+        assertThat(otherEngine.evaluate(medicationStatement(), MED_RESOLVE_PATH, Base.class)).isEmpty();
+    }
+
+    @Test
+    @DisplayName("can't get a resolver of the 'include' resources")
+    void setResolver() {
+        assertThatThrownBy(() -> ResourceWithIncludes.setResolver(engine, includes("a")))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Nested
+    class Concurrency {
+
+        static final int THREADS = 8;
+        static final int PAGES_PER_THREAD = 500;
+
+        @Test
+        @DisplayName("resolves the references of each page only with its own includes")
+        void noCrossPageLeakage() throws Exception {
+            var expression = engine.parse(MED_RESOLVE_PATH);
+            var barrier = new CyclicBarrier(THREADS);
+            var executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                var futures = new ArrayList<CompletableFuture<List<String>>>();
+                for (var thread = 0; thread < THREADS; thread++) {
+                    var first = thread * PAGES_PER_THREAD;
+                    futures.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            barrier.await();
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                        var errors = new ArrayList<String>();
+                        for (var page = first; page < first + PAGES_PER_THREAD; page++) {
+                            var code = "code-" + page;
+                            var resource = new ResourceWithIncludes(medicationStatement(), includes(code), engine);
+                            var found = resource.evaluate(expression, CodeType.class).stream()
+                                    .map(CodeType::getValue).toList();
+                            if (!found.equals(List.of(code))) {
+                                errors.add(code + " resolved to " + found);
+                            }
+                        }
+                        return errors;
+                    }, executor));
+                }
+
+                var errors = futures.stream().flatMap(f -> f.join().stream()).toList();
+
+                assertThat(errors).isEmpty();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        @Test
+        @DisplayName("parses the same as a single thread")
+        void parallelParse() {
+            var expressions = IntStream.range(0, 1000).parallel()
+                    .mapToObj(i -> engine.parse("Condition.code.coding.where(code = '" + i + "').code"))
+                    .toList();
+            var condition = new Condition().setCode(new CodeableConcept(new Coding("a", "42", null)));
+
+            assertThat(expressions.get(42)).isNotNull();
+            assertThat(engine.evaluate(condition, expressions.get(42), CodeType.class))
+                    .extracting(CodeType::getValue).containsExactly("42");
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable.PopulationAccumulator;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StratumKeyMapTest {
+
+    @Test
+    void getOrCreate_returnsSamePopulationForEqualKeys() {
+        var map = new StratumKeyMap(2, PopulationAccumulator::new);
+        var key = new int[]{1, 2};
+
+        var population = map.getOrCreate(key);
+        key[1] = 3;
+        var otherPopulation = map.getOrCreate(key);
+        key[1] = 2;
+
+        assertThat(map.getOrCreate(key)).isSameAs(population);
+        assertThat(otherPopulation).isNotSameAs(population);
+        assertThat(map.size()).isEqualTo(2);
+    }
+
+    @Test
+    void getOrCreate_keepsAllKeysWhenGrowing() {
+        var map = new StratumKeyMap(2, PopulationAccumulator::new);
+        var expected = new HashMap<List<Integer>, PopulationAccumulator>();
+
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                expected.put(List.of(i, j), map.getOrCreate(new int[]{i, j}));
+            }
+        }
+
+        var found = new HashMap<List<Integer>, PopulationAccumulator>();
+        map.forEach((key, population) -> found.put(List.of(key[0], key[1]), population));
+        assertThat(map.size()).isEqualTo(10_000);
+        assertThat(found).containsExactlyInAnyOrderEntriesOf(expected);
+        for (Map.Entry<List<Integer>, PopulationAccumulator> entry : expected.entrySet()) {
+            assertThat(map.getOrCreate(new int[]{entry.getKey().get(0), entry.getKey().get(1)})).isSameAs(entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package de.medizininformatikinitiative.fhir_data_evaluator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class WorkerPoolTest {
+
+    @Test
+    @DisplayName("measures the busy time of the stages")
+    void measuresStages() {
+        try (var pool = new WorkerPool("test-worker", 2)) {
+            var start = pool.snapshot();
+
+            var result = pool.time(WorkerPool.Stage.PARSE, () -> "parsed");
+            pool.record(WorkerPool.Stage.EVALUATE, TimeUnit.SECONDS.toNanos(3));
+            pool.record(WorkerPool.Stage.IO, TimeUnit.MILLISECONDS.toNanos(1500));
+
+            assertThat(result).isEqualTo("parsed");
+            assertThat(pool.getEvaluateSeconds()).isEqualTo(3);
+            assertThat(pool.getIoSeconds()).isEqualTo(1.5);
+            assertThat(pool.getParseSeconds()).isPositive();
+            assertThat(pool.getUtilisation()).isPositive();
+            assertThat(pool.utilisationSince(start)).contains("of 2 worker threads, 1.5 s reading responses");
+        }
+    }
+
+    @Test
+    @DisplayName("runs work on its named threads")
+    void runsOnWorkers() {
+        try (var pool = new WorkerPool("test-worker", 1)) {
+            var thread = Mono.fromCallable(() -> Thread.currentThread().getName()).subscribeOn(pool.scheduler()).block();
+
+            assertThat(thread).startsWith("test-worker");
+        }
+    }
+
+    @Test
+    @DisplayName("sizes the pool to the available processors by default")
+    void sizesPool() {
+        try (var configured = WorkerPool.of("test-worker", 3);
+             var byDefault = WorkerPool.of("test-worker", 0)) {
+            assertThat(configured.getThreads()).isEqualTo(3);
+            assertThat(byDefault.getThreads()).isEqualTo(Runtime.getRuntime().availableProcessors());
+        }
+        assertThatThrownBy(() -> new WorkerPool("test-worker", -1)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("disposes its threads when closed")
+    void close() {
+        var pool = new WorkerPool("test-worker", 1);
+
+        pool.close();
+
+        assertThat(pool.scheduler().isDisposed()).isTrue();
+    }
+}
@@ -0,0 +1,114 @@
+package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CompressedIntSetTest {
+
+    private static void assertSameValues(CompressedIntSet actual, Set<Integer> expected, int bound) {
+        assertThat(actual.cardinality()).isEqualTo(expected.size());
+        for (int i = 0; i < bound; i++) {
+            assertThat(actual.contains(i)).isEqualTo(expected.contains(i));
+        }
+    }
+
+    @Test
+    @DisplayName("Sparse chunks retain two bytes per value and full chunks one bit per value")
+    void retainedBytes() {
+        var sparse = new CompressedIntSet();
+        var dense = new CompressedIntSet();
+        for (int i = 0; i < CompressedIntSet.MAX_ARRAY_SIZE; i++) {
+            sparse.add(i * 16);
+        }
+        for (int i = 0; i < 1 << 16; i++) {
+            dense.add(i);
+        }
+
+        assertThat(sparse.retainedBytes()).isBetween(2L * CompressedIntSet.MAX_ARRAY_SIZE,
+                2L * CompressedIntSet.MAX_ARRAY_SIZE + 128);
+        assertThat(dense.retainedBytes()).isBetween((1L << 16) / 8, (1L << 16) / 8 + 128);
+    }
+
+    @Test
+    @DisplayName("Adding a value twice keeps one value")
+    void add_duplicate() {
+        var set = new CompressedIntSet();
+
+        set.add(5);
+        set.add(5);
+        set.add(70_000);
+
+        assertThat(set.cardinality()).isEqualTo(2);
+        assertThat(set.contains(5)).isTrue();
+        assertThat(set.contains(70_000)).isTrue();
+        assertThat(set.contains(4)).isFalse();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {100, CompressedIntSet.MAX_ARRAY_SIZE, CompressedIntSet.MAX_ARRAY_SIZE + 1, 50_000})
+    @DisplayName("Holds the same values as a hash set across array and bitmap chunks")
+    void add_random(int count) {
+        var random = new Random(count);
+        var bound = 3 << 16;
+        var expected = new HashSet<Integer>();
+        var set = new CompressedIntSet();
+
+        for (int i = 0; i < count; i++) {
+            var value = random.nextInt(bound);
+            expected.add(value);
+            set.add(value);
+        }
+
+        assertSameValues(set, expected, bound);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 3_000, 20_000})
+    @DisplayName("Or results in the union and leaves the other set unchanged")
+    void or_union(int count) {
+        var random = new Random(count);
+        var bound = 2 << 16;
+        var expectedA = new HashSet<Integer>();
+        var expectedB = new HashSet<Integer>();
+        var a = new CompressedIntSet();
+        var b = new CompressedIntSet();
+        for (int i = 0; i < count; i++) {
+            var valueA = random.nextInt(bound);
+            expectedA.add(valueA);
+            a.add(valueA);
+            var valueB = random.nextInt(bound / 2);
+            expectedB.add(valueB);
+            b.add(valueB);
+        }
+
+        a.or(b);
+
+        var union = new HashSet<>(expectedA);
+        union.addAll(expectedB);
+        assertSameValues(a, union, bound);
+        assertSameValues(b, expectedB, bound);
+    }
+
+    @Test
+    @DisplayName("Bitmap counters count exactly and only merge with counters of the same dictionary")
+    void bitmapUniqueCounter() {
+        var dictionary = new ReferenceDictionary();
+        var a = BitmapUniqueCounter.of(dictionary).addValue("Patient/1").addValue("Patient/2").addValue("Patient/1");
+        var b = BitmapUniqueCounter.of(dictionary).addValue("Patient/2").addValue("Patient/3");
+
+        assertThat(a.score().getValue().intValue()).isEqualTo(2);
+        assertThat(a.merge(b).score().getValue().intValue()).isEqualTo(3);
+        assertThat(dictionary.size()).isEqualTo(3);
+        assertThatThrownBy(() -> a.merge(BitmapUniqueCounter.of(new ReferenceDictionary())))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,107 @@
+package de.medizininformatikinitiative.fhir_data_evaluator.populations.mutable;
+
+import org.hl7.fhir.r4.model.DecimalType;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigDecimal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class HyperLogLogUniqueCounterTest {
+
+    private static HyperLogLogUniqueCounter counterOf(int precision, int from, int to) {
+        var counter = HyperLogLogUniqueCounter.of(precision);
+        for (int i = from; i < to; i++) {
+            counter.addValue("Patient/" + i);
+        }
+        return counter;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000})
+    @DisplayName("Estimate is within three standard errors of the exact count")
+    void estimate_isAccurate(int count) {
+        var counter = counterOf(HyperLogLogUniqueCounter.DEFAULT_PRECISION, 0, count);
+
+        assertThat((double) counter.estimate()).isCloseTo(count, within(3 * counter.relativeStandardError() * count + 1));
+    }
+
+    @Test
+    @DisplayName("Estimate doesn't count duplicate values")
+    void estimate_ignoresDuplicates() {
+        var counter = counterOf(10, 0, 100);
+        for (int i = 0; i < 100; i++) {
+            counter.addValue("Patient/" + i);
+        }
+
+        assertThat(counter.estimate()).isEqualTo(counterOf(10, 0, 100).estimate());
+    }
+
+    @Test
+    @DisplayName("Merged counter has the same estimate as the counter of the union")
+    void merge_equalsUnion() {
+        var merged = counterOf(12, 0, 60_000).merge(counterOf(12, 40_000, 100_000));
+
+        assertThat(merged.estimate()).isEqualTo(counterOf(12, 0, 100_000).estimate());
+    }
+
+    @Test
+    @DisplayName("Counters of different precision or kind can't be merged")
+    void merge_differentCounter() {
+        var counter = HyperLogLogUniqueCounter.of(12);
+
+        assertThatThrownBy(() -> counter.merge(HyperLogLogUniqueCounter.of(13)))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> counter.merge(AggregateUniqueCounter.of()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("Precision must be in range")
+    void of_invalidPrecision() {
+        assertThatThrownBy(() -> HyperLogLogUniqueCounter.of(HyperLogLogUniqueCounter.MIN_PRECISION - 1))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("HyperLogLog precision must be between 4 and 18, but was 3");
+        assertThatThrownBy(() -> HyperLogLogUniqueCounter.of(HyperLogLogUniqueCounter.MAX_PRECISION + 1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("Score contains the estimate and the relative standard error")
+    void score() {
+        var score = counterOf(HyperLogLogUniqueCounter.DEFAULT_PRECISION, 0, 2).score();
+
+        assertThat(score.getValue()).isEqualTo(new BigDecimal(2));
+        assertThat(((DecimalType) score.getExtensionByUrl(HyperLogLogUniqueCounter.STANDARD_ERROR_EXTENSION_URL).getValue())
+                .getValue()).isEqualTo(new BigDecimal("0.00813"));
+    }
+
+    @Test
+    @DisplayName("Estimate of many values is close to the count of the exact counter, which retains far more memory")
+    void estimate_comparedToExact() {
+        var count = 200_000;
+        var exact = AggregateUniqueCounter.of();
+        var approximate = HyperLogLogUniqueCounter.of(HyperLogLogUniqueCounter.DEFAULT_PRECISION);
+        for (int i = 0; i < count; i++) {
+            exact.addValue("Patient/" + i);
+            approximate.addValue("Patient/" + i);
+        }
+
+        var exactCount = exact.score().getValue().doubleValue();
+        var relativeError = Math.abs(approximate.estimate() - exactCount) / exactCount;
+        assertThat(relativeError).isLessThan(3 * approximate.relativeStandardError());
+        assertThat(approximate.retainedBytes()).isEqualTo(24 + 16 + (1 << HyperLogLogUniqueCounter.DEFAULT_PRECISION));
+        assertThat(exact.retainedBytes()).isGreaterThan(1_000 * approximate.retainedBytes());
+    }
+
+    @Test
+    @DisplayName("Retained memory doesn't grow with the number of values")
+    void retainedBytes_constant() {
+        assertThat(counterOf(12, 0, 1_000_000).retainedBytes()).isEqualTo(HyperLogLogUniqueCounter.of(12).retainedBytes());
+    }
+}